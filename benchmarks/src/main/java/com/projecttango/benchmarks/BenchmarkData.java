@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import com.projecttango.tangoutils.math.Matrix4;
+import com.projecttango.tangoutils.session.SyntheticSession;
+
+/**
+ * Inputs shared by the benchmarks. Depth frames and poses come from a
+ * {@link SyntheticSession} with a fixed seed, so every run measures the same
+ * data.
+ */
+final class BenchmarkData {
+
+    static final long SEED = 1;
+    /** A Tango tablet's depth frame. */
+    static final String TANGO_FRAME_POINTS = "12000";
+    /** Load-test frame sizes, up to {@code PointCloudActivity}'s synthetic maximum. */
+    static final String LARGE_FRAME_POINTS = "60000";
+    static final String MAX_FRAME_POINTS = "100000";
+
+    private BenchmarkData() {
+    }
+
+    /** Depth frame {@code index} of {@code points} points, in a direct buffer. */
+    static FloatBuffer depthFrame(int points, long index) {
+        FloatBuffer xyz = ByteBuffer.allocateDirect(points * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        new SyntheticSession(SEED, points, SyntheticSession.DEFAULT_DEPTH_RATE_HZ,
+                SyntheticSession.DEFAULT_POSE_RATE_HZ).getDepthFrame(index, xyz);
+        return xyz;
+    }
+
+    static float[] toArray(FloatBuffer xyz) {
+        float[] points = new float[xyz.limit()];
+        xyz.duplicate().get(points);
+        return points;
+    }
+
+    /** Column-major rigid transform of the synthetic device at {@code time}. */
+    static float[] poseMatrix(double time) {
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        new SyntheticSession(SEED, 1, SyntheticSession.DEFAULT_DEPTH_RATE_HZ,
+                SyntheticSession.DEFAULT_POSE_RATE_HZ).getPose(time, translation, rotation);
+        float[] matrix = new float[16];
+        Matrix4.setRotationTranslation(matrix, 0, toFloats(rotation),
+                toFloats(translation));
+        return matrix;
+    }
+
+    static float[] toFloats(double[] values) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = (float) values[i];
+        }
+        return floats;
+    }
+
+    /** Column-major perspective projection. */
+    static float[] perspective(float fovY, float aspect, float near, float far) {
+        float[] m = new float[16];
+        Matrix4.perspective(m, 0, fovY, aspect, near, far);
+        return m;
+    }
+}
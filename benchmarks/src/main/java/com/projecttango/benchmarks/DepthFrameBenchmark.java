@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.projecttango.tangoutils.math.Matrix4;
+import com.projecttango.tangoutils.pointcloud.DepthStats;
+import com.projecttango.tangoutils.pointcloud.DepthStatsCalculator;
+import com.projecttango.tangoutils.pointcloud.VoxelGridFilter;
+import com.projecttango.tangoutils.pointcloud.VoxelMap;
+
+/**
+ * Per-frame point processing of the depth callback, at a tablet's frame size
+ * and at load-test sizes. Each operation processes one whole frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DepthFrameBenchmark {
+
+    // As configured in PointCloudActivity.
+    private static final float DEPTH_LEAF_SIZE_M = 0.02f;
+    private static final float MAP_VOXEL_SIZE_M = 0.05f;
+    private static final int MAP_MAX_VOXELS = 128 * 1024;
+
+    @Param({ BenchmarkData.TANGO_FRAME_POINTS, BenchmarkData.LARGE_FRAME_POINTS,
+            BenchmarkData.MAX_FRAME_POINTS })
+    public int points;
+
+    private FloatBuffer mXyz;
+    private float[] mXyzArray;
+    private float[] mTransformed;
+    private float[] mModelMatrix;
+    private final DepthStatsCalculator mStats = new DepthStatsCalculator();
+    private VoxelGridFilter mFilter;
+    private VoxelMap mMap;
+
+    @Setup
+    public void setUp() {
+        mXyz = BenchmarkData.depthFrame(points, 0);
+        mXyzArray = BenchmarkData.toArray(mXyz);
+        mTransformed = new float[mXyzArray.length];
+        mModelMatrix = BenchmarkData.poseMatrix(0);
+        mFilter = new VoxelGridFilter(DEPTH_LEAF_SIZE_M, points);
+        mMap = new VoxelMap(MAP_VOXEL_SIZE_M, MAP_MAX_VOXELS);
+        // Reach the steady state where the frame's voxels already exist.
+        mMap.insertFrame(mXyz, points, mModelMatrix);
+    }
+
+    @Benchmark
+    public DepthStats depthStats() {
+        return mStats.update(0, mXyz, points);
+    }
+
+    @Benchmark
+    public int voxelGridFilter() {
+        return mFilter.filter(mXyz, points);
+    }
+
+    /**
+     * The voxel filter written the obvious way, with string keys in a
+     * {@link HashMap}, as a baseline for {@link #voxelGridFilter}.
+     */
+    @Benchmark
+    public int voxelGridFilterHashMap() {
+        HashMap<String, float[]> voxels = new HashMap<String, float[]>();
+        float inverse = 1 / DEPTH_LEAF_SIZE_M;
+        for (int i = 0; i < points * 3; i += 3) {
+            float x = mXyzArray[i];
+            float y = mXyzArray[i + 1];
+            float z = mXyzArray[i + 2];
+            String key = (int) Math.floor(x * inverse) + "," + (int) Math.floor(y * inverse)
+                    + "," + (int) Math.floor(z * inverse);
+            float[] sum = voxels.get(key);
+            if (sum == null) {
+                sum = new float[4];
+                voxels.put(key, sum);
+            }
+            sum[0] += x;
+            sum[1] += y;
+            sum[2] += z;
+            sum[3]++;
+        }
+        return voxels.size();
+    }
+
+    /** Depth camera to world transform of every point. */
+    @Benchmark
+    public float[] transformPoints() {
+        Matrix4.transformPoints(mModelMatrix, 0, mXyzArray, 0, mTransformed, 0,
+                points);
+        return mTransformed;
+    }
+
+    @Benchmark
+    public VoxelMap voxelMapInsert() {
+        mMap.insertFrame(mXyz, points, mModelMatrix);
+        return mMap;
+    }
+}
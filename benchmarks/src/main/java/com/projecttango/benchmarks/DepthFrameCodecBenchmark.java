@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.projecttango.tangoutils.telemetry.DepthFrameCodec;
+
+/**
+ * Depth frame compression speed and ratio. The byte counters are reported as
+ * rates: rawBytes is the codec's throughput in float32 input, and
+ * rawBytes / encodedBytes is the compression ratio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DepthFrameCodecBenchmark {
+
+    @Param({ BenchmarkData.TANGO_FRAME_POINTS, BenchmarkData.MAX_FRAME_POINTS })
+    public int points;
+
+    @Param({ "0.001", "0.004" })
+    public float precision;
+
+    @Param({ "false", "true" })
+    public boolean deflate;
+
+    private FloatBuffer mXyz;
+    private DepthFrameCodec mCodec;
+    private byte[] mEncoded;
+    private int mEncodedLength;
+    private float[] mDecoded;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long rawBytes;
+        public long encodedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            encodedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mXyz = BenchmarkData.depthFrame(points, 0);
+        mCodec = new DepthFrameCodec(points, precision, deflate);
+        mEncoded = new byte[DepthFrameCodec.maxEncodedSize(points)];
+        mEncodedLength = mCodec.encode(0, mXyz, points, mEncoded, 0);
+        mDecoded = new float[points * 3];
+    }
+
+    @Benchmark
+    public int encode(Bytes bytes) {
+        int length = mCodec.encode(0, mXyz, points, mEncoded, 0);
+        bytes.rawBytes += points * 3 * 4;
+        bytes.encodedBytes += length;
+        return length;
+    }
+
+    @Benchmark
+    public int decode(Bytes bytes) {
+        int count = mCodec.decode(mEncoded, 0, mEncodedLength, mDecoded);
+        bytes.rawBytes += count * 3 * 4;
+        bytes.encodedBytes += mEncodedLength;
+        return count;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.projecttango.tangoutils.concurrent.TripleBuffer;
+
+/**
+ * Handing depth frames from the depth callback to the render loop, through a
+ * {@link TripleBuffer} and through a lock the reader holds while it copies
+ * the frame out. The producers and the reader run on their own threads.
+ * Calls are sampled rather than counted, so the p99 and p99.9 of each read
+ * show how long the render loop can stall, not just how often it reads.
+ *
+ * The contended groups run {@link #CONTENDED_WRITERS} producers, as when
+ * several callbacks publish into the same frame. The triple buffer takes a
+ * single producer, so its writers serialize on a lock of their own that the
+ * reader never touches; in the locked variant the reader competes with all
+ * of them.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameHandoffBenchmark {
+
+    private static final int CONTENDED_WRITERS = 3;
+
+    @Param({ BenchmarkData.TANGO_FRAME_POINTS })
+    public int points;
+
+    private float[] mSource;
+    private TripleBuffer<float[]> mFrames;
+    private float[] mShared;
+    private float[] mReaderCopy;
+    private final Object mLock = new Object();
+    private final Object mWriterLock = new Object();
+
+    @Setup
+    public void setUp() {
+        mSource = BenchmarkData.toArray(BenchmarkData.depthFrame(points, 0));
+        mFrames = new TripleBuffer<float[]>(new float[mSource.length],
+                new float[mSource.length], new float[mSource.length]);
+        mShared = new float[mSource.length];
+        mReaderCopy = new float[mSource.length];
+    }
+
+    @Benchmark
+    @Group("tripleBuffer")
+    @GroupThreads(1)
+    public void tripleBufferWrite() {
+        writeTripleBuffer();
+    }
+
+    @Benchmark
+    @Group("tripleBuffer")
+    @GroupThreads(1)
+    public float tripleBufferRead() {
+        return readTripleBuffer();
+    }
+
+    @Benchmark
+    @Group("tripleBufferContended")
+    @GroupThreads(CONTENDED_WRITERS)
+    public void tripleBufferContendedWrite() {
+        synchronized (mWriterLock) {
+            writeTripleBuffer();
+        }
+    }
+
+    @Benchmark
+    @Group("tripleBufferContended")
+    @GroupThreads(1)
+    public float tripleBufferContendedRead() {
+        return readTripleBuffer();
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(1)
+    public void lockedWrite() {
+        writeLocked();
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(1)
+    public float lockedRead() {
+        return readLocked();
+    }
+
+    @Benchmark
+    @Group("lockedContended")
+    @GroupThreads(CONTENDED_WRITERS)
+    public void lockedContendedWrite() {
+        writeLocked();
+    }
+
+    @Benchmark
+    @Group("lockedContended")
+    @GroupThreads(1)
+    public float lockedContendedRead() {
+        return readLocked();
+    }
+
+    private void writeTripleBuffer() {
+        System.arraycopy(mSource, 0, mFrames.getWriteBuffer(), 0, mSource.length);
+        mFrames.publish();
+    }
+
+    private float readTripleBuffer() {
+        float[] frame = mFrames.acquire();
+        return frame[0] + frame[frame.length - 1];
+    }
+
+    private void writeLocked() {
+        synchronized (mLock) {
+            System.arraycopy(mSource, 0, mShared, 0, mSource.length);
+        }
+    }
+
+    private float readLocked() {
+        synchronized (mLock) {
+            System.arraycopy(mShared, 0, mReaderCopy, 0, mShared.length);
+        }
+        return mReaderCopy[0] + mReaderCopy[mReaderCopy.length - 1];
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.projecttango.tangoutils.ModelMatCalculator;
+import com.projecttango.tangoutils.math.Matrix4;
+import com.projecttango.tangoutils.math.Quaternion;
+
+/**
+ * The {@link Matrix4} kernel, with the specialized rigid transform operations
+ * next to the general ones they replace.
+ *
+ * {@code android.opengl.Matrix.multiplyMM} is native on a device and cannot
+ * run here, so device numbers for it have to come from a run on a tablet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Matrix4Benchmark {
+
+    private static final int BATCH_SIZE = 64;
+    // Tango start of service to OpenGL world axes.
+    private static final float[] CONVERSION = new float[] { 1f, 0f, 0f, 0f, 0f,
+            0f, -1f, 0f, 0f, 1f, 0f, 0f, 0f, 0f, 0f, 1f };
+
+    private float[] mPose;
+    private float[] mExtrinsics;
+    private float[] mProjection;
+    private float[] mTranslation;
+    private float[] mRotation;
+    private float[] mPoses;
+    private final float[] mPoseResults = new float[BATCH_SIZE * Matrix4.SIZE];
+    private final float[] mResult = new float[Matrix4.SIZE];
+    private final float[] mScratch = new float[2 * Matrix4.SIZE];
+    private final float[] mQuaternion = new float[4];
+    private final ModelMatCalculator mCalculator = new ModelMatCalculator();
+
+    @Setup
+    public void setUp() {
+        mPose = BenchmarkData.poseMatrix(3.0);
+        // Stands in for the calculator's extrinsic chain, which costs the
+        // same to apply whatever its values.
+        mExtrinsics = BenchmarkData.poseMatrix(0.5);
+        mProjection = BenchmarkData.perspective(65f, 1.6f, 0.01f, 200f);
+        mTranslation = new float[] { mPose[12], mPose[13], mPose[14] };
+        mRotation = new float[] { 0.18f, 0.62f, 0.62f, 0.44f };
+        mPoses = new float[BATCH_SIZE * Matrix4.SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            System.arraycopy(BenchmarkData.poseMatrix(i * 0.1), 0, mPoses,
+                    i * Matrix4.SIZE, Matrix4.SIZE);
+        }
+    }
+
+    @Benchmark
+    public float[] multiply() {
+        Matrix4.multiply(mResult, 0, mProjection, 0, mPose, 0);
+        return mResult;
+    }
+
+    @Benchmark
+    public float[] invert() {
+        Matrix4.invert(mResult, 0, mPose, 0);
+        return mResult;
+    }
+
+    @Benchmark
+    public float[] invertRigid() {
+        Matrix4.invertRigid(mResult, 0, mPose, 0);
+        return mResult;
+    }
+
+    @Benchmark
+    public float[] setRotationTranslation() {
+        Matrix4.setRotationTranslation(mResult, 0, mRotation, mTranslation);
+        return mResult;
+    }
+
+    /**
+     * A pose's model matrix the way it was built before the kernel: rotation
+     * matrix, two general multiplies, then the translation added on.
+     */
+    @Benchmark
+    public float[] modelMatrixSeparate() {
+        float[] scratch = mScratch;
+        ModelMatCalculator.quaternionMatrixOpenGL(mRotation, scratch);
+        Matrix4.multiply(scratch, Matrix4.SIZE, scratch, 0, mExtrinsics, 0);
+        Matrix4.multiply(scratch, 0, CONVERSION, 0, scratch, Matrix4.SIZE);
+        float[] result = mResult;
+        System.arraycopy(scratch, 0, result, 0, Matrix4.SIZE);
+        result[12] += mTranslation[0];
+        result[13] += mTranslation[2];
+        result[14] -= mTranslation[1];
+        return result;
+    }
+
+    /** The same matrix, with the extrinsics applied, as it is built now. */
+    @Benchmark
+    public float[] modelMatrixFused() {
+        mCalculator.updateModelMatrix(mTranslation, mRotation);
+        return mCalculator.getModelMatrix();
+    }
+
+    /** A fixed transform applied to a batch of poses, per pose. */
+    @Benchmark
+    public float[] multiplyEach() {
+        Matrix4.multiplyEach(mPoseResults, 0, CONVERSION, 0, mPoses, 0,
+                BATCH_SIZE);
+        return mPoseResults;
+    }
+
+    @Benchmark
+    public float[] quaternionMultiply() {
+        Quaternion.multiply(mQuaternion, mRotation, mRotation);
+        return mQuaternion;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.projecttango.tangoutils.ModelMatCalculator;
+
+/**
+ * Per-callback matrix work: the pose and depth callbacks each update a model
+ * matrix from a Tango pose.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModelMatCalculatorBenchmark {
+
+    private final ModelMatCalculator mCalculator = new ModelMatCalculator();
+    private float[] mTranslation;
+    private float[] mRotation;
+    private final float[] mMatrix = new float[16];
+
+    @Setup
+    public void setUp() {
+        // Small offsets like a tablet's IMU to camera extrinsics.
+        mCalculator.SetDevice2IMUMatrix(new float[] { 0.01f, -0.02f, 0.005f },
+                new float[] { 0.01f, 0.7f, 0.01f, 0.71f });
+        mCalculator.SetColorCamera2IMUMatrix(new float[] { 0.06f, 0.005f, -0.004f },
+                new float[] { 0.7f, 0.01f, 0.01f, 0.71f });
+        float[] pose = BenchmarkData.poseMatrix(3.0);
+        mTranslation = new float[] { pose[12], pose[13], pose[14] };
+        mRotation = new float[] { 0.18f, 0.62f, 0.62f, 0.44f };
+    }
+
+    @Benchmark
+    public float[] updateModelMatrix() {
+        mCalculator.updateModelMatrix(mTranslation, mRotation);
+        return mCalculator.getModelMatrix();
+    }
+
+    @Benchmark
+    public ModelMatCalculator updatePointCloudModelMatrix() {
+        mCalculator.updatePointCloudModelMatrix(mTranslation, mRotation);
+        return mCalculator;
+    }
+
+    @Benchmark
+    public float[] quaternionMatrixOpenGL() {
+        ModelMatCalculator.quaternionMatrixOpenGL(mRotation, mMatrix);
+        return mMatrix;
+    }
+
+    /** The allocating variant, to show what the in-place one saves. */
+    @Benchmark
+    public float[] quaternionMatrixOpenGLAllocating() {
+        return ModelMatCalculator.quaternionMatrixOpenGL(mRotation);
+    }
+}
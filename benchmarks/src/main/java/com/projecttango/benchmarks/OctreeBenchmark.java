@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.projecttango.tangoutils.math.Frustum;
+import com.projecttango.tangoutils.pointcloud.PointOctree;
+
+/**
+ * Building the map's level-of-detail octree and selecting the points to draw,
+ * against the size of the map. The map is a 1 m high band of points over a
+ * square floor, seen from 1.5 m above one edge looking across it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OctreeBenchmark {
+
+    // As configured in PointCloudActivity.
+    private static final int MAX_DRAWN_POINTS = 48 * 1024;
+    private static final int VIEWPORT_HEIGHT = 1200;
+    private static final float MAX_ERROR_PIXELS = 2;
+    private static final float POINT_DENSITY_PER_M2 = 400;
+
+    @Param({ "50000", "250000", "1000000" })
+    public int mapPoints;
+
+    private float[] mXyz;
+    private PointOctree mTree;
+    private final float[] mViewMatrix = new float[16];
+    private final float[] mProjectionMatrix = BenchmarkData.perspective(45, 0.6f, 0.1f, 1000);
+    private final Frustum mFrustum = new Frustum();
+    private final FloatBuffer mOut = ByteBuffer.allocateDirect(MAX_DRAWN_POINTS * 3 * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+    /** Points selected per operation; divide by the operation count. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Selection {
+        public long drawnPoints;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            drawnPoints = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(BenchmarkData.SEED);
+        float side = (float) Math.sqrt(mapPoints / POINT_DENSITY_PER_M2);
+        mXyz = new float[mapPoints * 3];
+        for (int i = 0; i < mXyz.length; i += 3) {
+            mXyz[i] = random.nextFloat() * side;
+            mXyz[i + 1] = random.nextFloat();
+            mXyz[i + 2] = -random.nextFloat() * side;
+        }
+        mTree = PointOctree.build(mXyz, mapPoints);
+        // Camera at (side / 2, 1.5, 0) looking down -z, tilted 20 degrees down.
+        double tilt = Math.toRadians(20);
+        float cos = (float) Math.cos(tilt);
+        float sin = (float) Math.sin(tilt);
+        mViewMatrix[0] = 1;
+        mViewMatrix[5] = cos;
+        mViewMatrix[6] = sin;
+        mViewMatrix[9] = -sin;
+        mViewMatrix[10] = cos;
+        mViewMatrix[15] = 1;
+        float eyeX = side / 2;
+        float eyeY = 1.5f;
+        mViewMatrix[12] = -eyeX;
+        mViewMatrix[13] = -(cos * eyeY);
+        mViewMatrix[14] = -(sin * eyeY);
+        mFrustum.set(mViewMatrix, mProjectionMatrix);
+    }
+
+    @Benchmark
+    public PointOctree build() {
+        return PointOctree.build(mXyz, mapPoints);
+    }
+
+    @Benchmark
+    public int selectLod(Selection selection) {
+        int drawn = mTree.selectLod(mViewMatrix, mProjectionMatrix, VIEWPORT_HEIGHT,
+                MAX_ERROR_PIXELS, mFrustum, mOut, MAX_DRAWN_POINTS);
+        selection.drawnPoints += drawn;
+        return drawn;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.projecttango.tangoutils.math.Matrix4;
+import com.projecttango.tangoutils.pointcloud.PointTransformer;
+
+/**
+ * Depth camera to world transform of whole frames, in each layout, on the
+ * calling thread and split across {@code threads} threads. Frames from a
+ * tablet's size up to bulk processing of merged frames. Each operation
+ * transforms one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PointTransformBenchmark {
+
+    @Param({ "10000", "30000", "100000", "300000" })
+    public int points;
+
+    @Param({ "1", "2", "4" })
+    public int threads;
+
+    private FloatBuffer mXyz;
+    private float[] mXyzArray;
+    private float[] mWorld;
+    private float[] mX, mY, mZ;
+    private float[] mWorldX, mWorldY, mWorldZ;
+    private float[] mModelMatrix;
+    private PointTransformer mSerial;
+    private PointTransformer mParallel;
+
+    @Setup
+    public void setUp() {
+        mXyz = BenchmarkData.depthFrame(points, 0);
+        mXyzArray = BenchmarkData.toArray(mXyz);
+        mWorld = new float[mXyzArray.length];
+        mX = new float[points];
+        mY = new float[points];
+        mZ = new float[points];
+        PointTransformer.deinterleave(mXyzArray, points, mX, mY, mZ);
+        mWorldX = new float[points];
+        mWorldY = new float[points];
+        mWorldZ = new float[points];
+        mModelMatrix = BenchmarkData.poseMatrix(0);
+        mSerial = new PointTransformer(1, Integer.MAX_VALUE);
+        // Split every frame, to see where splitting starts to pay off.
+        mParallel = new PointTransformer(threads, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSerial.close();
+        mParallel.close();
+    }
+
+    /** The scalar loop on interleaved points, with no transformer. */
+    @Benchmark
+    public float[] interleaved() {
+        Matrix4.transformPoints(mModelMatrix, 0, mXyzArray, 0, mWorld, 0, points);
+        return mWorld;
+    }
+
+    /** Interleaved points read from the direct buffer the depth callback gets. */
+    @Benchmark
+    public float[] interleavedFromBuffer() {
+        mSerial.transform(mModelMatrix, mXyz, points, mWorld);
+        return mWorld;
+    }
+
+    @Benchmark
+    public float[] separate() {
+        mSerial.transform(mModelMatrix, mX, mY, mZ, points, mWorldX, mWorldY,
+                mWorldZ);
+        return mWorldX;
+    }
+
+    @Benchmark
+    public float[] interleavedParallel() {
+        mParallel.transform(mModelMatrix, mXyzArray, points, mWorld);
+        return mWorld;
+    }
+
+    @Benchmark
+    public float[] separateParallel() {
+        mParallel.transform(mModelMatrix, mX, mY, mZ, points, mWorldX, mWorldY,
+                mWorldZ);
+        return mWorldX;
+    }
+}
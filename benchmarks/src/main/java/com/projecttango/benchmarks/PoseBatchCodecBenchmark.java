@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.projecttango.tangoutils.session.SyntheticSession;
+import com.projecttango.tangoutils.telemetry.PoseBatch;
+import com.projecttango.tangoutils.telemetry.PoseBatchCodec;
+
+/**
+ * Pose batch encoding and decoding, for the uploader and the ingest server.
+ * The counters are reported as rates: poses is the codec's throughput in
+ * poses and encodedBytes / poses the size of an encoded pose.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PoseBatchCodecBenchmark {
+
+    // The uploader's batch, and a large one as the server may receive.
+    @Param({ "200", "4096" })
+    public int poses;
+
+    private PoseBatch mBatch;
+    private PoseBatch mDecoded;
+    private byte[] mEncoded;
+    private int mEncodedLength;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counts {
+        public long poses;
+        public long encodedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            poses = 0;
+            encodedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        SyntheticSession session = new SyntheticSession(BenchmarkData.SEED, 1,
+                SyntheticSession.DEFAULT_DEPTH_RATE_HZ,
+                SyntheticSession.DEFAULT_POSE_RATE_HZ);
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        mBatch = new PoseBatch(poses);
+        for (int i = 0; i < poses; i++) {
+            double time = i / SyntheticSession.DEFAULT_POSE_RATE_HZ;
+            session.getPose(time, translation, rotation);
+            mBatch.add(time, translation, rotation, 1);
+        }
+        mDecoded = new PoseBatch(poses);
+        mEncoded = new byte[PoseBatchCodec.maxEncodedSize(poses)];
+        mEncodedLength = PoseBatchCodec.encode(mBatch, mEncoded, 0);
+    }
+
+    @Benchmark
+    public int encode(Counts counts) {
+        int length = PoseBatchCodec.encode(mBatch, mEncoded, 0);
+        counts.poses += poses;
+        counts.encodedBytes += length;
+        return length;
+    }
+
+    @Benchmark
+    public PoseBatch decode(Counts counts) {
+        PoseBatchCodec.decode(mEncoded, 0, mEncodedLength, mDecoded);
+        counts.poses += poses;
+        counts.encodedBytes += mEncodedLength;
+        return mDecoded;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.projecttango.tangoutils.session.SessionListener;
+import com.projecttango.tangoutils.session.SessionRecorder;
+import com.projecttango.tangoutils.session.SessionReplay;
+import com.projecttango.tangoutils.session.SyntheticSession;
+
+/**
+ * Replaying a recorded session as fast as possible: 10 s of synthetic poses
+ * at 100 Hz and depth at 5 Hz, stored as floats or compressed. One operation
+ * is one whole replay; the file is in the page cache after the first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SessionReplayBenchmark {
+
+    private static final double SESSION_SECONDS = 10;
+
+    @Param({ BenchmarkData.TANGO_FRAME_POINTS, BenchmarkData.MAX_FRAME_POINTS })
+    public int points;
+
+    /** Depth precision in meters, or 0 to store floats. */
+    @Param({ "0", "0.001" })
+    public float depthPrecision;
+
+    private File mFile;
+    private SessionReplay mReplay;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("benchmark", ".tses");
+        SessionRecorder recorder = new SessionRecorder(mFile,
+                SessionRecorder.DEFAULT_CHUNK_SIZE, depthPrecision, points);
+        new SyntheticSession(BenchmarkData.SEED, points,
+                SyntheticSession.DEFAULT_DEPTH_RATE_HZ, SyntheticSession.DEFAULT_POSE_RATE_HZ)
+                .run(recorder, SESSION_SECONDS, false);
+        recorder.close();
+        mReplay = new SessionReplay(mFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mReplay.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long replay(final Blackhole blackhole) throws IOException {
+        return mReplay.play(new SessionListener() {
+            @Override
+            public void onPose(double timestamp, int baseFrame, int targetFrame,
+                    int statusCode, double[] translation, double[] rotation) {
+                blackhole.consume(translation[0]);
+            }
+
+            @Override
+            public void onXyzIj(double timestamp, FloatBuffer xyz, int xyzCount,
+                    int ijRows, int ijCols, IntBuffer ij) {
+                blackhole.consume(xyz.get(xyzCount * 3 - 1));
+            }
+
+            @Override
+            public void onExtrinsics(int baseFrame, int targetFrame,
+                    double[] translation, double[] rotation) {
+            }
+        }, 0);
+    }
+}
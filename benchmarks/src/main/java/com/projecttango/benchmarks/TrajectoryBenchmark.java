@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.projecttango.tangoutils.pose.TrajectoryPath;
+
+/**
+ * Appending poses to the trajectory drawn by the renderer. Positions follow
+ * a walk at 1.5 m/s sampled at 100 Hz, either straight or with a random
+ * heading, on top of a path that already holds a long session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TrajectoryBenchmark {
+
+    private static final int WALK_LENGTH = 1 << 16;
+    private static final int REBUILD_POSITIONS = 10000;
+    private static final float STEP_M = 0.015f;
+
+    @Param({ "straight", "random" })
+    public String walk;
+
+    private final float[] mWalk = new float[WALK_LENGTH * 3];
+    private final TrajectoryPath mPath = new TrajectoryPath();
+    private int mNext;
+    private float mOffset;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(BenchmarkData.SEED);
+        boolean isStraight = walk.equals("straight");
+        double heading = 0;
+        float x = 0;
+        float y = 0;
+        for (int i = 0; i < WALK_LENGTH; i++) {
+            if (!isStraight) {
+                heading += random.nextGaussian() * 0.2;
+            }
+            x += STEP_M * Math.cos(heading);
+            y += STEP_M * Math.sin(heading);
+            mWalk[i * 3] = x;
+            mWalk[i * 3 + 1] = y;
+            mWalk[i * 3 + 2] = 0.002f * (float) random.nextGaussian();
+        }
+        for (int i = 0; i < WALK_LENGTH; i++) {
+            add();
+        }
+    }
+
+    @Benchmark
+    public TrajectoryPath add() {
+        int i = mNext * 3;
+        mPath.add(mWalk[i] + mOffset, mWalk[i + 1], mWalk[i + 2]);
+        if (++mNext == WALK_LENGTH) {
+            // Continue the walk past its end instead of doubling back.
+            mNext = 0;
+            mOffset += mWalk[(WALK_LENGTH - 1) * 3];
+        }
+        return mPath;
+    }
+
+    /**
+     * Starting over and refilling, per position. {@code Trajectory.resetPath}
+     * no longer drops anything, so clearing is the only reset left.
+     */
+    @Benchmark
+    @OperationsPerInvocation(REBUILD_POSITIONS)
+    public TrajectoryPath clearAndRebuild() {
+        mPath.clear();
+        for (int i = 0; i < REBUILD_POSITIONS * 3; i += 3) {
+            mPath.add(mWalk[i], mWalk[i + 1], mWalk[i + 2]);
+        }
+        return mPath;
+    }
+}
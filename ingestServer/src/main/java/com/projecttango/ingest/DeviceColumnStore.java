@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.ingest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.projecttango.tangoutils.telemetry.PoseBatch;
+
+/**
+ * Append-only columnar pose storage for one device. Each field goes to its own
+ * little-endian file in the device directory:
+ *
+ * <pre>
+ * timestamp.f64            seconds
+ * tx.f32 ty.f32 tz.f32     translation in meters
+ * qx.f32 qy.f32 qz.f32 qw.f32
+ * status.u8
+ * </pre>
+ *
+ * Row {@code i} of every file belongs to the same pose, so a column can be
+ * loaded directly as an array by analysis tools. Rows are staged in direct
+ * buffers and written in blocks; {@link #flush()} is called periodically by
+ * the server so data reaches disk even for slow devices.
+ *
+ * The server closes stores of devices that went quiet. A store closed while
+ * a request still holds it refuses the append, and the request reopens the
+ * device's store, which continues the same files.
+ */
+final class DeviceColumnStore implements Closeable {
+
+    private static final int ROWS_PER_BLOCK = 8192;
+    private static final String[] COLUMN_FILES = { "timestamp.f64", "tx.f32",
+            "ty.f32", "tz.f32", "qx.f32", "qy.f32", "qz.f32", "qw.f32",
+            "status.u8" };
+    private static final int[] COLUMN_WIDTHS = { 8, 4, 4, 4, 4, 4, 4, 4, 1 };
+    private static final int TIMESTAMP = 0;
+    private static final int TRANSLATION = 1;
+    private static final int ROTATION = 4;
+    private static final int STATUS = 8;
+
+    private final FileChannel[] mChannels = new FileChannel[COLUMN_FILES.length];
+    private final ByteBuffer[] mBlocks = new ByteBuffer[COLUMN_FILES.length];
+    private int mStagedRows;
+    private long mRowCount;
+    private long mLastAppendNanos = System.nanoTime();
+    private boolean mIsClosed;
+
+    DeviceColumnStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        try {
+            for (int c = 0; c < COLUMN_FILES.length; c++) {
+                mChannels[c] = new FileOutputStream(new File(directory,
+                        COLUMN_FILES[c]), true).getChannel();
+            }
+        } catch (IOException e) {
+            // Do not leak the files opened before the failure.
+            for (FileChannel channel : mChannels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            throw e;
+        }
+        for (int c = 0; c < COLUMN_FILES.length; c++) {
+            mBlocks[c] = ByteBuffer.allocateDirect(
+                    ROWS_PER_BLOCK * COLUMN_WIDTHS[c]).order(
+                    ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * @return false if the store was closed and nothing was appended.
+     */
+    synchronized boolean append(PoseBatch batch) throws IOException {
+        if (mIsClosed) {
+            return false;
+        }
+        mLastAppendNanos = System.nanoTime();
+        ByteBuffer[] blocks = mBlocks;
+        for (int i = 0; i < batch.size(); i++) {
+            if (mStagedRows == ROWS_PER_BLOCK) {
+                writeBlocks();
+            }
+            blocks[TIMESTAMP].putDouble(batch.timestamps[i]);
+            int t = i * PoseBatch.TRANSLATION_SIZE;
+            for (int k = 0; k < PoseBatch.TRANSLATION_SIZE; k++) {
+                blocks[TRANSLATION + k].putFloat((float) batch.translations[t + k]);
+            }
+            int r = i * PoseBatch.ROTATION_SIZE;
+            for (int k = 0; k < PoseBatch.ROTATION_SIZE; k++) {
+                blocks[ROTATION + k].putFloat((float) batch.rotations[r + k]);
+            }
+            blocks[STATUS].put((byte) batch.statusCodes[i]);
+            mStagedRows++;
+        }
+        mRowCount += batch.size();
+        return true;
+    }
+
+    synchronized void flush() throws IOException {
+        if (!mIsClosed && mStagedRows > 0) {
+            writeBlocks();
+        }
+    }
+
+    synchronized long getRowCount() {
+        return mRowCount;
+    }
+
+    /** {@link System#nanoTime()} of the last append, or of opening. */
+    synchronized long getLastAppendNanos() {
+        return mLastAppendNanos;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            mIsClosed = true;
+            for (FileChannel channel : mChannels) {
+                channel.close();
+            }
+        }
+    }
+
+    private void writeBlocks() throws IOException {
+        for (int c = 0; c < mBlocks.length; c++) {
+            ByteBuffer block = mBlocks[c];
+            block.flip();
+            while (block.hasRemaining()) {
+                mChannels[c].write(block);
+            }
+            block.clear();
+        }
+        mStagedRows = 0;
+    }
+}
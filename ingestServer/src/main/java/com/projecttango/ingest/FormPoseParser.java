@@ -0,0 +1,324 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.ingest;
+
+import java.nio.charset.Charset;
+
+import com.projecttango.tangoutils.telemetry.PoseBatch;
+
+/**
+ * Parses form-encoded pose posts, either the original single-pose body
+ *
+ * <pre>
+ * timestamp=12.5&amp;translation=1.0%2C+2.0%2C+3.0&amp;rotation=0.0%2C+0.0%2C+0.0%2C+1.0
+ * </pre>
+ *
+ * or several poses made of repeated fields, straight from the request bytes.
+ * Values are percent-decoded into a reusable scratch array and numbers are
+ * parsed from bytes, so no String is created per field. Numbers with up to 18
+ * significant digits are exact to within an ulp or two; anything unusual
+ * (NaN, Infinity, huge exponents) falls back to {@link Double#parseDouble}.
+ *
+ * Instances keep scratch state and are not thread-safe.
+ */
+final class FormPoseParser {
+
+    /** Form posts carry no status; same value as TangoPoseData.POSE_UNKNOWN. */
+    static final int UNKNOWN_STATUS = 3;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] KEY_TIMESTAMP = "timestamp".getBytes(ASCII);
+    private static final byte[] KEY_TRANSLATION = "translation".getBytes(ASCII);
+    private static final byte[] KEY_ROTATION = "rotation".getBytes(ASCII);
+    private static final int FIELD_TIMESTAMP = 1;
+    private static final int FIELD_TRANSLATION = 2;
+    private static final int FIELD_ROTATION = 4;
+    private static final int ALL_FIELDS = FIELD_TIMESTAMP | FIELD_TRANSLATION
+            | FIELD_ROTATION;
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private byte[] mValue = new byte[64];
+    private final double[] mTranslation = new double[PoseBatch.TRANSLATION_SIZE];
+    private final double[] mRotation = new double[PoseBatch.ROTATION_SIZE];
+    private double mTimestamp;
+
+    /**
+     * @return an upper bound on the number of poses in a body, for sizing the
+     *         batch passed to {@link #parse}.
+     */
+    static int maxPoseCount(byte[] body, int length) {
+        int fields = 0;
+        for (int i = 0; i < length; i++) {
+            if (body[i] == '=') {
+                fields++;
+            }
+        }
+        return fields / 3 + 1;
+    }
+
+    /**
+     * Parses {@code body} into {@code batch}, replacing its contents. A pose
+     * is emitted once all three fields have been seen; a field repeating
+     * before that is an error.
+     *
+     * @throws IllegalArgumentException
+     *             if the body is malformed.
+     */
+    void parse(byte[] body, int length, PoseBatch batch) {
+        batch.clear();
+        int seen = 0;
+        int pos = 0;
+        while (pos < length) {
+            int keyEnd = indexOf(body, pos, length, (byte) '=');
+            int valueEnd = indexOf(body, keyEnd + 1, length, (byte) '&');
+            if (keyEnd >= valueEnd) {
+                throw new IllegalArgumentException("Malformed form field");
+            }
+            int field = fieldOf(body, pos, keyEnd);
+            if (field != 0) {
+                if ((seen & field) != 0) {
+                    throw new IllegalArgumentException("Incomplete pose");
+                }
+                int valueLength = percentDecode(body, keyEnd + 1, valueEnd);
+                switch (field) {
+                case FIELD_TIMESTAMP:
+                    parseList(mValue, valueLength, null, 1);
+                    break;
+                case FIELD_TRANSLATION:
+                    parseList(mValue, valueLength, mTranslation,
+                            PoseBatch.TRANSLATION_SIZE);
+                    break;
+                default:
+                    parseList(mValue, valueLength, mRotation,
+                            PoseBatch.ROTATION_SIZE);
+                    break;
+                }
+                seen |= field;
+                if (seen == ALL_FIELDS) {
+                    if (!batch.add(mTimestamp, mTranslation, mRotation,
+                            UNKNOWN_STATUS)) {
+                        throw new IllegalArgumentException("Too many poses");
+                    }
+                    seen = 0;
+                }
+            }
+            pos = valueEnd + 1;
+        }
+        if (seen != 0) {
+            throw new IllegalArgumentException("Incomplete pose");
+        }
+    }
+
+    private static int indexOf(byte[] body, int from, int end, byte b) {
+        for (int i = from; i < end; i++) {
+            if (body[i] == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int fieldOf(byte[] body, int start, int end) {
+        if (regionEquals(body, start, end, KEY_TIMESTAMP)) {
+            return FIELD_TIMESTAMP;
+        }
+        if (regionEquals(body, start, end, KEY_TRANSLATION)) {
+            return FIELD_TRANSLATION;
+        }
+        if (regionEquals(body, start, end, KEY_ROTATION)) {
+            return FIELD_ROTATION;
+        }
+        return 0;
+    }
+
+    private static boolean regionEquals(byte[] body, int start, int end,
+            byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (body[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Percent-decodes {@code body[start, end)} into {@link #mValue}.
+     *
+     * @return the decoded length.
+     */
+    private int percentDecode(byte[] body, int start, int end) {
+        if (mValue.length < end - start) {
+            mValue = new byte[end - start];
+        }
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = body[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%') {
+                if (i + 2 >= end) {
+                    throw new IllegalArgumentException("Malformed escape");
+                }
+                b = (byte) (hexValue(body[i + 1]) << 4 | hexValue(body[i + 2]));
+                i += 2;
+            }
+            mValue[length++] = b;
+        }
+        return length;
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        throw new IllegalArgumentException("Malformed escape");
+    }
+
+    /**
+     * Parses exactly {@code count} comma separated numbers. A null
+     * {@code out} stores the single value in {@link #mTimestamp}.
+     */
+    private void parseList(byte[] value, int length, double[] out, int count) {
+        int pos = 0;
+        for (int n = 0; n < count; n++) {
+            while (pos < length && value[pos] == ' ') {
+                pos++;
+            }
+            int end = pos;
+            while (end < length && value[end] != ',' && value[end] != ' ') {
+                end++;
+            }
+            double number = parseDouble(value, pos, end);
+            if (out == null) {
+                mTimestamp = number;
+            } else {
+                out[n] = number;
+            }
+            while (end < length && value[end] == ' ') {
+                end++;
+            }
+            if (n < count - 1) {
+                if (end >= length || value[end] != ',') {
+                    throw new IllegalArgumentException("Expected " + count
+                            + " values");
+                }
+                end++;
+            }
+            pos = end;
+        }
+        if (pos != length) {
+            throw new IllegalArgumentException("Expected " + count + " values");
+        }
+    }
+
+    static double parseDouble(byte[] in, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (in[pos] == '-' || in[pos] == '+')) {
+            negative = in[pos] == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        while (pos < end && in[pos] >= '0' && in[pos] <= '9') {
+            if (significantDigits < 18) {
+                mantissa = mantissa * 10 + (in[pos] - '0');
+                if (mantissa != 0) {
+                    significantDigits++;
+                }
+            } else {
+                exponent++;
+            }
+            anyDigits = true;
+            pos++;
+        }
+        if (pos < end && in[pos] == '.') {
+            pos++;
+            while (pos < end && in[pos] >= '0' && in[pos] <= '9') {
+                if (significantDigits < 18) {
+                    mantissa = mantissa * 10 + (in[pos] - '0');
+                    if (mantissa != 0) {
+                        significantDigits++;
+                    }
+                    exponent--;
+                }
+                anyDigits = true;
+                pos++;
+            }
+        }
+        if (anyDigits && pos < end && (in[pos] == 'E' || in[pos] == 'e')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (in[pos] == '-' || in[pos] == '+')) {
+                negativeExponent = in[pos] == '-';
+                pos++;
+            }
+            int explicitExponent = 0;
+            boolean anyExponentDigits = false;
+            while (pos < end && in[pos] >= '0' && in[pos] <= '9'
+                    && explicitExponent < 10000) {
+                explicitExponent = explicitExponent * 10 + (in[pos] - '0');
+                anyExponentDigits = true;
+                pos++;
+            }
+            anyDigits = anyExponentDigits;
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (!anyDigits || pos != end || exponent < -22 - 18 || exponent > 22) {
+            return parseSlow(in, start, end);
+        }
+
+        double value = mantissa;
+        if (exponent > 0) {
+            value *= POWERS_OF_TEN[exponent];
+        } else if (exponent < 0) {
+            // Split large negative exponents so each divisor is exact.
+            while (exponent < -22) {
+                value /= POWERS_OF_TEN[22];
+                exponent += 22;
+            }
+            value /= POWERS_OF_TEN[-exponent];
+        }
+        return negative ? -value : value;
+    }
+
+    private static double parseSlow(byte[] in, int start, int end) {
+        try {
+            return Double.parseDouble(new String(in, start, end - start, ASCII));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed number", e);
+        }
+    }
+}
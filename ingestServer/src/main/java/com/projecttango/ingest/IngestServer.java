@@ -0,0 +1,416 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.ingest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.projecttango.tangoutils.telemetry.PoseBatch;
+import com.projecttango.tangoutils.telemetry.PoseBatchCodec;
+import com.projecttango.tangoutils.telemetry.PoseUploader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Standalone receiver for the {@code /datapoint} pose stream posted by
+ * {@link PoseUploader}. Accepts both {@link PoseBatchCodec} binary batches and
+ * the original form-encoded posts, and appends every pose to a
+ * {@link DeviceColumnStore} under {@code <data>/<device id>/}. Devices are
+ * told apart by the {@link PoseUploader#DEVICE_ID_HEADER} header, falling back
+ * to the remote address for devices that do not send it.
+ *
+ * The number of open stores is bounded, since each holds nine files and
+ * about 300 KB of direct buffers: the least recently appended store is closed
+ * when the limit is reached, and stores idle for a minute are closed by the
+ * maintenance thread. A device that posts again reopens its files, once the
+ * store that had them open has finished closing, so the blocks of two stores
+ * are never interleaved in its column files.
+ *
+ * Usage: {@code IngestServer [--port 8080] [--data ingest-data] [--threads N]}
+ */
+public class IngestServer {
+
+    private static final String PATH = "/datapoint";
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_DEVICE_ID_LENGTH = 64;
+    // Bounds the batch allocated per handler thread.
+    private static final int MAX_POSES_PER_REQUEST = 64 * 1024;
+    private static final int MAX_OPEN_STORES = 256;
+    private static final long STORE_IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final long REPORT_INTERVAL_MS = 10000;
+
+    /**
+     * Per handler thread scratch space, so a request allocates nothing per
+     * pose.
+     */
+    private static final class RequestBuffers {
+        byte[] body = new byte[64 * 1024];
+        PoseBatch batch = new PoseBatch(256);
+        final FormPoseParser formParser = new FormPoseParser();
+
+        PoseBatch batch(int capacity) {
+            if (batch.capacity() < capacity) {
+                batch = new PoseBatch(Math.max(capacity, batch.capacity() * 2));
+            }
+            return batch;
+        }
+    }
+
+    private final File mDataDirectory;
+    private final HttpServer mServer;
+    private final ExecutorService mHandlerExecutor;
+    private final ScheduledExecutorService mMaintenanceExecutor;
+    // In least recently used order; guarded by itself.
+    private final LinkedHashMap<String, DeviceColumnStore> mStores = new LinkedHashMap<String, DeviceColumnStore>(
+            16, 0.75f, true);
+    // Stores taken out of mStores but not yet closed; guarded by mStores.
+    private final Map<String, DeviceColumnStore> mClosingStores = new HashMap<String, DeviceColumnStore>();
+    private final ThreadLocal<RequestBuffers> mBuffers = new ThreadLocal<RequestBuffers>() {
+        @Override
+        protected RequestBuffers initialValue() {
+            return new RequestBuffers();
+        }
+    };
+
+    private final AtomicLong mPoseCount = new AtomicLong();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    private final int mMaxOpenStores;
+
+    public IngestServer(int port, File dataDirectory, int threads)
+            throws IOException {
+        this(port, dataDirectory, threads, MAX_OPEN_STORES);
+    }
+
+    IngestServer(int port, File dataDirectory, int threads, int maxOpenStores)
+            throws IOException {
+        mDataDirectory = dataDirectory;
+        mMaxOpenStores = maxOpenStores;
+        mServer = HttpServer.create(new InetSocketAddress(port), 1024);
+        mHandlerExecutor = Executors.newFixedThreadPool(threads);
+        mMaintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+        mServer.setExecutor(mHandlerExecutor);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleDatapoint(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        mServer.start();
+        mMaintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdleStores();
+                flushAll();
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        mMaintenanceExecutor.scheduleAtFixedRate(new Runnable() {
+            private long mLastPoseCount;
+            private long mLastNanos = System.nanoTime();
+
+            @Override
+            public void run() {
+                long poses = mPoseCount.get();
+                long now = System.nanoTime();
+                double seconds = (now - mLastNanos) / 1e9;
+                System.out.printf("%d devices, %d requests, %d rejected, %d poses"
+                        + " (%.0f poses/s)%n", getOpenStoreCount(), mRequestCount.get(),
+                        mRejectedCount.get(), poses, (poses - mLastPoseCount) / seconds);
+                mLastPoseCount = poses;
+                mLastNanos = now;
+            }
+        }, REPORT_INTERVAL_MS, REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        mServer.stop(1);
+        mHandlerExecutor.shutdown();
+        mMaintenanceExecutor.shutdown();
+        List<DeviceColumnStore> stores;
+        synchronized (mStores) {
+            stores = new ArrayList<DeviceColumnStore>(mStores.values());
+            mStores.clear();
+        }
+        for (DeviceColumnStore store : stores) {
+            closeStore(store);
+        }
+    }
+
+    public int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    public long getPoseCount() {
+        return mPoseCount.get();
+    }
+
+    public int getOpenStoreCount() {
+        synchronized (mStores) {
+            return mStores.size();
+        }
+    }
+
+    private void handleDatapoint(HttpExchange exchange) throws IOException {
+        try {
+            mRequestCount.incrementAndGet();
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405);
+                return;
+            }
+            RequestBuffers buffers = mBuffers.get();
+            int length = readBody(exchange.getRequestBody(), buffers);
+            if (length < 0) {
+                respond(exchange, 413);
+                return;
+            }
+
+            PoseBatch batch;
+            String contentType = exchange.getRequestHeaders().getFirst(
+                    "Content-Type");
+            try {
+                boolean isBinary = contentType != null
+                        && contentType.startsWith(PoseBatchCodec.CONTENT_TYPE);
+                // Both counts are bounded by the body length, but are still
+                // checked before a batch is sized from them.
+                int poseCount = isBinary ? PoseBatchCodec.readCount(
+                        buffers.body, 0, length) : FormPoseParser.maxPoseCount(
+                        buffers.body, length);
+                if (poseCount > MAX_POSES_PER_REQUEST) {
+                    throw new IllegalArgumentException("Too many poses");
+                }
+                batch = buffers.batch(poseCount);
+                if (isBinary) {
+                    PoseBatchCodec.decode(buffers.body, 0, length, batch);
+                } else {
+                    buffers.formParser.parse(buffers.body, length, batch);
+                }
+            } catch (IllegalArgumentException e) {
+                mRejectedCount.incrementAndGet();
+                respond(exchange, 400);
+                return;
+            }
+
+            append(deviceId(exchange), batch);
+            respond(exchange, 204);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the request body into the thread's buffer.
+     *
+     * @return the body length, or -1 if it exceeds {@link #MAX_BODY_BYTES}.
+     */
+    private static int readBody(InputStream in, RequestBuffers buffers)
+            throws IOException {
+        int length = 0;
+        while (true) {
+            if (length == buffers.body.length) {
+                if (length >= MAX_BODY_BYTES) {
+                    return -1;
+                }
+                byte[] grown = new byte[Math.min(length * 2, MAX_BODY_BYTES)];
+                System.arraycopy(buffers.body, 0, grown, 0, length);
+                buffers.body = grown;
+            }
+            int read = in.read(buffers.body, length, buffers.body.length - length);
+            if (read < 0) {
+                return length;
+            }
+            length += read;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code)
+            throws IOException {
+        exchange.sendResponseHeaders(code, -1);
+    }
+
+    private static String deviceId(HttpExchange exchange) {
+        String id = exchange.getRequestHeaders().getFirst(
+                PoseUploader.DEVICE_ID_HEADER);
+        if (id == null || id.isEmpty()) {
+            id = exchange.getRemoteAddress().getAddress().getHostAddress();
+        }
+        // Keep the id safe to use as a directory name.
+        StringBuilder safe = new StringBuilder(Math.min(id.length(),
+                MAX_DEVICE_ID_LENGTH));
+        for (int i = 0; i < id.length() && i < MAX_DEVICE_ID_LENGTH; i++) {
+            char c = id.charAt(i);
+            boolean allowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c == '-' || c == '_'
+                    || (c == '.' && i > 0);
+            safe.append(allowed ? c : '_');
+        }
+        return safe.toString();
+    }
+
+    /** Appends a decoded batch to the store of a device. */
+    void append(String deviceId, PoseBatch batch) throws IOException {
+        while (!storeFor(deviceId).append(batch)) {
+            // Closed for idleness since it was looked up; reopen it.
+        }
+        mPoseCount.addAndGet(batch.size());
+    }
+
+    /**
+     * Returns the open store of a device, opening it if needed and closing
+     * the least recently used store if too many are open. If the device's
+     * previous store is still closing, waits for it first: both stores append
+     * to the same files, and flushing them concurrently would write their
+     * blocks to the columns in different orders.
+     */
+    private DeviceColumnStore storeFor(String deviceId) throws IOException {
+        while (true) {
+            DeviceColumnStore store;
+            DeviceColumnStore closing;
+            Map.Entry<String, DeviceColumnStore> evicted = null;
+            synchronized (mStores) {
+                store = mStores.get(deviceId);
+                if (store != null) {
+                    return store;
+                }
+                closing = mClosingStores.get(deviceId);
+                if (closing == null) {
+                    store = new DeviceColumnStore(new File(mDataDirectory,
+                            deviceId));
+                    mStores.put(deviceId, store);
+                    if (mStores.size() > mMaxOpenStores) {
+                        Iterator<Map.Entry<String, DeviceColumnStore>> eldest = mStores
+                                .entrySet().iterator();
+                        evicted = eldest.next();
+                        eldest.remove();
+                        mClosingStores.put(evicted.getKey(), evicted.getValue());
+                    }
+                }
+            }
+            if (closing != null) {
+                // Returns once the thread that took it out has closed it too.
+                closeStore(deviceId, closing);
+                continue;
+            }
+            if (evicted != null) {
+                closeStore(evicted.getKey(), evicted.getValue());
+            }
+            return store;
+        }
+    }
+
+    private void closeIdleStores() {
+        long now = System.nanoTime();
+        Map<String, DeviceColumnStore> idle = new LinkedHashMap<String, DeviceColumnStore>();
+        synchronized (mStores) {
+            // Least recently used first, so stop at the first active store.
+            Iterator<Map.Entry<String, DeviceColumnStore>> stores = mStores
+                    .entrySet().iterator();
+            while (stores.hasNext()) {
+                Map.Entry<String, DeviceColumnStore> store = stores.next();
+                if (now - store.getValue().getLastAppendNanos() < STORE_IDLE_NANOS) {
+                    break;
+                }
+                idle.put(store.getKey(), store.getValue());
+                mClosingStores.put(store.getKey(), store.getValue());
+                stores.remove();
+            }
+        }
+        for (Map.Entry<String, DeviceColumnStore> store : idle.entrySet()) {
+            closeStore(store.getKey(), store.getValue());
+        }
+    }
+
+    /**
+     * Closes a store taken out of {@link #mStores}, then lets its device open
+     * a new one.
+     */
+    private void closeStore(String deviceId, DeviceColumnStore store) {
+        closeStore(store);
+        synchronized (mStores) {
+            if (mClosingStores.get(deviceId) == store) {
+                mClosingStores.remove(deviceId);
+            }
+        }
+    }
+
+    private static void closeStore(DeviceColumnStore store) {
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close store: " + e);
+        }
+    }
+
+    void flushAll() {
+        List<DeviceColumnStore> stores;
+        synchronized (mStores) {
+            stores = new ArrayList<DeviceColumnStore>(mStores.values());
+        }
+        for (DeviceColumnStore store : stores) {
+            try {
+                store.flush();
+            } catch (IOException e) {
+                System.err.println("Failed to flush store: " + e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        File data = new File("ingest-data");
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--port".equals(args[i])) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if ("--data".equals(args[i])) {
+                data = new File(args[i + 1]);
+            } else if ("--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        final IngestServer server = new IngestServer(port, data, threads);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        server.start();
+        System.out.println("Listening on port " + server.getPort() + PATH
+                + ", writing to " + data.getAbsolutePath());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.ingest;
+
+import java.net.MalformedURLException;
+import java.util.Locale;
+
+import com.projecttango.tangoutils.telemetry.PoseRingBuffer;
+import com.projecttango.tangoutils.telemetry.PoseUploader;
+
+/**
+ * Replays synthetic devices against an ingest endpoint. Every device walks a
+ * circle and pushes its poses through the same {@link PoseRingBuffer} and
+ * {@link PoseUploader} pair the app uses, so the measured throughput includes
+ * the real client-side batching and encoding.
+ *
+ * Usage: {@code LoadGenerator [--url http://localhost:8080/datapoint]
+ * [--devices 50] [--rate 1000] [--batch 200] [--seconds 30]
+ * [--format binary|form]}. A rate of 0 offers poses as fast as possible.
+ */
+public class LoadGenerator {
+
+    private static final int BUFFER_CAPACITY = 1 << 14;
+    private static final long BATCH_DELAY_MS = 100;
+    private static final double WALK_RADIUS_M = 2.0;
+    private static final double WALK_PERIOD_S = 20.0;
+
+    private final String mUrl;
+    private final int mDevices;
+    private final int mRatePerDevice;
+    private final int mBatchSize;
+    private final int mSeconds;
+    private final PoseUploader.WireFormat mWireFormat;
+
+    public LoadGenerator(String url, int devices, int ratePerDevice,
+            int batchSize, int seconds, PoseUploader.WireFormat wireFormat) {
+        mUrl = url;
+        mDevices = devices;
+        mRatePerDevice = ratePerDevice;
+        mBatchSize = batchSize;
+        mSeconds = seconds;
+        mWireFormat = wireFormat;
+    }
+
+    public void run() throws MalformedURLException, InterruptedException {
+        final PoseRingBuffer[] buffers = new PoseRingBuffer[mDevices];
+        PoseUploader[] uploaders = new PoseUploader[mDevices];
+        Thread[] producers = new Thread[mDevices];
+        final long endNanos = System.nanoTime() + mSeconds * 1000000000L;
+
+        for (int d = 0; d < mDevices; d++) {
+            buffers[d] = new PoseRingBuffer(BUFFER_CAPACITY,
+                    PoseRingBuffer.OverflowPolicy.DROP_OLDEST);
+            uploaders[d] = new PoseUploader(mUrl, buffers[d], mBatchSize,
+                    BATCH_DELAY_MS, mWireFormat, null);
+            uploaders[d].setDeviceId(String.format(Locale.US, "synthetic-%04d", d));
+            uploaders[d].start();
+            final PoseRingBuffer buffer = buffers[d];
+            final double phase = d * 2 * Math.PI / mDevices;
+            producers[d] = new Thread("device-" + d) {
+                @Override
+                public void run() {
+                    produce(buffer, phase, endNanos);
+                }
+            };
+            producers[d].start();
+        }
+
+        long startNanos = System.nanoTime();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        for (PoseUploader uploader : uploaders) {
+            uploader.stop();
+        }
+        for (PoseUploader uploader : uploaders) {
+            uploader.awaitStop(30000);
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        long offered = 0;
+        long dropped = 0;
+        long sent = 0;
+        long failed = 0;
+        for (int d = 0; d < mDevices; d++) {
+            offered += buffers[d].getEnqueuedCount();
+            dropped += buffers[d].getDroppedCount();
+            sent += uploaders[d].getSentPoseCount();
+            failed += uploaders[d].getFailedBatchCount();
+        }
+        System.out.printf(Locale.US, "%d devices, %.1f s: offered %d, sent %d,"
+                + " dropped %d, failed batches %d (%.0f poses/s)%n", mDevices,
+                seconds, offered, sent, dropped, failed, sent / seconds);
+    }
+
+    private void produce(PoseRingBuffer buffer, double phase, long endNanos) {
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        long intervalNanos = mRatePerDevice > 0 ? 1000000000L / mRatePerDevice : 0;
+        long nextNanos = System.nanoTime();
+        long startNanos = nextNanos;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= endNanos) {
+                return;
+            }
+            if (intervalNanos > 0 && now < nextNanos) {
+                long waitNanos = nextNanos - now;
+                try {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            double t = (now - startNanos) / 1e9;
+            double angle = phase + 2 * Math.PI * t / WALK_PERIOD_S;
+            translation[0] = WALK_RADIUS_M * Math.cos(angle);
+            translation[1] = WALK_RADIUS_M * Math.sin(angle);
+            translation[2] = 1.5;
+            // Yaw along the tangent of the circle.
+            double halfYaw = (angle + Math.PI / 2) / 2;
+            rotation[0] = 0;
+            rotation[1] = 0;
+            rotation[2] = Math.sin(halfYaw);
+            rotation[3] = Math.cos(halfYaw);
+            buffer.offer(t, translation, rotation, 1);
+            nextNanos += intervalNanos;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:8080/datapoint";
+        int devices = 50;
+        int rate = 1000;
+        int batch = 200;
+        int seconds = 30;
+        PoseUploader.WireFormat format = PoseUploader.WireFormat.BINARY;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if ("--url".equals(args[i])) {
+                url = value;
+            } else if ("--devices".equals(args[i])) {
+                devices = Integer.parseInt(value);
+            } else if ("--rate".equals(args[i])) {
+                rate = Integer.parseInt(value);
+            } else if ("--batch".equals(args[i])) {
+                batch = Integer.parseInt(value);
+            } else if ("--seconds".equals(args[i])) {
+                seconds = Integer.parseInt(value);
+            } else if ("--format".equals(args[i])) {
+                format = PoseUploader.WireFormat.valueOf(value.toUpperCase(Locale.US));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        new LoadGenerator(url, devices, rate, batch, seconds, format).run();
+    }
+}
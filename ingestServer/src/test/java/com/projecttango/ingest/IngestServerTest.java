@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.projecttango.tangoutils.telemetry.PoseBatch;
+
+public class IngestServerTest {
+
+    private static final String DEVICE = "device";
+    private static final int WRITERS = 3;
+    private static final int BATCHES_PER_WRITER = 100;
+    private static final int ROWS_PER_BATCH = 1000;
+    private static final String[] COLUMN_FILES = { "timestamp.f64", "tx.f32",
+            "ty.f32", "tz.f32", "qx.f32", "qy.f32", "qz.f32", "qw.f32",
+            "status.u8" };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void columnsStayAlignedWhileStoresAreEvicted() throws Exception {
+        File data = mFolder.newFolder();
+        // A single open store, so every append of another device evicts it.
+        final IngestServer server = new IngestServer(0, data, 1, 1);
+        server.start();
+
+        final AtomicInteger nextRow = new AtomicInteger();
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        Thread[] threads = new Thread[WRITERS + 2];
+        for (int w = 0; w < WRITERS; w++) {
+            threads[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PoseBatch batch = new PoseBatch(ROWS_PER_BATCH);
+                        for (int b = 0; b < BATCHES_PER_WRITER; b++) {
+                            batch.clear();
+                            for (int i = 0; i < ROWS_PER_BATCH; i++) {
+                                addRow(batch, nextRow.getAndIncrement());
+                            }
+                            server.append(DEVICE, batch);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            });
+        }
+        threads[WRITERS] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PoseBatch batch = new PoseBatch(1);
+                    addRow(batch, 0);
+                    for (int i = 0; isWriting.get(); i++) {
+                        server.append("other-" + i % 3, batch);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+        threads[WRITERS + 1] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isWriting.get()) {
+                    server.flushAll();
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        writersDone.await();
+        isWriting.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        server.stop();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        int rows = WRITERS * BATCHES_PER_WRITER * ROWS_PER_BATCH;
+        ByteBuffer[] columns = new ByteBuffer[COLUMN_FILES.length];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = readColumn(new File(new File(data, DEVICE), COLUMN_FILES[c]));
+        }
+        assertEquals(rows * 8, columns[0].remaining());
+        for (int c = 1; c < columns.length - 1; c++) {
+            assertEquals(COLUMN_FILES[c], rows * 4, columns[c].remaining());
+        }
+        assertEquals(rows, columns[columns.length - 1].remaining());
+
+        BitSet seen = new BitSet(rows);
+        for (int i = 0; i < rows; i++) {
+            int row = (int) columns[0].getDouble();
+            for (int c = 1; c < columns.length - 1; c++) {
+                assertEquals("Row " + i + " of " + COLUMN_FILES[c], row,
+                        (int) columns[c].getFloat());
+            }
+            assertEquals("Row " + i + " of status", (byte) row, columns[columns.length - 1].get());
+            assertFalse(seen.get(row));
+            seen.set(row);
+        }
+        assertEquals(rows, seen.cardinality());
+        assertTrue(server.getPoseCount() >= rows);
+    }
+
+    /** A row whose every column holds its index, exactly. */
+    private static void addRow(PoseBatch batch, int row) {
+        double[] translation = { row, row, row };
+        double[] rotation = { row, row, row, row };
+        batch.add(row, translation, rotation, row);
+    }
+
+    private static ByteBuffer readColumn(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.experiments.javapointcloud;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.projecttango.tangoutils.RenderScheduler;
+import com.projecttango.tangoutils.pointcloud.PointOctree;
+import com.projecttango.tangoutils.pointcloud.VoxelMap;
+
+/**
+ * Rebuilds the octree of the fused map on a background thread, so the depth
+ * callback only pays for fusing its frame. Copying the map and building the
+ * tree grow with the map, so rebuilds are throttled: one runs once enough
+ * frames have been fused or the map has grown enough since the last one, and
+ * never while another is still running. Frames fused in between are picked up
+ * by the next rebuild.
+ */
+class MapOctreeBuilder {
+
+    // Every two seconds at the depth camera's 5 Hz, so refined centroids show.
+    private static final int REBUILD_INTERVAL_FRAMES = 10;
+    // Sooner while the map grows quickly, as when entering a new room.
+    private static final float REBUILD_GROWTH = 0.25f;
+
+    private final VoxelMap mMap;
+    private final PCRenderer mRenderer;
+    private final RenderScheduler mRenderScheduler;
+    private final float[] mPoints;
+    private final ExecutorService mExecutor;
+    private final AtomicBoolean mIsBuilding = new AtomicBoolean();
+    private final Runnable mBuild = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                int pointCount = mMap.copyCentroids(mPoints, 1);
+                mRenderer.setMapOctree(PointOctree.build(mPoints, pointCount));
+                mRenderScheduler.requestRender();
+            } finally {
+                mIsBuilding.set(false);
+            }
+        }
+    };
+
+    // Only touched by the thread calling onFrameFused.
+    private int mFramesSinceBuild;
+    private int mVoxelsAtBuild;
+
+    MapOctreeBuilder(VoxelMap map, PCRenderer renderer, RenderScheduler renderScheduler) {
+        mMap = map;
+        mRenderer = renderer;
+        mRenderScheduler = renderScheduler;
+        mPoints = new float[map.getMaxVoxels() * 3];
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, MapOctreeBuilder.class.getSimpleName());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Called after a frame is fused into the map; starts a rebuild if one is
+     * due. Does not block.
+     */
+    void onFrameFused() {
+        mFramesSinceBuild++;
+        int voxels = mMap.getVoxelCount();
+        boolean isDue = mFramesSinceBuild >= REBUILD_INTERVAL_FRAMES
+                || voxels > mVoxelsAtBuild * (1 + REBUILD_GROWTH);
+        if (!isDue || mExecutor.isShutdown() || !mIsBuilding.compareAndSet(false, true)) {
+            return;
+        }
+        mFramesSinceBuild = 0;
+        mVoxelsAtBuild = voxels;
+        mExecutor.execute(mBuild);
+    }
+
+    /** Stops the builder thread once a rebuild in progress completes. */
+    void stop() {
+        mExecutor.shutdown();
+    }
+}
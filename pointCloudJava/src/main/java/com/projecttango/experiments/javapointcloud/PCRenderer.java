@@ -18,16 +18,30 @@ package com.projecttango.experiments.javapointcloud;
 
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.Matrix;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import com.projecttango.tangoutils.Renderer;
+import com.projecttango.tangoutils.concurrent.TripleBuffer;
+import com.projecttango.tangoutils.math.Matrix4;
+import com.projecttango.tangoutils.metrics.Counter;
+import com.projecttango.tangoutils.metrics.Gauge;
+import com.projecttango.tangoutils.metrics.LatencyHistogram;
+import com.projecttango.tangoutils.metrics.MetricsRegistry;
+import com.projecttango.tangoutils.pointcloud.DepthFrame;
+import com.projecttango.tangoutils.pointcloud.PointOctree;
+import com.projecttango.tangoutils.pose.PoseFrame;
 import com.projecttango.tangoutils.renderables.CameraFrustum;
 import com.projecttango.tangoutils.renderables.CameraFrustumAndAxis;
 import com.projecttango.tangoutils.renderables.Grid;
 import com.projecttango.tangoutils.renderables.PointCloud;
+import com.projecttango.tangoutils.renderables.RenderUtils;
 
 /**
  * OpenGL rendering class for the Motion Tracking API sample. This class manages the objects
@@ -39,55 +53,203 @@ import com.projecttango.tangoutils.renderables.PointCloud;
  * model and view matrices of the {@link Renderable} objects appropriately. It also handles the
  * user-selected camera view, which can be 1st person, 3rd person, or top-down.
  * 
+ * Poses and depth frames are published by the Tango callbacks into {@link TripleBuffer}s and
+ * picked up at the start of each frame, so neither side ever waits for the other.
  */
 public class PCRenderer extends Renderer implements GLSurfaceView.Renderer {
 
     private PointCloud mPointCloud;
+    private PointCloud mMapCloud;
+    private volatile PointOctree mMapOctree;
+    private PointOctree mSelectedOctree;
+    private final float[] mSelectedViewMatrix = new float[16];
+    private final float[] mSelectedProjectionMatrix = new float[16];
+    private FloatBuffer mMapLodPoints;
+    private int mViewportHeight;
     private Grid mGrid;
     private CameraFrustumAndAxis mCameraFrustumAndAxis;
     private int mMaxDepthPoints;
-    private boolean mIsValid = false;
-    public PCRenderer(int maxDepthPoints) {
+    private int mMaxMapPoints;
+    private volatile boolean mIsValid = false;
+    private final TripleBuffer<PoseFrame> mPoseFrames = new TripleBuffer<PoseFrame>(
+            new PoseFrame(), new PoseFrame(), new PoseFrame());
+    private final TripleBuffer<DepthFrame> mDepthFrames;
+    private long mDrawnDepthSequence;
+    private long mDrawnPoseSequence;
+    private final LatencyHistogram mFrameTime;
+    private final LatencyHistogram mPoseToRenderLatency;
+    private final Counter mFrameCount;
+    private final Counter mDroppedDepthFrames;
+
+    // Largest on-screen gap, in pixels, between points of map regions drawn at reduced detail.
+    private static final float MAP_LOD_MAX_ERROR_PIXELS = 2f;
+
+    /**
+     * @param maxDepthPoints
+     *            largest number of points in a depth frame.
+     * @param maxMapPoints
+     *            budget of fused map points drawn per frame.
+     * @param metrics
+     *            registry receiving the render stage metrics.
+     */
+    public PCRenderer(int maxDepthPoints, int maxMapPoints, MetricsRegistry metrics) {
         mMaxDepthPoints = maxDepthPoints;
+        mMaxMapPoints = maxMapPoints;
+        mDepthFrames = new TripleBuffer<DepthFrame>(new DepthFrame(maxDepthPoints),
+                new DepthFrame(maxDepthPoints), new DepthFrame(maxDepthPoints));
+        mFrameTime = metrics.histogram("render.frame");
+        mPoseToRenderLatency = metrics.histogram("render.pose_latency");
+        mFrameCount = metrics.counter("render.frames");
+        mDroppedDepthFrames = metrics.counter("depth.frames_dropped");
+        RenderUtils.setProgramLoadHistogram(metrics.histogram("render.program_load"));
+        metrics.gauge("render.draw_calls", new Gauge() {
+            @Override
+            public double getValue() {
+                return mRenderStats.getDrawCalls();
+            }
+        });
+        metrics.gauge("render.state_changes", new Gauge() {
+            @Override
+            public double getValue() {
+                return mRenderStats.getStateChanges();
+            }
+        });
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         GLES20.glClearColor(1f, 1f, 1f, 1.0f);
         GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-        mPointCloud = new PointCloud(mMaxDepthPoints);
+        // Programs of a lost context are gone; link them again, from the binary cache if
+        // possible.
+        RenderUtils.clearProgramCache();
+        // Points are packed to 16 bits per coordinate. Depth frames span a few meters, so the
+        // error stays under 0.1 mm; the map's error grows with its extent, 0.4 mm across 50 m.
+        mPointCloud = new PointCloud(mMaxDepthPoints, PointCloud.VertexFormat.PACKED);
+        mDrawnDepthSequence = 0;
+        // The fused map is already in world space, so its model matrix stays identity.
+        mMapCloud = new PointCloud(mMaxMapPoints, PointCloud.VertexFormat.PACKED);
+        mMapLodPoints = ByteBuffer.allocateDirect(mMaxMapPoints * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mSelectedOctree = null;
         mGrid = new Grid();
         mCameraFrustumAndAxis = new CameraFrustumAndAxis();
-        Matrix.setIdentityM(mViewMatrix, 0);
-        Matrix.setLookAtM(mViewMatrix, 0, 5f, 5f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
-        mCameraFrustumAndAxis.setModelMatrix(getModelMatCalculator().getModelMatrix());
+        mPointCloud.setRenderStats(mRenderStats);
+        mMapCloud.setRenderStats(mRenderStats);
+        mGrid.setRenderStats(mRenderStats);
+        mCameraFrustumAndAxis.setRenderStats(mRenderStats);
+        Matrix4.setLookAt(mViewMatrix, 0, 5f, 5f, 5f, 0f, 0f, 0f, 0f, 1f, 0f);
         mIsValid = true;
     }
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         GLES20.glViewport(0, 0, width, height);
+        mViewportHeight = height;
+        mSelectedOctree = null;
         mCameraAspect = (float) width / height;
-        Matrix.perspectiveM(mProjectionMatrix, 0, CAMERA_FOV, mCameraAspect, CAMERA_NEAR,
+        Matrix4.perspective(mProjectionMatrix, 0, CAMERA_FOV, mCameraAspect, CAMERA_NEAR,
                 CAMERA_FAR);
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        long frameStart = System.nanoTime();
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        mGrid.draw(mViewMatrix, mProjectionMatrix);
-        synchronized (PointCloudActivity.depthLock) {
-            mPointCloud.draw(mViewMatrix, mProjectionMatrix);
+        // The acquired snapshots stay untouched by the callbacks until the next frame.
+        PoseFrame pose = mPoseFrames.acquire();
+        if (pose.getSequence() != 0) {
+            System.arraycopy(pose.getModelMatrix(), 0, mCameraFrustumAndAxis.getModelMatrix(), 0,
+                    16);
+            updateViewMatrix(pose.getModelMatrix());
         }
-        synchronized (PointCloudActivity.poseLock) {
-            mCameraFrustumAndAxis.draw(mViewMatrix, mProjectionMatrix);
+        DepthFrame depth = mDepthFrames.acquire();
+        if (depth.getSequence() != mDrawnDepthSequence) {
+            // Frames published in between were overwritten before being drawn.
+            if (mDrawnDepthSequence != 0 && depth.getSequence() > mDrawnDepthSequence + 1) {
+                mDroppedDepthFrames.add(depth.getSequence() - mDrawnDepthSequence - 1);
+            }
+            mDrawnDepthSequence = depth.getSequence();
+            mPointCloud.UpdatePoints(depth.getPoints(), depth.getPointCount());
+            System.arraycopy(depth.getModelMatrix(), 0, mPointCloud.getModelMatrix(), 0, 16);
+        }
+
+        beginFrame();
+        mGrid.draw(mViewMatrix, mProjectionMatrix, mFrustum, mRenderStats);
+        selectMapPoints();
+        // The map's chunks are the octree nodes culled during selection.
+        if (mSelectedOctree != null) {
+            mRenderStats.addDrawnChunks(mSelectedOctree.getDrawnNodeCount());
+            mRenderStats.addCulledChunks(mSelectedOctree.getCulledNodeCount());
+        }
+        mMapCloud.draw(mViewMatrix, mProjectionMatrix);
+        mPointCloud.draw(mViewMatrix, mProjectionMatrix, mFrustum, mRenderStats);
+        mCameraFrustumAndAxis.draw(mViewMatrix, mProjectionMatrix, mFrustum, mRenderStats);
+        endFrame();
+
+        // Measured up to the last draw call; buffer swap and GPU time are not included.
+        long frameEnd = System.nanoTime();
+        mFrameTime.record(frameEnd - frameStart);
+        mFrameCount.increment();
+        if (pose.getSequence() != mDrawnPoseSequence) {
+            mDrawnPoseSequence = pose.getSequence();
+            mPoseToRenderLatency.record(frameEnd - pose.getReceivedNanos());
         }
     }
 
     public PointCloud getPointCloud() {
         return mPointCloud;
     }
+
+    /**
+     * @return the buffer the pose callback publishes device poses to.
+     */
+    public TripleBuffer<PoseFrame> getPoseFrames() {
+        return mPoseFrames;
+    }
+
+    /**
+     * @return the buffer the depth callback publishes depth frames to.
+     */
+    public TripleBuffer<DepthFrame> getDepthFrames() {
+        return mDepthFrames;
+    }
+
+    /**
+     * @return the cloud showing the world-space map fused from all depth frames.
+     */
+    public PointCloud getMapCloud() {
+        return mMapCloud;
+    }
     
+    /**
+     * Publishes a new octree of the fused map. Level of detail is selected
+     * from it on the next frame; the tree must not be modified afterwards.
+     */
+    public void setMapOctree(PointOctree octree) {
+        mMapOctree = octree;
+    }
+
+    /**
+     * Re-selects the map points to draw when the map or the view has changed
+     * since the last selection.
+     */
+    private void selectMapPoints() {
+        PointOctree octree = mMapOctree;
+        if (octree == null
+                || (octree == mSelectedOctree && Arrays.equals(mViewMatrix, mSelectedViewMatrix)
+                        && Arrays.equals(mProjectionMatrix, mSelectedProjectionMatrix))) {
+            return;
+        }
+        System.arraycopy(mViewMatrix, 0, mSelectedViewMatrix, 0, 16);
+        System.arraycopy(mProjectionMatrix, 0, mSelectedProjectionMatrix, 0, 16);
+        mSelectedOctree = octree;
+        int pointCount = octree.selectLod(mSelectedViewMatrix, mSelectedProjectionMatrix,
+                mViewportHeight, MAP_LOD_MAX_ERROR_PIXELS, mFrustum, mMapLodPoints,
+                mMaxMapPoints);
+        mMapCloud.UpdatePoints(mMapLodPoints, pointCount);
+    }
+
     public boolean isValid(){
         return mIsValid;
     }
@@ -32,6 +32,7 @@ import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -41,20 +42,35 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-
-import java.io.FileInputStream;
+import com.projecttango.tangoutils.ModelMatCalculator;
+import com.projecttango.tangoutils.RenderScheduler;
+import com.projecttango.tangoutils.concurrent.TripleBuffer;
+import com.projecttango.tangoutils.metrics.Counter;
+import com.projecttango.tangoutils.metrics.Gauge;
+import com.projecttango.tangoutils.metrics.LatencyHistogram;
+import com.projecttango.tangoutils.metrics.MetricsRegistry;
+import com.projecttango.tangoutils.metrics.MetricsReporter;
+import com.projecttango.tangoutils.pointcloud.DepthFrame;
+import com.projecttango.tangoutils.pointcloud.DepthStats;
+import com.projecttango.tangoutils.pointcloud.DepthStatsCalculator;
+import com.projecttango.tangoutils.pointcloud.PointTransformer;
+import com.projecttango.tangoutils.pointcloud.VoxelGridFilter;
+import com.projecttango.tangoutils.pointcloud.VoxelMap;
+import com.projecttango.tangoutils.pose.PoseFrame;
+import com.projecttango.tangoutils.pose.PoseHistory;
+import com.projecttango.tangoutils.renderables.RenderStats;
+import com.projecttango.tangoutils.renderables.RenderUtils;
+import com.projecttango.tangoutils.session.SessionRecorder;
+import com.projecttango.tangoutils.session.SyntheticSession;
+import com.projecttango.tangoutils.telemetry.PoseRingBuffer;
+import com.projecttango.tangoutils.telemetry.PoseUploader;
+import com.projecttango.tangoutils.telemetry.TelemetryJournal;
+
+import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.List;
 
 /**
  * Main Activity class for the Point Cloud Sample. Handles the connection to the {@link Tango}
@@ -70,6 +86,7 @@ public class PointCloudActivity extends Activity implements OnClickListener {
 
     private PCRenderer mRenderer;
     private GLSurfaceView mGLView;
+    private RenderScheduler mRenderScheduler;
 
     private TextView mDeltaTextView;
     private TextView mPoseCountTextView;
@@ -82,25 +99,97 @@ public class PointCloudActivity extends Activity implements OnClickListener {
     private TextView mApplicationVersionTextView;
     private TextView mAverageZTextView;
     private TextView mFrequencyTextView;
+    private TextView mPointUploadTextView;
+    private TextView mRenderChunksTextView;
+    private TextView mPoseLookupTextView;
 
     private Button mFirstPersonButton;
     private Button mThirdPersonButton;
     private Button mTopDownButton;
 
-    private int count;
+    // Written by the Tango callbacks and read by the UI thread; each value is
+    // displayed on its own, so they are published individually.
+    private volatile int count;
     private int mPreviousPoseStatus;
-    private int mPointCount;
-    private float mDeltaTime;
-    private float mPosePreviousTimeStamp;
-    private float mXyIjPreviousTimeStamp;
-    private float mCurrentTimeStamp;
-    private float mPointCloudFrameDelta;
+    private volatile int mPointCount;
+    private volatile float mDeltaTime;
+    // Timestamps are kept as doubles: a float loses sub-millisecond precision
+    // after a few hours of uptime.
+    private double mPosePreviousTimeStamp;
+    private double mXyIjPreviousTimeStamp;
+    private double mCurrentTimeStamp;
+    private volatile float mPointCloudFrameDelta;
     private String mServiceVersion;
     private boolean mIsTangoServiceConnected;
-    private TangoPoseData mPose;
+    // Poses for the UI thread; the renderer has its own buffer.
+    private final TripleBuffer<PoseFrame> mUiPoseFrames = new TripleBuffer<PoseFrame>(
+            new PoseFrame(), new PoseFrame(), new PoseFrame());
+    private long mPoseSequence;
+    private long mDepthSequence;
     private static final int UPDATE_INTERVAL_MS = 100;
-    public static Object poseLock = new Object();
-    public static Object depthLock = new Object();
+    private static final String TELEMETRY_ENDPOINT = "http://10.220.173.176/datapoint";
+    private static final int TELEMETRY_BUFFER_CAPACITY = 1024;
+    private static final String TELEMETRY_JOURNAL_DIR = "telemetry";
+    private static final int TELEMETRY_JOURNAL_SEGMENT_SIZE = 1024 * 1024;
+    private static final int TELEMETRY_JOURNAL_MAX_SEGMENTS = 64;
+    private PoseRingBuffer mPoseTelemetryBuffer;
+    private PoseUploader mPoseUploader;
+    private static final String METRICS_FILE = "metrics/metrics.jsonl";
+    private static final long METRICS_INTERVAL_MS = 10000;
+    private static final long METRICS_MAX_FILE_BYTES = 1024 * 1024;
+    // Depth arrives at about 5 Hz; poses and gestures rarely need more than this.
+    private static final float RENDER_MAX_FPS = 30f;
+    // Linked shader programs, reused across surface re-creations and launches.
+    private static final String PROGRAM_CACHE_DIR = "programs";
+    /**
+     * Boolean intent extra; when set, the pose and depth streams are recorded under
+     * files/sessions for replay with {@link com.projecttango.tangoutils.session.SessionReplay}.
+     */
+    public static final String EXTRA_RECORD_SESSION = "record_session";
+    private static final String SESSION_DIR = "sessions";
+    private SessionRecorder mSessionRecorder;
+    /**
+     * Boolean intent extra; when set, the service is not connected and a
+     * {@link SyntheticSession} drives the Tango callbacks instead, for load tests. Its point
+     * count, depth rate and seed are set with the extras below.
+     */
+    public static final String EXTRA_SYNTHETIC_SESSION = "synthetic_session";
+    public static final String EXTRA_SYNTHETIC_POINTS = "synthetic_points";
+    public static final String EXTRA_SYNTHETIC_DEPTH_RATE = "synthetic_depth_rate";
+    public static final String EXTRA_SYNTHETIC_SEED = "synthetic_seed";
+    private SyntheticSession mSyntheticSession;
+    private Thread mSyntheticThread;
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final LatencyHistogram mPoseCallbackTime = mMetrics.histogram("pose.callback");
+    private final LatencyHistogram mDepthCallbackTime = mMetrics.histogram("depth.callback");
+    private final Counter mPoseCount = mMetrics.counter("pose.count");
+    private final Counter mDepthFrameCounter = mMetrics.counter("depth.count");
+    private MetricsReporter mMetricsReporter;
+    private final DepthStatsCalculator mDepthStats = new DepthStatsCalculator();
+    private static final float DEPTH_LEAF_SIZE_M = 0.02f;
+    private VoxelGridFilter mDepthFilter;
+    private static final float MAP_VOXEL_SIZE_M = 0.05f;
+    private static final int MAP_MAX_VOXELS = 128 * 1024;
+    private static final int MAP_MAX_DRAWN_POINTS = 48 * 1024;
+    private VoxelMap mVoxelMap;
+    // Moves depth frames to world space for the map, splitting large ones.
+    private PointTransformer mPointTransformer;
+    // Reused per callback so pose and depth updates do not allocate.
+    private final float[] mPoseTranslation = new float[3];
+    private final float[] mPoseRotation = new float[4];
+    private final float[] mPointCloudTranslation = new float[3];
+    private final float[] mPointCloudRotation = new float[4];
+    private final float[] mFuseModelMatrix = new float[16];
+    private MapOctreeBuilder mMapOctreeBuilder;
+    private static final int POSE_HISTORY_CAPACITY = 512;
+    // Every Nth depth frame also asks the service, to compare both lookups.
+    private static final int POSE_SERVICE_SAMPLE_INTERVAL = 10;
+    private final PoseHistory mPoseHistory = new PoseHistory(POSE_HISTORY_CAPACITY);
+    private final LatencyHistogram mPoseHistoryLatency = mMetrics.histogram("depth.pose_history");
+    private final LatencyHistogram mPoseServiceLatency = mMetrics.histogram("depth.pose_service");
+    private final double[] mDepthPoseTranslation = new double[3];
+    private final double[] mDepthPoseRotation = new double[4];
+    private int mDepthFrameCount;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -121,6 +210,9 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         mApplicationVersionTextView = (TextView) findViewById(R.id.appversion);
         mAverageZTextView = (TextView) findViewById(R.id.averageZ);
         mFrequencyTextView = (TextView) findViewById(R.id.frameDelta);
+        mPointUploadTextView = (TextView) findViewById(R.id.pointUpload);
+        mRenderChunksTextView = (TextView) findViewById(R.id.renderChunks);
+        mPoseLookupTextView = (TextView) findViewById(R.id.poseLookup);
 
         mFirstPersonButton = (Button) findViewById(R.id.first_person_button);
         mFirstPersonButton.setOnClickListener(this);
@@ -134,15 +226,36 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         mConfig.putBoolean(TangoConfig.KEY_BOOLEAN_DEPTH, true);
 
         int maxDepthPoints = mConfig.getInt("max_point_cloud_elements");
-        mRenderer = new PCRenderer(maxDepthPoints);
+        Intent intent = getIntent();
+        if (intent.getBooleanExtra(EXTRA_SYNTHETIC_SESSION, false)) {
+            mSyntheticSession = new SyntheticSession(
+                    intent.getLongExtra(EXTRA_SYNTHETIC_SEED, 0),
+                    intent.getIntExtra(EXTRA_SYNTHETIC_POINTS,
+                            SyntheticSession.DEFAULT_POINTS_PER_FRAME),
+                    intent.getFloatExtra(EXTRA_SYNTHETIC_DEPTH_RATE,
+                            (float) SyntheticSession.DEFAULT_DEPTH_RATE_HZ),
+                    SyntheticSession.DEFAULT_POSE_RATE_HZ);
+            maxDepthPoints = Math.max(maxDepthPoints, mSyntheticSession.getPointsPerFrame());
+        }
+        mRenderer = new PCRenderer(maxDepthPoints, MAP_MAX_DRAWN_POINTS, mMetrics);
+        mDepthFilter = new VoxelGridFilter(DEPTH_LEAF_SIZE_M, maxDepthPoints);
+        mPointTransformer = new PointTransformer();
+        mVoxelMap = new VoxelMap(MAP_VOXEL_SIZE_M, MAP_MAX_VOXELS, mPointTransformer);
         mGLView = (GLSurfaceView) findViewById(R.id.gl_surface_view);
         mGLView.setEGLContextClientVersion(2);
-        mGLView.setRenderer(mRenderer);
+        RenderUtils.setProgramBinaryCache(new File(getCacheDir(), PROGRAM_CACHE_DIR));
+        mRenderScheduler = new RenderScheduler(mGLView, mRenderer,
+                getWindowManager().getDefaultDisplay().getRefreshRate(), RENDER_MAX_FPS);
+        mGLView.setRenderer(mRenderScheduler);
+        mRenderScheduler.start();
+        mMapOctreeBuilder = new MapOctreeBuilder(mVoxelMap, mRenderer, mRenderScheduler);
 
         PackageInfo packageInfo;
+        String build = Build.DISPLAY;
         try {
             packageInfo = this.getPackageManager().getPackageInfo(this.getPackageName(), 0);
             mApplicationVersionTextView.setText(packageInfo.versionName);
+            build = packageInfo.versionName + " (" + packageInfo.versionCode + ") " + build;
         } catch (NameNotFoundException e) {
             e.printStackTrace();
         }
@@ -151,12 +264,21 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         mServiceVersion = mConfig.getString("tango_service_library_version");
         mTangoServiceVersionTextView.setText(mServiceVersion);
         mIsTangoServiceConnected = false;
+        startTelemetry();
+        if (intent.getBooleanExtra(EXTRA_RECORD_SESSION, false)) {
+            startSessionRecording();
+        }
+        startMetrics(build);
         startUIThread();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        if (mSyntheticSession != null) {
+            stopSyntheticSession();
+            return;
+        }
         try {
             mTango.disconnect();
             mIsTangoServiceConnected = false;
@@ -168,7 +290,9 @@ public class PointCloudActivity extends Activity implements OnClickListener {
     @Override
     protected void onResume() {
         super.onResume();
-        if (!mIsTangoServiceConnected) {
+        if (mSyntheticSession != null) {
+            startSyntheticSession();
+        } else if (!mIsTangoServiceConnected) {
             startActivityForResult(
                     Tango.getRequestPermissionIntent(Tango.PERMISSIONTYPE_MOTION_TRACKING),
                     Tango.TANGO_INTENT_ACTIVITYCODE);
@@ -212,6 +336,21 @@ public class PointCloudActivity extends Activity implements OnClickListener {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mPoseUploader != null) {
+            mPoseUploader.stop();
+        }
+        if (mMetricsReporter != null) {
+            mMetricsReporter.stop();
+        }
+        mPointTransformer.close();
+        mMapOctreeBuilder.stop();
+        if (mSessionRecorder != null) {
+            try {
+                mSessionRecorder.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Session recording is incomplete", e);
+            }
+        }
     }
 
     @Override
@@ -230,11 +369,14 @@ public class PointCloudActivity extends Activity implements OnClickListener {
             Log.w(TAG, "Unrecognized button click.");
             return;
         }
+        mRenderScheduler.requestRender();
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        return mRenderer.onTouchEvent(event);
+        boolean isHandled = mRenderer.onTouchEvent(event);
+        mRenderScheduler.requestRender();
+        return isHandled;
     }
 
     private void setUpExtrinsics() {
@@ -250,6 +392,10 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         }
         mRenderer.getModelMatCalculator().SetDevice2IMUMatrix(
                 device2IMUPose.getTranslationAsFloats(), device2IMUPose.getRotationAsFloats());
+        if (mSessionRecorder != null) {
+            mSessionRecorder.onExtrinsics(framePair.baseFrame, framePair.targetFrame,
+                    device2IMUPose.translation, device2IMUPose.rotation);
+        }
 
         // Set color camera to imu matrix in Model Matrix Calculator.
         TangoPoseData color2IMUPose = new TangoPoseData();
@@ -263,6 +409,10 @@ public class PointCloudActivity extends Activity implements OnClickListener {
         }
         mRenderer.getModelMatCalculator().SetColorCamera2IMUMatrix(
                 color2IMUPose.getTranslationAsFloats(), color2IMUPose.getRotationAsFloats());
+        if (mSessionRecorder != null) {
+            mSessionRecorder.onExtrinsics(framePair.baseFrame, framePair.targetFrame,
+                    color2IMUPose.translation, color2IMUPose.rotation);
+        }
     }
 
     private void setTangoListeners() {
@@ -272,103 +422,113 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                 TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
                 TangoPoseData.COORDINATE_FRAME_DEVICE));
         // Listen for new Tango data
-        mTango.connectListener(framePairs, new OnTangoUpdateListener() {
+        mTango.connectListener(framePairs, createUpdateListener(framePairs.get(0)));
+    }
+
+    /**
+     * Creates the listener for the service's callbacks. Depth frames are given the pose of
+     * {@code depthFramePair} at their timestamp.
+     */
+    private OnTangoUpdateListener createUpdateListener(
+            final TangoCoordinateFramePair depthFramePair) {
+        return new OnTangoUpdateListener() {
 
             @Override
             public void onPoseAvailable(final TangoPoseData pose) {
-                // Make sure to have atomic access to Tango Pose Data so that
-                // render loop doesn't interfere while Pose call back is updating
-                // the data.
-                synchronized (poseLock) {
-                    mPose = pose;
-                    // Calculate the delta time from previous pose.
-                    mDeltaTime = (float) (pose.timestamp - mPosePreviousTimeStamp)
-                            * SECS_TO_MILLISECS;
-                    mPosePreviousTimeStamp = (float) pose.timestamp;
-                    if (mPreviousPoseStatus != pose.statusCode) {
-                        count = 0;
-                    }
-                    count++;
-                    mPreviousPoseStatus = pose.statusCode;
-                    if(!mRenderer.isValid()){
-                        return;
-                    }
-                    mRenderer.getModelMatCalculator().updateModelMatrix(
-                            pose.getTranslationAsFloats(), pose.getRotationAsFloats());
-                    mRenderer.updateViewMatrix();
-
-
+                long callbackStart = System.nanoTime();
+                // Depth frames look their pose up here instead of asking the service.
+                mPoseHistory.add(pose.timestamp, pose.translation, pose.rotation,
+                        pose.statusCode);
+                // Calculate the delta time from previous pose.
+                mDeltaTime = (float) (pose.timestamp - mPosePreviousTimeStamp)
+                        * SECS_TO_MILLISECS;
+                mPosePreviousTimeStamp = pose.timestamp;
+                if (mPreviousPoseStatus != pose.statusCode) {
+                    count = 0;
                 }
-
-                try {
-                    //timestamp = pose.timestamp; //get timestamp data
-
-                    //Initializes HTTP POST request
-                    HttpClient httpclient = new DefaultHttpClient();
-                    HttpPost httpPost = new HttpPost("http://10.220.173.176/datapoint");
-                    List<NameValuePair> nameValuePair = new ArrayList<NameValuePair>(2);
-                    nameValuePair.add(new BasicNameValuePair("timestamp", pose.timestamp + ""));
-                    nameValuePair.add(new BasicNameValuePair("translation", "" + pose.translation[0] + ", " + pose.translation[1] + ", " + pose.translation[2]));
-                    nameValuePair.add(new BasicNameValuePair("rotation", pose.rotation[0] + ", " + pose.rotation[1] + ", " + pose.rotation[2] + ", " +
-                            pose.rotation[3]));
-
-
-                    httpPost.setEntity(new UrlEncodedFormEntity(nameValuePair));
-
-                    try {
-                        //Send Request
-                        HttpResponse response = httpclient.execute(httpPost);
-                        // write response to log
-                        Log.d("Http Post Response:", response.toString());
-                    } catch (ClientProtocolException e) { // Catch a few different Exceptions
-                        // Log exception
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        // Log exception
-                        e.printStackTrace();
-                        Log.i(TAG, e.getMessage());
-                    }
-
-                    // HttpResponse response = httpclient.execute(new HttpGet("http://localhost:1234/send-data"));
-                } catch (Exception exception) {
-                    Log.i(TAG, exception.getMessage());
+                count++;
+                mPreviousPoseStatus = pose.statusCode;
+
+                // Publish the pose to the render loop and the UI; neither ever
+                // blocks this callback.
+                ModelMatCalculator modelMatCalculator = mRenderer.getModelMatCalculator();
+                copyToFloats(pose.translation, mPoseTranslation);
+                copyToFloats(pose.rotation, mPoseRotation);
+                modelMatCalculator.updateModelMatrix(mPoseTranslation, mPoseRotation);
+                mPoseSequence++;
+                publishPose(mRenderer.getPoseFrames(), pose, modelMatCalculator, callbackStart);
+                publishPose(mUiPoseFrames, pose, modelMatCalculator, callbackStart);
+                mRenderScheduler.requestRenderIfMoved(modelMatCalculator.getModelMatrix());
+
+                // Hand the pose to the telemetry uploader; this never blocks
+                // the callback thread.
+                if (mPoseTelemetryBuffer != null) {
+                    mPoseTelemetryBuffer.offer(pose.timestamp, pose.translation,
+                            pose.rotation, pose.statusCode);
                 }
-
+                if (mSessionRecorder != null) {
+                    mSessionRecorder.onPose(pose.timestamp, pose.baseFrame, pose.targetFrame,
+                            pose.statusCode, pose.translation, pose.rotation);
+                }
+                mPoseCount.increment();
+                mPoseCallbackTime.recordSince(callbackStart);
             }
 
             @Override
             public void onXyzIjAvailable(final TangoXyzIjData xyzIj) {
-                // Make sure to have atomic access to TangoXyzIjData so that
-                // render loop doesn't interfere while onXYZijAvailable callback is updating
-                // the point cloud data.
-                synchronized (depthLock) {
-                    mCurrentTimeStamp = (float) xyzIj.timestamp;
-                    mPointCloudFrameDelta = (mCurrentTimeStamp - mXyIjPreviousTimeStamp)
-                            * SECS_TO_MILLISECS;
-                    mXyIjPreviousTimeStamp = mCurrentTimeStamp;
-                    try {
-                        TangoPoseData pointCloudPose = mTango.getPoseAtTime(mCurrentTimeStamp,
-                             framePairs.get(0));
-                        mPointCount = xyzIj.xyzCount;
-                        if(!mRenderer.isValid()){
-                            return;
-                        }
-                        mRenderer.getPointCloud().UpdatePoints(xyzIj.xyz);
-                        mRenderer.getModelMatCalculator().updatePointCloudModelMatrix(
-                                        pointCloudPose.getTranslationAsFloats(),
-                                        pointCloudPose.getRotationAsFloats());
-                        mRenderer.getPointCloud().setModelMatrix(
-                                mRenderer.getModelMatCalculator().getPointCloudModelMatrixCopy());
-                      } catch (TangoErrorException e) {
-                        Toast.makeText(getApplicationContext(), R.string.TangoError,
-                                Toast.LENGTH_SHORT).show();
-                    } catch (TangoInvalidException e) {
-                        Toast.makeText(getApplicationContext(), R.string.TangoError,
-                                Toast.LENGTH_SHORT).show();
-                    }
+                long callbackStart = System.nanoTime();
+                mDepthFrameCounter.increment();
+                // The ij buffer is not exposed by this Tango API, so only xyz is recorded.
+                if (mSessionRecorder != null) {
+                    mSessionRecorder.onXyzIj(xyzIj.timestamp, xyzIj.xyz, xyzIj.xyzCount,
+                            xyzIj.ijRows, xyzIj.ijCols, null);
                 }
-
-
+                // Depth stats are computed here so neither the render loop nor
+                // the UI thread does per-point work.
+                mDepthStats.update(xyzIj.timestamp, xyzIj.xyz, xyzIj.xyzCount);
+                int poseStatus;
+                try {
+                    poseStatus = getDepthPose(xyzIj.timestamp, depthFramePair);
+                } catch (TangoErrorException e) {
+                    Toast.makeText(getApplicationContext(), R.string.TangoError,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                } catch (TangoInvalidException e) {
+                    Toast.makeText(getApplicationContext(), R.string.TangoError,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                mCurrentTimeStamp = xyzIj.timestamp;
+                mPointCloudFrameDelta = (float) (mCurrentTimeStamp - mXyIjPreviousTimeStamp)
+                        * SECS_TO_MILLISECS;
+                mXyIjPreviousTimeStamp = mCurrentTimeStamp;
+                mPointCount = xyzIj.xyzCount;
+
+                // Build the frame in the write buffer and publish it; the render
+                // loop picks up the newest frame without waiting.
+                int filteredCount = mDepthFilter.filter(xyzIj.xyz, xyzIj.xyzCount);
+                ModelMatCalculator modelMatCalculator = mRenderer.getModelMatCalculator();
+                copyToFloats(mDepthPoseTranslation, mPointCloudTranslation);
+                copyToFloats(mDepthPoseRotation, mPointCloudRotation);
+                modelMatCalculator.updatePointCloudModelMatrix(mPointCloudTranslation,
+                        mPointCloudRotation);
+                TripleBuffer<DepthFrame> depthFrames = mRenderer.getDepthFrames();
+                DepthFrame frame = depthFrames.getWriteBuffer();
+                frame.set(++mDepthSequence, xyzIj.timestamp, mDepthFilter.getOutput(),
+                        filteredCount, poseStatus);
+                modelMatCalculator.getPointCloudModelMatrix(frame.getModelMatrix());
+                depthFrames.publish();
+                mRenderScheduler.requestRender();
+
+                // Fusing runs on this thread, so only frames whose world pose is
+                // known are fused; the map's octree is rebuilt in the background.
+                if (poseStatus == TangoPoseData.POSE_VALID) {
+                    modelMatCalculator.getPointCloudModelMatrix(mFuseModelMatrix);
+                    mVoxelMap.insertFrame(mDepthFilter.getOutputArray(),
+                            mDepthFilter.getOutputCount(), mFuseModelMatrix);
+                    mMapOctreeBuilder.onFrameFused();
+                }
+                mDepthCallbackTime.recordSince(callbackStart);
             }
 
             @Override
@@ -385,12 +545,230 @@ public class PointCloudActivity extends Activity implements OnClickListener {
             public void onFrameAvailable(int cameraId) {
                 // We are not using onFrameAvailable for this application.
             }
+        };
+    }
+
+    /**
+     * Runs the synthetic session in real time on its own thread, through the same listener as
+     * the service's callbacks.
+     */
+    private void startSyntheticSession() {
+        if (mSyntheticThread != null) {
+            return;
+        }
+        final SessionUpdateAdapter adapter = new SessionUpdateAdapter(
+                createUpdateListener(new TangoCoordinateFramePair(
+                        TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
+                        TangoPoseData.COORDINATE_FRAME_DEVICE)),
+                mRenderer.getModelMatCalculator());
+        final SyntheticSession session = mSyntheticSession;
+        mSyntheticThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                session.run(adapter, Double.POSITIVE_INFINITY, true);
+            }
+        }, SyntheticSession.class.getSimpleName());
+        mSyntheticThread.start();
+        Log.i(TAG, "Started synthetic session of " + session.getPointsPerFrame()
+                + " points per frame");
+    }
+
+    private void stopSyntheticSession() {
+        if (mSyntheticThread == null) {
+            return;
+        }
+        mSyntheticSession.stop();
+        try {
+            mSyntheticThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mSyntheticThread = null;
+    }
+
+    /**
+     * Resolves the pose of a depth frame into mDepthPoseTranslation and
+     * mDepthPoseRotation. The pose history is used whenever it covers the
+     * timestamp; the service is only asked when it does not, and on every
+     * POSE_SERVICE_SAMPLE_INTERVAL-th frame so both latencies can be compared.
+     * Only called from the depth callback.
+     *
+     * @return the pose status code.
+     * @throws TangoErrorException
+     *             or TangoInvalidException only if the history did not cover
+     *             the timestamp; a failed latency sample is logged instead.
+     */
+    private int getDepthPose(double timestamp, TangoCoordinateFramePair framePair) {
+        long start = System.nanoTime();
+        int status = mPoseHistory.getPoseAtTime(timestamp, mDepthPoseTranslation,
+                mDepthPoseRotation);
+        if (status != PoseHistory.NOT_FOUND) {
+            mPoseHistoryLatency.recordSince(start);
+        }
+        mDepthFrameCount++;
+        if (mSyntheticSession != null) {
+            // There is no service to ask; synthetic poses always precede their depth frames.
+            return status != PoseHistory.NOT_FOUND ? status : TangoPoseData.POSE_INVALID;
+        }
+        if (status == PoseHistory.NOT_FOUND) {
+            start = System.nanoTime();
+            TangoPoseData pose = mTango.getPoseAtTime(timestamp, framePair);
+            mPoseServiceLatency.recordSince(start);
+            System.arraycopy(pose.translation, 0, mDepthPoseTranslation, 0, 3);
+            System.arraycopy(pose.rotation, 0, mDepthPoseRotation, 0, 4);
+            return pose.statusCode;
+        }
+        if (mDepthFrameCount % POSE_SERVICE_SAMPLE_INTERVAL == 0) {
+            // Only timed; the frame already has its pose from the history.
+            try {
+                start = System.nanoTime();
+                mTango.getPoseAtTime(timestamp, framePair);
+                mPoseServiceLatency.recordSince(start);
+            } catch (TangoErrorException e) {
+                Log.w(TAG, "Pose service latency sample failed", e);
+            } catch (TangoInvalidException e) {
+                Log.w(TAG, "Pose service latency sample failed", e);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Fills the write buffer of {@code frames} with the pose and the device model matrix, then
+     * publishes it. Only called from the pose callback.
+     */
+    private void publishPose(TripleBuffer<PoseFrame> frames, TangoPoseData pose,
+            ModelMatCalculator modelMatCalculator, long receivedNanos) {
+        frames.getWriteBuffer().set(mPoseSequence, receivedNanos, pose.timestamp,
+                pose.translation, pose.rotation, pose.statusCode,
+                modelMatCalculator.getModelMatrix());
+        frames.publish();
+    }
+
+    private static void copyToFloats(double[] source, float[] destination) {
+        for (int i = 0; i < destination.length; i++) {
+            destination[i] = (float) source[i];
+        }
+    }
+
+    /**
+     * Starts the background uploader that posts poses to the telemetry
+     * endpoint in batches. Poses are queued by {@code onPoseAvailable} and
+     * dropped oldest-first if the uploader cannot keep up. Batches are spooled
+     * to a journal in the app's files directory so that they survive network
+     * outages; if the journal cannot be opened poses are sent directly.
+     */
+    private void startTelemetry() {
+        mPoseTelemetryBuffer = new PoseRingBuffer(TELEMETRY_BUFFER_CAPACITY,
+                PoseRingBuffer.OverflowPolicy.DROP_OLDEST);
+        TelemetryJournal journal = null;
+        try {
+            journal = new TelemetryJournal(new File(getFilesDir(), TELEMETRY_JOURNAL_DIR),
+                    TELEMETRY_JOURNAL_SEGMENT_SIZE, TELEMETRY_JOURNAL_MAX_SEGMENTS);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open telemetry journal", e);
+        }
+        try {
+            mPoseUploader = new PoseUploader(TELEMETRY_ENDPOINT, mPoseTelemetryBuffer,
+                    PoseUploader.DEFAULT_MAX_BATCH_SIZE, PoseUploader.DEFAULT_MAX_BATCH_DELAY_MS,
+                    PoseUploader.WireFormat.BINARY, journal);
+            mPoseUploader.setDeviceId(Build.SERIAL);
+            mPoseUploader.setSendLatencyHistogram(mMetrics.histogram("telemetry.send_latency"));
+            mPoseUploader.start();
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Invalid telemetry endpoint " + TELEMETRY_ENDPOINT, e);
+        }
+    }
+
+    private void startSessionRecording() {
+        File file = new File(new File(getFilesDir(), SESSION_DIR), "session-"
+                + System.currentTimeMillis() + ".tses");
+        try {
+            mSessionRecorder = new SessionRecorder(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot record session to " + file, e);
+            return;
+        }
+        final SessionRecorder recorder = mSessionRecorder;
+        mMetrics.gauge("session.dropped_records", new Gauge() {
+            @Override
+            public double getValue() {
+                return recorder.getDroppedRecordCount();
+            }
+        });
+        Log.i(TAG, "Recording session to " + file);
+    }
+
+    private static String formatMicros(LatencyHistogram histogram) {
+        return histogram.getPercentileNanos(50) / 1000 + " / "
+                + histogram.getPercentileNanos(99) / 1000;
+    }
+
+    /**
+     * Registers the gauges of the telemetry and mapping stages and starts appending a JSON
+     * metrics dump to the app's files directory every METRICS_INTERVAL_MS, so field sessions of
+     * different builds can be compared.
+     */
+    private void startMetrics(String build) {
+        final PoseRingBuffer telemetryBuffer = mPoseTelemetryBuffer;
+        mMetrics.gauge("telemetry.dropped_poses", new Gauge() {
+            @Override
+            public double getValue() {
+                return telemetryBuffer.getDroppedCount();
+            }
         });
+        final PoseUploader uploader = mPoseUploader;
+        if (uploader != null) {
+            mMetrics.gauge("telemetry.failed_batches", new Gauge() {
+                @Override
+                public double getValue() {
+                    return uploader.getFailedBatchCount();
+                }
+            });
+            mMetrics.gauge("telemetry.deferred_batches", new Gauge() {
+                @Override
+                public double getValue() {
+                    return uploader.getDeferredBatchCount();
+                }
+            });
+        }
+        final RenderScheduler renderScheduler = mRenderScheduler;
+        mMetrics.gauge("render.requests", new Gauge() {
+            @Override
+            public double getValue() {
+                return renderScheduler.getRequestCount();
+            }
+        });
+        mMetrics.gauge("render.frames_skipped", new Gauge() {
+            @Override
+            public double getValue() {
+                return renderScheduler.getSkippedFrameCount();
+            }
+        });
+        mMetrics.gauge("map.voxels", new Gauge() {
+            @Override
+            public double getValue() {
+                return mVoxelMap.getVoxelCount();
+            }
+        });
+        final SyntheticSession syntheticSession = mSyntheticSession;
+        if (syntheticSession != null) {
+            mMetrics.gauge("synthetic.late_events", new Gauge() {
+                @Override
+                public double getValue() {
+                    return syntheticSession.getLateEventCount();
+                }
+            });
+        }
+        mMetricsReporter = new MetricsReporter(mMetrics, new File(getFilesDir(), METRICS_FILE),
+                MetricsReporter.Format.JSON, build, METRICS_INTERVAL_MS, METRICS_MAX_FILE_BYTES);
+        mMetricsReporter.start();
     }
 
     /**
      * Create a separate thread to update Log information on UI at the specified interval of
-     * UPDATE_INTERVAL_MS. This function also makes sure to have access to the mPose atomically.
+     * UPDATE_INTERVAL_MS. Poses are read from a snapshot published by the pose callback, so the
+     * UI never blocks the Tango callbacks or the render loop.
      */
     private void startUIThread() {
         new Thread(new Runnable() {
@@ -405,44 +783,60 @@ public class PointCloudActivity extends Activity implements OnClickListener {
                         runOnUiThread(new Runnable() {
                             @Override
                             public void run() {
-                                synchronized (poseLock) {
-                                    if (mPose == null) {
-                                        return;
-                                    }
-                                    String translationString = "["
-                                            + threeDec.format(mPose.translation[0]) + ", "
-                                            + threeDec.format(mPose.translation[1]) + ", "
-                                            + threeDec.format(mPose.translation[2]) + "] ";
-                                    String quaternionString = "["
-                                            + threeDec.format(mPose.rotation[0]) + ", "
-                                            + threeDec.format(mPose.rotation[1]) + ", "
-                                            + threeDec.format(mPose.rotation[2]) + ", "
-                                            + threeDec.format(mPose.rotation[3]) + "] ";
-
-                                    // Display pose data on screen in TextViews
-                                    mPoseTextView.setText(translationString);
-                                    mQuatTextView.setText(quaternionString);
-                                    mPoseCountTextView.setText(Integer.toString(count));
-                                    mDeltaTextView.setText(threeDec.format(mDeltaTime));
-                                    if (mPose.statusCode == TangoPoseData.POSE_VALID) {
-                                        mPoseStatusTextView.setText(R.string.pose_valid);
-                                    } else if (mPose.statusCode == TangoPoseData.POSE_INVALID) {
-                                        mPoseStatusTextView.setText(R.string.pose_invalid);
-                                    } else if (mPose.statusCode == TangoPoseData.POSE_INITIALIZING) {
-                                        mPoseStatusTextView.setText(R.string.pose_initializing);
-                                    } else if (mPose.statusCode == TangoPoseData.POSE_UNKNOWN) {
-                                        mPoseStatusTextView.setText(R.string.pose_unknown);
-                                    }
+                                PoseFrame pose = mUiPoseFrames.acquire();
+                                if (pose.getSequence() == 0) {
+                                    return;
                                 }
-                                synchronized (depthLock) {
-                                    // Display number of points in the point cloud
-                                    mPointCountTextView.setText(Integer.toString(mPointCount));
-                                    mFrequencyTextView.setText(""
-                                            + threeDec.format(mPointCloudFrameDelta));
-                                    mAverageZTextView.setText(""
-                                            + threeDec.format(mRenderer.getPointCloud()
-                                                    .getAverageZ()));
+                                double[] translation = pose.getTranslation();
+                                double[] rotation = pose.getRotation();
+                                String translationString = "["
+                                        + threeDec.format(translation[0]) + ", "
+                                        + threeDec.format(translation[1]) + ", "
+                                        + threeDec.format(translation[2]) + "] ";
+                                String quaternionString = "["
+                                        + threeDec.format(rotation[0]) + ", "
+                                        + threeDec.format(rotation[1]) + ", "
+                                        + threeDec.format(rotation[2]) + ", "
+                                        + threeDec.format(rotation[3]) + "] ";
+
+                                // Display pose data on screen in TextViews
+                                mPoseTextView.setText(translationString);
+                                mQuatTextView.setText(quaternionString);
+                                mPoseCountTextView.setText(Integer.toString(count));
+                                mDeltaTextView.setText(threeDec.format(mDeltaTime));
+                                int statusCode = pose.getStatusCode();
+                                if (statusCode == TangoPoseData.POSE_VALID) {
+                                    mPoseStatusTextView.setText(R.string.pose_valid);
+                                } else if (statusCode == TangoPoseData.POSE_INVALID) {
+                                    mPoseStatusTextView.setText(R.string.pose_invalid);
+                                } else if (statusCode == TangoPoseData.POSE_INITIALIZING) {
+                                    mPoseStatusTextView.setText(R.string.pose_initializing);
+                                } else if (statusCode == TangoPoseData.POSE_UNKNOWN) {
+                                    mPoseStatusTextView.setText(R.string.pose_unknown);
                                 }
+                                DepthStats depthStats = mDepthStats.getLatest();
+                                mAverageZTextView.setText(threeDec.format(depthStats
+                                        .getAverageZ())
+                                        + " [" + threeDec.format(depthStats.getMinZ()) + ", "
+                                        + threeDec.format(depthStats.getMaxZ()) + "]");
+                                // Display number of valid and total points in the point cloud
+                                mPointCountTextView.setText(depthStats.getValidPointCount()
+                                        + " / " + mPointCount);
+                                mFrequencyTextView.setText(""
+                                        + threeDec.format(mPointCloudFrameDelta));
+                                mPointUploadTextView.setText(threeDec.format(
+                                        mRenderer.getPointCloud().getLastUploadBytes() / 1024f)
+                                        + ", "
+                                        + threeDec.format(mRenderer.getPointCloud()
+                                                .getLastUploadMs()));
+                                RenderStats renderStats = mRenderer.getRenderStats();
+                                mRenderChunksTextView.setText(renderStats.getDrawnChunks()
+                                        + " / " + renderStats.getCulledChunks() + ", "
+                                        + renderStats.getDrawCalls() + " / "
+                                        + renderStats.getStateChanges());
+                                mPoseLookupTextView.setText("history "
+                                        + formatMicros(mPoseHistoryLatency) + ", service "
+                                        + formatMicros(mPoseServiceLatency));
                             }
                         });
                     } catch (InterruptedException e) {
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.experiments.javapointcloud;
+
+import com.google.atap.tangoservice.Tango.OnTangoUpdateListener;
+import com.google.atap.tangoservice.TangoPoseData;
+import com.google.atap.tangoservice.TangoXyzIjData;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.projecttango.tangoutils.ModelMatCalculator;
+import com.projecttango.tangoutils.session.SessionListener;
+
+/**
+ * Feeds a replayed or synthetic session into the listener that receives the
+ * Tango service's callbacks, so it runs exactly the code paths of a live
+ * session. Extrinsics are applied to the model matrix calculator as
+ * {@code setUpExtrinsics} does for the service's.
+ *
+ * The data objects are reused for every call, as the listener does not keep
+ * them.
+ */
+class SessionUpdateAdapter implements SessionListener {
+
+    private final OnTangoUpdateListener mListener;
+    private final ModelMatCalculator mModelMatCalculator;
+    private final TangoPoseData mPose = new TangoPoseData();
+    private final TangoXyzIjData mXyzIj = new TangoXyzIjData();
+    private final float[] mTranslation = new float[3];
+    private final float[] mRotation = new float[4];
+
+    SessionUpdateAdapter(OnTangoUpdateListener listener, ModelMatCalculator modelMatCalculator) {
+        mListener = listener;
+        mModelMatCalculator = modelMatCalculator;
+        mPose.translation = new double[3];
+        mPose.rotation = new double[4];
+    }
+
+    @Override
+    public void onPose(double timestamp, int baseFrame, int targetFrame, int statusCode,
+            double[] translation, double[] rotation) {
+        mPose.timestamp = timestamp;
+        mPose.baseFrame = baseFrame;
+        mPose.targetFrame = targetFrame;
+        mPose.statusCode = statusCode;
+        System.arraycopy(translation, 0, mPose.translation, 0, 3);
+        System.arraycopy(rotation, 0, mPose.rotation, 0, 4);
+        mListener.onPoseAvailable(mPose);
+    }
+
+    @Override
+    public void onXyzIj(double timestamp, FloatBuffer xyz, int xyzCount, int ijRows,
+            int ijCols, IntBuffer ij) {
+        mXyzIj.timestamp = timestamp;
+        mXyzIj.xyz = xyz;
+        mXyzIj.xyzCount = xyzCount;
+        mXyzIj.ijRows = ijRows;
+        mXyzIj.ijCols = ijCols;
+        mListener.onXyzIjAvailable(mXyzIj);
+    }
+
+    @Override
+    public void onExtrinsics(int baseFrame, int targetFrame, double[] translation,
+            double[] rotation) {
+        if (baseFrame != TangoPoseData.COORDINATE_FRAME_IMU) {
+            return;
+        }
+        for (int i = 0; i < 3; i++) {
+            mTranslation[i] = (float) translation[i];
+        }
+        for (int i = 0; i < 4; i++) {
+            mRotation[i] = (float) rotation[i];
+        }
+        if (targetFrame == TangoPoseData.COORDINATE_FRAME_DEVICE) {
+            mModelMatCalculator.SetDevice2IMUMatrix(mTranslation, mRotation);
+        } else if (targetFrame == TangoPoseData.COORDINATE_FRAME_CAMERA_COLOR) {
+            mModelMatCalculator.SetColorCamera2IMUMatrix(mTranslation, mRotation);
+        }
+    }
+}
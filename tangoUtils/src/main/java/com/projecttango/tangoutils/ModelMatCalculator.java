@@ -16,18 +16,27 @@
 
 package com.projecttango.tangoutils;
 
-import android.opengl.Matrix;
+import com.projecttango.tangoutils.math.Matrix4;
 
 /**
  * Utility class to manage the calculation of a Model Matrix from the
  * translation and quaternion arrays obtained from an {@link TangoPose} object.
  * Delegates some mathematical computations to the {@link MathUtils}.
+ *
+ * The constant part of the transform, built from the device and color camera
+ * extrinsics, is computed once when the extrinsics are set. Per-pose updates
+ * only write into preallocated arrays and do not allocate. The pose and the
+ * point cloud matrices use separate scratch storage so they can be updated
+ * from different callback threads.
+ *
+ * The matrix math is done by {@link Matrix4} in plain Java, so this class
+ * also runs on a desktop JVM.
  */
 public class ModelMatCalculator {
 
-    private static float[] mConversionMatrix = new float[] { 1.0f, 0.0f, 0.0f,
-            0.0f, 0.0f, 0.0f, -1.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
-            0.0f, 1.0f };
+    private static final float[] sOpengl2ColorCameraMatrix = new float[] { 1.0f,
+            0.0f, 0.0f, 0.0f, 0.0f, -1.0f, 0.0f, 0.0f, 0.0f, 0.0f, -1.0f, 0.0f,
+            0.0f, 0.0f, 0.0f, 1.0f };
 
     private float[] mModelMatrix = new float[16];
     private float[] mPointCloudModelMatrix = new float[16];
@@ -41,9 +50,18 @@ public class ModelMatCalculator {
             0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f,
             0.0f, 1.0f };
 
+    // inverse(Device2IMU) * ColorCamera2IMU * Opengl2ColorCamera.
+    private final float[] mExtrinsicChain = new float[16];
+    private final float[] mExtrinsicScratch = new float[32];
+
+    // Per-pose scratch, one per update method.
+    private final float[] mPoseScratch = new float[32];
+    private final float[] mPointCloudScratch = new float[32];
+
     public ModelMatCalculator() {
-        Matrix.setIdentityM(mModelMatrix, 0);
-        Matrix.setIdentityM(mPointCloudModelMatrix, 0);
+        Matrix4.setIdentity(mModelMatrix, 0);
+        Matrix4.setIdentity(mPointCloudModelMatrix, 0);
+        updateExtrinsicChain();
     }
 
     /**
@@ -56,32 +74,8 @@ public class ModelMatCalculator {
      */
     public void updatePointCloudModelMatrix(float[] translation,
             float[] quaternion) {
-
-        float[] tempMultMatrix = new float[16];
-        Matrix.setIdentityM(tempMultMatrix, 0);
-        Matrix.multiplyMM(tempMultMatrix, 0, mColorCamera2IMUMatrix, 0,
-                mOpengl2ColorCameraMatrix, 0);
-        float[] tempInvertMatrix = new float[16];
-        Matrix.setIdentityM(tempInvertMatrix, 0);
-        Matrix.invertM(tempInvertMatrix, 0, mDevice2IMUMatrix, 0);
-        float[] tempMultMatrix2 = new float[16];
-        Matrix.setIdentityM(tempMultMatrix2, 0);
-        Matrix.multiplyMM(tempMultMatrix2, 0, tempInvertMatrix, 0,
-                tempMultMatrix, 0);
-
-        float[] quaternionMatrix = new float[16];
-        Matrix.setIdentityM(quaternionMatrix, 0);
-        quaternionMatrix = quaternionMatrixOpenGL(quaternion);
-        float[] tempMultMatrix3 = new float[16];
-        Matrix.setIdentityM(tempMultMatrix3, 0);
-        Matrix.setIdentityM(mPointCloudModelMatrix, 0);
-        Matrix.multiplyMM(tempMultMatrix3, 0, quaternionMatrix, 0,
-                tempMultMatrix2, 0);
-        Matrix.multiplyMM(mPointCloudModelMatrix, 0, mConversionMatrix, 0,
-                tempMultMatrix3, 0);
-        mPointCloudModelMatrix[12] += translation[0];
-        mPointCloudModelMatrix[13] += translation[2];
-        mPointCloudModelMatrix[14] += -1f * translation[1];
+        composeModelMatrix(translation, quaternion, mPointCloudScratch,
+                mPointCloudModelMatrix);
     }
 
     /**
@@ -93,49 +87,49 @@ public class ModelMatCalculator {
      *            a four-element array of rotation data.
      */
     public void updateModelMatrix(float[] translation, float[] quaternion) {
+        composeModelMatrix(translation, quaternion, mPoseScratch, mModelMatrix);
+    }
 
-        float[] tempMultMatrix = new float[16];
-        Matrix.setIdentityM(tempMultMatrix, 0);
-        Matrix.multiplyMM(tempMultMatrix, 0, mColorCamera2IMUMatrix, 0,
-                mOpengl2ColorCameraMatrix, 0);
-        float[] tempInvertMatrix = new float[16];
-        Matrix.setIdentityM(tempInvertMatrix, 0);
-        Matrix.invertM(tempInvertMatrix, 0, mDevice2IMUMatrix, 0);
-        float[] tempMultMatrix2 = new float[16];
-        Matrix.setIdentityM(tempMultMatrix2, 0);
-        Matrix.multiplyMM(tempMultMatrix2, 0, tempInvertMatrix, 0,
-                tempMultMatrix, 0);
-
-        float[] quaternionMatrix = new float[16];
-        Matrix.setIdentityM(quaternionMatrix, 0);
-        quaternionMatrix = quaternionMatrixOpenGL(quaternion);
-        float[] tempMultMatrix3 = new float[16];
-        Matrix.setIdentityM(tempMultMatrix3, 0);
-        Matrix.setIdentityM(mModelMatrix, 0);
-        Matrix.multiplyMM(tempMultMatrix3, 0, quaternionMatrix, 0,
-                tempMultMatrix2, 0);
-        Matrix.multiplyMM(mModelMatrix, 0, mConversionMatrix, 0,
-                tempMultMatrix3, 0);
-        mModelMatrix[12] += translation[0];
-        mModelMatrix[13] += translation[2];
-        mModelMatrix[14] += -1f * translation[1];
+    private void composeModelMatrix(float[] translation, float[] quaternion,
+            float[] scratch, float[] result) {
+        Matrix4.setRotationTranslation(scratch, 0, quaternion, translation);
+        Matrix4.multiply(scratch, 16, scratch, 0, mExtrinsicChain, 0);
+        // Convert from the Tango start of service frame to OpenGL world axes,
+        // (x, y, z) -> (x, z, -y): the same as multiplying on the left by the
+        // conversion matrix, as a swap and negation of rows.
+        for (int column = 0; column < 16; column += 4) {
+            result[column] = scratch[16 + column];
+            result[column + 1] = scratch[16 + column + 2];
+            result[column + 2] = -scratch[16 + column + 1];
+            result[column + 3] = scratch[16 + column + 3];
+        }
     }
 
     public void SetDevice2IMUMatrix(float[] translation, float[] quaternion) {
-        mDevice2IMUMatrix = quaternionMatrixOpenGL(quaternion);
-        mDevice2IMUMatrix[12] = translation[0];
-        mDevice2IMUMatrix[13] = translation[1];
-        mDevice2IMUMatrix[14] = translation[2];
+        Matrix4.setRotationTranslation(mDevice2IMUMatrix, 0, quaternion,
+                translation);
+        updateExtrinsicChain();
     }
 
     public void SetColorCamera2IMUMatrix(float[] translation, float[] quaternion) {
-        mOpengl2ColorCameraMatrix = new float[] { 1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
-                -1.0f, 0.0f, 0.0f, 0.0f, 0.0f, -1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
-                1.0f };
-        mColorCamera2IMUMatrix = quaternionMatrixOpenGL(quaternion);
-        mColorCamera2IMUMatrix[12] = translation[0];
-        mColorCamera2IMUMatrix[13] = translation[1];
-        mColorCamera2IMUMatrix[14] = translation[2];
+        System.arraycopy(sOpengl2ColorCameraMatrix, 0, mOpengl2ColorCameraMatrix,
+                0, 16);
+        Matrix4.setRotationTranslation(mColorCamera2IMUMatrix, 0, quaternion,
+                translation);
+        updateExtrinsicChain();
+    }
+
+    /**
+     * Recomputes the constant part of the model matrices. Only needed when
+     * the extrinsics change.
+     */
+    private void updateExtrinsicChain() {
+        float[] scratch = mExtrinsicScratch;
+        Matrix4.multiply(scratch, 0, mColorCamera2IMUMatrix, 0,
+                mOpengl2ColorCameraMatrix, 0);
+        // The extrinsics are rigid transforms.
+        Matrix4.invertRigid(scratch, 16, mDevice2IMUMatrix, 0);
+        Matrix4.multiply(mExtrinsicChain, 0, scratch, 16, scratch, 0);
     }
 
     public float[] getModelMatrix() {
@@ -150,22 +144,46 @@ public class ModelMatCalculator {
 
     public float[] getPointCloudModelMatrixCopy() {
         float[] modelMatCopy = new float[16];
-        float[] tempMultMat = new float[16];
-        Matrix.setIdentityM(tempMultMat, 0);
-        float[] invertYandZMatrix = new float[] { 1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
-                -1.0f, 0.0f, 0.0f, 0.0f, 0.0f, -1.0f, 0.0f, 0.0f, 0.0f, 0.0f,
-                1.0f };
-        Matrix.multiplyMM(tempMultMat, 0, mPointCloudModelMatrix, 0,
-                invertYandZMatrix, 0);
-        System.arraycopy(tempMultMat, 0, modelMatCopy, 0, 16);
+        getPointCloudModelMatrix(modelMatCopy);
         return modelMatCopy;
     }
 
+    /**
+     * Writes the point cloud model matrix, including the flip from depth
+     * camera to OpenGL axes, into {@code result}.
+     * 
+     * @param result
+     *            a 16-element array receiving the matrix.
+     */
+    public void getPointCloudModelMatrix(float[] result) {
+        // Same as multiplying by diag(1, -1, -1, 1): negate the Y and Z
+        // columns.
+        float[] m = mPointCloudModelMatrix;
+        for (int i = 0; i < 4; i++) {
+            result[i] = m[i];
+            result[4 + i] = -m[4 + i];
+            result[8 + i] = -m[8 + i];
+            result[12 + i] = m[12 + i];
+        }
+    }
+
     public float[] getTranslation() {
         return new float[] { mModelMatrix[12], mModelMatrix[13],
                 mModelMatrix[14] };
     }
 
+    /**
+     * Writes the device translation into {@code result}.
+     * 
+     * @param result
+     *            a three-element array receiving the translation.
+     */
+    public void getTranslation(float[] result) {
+        result[0] = mModelMatrix[12];
+        result[1] = mModelMatrix[13];
+        result[2] = mModelMatrix[14];
+    }
+
     /**
      * A function to convert a quaternion to quaternion Matrix. Please note that
      * Opengl.Matrix is Column Major and so we construct the matrix in Column
@@ -178,46 +196,23 @@ public class ModelMatCalculator {
      */
     public static float[] quaternionMatrixOpenGL(float[] quaternion) {
         float[] matrix = new float[16];
-        normalizeVector(quaternion);
-
-        float x = quaternion[0];
-        float y = quaternion[1];
-        float z = quaternion[2];
-        float w = quaternion[3];
-
-        float x2 = x * x;
-        float y2 = y * y;
-        float z2 = z * z;
-        float xy = x * y;
-        float xz = x * z;
-        float yz = y * z;
-        float wx = w * x;
-        float wy = w * y;
-        float wz = w * z;
-
-        matrix[0] = 1f - 2f * (y2 + z2);
-        matrix[4] = 2f * (xy - wz);
-        matrix[8] = 2f * (xz + wy);
-        matrix[12] = 0f;
-
-        matrix[1] = 2f * (xy + wz);
-        matrix[5] = 1f - 2f * (x2 + z2);
-        matrix[9] = 2f * (yz - wx);
-        matrix[13] = 0f;
-
-        matrix[2] = 2f * (xz - wy);
-        matrix[6] = 2f * (yz + wx);
-        matrix[10] = 1f - 2f * (x2 + y2);
-        matrix[14] = 0f;
-
-        matrix[3] = 0f;
-        matrix[7] = 0f;
-        matrix[11] = 0f;
-        matrix[15] = 1f;
-
+        quaternionMatrixOpenGL(quaternion, matrix);
         return matrix;
     }
 
+    /**
+     * Allocation-free version of {@link #quaternionMatrixOpenGL(float[])}.
+     * 
+     * @param quaternion
+     *            Input quaternion with float[4]
+     * @param matrix
+     *            float[16] receiving the quaternion matrix
+     */
+    public static void quaternionMatrixOpenGL(float[] quaternion, float[] matrix) {
+        normalizeVector(quaternion);
+        Matrix4.setRotationTranslation(matrix, 0, quaternion, null);
+    }
+
     /**
      * Creates a unit vector in the direction of an arbitrary vector. The
      * original vector is modified in place.
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import android.opengl.GLSurfaceView;
+
+/**
+ * Draws a {@link GLSurfaceView} only when the scene changes. The view is put
+ * in {@link GLSurfaceView#RENDERMODE_WHEN_DIRTY} and a frame is drawn after
+ * each {@link #requestRender()}, made for example when a depth frame arrives
+ * or the user touches the view. Requests made while a frame is pending are
+ * merged into it, and an optional frame rate cap delays requests that come
+ * too soon after the last frame.
+ *
+ * The scheduler wraps the application's {@link GLSurfaceView.Renderer} and
+ * is set as the view's renderer, so it sees when each frame is drawn. It
+ * counts the frames drawn and the display refreshes that passed without a
+ * frame, which continuous rendering would have drawn.
+ *
+ * {@link #requestRender()} may be called from any thread.
+ * {@link #requestRenderIfMoved} must always be called from the same thread.
+ */
+public class RenderScheduler implements GLSurfaceView.Renderer {
+
+    // Largest change of a model matrix element still treated as no motion:
+    // 1 mm of translation, or about 0.06 degrees of rotation.
+    private static final float MOTION_EPSILON = 0.001f;
+    private static final int MATRIX_4X4 = 16;
+
+    private final GLSurfaceView mView;
+    private final GLSurfaceView.Renderer mRenderer;
+    private final long mRefreshPeriodNanos;
+    private final long mMinFrameIntervalNanos;
+
+    private volatile long mLastFrameNanos;
+    private final AtomicBoolean mIsDeferred = new AtomicBoolean();
+    private final Runnable mDeferredRender = new Runnable() {
+        @Override
+        public void run() {
+            mIsDeferred.set(false);
+            mView.requestRender();
+        }
+    };
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private volatile long mRenderedFrameCount;
+    private volatile long mSkippedFrameCount;
+
+    private final float[] mLastMovedMatrix = new float[MATRIX_4X4];
+    private boolean mHasMovedMatrix;
+
+    /**
+     * @param view
+     *            the view to draw. Its render mode is changed by
+     *            {@link #start()}.
+     * @param renderer
+     *            the renderer drawing the scene.
+     * @param refreshRate
+     *            refresh rate of the display in Hz, used to count skipped
+     *            frames.
+     * @param maxFramesPerSecond
+     *            cap on the frame rate, or 0 for no cap beyond the display.
+     */
+    public RenderScheduler(GLSurfaceView view, GLSurfaceView.Renderer renderer,
+            float refreshRate, float maxFramesPerSecond) {
+        mView = view;
+        mRenderer = renderer;
+        mRefreshPeriodNanos = (long) (1e9 / refreshRate);
+        mMinFrameIntervalNanos = maxFramesPerSecond > 0 ? (long) (1e9 / maxFramesPerSecond)
+                : 0;
+    }
+
+    /**
+     * Switches the view to render on demand and draws a first frame. Call
+     * after the scheduler was set as the view's renderer.
+     */
+    public void start() {
+        mView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        requestRender();
+    }
+
+    /** Asks for a frame to be drawn as soon as the frame rate cap allows. */
+    public void requestRender() {
+        mRequestCount.incrementAndGet();
+        if (mMinFrameIntervalNanos == 0) {
+            mView.requestRender();
+            return;
+        }
+        long waitNanos = mLastFrameNanos + mMinFrameIntervalNanos - System.nanoTime();
+        if (waitNanos <= 0) {
+            mView.requestRender();
+        } else if (mIsDeferred.compareAndSet(false, true)) {
+            // One delayed request covers every request until it runs.
+            mView.postDelayed(mDeferredRender, (waitNanos + 999999) / 1000000);
+        }
+    }
+
+    /**
+     * Asks for a frame if {@code modelMatrix} differs noticeably from the one
+     * passed with the last request, so a device at rest draws nothing.
+     */
+    public void requestRenderIfMoved(float[] modelMatrix) {
+        if (mHasMovedMatrix) {
+            boolean isMoved = false;
+            for (int i = 0; i < MATRIX_4X4; i++) {
+                if (Math.abs(modelMatrix[i] - mLastMovedMatrix[i]) > MOTION_EPSILON) {
+                    isMoved = true;
+                    break;
+                }
+            }
+            if (!isMoved) {
+                return;
+            }
+        }
+        System.arraycopy(modelMatrix, 0, mLastMovedMatrix, 0, MATRIX_4X4);
+        mHasMovedMatrix = true;
+        requestRender();
+    }
+
+    @Override
+    public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        mRenderer.onSurfaceCreated(gl, config);
+    }
+
+    @Override
+    public void onSurfaceChanged(GL10 gl, int width, int height) {
+        mRenderer.onSurfaceChanged(gl, width, height);
+        // The new surface holds no image yet.
+        mView.requestRender();
+    }
+
+    @Override
+    public void onDrawFrame(GL10 gl) {
+        long now = System.nanoTime();
+        long last = mLastFrameNanos;
+        if (last != 0) {
+            long refreshes = Math.round((double) (now - last) / mRefreshPeriodNanos);
+            if (refreshes > 1) {
+                mSkippedFrameCount += refreshes - 1;
+            }
+        }
+        mLastFrameNanos = now;
+        mRenderedFrameCount++;
+        mRenderer.onDrawFrame(gl);
+    }
+
+    /** Number of frames asked for, including those merged into one. */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getRenderedFrameCount() {
+        return mRenderedFrameCount;
+    }
+
+    /**
+     * Number of display refreshes between drawn frames that continuous
+     * rendering would have drawn. Refreshes since the last frame are only
+     * counted once the next frame is drawn.
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+}
@@ -15,10 +15,13 @@
 
 package com.projecttango.tangoutils;
 
-import android.opengl.Matrix;
 import android.util.Log;
 import android.view.MotionEvent;
 
+import com.projecttango.tangoutils.math.Frustum;
+import com.projecttango.tangoutils.math.Matrix4;
+import com.projecttango.tangoutils.renderables.RenderStats;
+
 public class Renderer {
 
     protected static final int FIRST_PERSON = 0;
@@ -36,6 +39,8 @@ public class Renderer {
     private ModelMatCalculator mModelMatCalculator;
     private int viewId = 2;
     protected float[] mViewMatrix = new float[MATRIX_4X4];
+    protected final Frustum mFrustum = new Frustum();
+    protected final RenderStats mRenderStats = new RenderStats();
     protected float[] mCameraPosition;
     protected float[] mLookAtPosition;
     protected float[] mCameraUpVector;
@@ -70,26 +75,30 @@ public class Renderer {
      * device in the current perspective.
      */
     public void updateViewMatrix() {
-        mDevicePosition = mModelMatCalculator.getTranslation();
+        updateViewMatrix(mModelMatCalculator.getModelMatrix());
+    }
+
+    /**
+     * Update the view matrix of the Renderer to follow a device model matrix,
+     * such as one taken from a pose snapshot on the render thread.
+     * 
+     * @param deviceModelMatrix
+     *            the model matrix of the device.
+     */
+    protected void updateViewMatrix(float[] deviceModelMatrix) {
+        mDevicePosition[0] = deviceModelMatrix[12];
+        mDevicePosition[1] = deviceModelMatrix[13];
+        mDevicePosition[2] = deviceModelMatrix[14];
 
         switch (viewId) {
         case FIRST_PERSON:
-            float[] invertModelMat = new float[MATRIX_4X4];
-            Matrix.setIdentityM(invertModelMat, 0);
-
-            float[] temporaryMatrix = new float[MATRIX_4X4];
-            Matrix.setIdentityM(temporaryMatrix, 0);
-
-            Matrix.setIdentityM(mViewMatrix, 0);
-            Matrix.invertM(invertModelMat, 0,
-                    mModelMatCalculator.getModelMatrix(), 0);
-            Matrix.multiplyMM(temporaryMatrix, 0, mViewMatrix, 0,
-                    invertModelMat, 0);
-            System.arraycopy(temporaryMatrix, 0, mViewMatrix, 0, 16);
+            // The view matrix is the inverse of the device model matrix,
+            // which is a rigid transform.
+            Matrix4.invertRigid(mViewMatrix, 0, deviceModelMatrix, 0);
             break;
         case THIRD_PERSON:
 
-            Matrix.setLookAtM(mViewMatrix, 0, mDevicePosition[0]
+            Matrix4.setLookAt(mViewMatrix, 0, mDevicePosition[0]
                     + mCameraPosition[0], mCameraPosition[1]
                     + mDevicePosition[1], mCameraPosition[2]
                     + mDevicePosition[2], mDevicePosition[0],
@@ -97,7 +106,7 @@ public class Renderer {
             break;
         case TOP_DOWN:
             // Matrix.setIdentityM(mViewMatrix, 0);
-            Matrix.setLookAtM(mViewMatrix, 0, mDevicePosition[0]
+            Matrix4.setLookAt(mViewMatrix, 0, mDevicePosition[0]
                     + mCameraPosition[0], mCameraPosition[1],
                     mCameraPosition[2] + mDevicePosition[2], mDevicePosition[0]
                             + mCameraPosition[0], mCameraPosition[1] - 5,
@@ -109,6 +118,26 @@ public class Renderer {
         }
     }
 
+    /**
+     * Prepares per-frame state: extracts the view frustum used for culling
+     * and resets the frame counters. Call at the start of each frame.
+     */
+    protected void beginFrame() {
+        mFrustum.set(mViewMatrix, mProjectionMatrix);
+        mRenderStats.beginFrame();
+    }
+
+    /**
+     * Publishes the counters of the frame. Call once the frame is drawn.
+     */
+    protected void endFrame() {
+        mRenderStats.endFrame();
+    }
+
+    public RenderStats getRenderStats() {
+        return mRenderStats;
+    }
+
     public boolean onTouchEvent(MotionEvent event) {
         if (viewId == THIRD_PERSON) {
             int pointCount = event.getPointerCount();
@@ -265,7 +294,7 @@ public class Renderer {
 
     public void setFirstPersonView() {
         viewId = FIRST_PERSON;
-        Matrix.perspectiveM(mProjectionMatrix, 0, CAMERA_FOV, mCameraAspect,
+        Matrix4.perspective(mProjectionMatrix, 0, CAMERA_FOV, mCameraAspect,
                 CAMERA_NEAR, CAMERA_FAR);
     }
 
@@ -276,7 +305,7 @@ public class Renderer {
         mCameraPosition[2] = 5;
         mRotationX = mRotationY = (float) (Math.PI / 4);
         mCameraOrbitRadius = 5.0f;
-        Matrix.perspectiveM(mProjectionMatrix, 0, THIRD_PERSON_FOV,
+        Matrix4.perspective(mProjectionMatrix, 0, THIRD_PERSON_FOV,
                 mCameraAspect, CAMERA_NEAR, CAMERA_FAR);
     }
 
@@ -285,7 +314,7 @@ public class Renderer {
         mCameraPosition[0] = 0;
         mCameraPosition[1] = 5;
         mCameraPosition[2] = 0;
-        Matrix.perspectiveM(mProjectionMatrix, 0, TOPDOWN_FOV, mCameraAspect,
+        Matrix4.perspective(mProjectionMatrix, 0, TOPDOWN_FOV, mCameraAspect,
                 CAMERA_NEAR, CAMERA_FAR);
     }
 
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the latest version of a mutable snapshot from one producer thread to
+ * one consumer thread without locking or allocating.
+ *
+ * Three snapshot instances rotate between the producer, the consumer and a
+ * middle slot. The producer fills {@link #getWriteBuffer()} and calls
+ * {@link #publish()}, which swaps it with the middle slot. The consumer calls
+ * {@link #acquire()}, which swaps the middle slot with the snapshot it held if
+ * a newer one was published. Neither side ever waits for the other, and the
+ * snapshot returned by {@link #acquire()} is not touched by the producer
+ * until the consumer acquires again. Snapshots published faster than they are
+ * consumed are overwritten, so the consumer always sees the newest one.
+ *
+ * The buffer returned by {@link #getWriteBuffer()} holds stale contents from
+ * an earlier version, so the producer must overwrite every field it uses.
+ */
+public class TripleBuffer<T> {
+
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final Object[] mBuffers;
+    // Index of the middle buffer, plus FRESH if it has not been acquired yet.
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    // Owned by the producer.
+    private int mBack = 2;
+    // Owned by the consumer.
+    private int mFront = 0;
+
+    /**
+     * @param initial
+     *            returned by {@link #acquire()} until the first publish.
+     * @param second
+     *            another instance of the snapshot.
+     * @param third
+     *            another instance of the snapshot.
+     */
+    public TripleBuffer(T initial, T second, T third) {
+        if (initial == second || second == third || initial == third) {
+            throw new IllegalArgumentException("Buffers must be distinct");
+        }
+        mBuffers = new Object[] { initial, second, third };
+    }
+
+    /**
+     * Returns the snapshot to fill before the next {@link #publish()}. Must
+     * only be called from the producer thread.
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) mBuffers[mBack];
+    }
+
+    /**
+     * Makes the write buffer the latest snapshot. Must only be called from the
+     * producer thread.
+     */
+    public void publish() {
+        mBack = mMiddle.getAndSet(mBack | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Returns the latest published snapshot. It stays valid, and unchanged,
+     * until the next call. Must only be called from the consumer thread.
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if ((mMiddle.get() & FRESH) != 0) {
+            mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        }
+        return (T) mBuffers[mFront];
+    }
+}
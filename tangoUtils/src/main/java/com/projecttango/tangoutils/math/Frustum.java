@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+/**
+ * The six clipping planes of a camera, extracted from its view and projection
+ * matrices, for rejecting geometry that cannot be on screen. Matrices are
+ * column-major as used by OpenGL ES and {@code android.opengl.Matrix}.
+ *
+ * Plane normals point into the frustum and are normalized, so plane
+ * equations give signed distances in world units.
+ */
+public class Frustum {
+
+    private static final int PLANE_COUNT = 6;
+
+    // a, b, c, d per plane: left, right, bottom, top, near, far.
+    private final float[] mPlanes = new float[PLANE_COUNT * 4];
+    private final float[] mViewProjection = new float[16];
+
+    public Frustum() {
+        // Accept everything until set.
+        for (int p = 0; p < PLANE_COUNT; p++) {
+            mPlanes[p * 4 + 3] = Float.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Sets the planes from a view and a projection matrix.
+     */
+    public void set(float[] viewMatrix, float[] projectionMatrix) {
+        Matrix4.multiply(mViewProjection, 0, projectionMatrix, 0, viewMatrix, 0);
+        set(mViewProjection);
+    }
+
+    /**
+     * Sets the planes from a combined view-projection matrix, which maps world
+     * coordinates to clip space.
+     */
+    public void set(float[] m) {
+        // Each plane is the last row of the matrix plus or minus another row.
+        setPlane(0, m[3] + m[0], m[7] + m[4], m[11] + m[8], m[15] + m[12]);
+        setPlane(1, m[3] - m[0], m[7] - m[4], m[11] - m[8], m[15] - m[12]);
+        setPlane(2, m[3] + m[1], m[7] + m[5], m[11] + m[9], m[15] + m[13]);
+        setPlane(3, m[3] - m[1], m[7] - m[5], m[11] - m[9], m[15] - m[13]);
+        setPlane(4, m[3] + m[2], m[7] + m[6], m[11] + m[10], m[15] + m[14]);
+        setPlane(5, m[3] - m[2], m[7] - m[6], m[11] - m[10], m[15] - m[14]);
+    }
+
+    /**
+     * @return false if the axis-aligned box lies entirely outside the
+     *         frustum. Boxes near a corner of the frustum may be reported as
+     *         visible when they are not.
+     */
+    public boolean intersectsBox(float minX, float minY, float minZ,
+            float maxX, float maxY, float maxZ) {
+        float[] planes = mPlanes;
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            float a = planes[i], b = planes[i + 1], c = planes[i + 2];
+            // Test the corner furthest along the plane normal.
+            float distance = a * (a >= 0 ? maxX : minX)
+                    + b * (b >= 0 ? maxY : minY)
+                    + c * (c >= 0 ? maxZ : minZ) + planes[i + 3];
+            if (distance < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the sphere lies entirely outside the frustum.
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        float[] planes = mPlanes;
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            if (planes[i] * x + planes[i + 1] * y + planes[i + 2] * z
+                    + planes[i + 3] < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setPlane(int plane, float a, float b, float c, float d) {
+        float length = (float) Math.sqrt(a * a + b * b + c * c);
+        float scale = length > 0 ? 1f / length : 0f;
+        int i = plane * 4;
+        mPlanes[i] = a * scale;
+        mPlanes[i + 1] = b * scale;
+        mPlanes[i + 2] = c * scale;
+        mPlanes[i + 3] = d * scale;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+/**
+ * Allocation-free 4x4 matrix operations in plain Java, so the same code runs
+ * on Android and on a desktop JVM. Matrices are column-major float[16] at an
+ * offset, the layout used by OpenGL and {@code android.opengl.Matrix}.
+ *
+ * Besides the general operations this has specialized versions for rigid
+ * transforms (a rotation followed by a translation), which is what poses and
+ * extrinsics are: {@link #invertRigid} transposes the rotation instead of
+ * running a general inverse, and {@link #setRotationTranslation} builds the
+ * matrix of a pose in one pass.
+ *
+ * Unlike {@code android.opengl.Matrix}, the result of {@link #multiply} and of
+ * the inverses may be one of the inputs.
+ */
+public final class Matrix4 {
+
+    public static final int SIZE = 16;
+
+    private Matrix4() {
+    }
+
+    public static void setIdentity(float[] m, int offset) {
+        for (int i = 0; i < SIZE; i++) {
+            m[offset + i] = 0f;
+        }
+        m[offset] = 1f;
+        m[offset + 5] = 1f;
+        m[offset + 10] = 1f;
+        m[offset + 15] = 1f;
+    }
+
+    /**
+     * Computes {@code lhs * rhs} into {@code result}.
+     */
+    public static void multiply(float[] result, int resultOffset, float[] lhs,
+            int lhsOffset, float[] rhs, int rhsOffset) {
+        // Every element of lhs is needed for each column of the result, so
+        // hold it in locals; rhs is only read one column ahead of the write.
+        float l0 = lhs[lhsOffset];
+        float l1 = lhs[lhsOffset + 1];
+        float l2 = lhs[lhsOffset + 2];
+        float l3 = lhs[lhsOffset + 3];
+        float l4 = lhs[lhsOffset + 4];
+        float l5 = lhs[lhsOffset + 5];
+        float l6 = lhs[lhsOffset + 6];
+        float l7 = lhs[lhsOffset + 7];
+        float l8 = lhs[lhsOffset + 8];
+        float l9 = lhs[lhsOffset + 9];
+        float l10 = lhs[lhsOffset + 10];
+        float l11 = lhs[lhsOffset + 11];
+        float l12 = lhs[lhsOffset + 12];
+        float l13 = lhs[lhsOffset + 13];
+        float l14 = lhs[lhsOffset + 14];
+        float l15 = lhs[lhsOffset + 15];
+        for (int column = 0; column < 16; column += 4) {
+            float r0 = rhs[rhsOffset + column];
+            float r1 = rhs[rhsOffset + column + 1];
+            float r2 = rhs[rhsOffset + column + 2];
+            float r3 = rhs[rhsOffset + column + 3];
+            int i = resultOffset + column;
+            result[i] = l0 * r0 + l4 * r1 + l8 * r2 + l12 * r3;
+            result[i + 1] = l1 * r0 + l5 * r1 + l9 * r2 + l13 * r3;
+            result[i + 2] = l2 * r0 + l6 * r1 + l10 * r2 + l14 * r3;
+            result[i + 3] = l3 * r0 + l7 * r1 + l11 * r2 + l15 * r3;
+        }
+    }
+
+    /**
+     * Inverts a rigid transform: the inverse of [R | t] is [R^T | -R^T t].
+     * Only valid when the upper 3x3 is a rotation and the bottom row is
+     * (0, 0, 0, 1); use {@link #invert} otherwise.
+     */
+    public static void invertRigid(float[] result, int resultOffset, float[] m,
+            int mOffset) {
+        float r00 = m[mOffset];
+        float r10 = m[mOffset + 1];
+        float r20 = m[mOffset + 2];
+        float r01 = m[mOffset + 4];
+        float r11 = m[mOffset + 5];
+        float r21 = m[mOffset + 6];
+        float r02 = m[mOffset + 8];
+        float r12 = m[mOffset + 9];
+        float r22 = m[mOffset + 10];
+        float tx = m[mOffset + 12];
+        float ty = m[mOffset + 13];
+        float tz = m[mOffset + 14];
+        int i = resultOffset;
+        result[i] = r00;
+        result[i + 1] = r01;
+        result[i + 2] = r02;
+        result[i + 3] = 0f;
+        result[i + 4] = r10;
+        result[i + 5] = r11;
+        result[i + 6] = r12;
+        result[i + 7] = 0f;
+        result[i + 8] = r20;
+        result[i + 9] = r21;
+        result[i + 10] = r22;
+        result[i + 11] = 0f;
+        result[i + 12] = -(r00 * tx + r10 * ty + r20 * tz);
+        result[i + 13] = -(r01 * tx + r11 * ty + r21 * tz);
+        result[i + 14] = -(r02 * tx + r12 * ty + r22 * tz);
+        result[i + 15] = 1f;
+    }
+
+    /**
+     * Inverts a general matrix.
+     *
+     * @return false if {@code m} is singular, leaving {@code result}
+     *         unchanged.
+     */
+    public static boolean invert(float[] result, int resultOffset, float[] m,
+            int mOffset) {
+        float a0 = m[mOffset];
+        float a1 = m[mOffset + 1];
+        float a2 = m[mOffset + 2];
+        float a3 = m[mOffset + 3];
+        float a4 = m[mOffset + 4];
+        float a5 = m[mOffset + 5];
+        float a6 = m[mOffset + 6];
+        float a7 = m[mOffset + 7];
+        float a8 = m[mOffset + 8];
+        float a9 = m[mOffset + 9];
+        float a10 = m[mOffset + 10];
+        float a11 = m[mOffset + 11];
+        float a12 = m[mOffset + 12];
+        float a13 = m[mOffset + 13];
+        float a14 = m[mOffset + 14];
+        float a15 = m[mOffset + 15];
+
+        // 2x2 determinants of the left and right column pairs.
+        float s0 = a0 * a5 - a4 * a1;
+        float s1 = a0 * a6 - a4 * a2;
+        float s2 = a0 * a7 - a4 * a3;
+        float s3 = a1 * a6 - a5 * a2;
+        float s4 = a1 * a7 - a5 * a3;
+        float s5 = a2 * a7 - a6 * a3;
+        float c5 = a10 * a15 - a14 * a11;
+        float c4 = a9 * a15 - a13 * a11;
+        float c3 = a9 * a14 - a13 * a10;
+        float c2 = a8 * a15 - a12 * a11;
+        float c1 = a8 * a14 - a12 * a10;
+        float c0 = a8 * a13 - a12 * a9;
+
+        float determinant = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1
+                + s5 * c0;
+        if (determinant == 0f) {
+            return false;
+        }
+        float d = 1f / determinant;
+        int i = resultOffset;
+        result[i] = (a5 * c5 - a6 * c4 + a7 * c3) * d;
+        result[i + 1] = (-a1 * c5 + a2 * c4 - a3 * c3) * d;
+        result[i + 2] = (a13 * s5 - a14 * s4 + a15 * s3) * d;
+        result[i + 3] = (-a9 * s5 + a10 * s4 - a11 * s3) * d;
+        result[i + 4] = (-a4 * c5 + a6 * c2 - a7 * c1) * d;
+        result[i + 5] = (a0 * c5 - a2 * c2 + a3 * c1) * d;
+        result[i + 6] = (-a12 * s5 + a14 * s2 - a15 * s1) * d;
+        result[i + 7] = (a8 * s5 - a10 * s2 + a11 * s1) * d;
+        result[i + 8] = (a4 * c4 - a5 * c2 + a7 * c0) * d;
+        result[i + 9] = (-a0 * c4 + a1 * c2 - a3 * c0) * d;
+        result[i + 10] = (a12 * s4 - a13 * s2 + a15 * s0) * d;
+        result[i + 11] = (-a8 * s4 + a9 * s2 - a11 * s0) * d;
+        result[i + 12] = (-a4 * c3 + a5 * c1 - a6 * c0) * d;
+        result[i + 13] = (a0 * c3 - a1 * c1 + a2 * c0) * d;
+        result[i + 14] = (-a12 * s3 + a13 * s1 - a14 * s0) * d;
+        result[i + 15] = (a8 * s3 - a9 * s1 + a10 * s0) * d;
+        return true;
+    }
+
+    /**
+     * Sets {@code m} to the rigid transform that rotates by a quaternion and
+     * then translates, without building the rotation matrix separately. The
+     * quaternion does not need to be normalized; a zero quaternion gives no
+     * rotation.
+     *
+     * @param quaternion
+     *            rotation as (x, y, z, w).
+     * @param translation
+     *            (x, y, z), or null for no translation.
+     */
+    public static void setRotationTranslation(float[] m, int offset,
+            float[] quaternion, float[] translation) {
+        float x = quaternion[0];
+        float y = quaternion[1];
+        float z = quaternion[2];
+        float w = quaternion[3];
+        // Scaling by 2 / |q|^2 instead of 2 normalizes q without a sqrt.
+        float norm2 = x * x + y * y + z * z + w * w;
+        float s = norm2 > 0f ? 2f / norm2 : 0f;
+        float xs = x * s;
+        float ys = y * s;
+        float zs = z * s;
+        float xx = x * xs;
+        float yy = y * ys;
+        float zz = z * zs;
+        float xy = x * ys;
+        float xz = x * zs;
+        float yz = y * zs;
+        float wx = w * xs;
+        float wy = w * ys;
+        float wz = w * zs;
+
+        int i = offset;
+        m[i] = 1f - (yy + zz);
+        m[i + 1] = xy + wz;
+        m[i + 2] = xz - wy;
+        m[i + 3] = 0f;
+        m[i + 4] = xy - wz;
+        m[i + 5] = 1f - (xx + zz);
+        m[i + 6] = yz + wx;
+        m[i + 7] = 0f;
+        m[i + 8] = xz + wy;
+        m[i + 9] = yz - wx;
+        m[i + 10] = 1f - (xx + yy);
+        m[i + 11] = 0f;
+        if (translation != null) {
+            m[i + 12] = translation[0];
+            m[i + 13] = translation[1];
+            m[i + 14] = translation[2];
+        } else {
+            m[i + 12] = 0f;
+            m[i + 13] = 0f;
+            m[i + 14] = 0f;
+        }
+        m[i + 15] = 1f;
+    }
+
+    /**
+     * Sets {@code m} to a perspective projection, as
+     * {@code android.opengl.Matrix.perspectiveM}.
+     *
+     * @param fovY
+     *            vertical field of view in degrees.
+     */
+    public static void perspective(float[] m, int offset, float fovY,
+            float aspect, float zNear, float zFar) {
+        float f = 1f / (float) Math.tan(fovY * (Math.PI / 360.0));
+        float rangeReciprocal = 1f / (zNear - zFar);
+        setIdentity(m, offset);
+        m[offset] = f / aspect;
+        m[offset + 5] = f;
+        m[offset + 10] = (zFar + zNear) * rangeReciprocal;
+        m[offset + 11] = -1f;
+        m[offset + 14] = 2f * zFar * zNear * rangeReciprocal;
+        m[offset + 15] = 0f;
+    }
+
+    /**
+     * Sets {@code m} to a view matrix looking from an eye point at a center
+     * point, as {@code android.opengl.Matrix.setLookAtM}.
+     */
+    public static void setLookAt(float[] m, int offset, float eyeX, float eyeY,
+            float eyeZ, float centerX, float centerY, float centerZ, float upX,
+            float upY, float upZ) {
+        float fx = centerX - eyeX;
+        float fy = centerY - eyeY;
+        float fz = centerZ - eyeZ;
+        float rlf = 1f / (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx *= rlf;
+        fy *= rlf;
+        fz *= rlf;
+
+        // s = f x up
+        float sx = fy * upZ - fz * upY;
+        float sy = fz * upX - fx * upZ;
+        float sz = fx * upY - fy * upX;
+        float rls = 1f / (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+        sx *= rls;
+        sy *= rls;
+        sz *= rls;
+
+        // u = s x f
+        float ux = sy * fz - sz * fy;
+        float uy = sz * fx - sx * fz;
+        float uz = sx * fy - sy * fx;
+
+        int i = offset;
+        m[i] = sx;
+        m[i + 1] = ux;
+        m[i + 2] = -fx;
+        m[i + 3] = 0f;
+        m[i + 4] = sy;
+        m[i + 5] = uy;
+        m[i + 6] = -fy;
+        m[i + 7] = 0f;
+        m[i + 8] = sz;
+        m[i + 9] = uz;
+        m[i + 10] = -fz;
+        m[i + 11] = 0f;
+        m[i + 12] = -(sx * eyeX + sy * eyeY + sz * eyeZ);
+        m[i + 13] = -(ux * eyeX + uy * eyeY + uz * eyeZ);
+        m[i + 14] = fx * eyeX + fy * eyeY + fz * eyeZ;
+        m[i + 15] = 1f;
+    }
+
+    /**
+     * Transforms {@code count} xyz points by an affine matrix, ignoring its
+     * bottom row. {@code dst} may be {@code src} at the same offset.
+     */
+    public static void transformPoints(float[] m, int mOffset, float[] src,
+            int srcOffset, float[] dst, int dstOffset, int count) {
+        float m0 = m[mOffset];
+        float m1 = m[mOffset + 1];
+        float m2 = m[mOffset + 2];
+        float m4 = m[mOffset + 4];
+        float m5 = m[mOffset + 5];
+        float m6 = m[mOffset + 6];
+        float m8 = m[mOffset + 8];
+        float m9 = m[mOffset + 9];
+        float m10 = m[mOffset + 10];
+        float m12 = m[mOffset + 12];
+        float m13 = m[mOffset + 13];
+        float m14 = m[mOffset + 14];
+        int s = srcOffset;
+        int d = dstOffset;
+        for (int end = srcOffset + count * 3; s < end; s += 3, d += 3) {
+            float x = src[s];
+            float y = src[s + 1];
+            float z = src[s + 2];
+            dst[d] = m0 * x + m4 * y + m8 * z + m12;
+            dst[d + 1] = m1 * x + m5 * y + m9 * z + m13;
+            dst[d + 2] = m2 * x + m6 * y + m10 * z + m14;
+        }
+    }
+
+    /**
+     * Multiplies each of {@code count} consecutive matrices in {@code rhs}
+     * by {@code lhs}, such as a batch of poses by a fixed extrinsic.
+     */
+    public static void multiplyEach(float[] result, int resultOffset,
+            float[] lhs, int lhsOffset, float[] rhs, int rhsOffset, int count) {
+        for (int n = 0; n < count; n++) {
+            multiply(result, resultOffset + n * SIZE, lhs, lhsOffset, rhs,
+                    rhsOffset + n * SIZE);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+/**
+ * Allocation-free quaternion operations in plain Java. Quaternions are
+ * float[4] stored as (x, y, z, w), the order Tango reports rotations in.
+ *
+ * See {@link Matrix4#setRotationTranslation} to turn one into a matrix.
+ */
+public final class Quaternion {
+
+    private Quaternion() {
+    }
+
+    /**
+     * Scales {@code q} to unit length in place.
+     *
+     * @return false if {@code q} is zero and was left unchanged.
+     */
+    public static boolean normalize(float[] q) {
+        float norm2 = q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3];
+        if (norm2 == 0f) {
+            return false;
+        }
+        float scale = 1f / (float) Math.sqrt(norm2);
+        q[0] *= scale;
+        q[1] *= scale;
+        q[2] *= scale;
+        q[3] *= scale;
+        return true;
+    }
+
+    /**
+     * Computes the Hamilton product {@code a * b}, the rotation by {@code b}
+     * followed by {@code a}. {@code result} may be either input.
+     */
+    public static void multiply(float[] result, float[] a, float[] b) {
+        float ax = a[0];
+        float ay = a[1];
+        float az = a[2];
+        float aw = a[3];
+        float bx = b[0];
+        float by = b[1];
+        float bz = b[2];
+        float bw = b[3];
+        result[0] = aw * bx + ax * bw + ay * bz - az * by;
+        result[1] = aw * by - ax * bz + ay * bw + az * bx;
+        result[2] = aw * bz + ax * by - ay * bx + az * bw;
+        result[3] = aw * bw - ax * bx - ay * by - az * bz;
+    }
+
+    /**
+     * Writes the conjugate of {@code q}, which is its inverse rotation when
+     * {@code q} is a unit quaternion. {@code result} may be {@code q}.
+     */
+    public static void conjugate(float[] result, float[] q) {
+        result[0] = -q[0];
+        result[1] = -q[1];
+        result[2] = -q[2];
+        result[3] = q[3];
+    }
+
+    /**
+     * Rotates the vector {@code v} by the unit quaternion {@code q}.
+     * {@code result} may be {@code v}.
+     */
+    public static void rotate(float[] result, float[] q, float[] v) {
+        float qx = q[0];
+        float qy = q[1];
+        float qz = q[2];
+        float qw = q[3];
+        float vx = v[0];
+        float vy = v[1];
+        float vz = v[2];
+        // v' = v + w * t + q.xyz x t, with t = 2 * (q.xyz x v).
+        float tx = 2f * (qy * vz - qz * vy);
+        float ty = 2f * (qz * vx - qx * vz);
+        float tz = 2f * (qx * vy - qy * vx);
+        result[0] = vx + qw * tx + qy * tz - qz * ty;
+        result[1] = vy + qw * ty + qz * tx - qx * tz;
+        result[2] = vz + qw * tz + qx * ty - qy * tx;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic event count that can be incremented from any thread without
+ * locking.
+ */
+public class Counter {
+
+    private final AtomicLong mValue = new AtomicLong();
+
+    public void increment() {
+        mValue.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        mValue.addAndGet(delta);
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of durations in nanoseconds. Buckets are logarithmic
+ * with {@link #SUB_BUCKETS} linear steps per power of two, so any recorded
+ * value is reported within 25% of its true value from 1 ns up to about half
+ * an hour.
+ *
+ * {@link #record} is lock-free and never allocates, so it may be called from
+ * sensor callbacks on several threads at once. Readers see a consistent count
+ * per bucket, but a percentile computed while values are being recorded may
+ * mix buckets from slightly different moments.
+ */
+public class LatencyHistogram {
+
+    /** Linear steps per power of two. */
+    public static final int SUB_BUCKETS = 4;
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2)
+            * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /** Adds one duration. Negative durations are counted as zero. */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /** Adds the time elapsed since {@code startNanos} ({@link System#nanoTime()}). */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mTotalNanos.get() / count;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, or 0 if nothing was
+     * recorded.
+     *
+     * @param percentile
+     *            value between 0 and 100.
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+        rank = Math.max(rank, 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMaxNanos.get());
+            }
+        }
+        return mMaxNanos.get();
+    }
+
+    /** Clears all recorded values. Not atomic with respect to {@link #record}. */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long step = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * step - 1;
+    }
+}
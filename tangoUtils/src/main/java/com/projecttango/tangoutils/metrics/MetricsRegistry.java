@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Named set of {@link Counter}s, {@link Gauge}s and {@link LatencyHistogram}s
+ * for one pipeline. Metrics are looked up once when a component is created
+ * and then updated directly, so recording never touches the registry; only
+ * registration and dumping take its lock.
+ *
+ * Dumps list metrics in registration order. Histogram values are reported in
+ * microseconds and cover everything recorded since the start of the session.
+ */
+public class MetricsRegistry {
+
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    private final Map<String, Counter> mCounters = new LinkedHashMap<String, Counter>();
+    private final Map<String, Gauge> mGauges = new LinkedHashMap<String, Gauge>();
+    private final Map<String, LatencyHistogram> mHistograms = new LinkedHashMap<String, LatencyHistogram>();
+
+    /** Returns the counter with the given name, creating it if needed. */
+    public synchronized Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            mCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /** Returns the histogram with the given name, creating it if needed. */
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /** Registers a gauge, replacing any gauge with the same name. */
+    public synchronized void gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * Appends one line per metric, e.g.
+     * {@code render.frame count=1200 p50=850us p99=2100us max=9800us}.
+     */
+    public synchronized void writeText(StringBuilder out) {
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue().get())
+                    .append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            out.append(entry.getKey()).append(' ')
+                    .append(formatDouble(entry.getValue().getValue())).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            out.append(entry.getKey()).append(" count=").append(histogram.getCount())
+                    .append(" mean=").append(formatMicros(histogram.getMeanNanos()))
+                    .append("us p50=")
+                    .append(formatMicros(histogram.getPercentileNanos(50)))
+                    .append("us p99=")
+                    .append(formatMicros(histogram.getPercentileNanos(99)))
+                    .append("us max=").append(formatMicros(histogram.getMaxNanos()))
+                    .append("us\n");
+        }
+    }
+
+    /**
+     * Appends the metrics as a single-line JSON object with {@code time},
+     * {@code counters}, {@code gauges} and {@code histograms} members, plus
+     * the given extra string fields (for example a build identifier).
+     *
+     * @param timeMillis
+     *            wall clock time of the dump.
+     * @param fields
+     *            alternating names and values of extra fields, or null.
+     */
+    public synchronized void writeJson(StringBuilder out, long timeMillis,
+            String... fields) {
+        out.append("{\"time\":").append(timeMillis).append(',');
+        if (fields != null) {
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                appendString(out, fields[i]);
+                out.append(':');
+                appendString(out, fields[i + 1]);
+                out.append(',');
+            }
+        }
+        out.append("\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            first = appendName(out, entry.getKey(), first);
+            out.append(entry.getValue().get());
+        }
+        out.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            first = appendName(out, entry.getKey(), first);
+            double value = entry.getValue().getValue();
+            out.append(Double.isNaN(value) || Double.isInfinite(value) ? "null"
+                    : formatDouble(value));
+        }
+        out.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+            first = appendName(out, entry.getKey(), first);
+            LatencyHistogram histogram = entry.getValue();
+            out.append("{\"count\":").append(histogram.getCount())
+                    .append(",\"mean_us\":")
+                    .append(formatMicros(histogram.getMeanNanos()))
+                    .append(",\"p50_us\":")
+                    .append(formatMicros(histogram.getPercentileNanos(50)))
+                    .append(",\"p90_us\":")
+                    .append(formatMicros(histogram.getPercentileNanos(90)))
+                    .append(",\"p99_us\":")
+                    .append(formatMicros(histogram.getPercentileNanos(99)))
+                    .append(",\"max_us\":")
+                    .append(formatMicros(histogram.getMaxNanos())).append('}');
+        }
+        out.append("}}");
+    }
+
+    private static boolean appendName(StringBuilder out, String name, boolean first) {
+        if (!first) {
+            out.append(',');
+        }
+        appendString(out, name);
+        out.append(':');
+        return false;
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static String formatMicros(double nanos) {
+        return String.format(Locale.US, "%.1f", nanos / NANOS_PER_MICRO);
+    }
+
+    private static String formatDouble(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long
+                .toString((long) value) : String.format(Locale.US, "%.4f", value);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically appends a dump of a {@link MetricsRegistry} to a file, so
+ * p50/p99 numbers from field sessions can be pulled off the device and
+ * compared between builds. Every dump is tagged with the wall clock time and
+ * a build identifier.
+ *
+ * In {@link Format#JSON} each dump is one line, so the file can be read as
+ * JSON lines. When the file grows past {@code maxFileBytes} it is renamed
+ * with a {@code .1} suffix, replacing the previous one, and a new file is
+ * started.
+ */
+public class MetricsReporter {
+
+    /**
+     * Layout of a dump.
+     */
+    public enum Format {
+        /** One line per metric, dumps separated by a header line. */
+        TEXT,
+        /** One JSON object per dump. */
+        JSON
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MetricsRegistry mRegistry;
+    private final File mFile;
+    private final Format mFormat;
+    private final String mBuild;
+    private final long mIntervalMs;
+    private final long mMaxFileBytes;
+    private final StringBuilder mDump = new StringBuilder(4096);
+    private ScheduledExecutorService mExecutor;
+    private volatile IOException mLastError;
+
+    /**
+     * @param file
+     *            file the dumps are appended to. Its directory is created if
+     *            needed.
+     * @param format
+     *            layout of each dump.
+     * @param build
+     *            identifier of the running build, written with every dump.
+     * @param intervalMs
+     *            time between dumps.
+     * @param maxFileBytes
+     *            size at which the file is rotated.
+     */
+    public MetricsReporter(MetricsRegistry registry, File file, Format format,
+            String build, long intervalMs, long maxFileBytes) {
+        mRegistry = registry;
+        mFile = file;
+        mFormat = format;
+        mBuild = build;
+        mIntervalMs = intervalMs;
+        mMaxFileBytes = maxFileBytes;
+    }
+
+    public synchronized void start() {
+        if (mExecutor != null) {
+            return;
+        }
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, MetricsReporter.class.getSimpleName());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                dump();
+            }
+        }, mIntervalMs, mIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic dumps after writing a final one. Does not wait for
+     * the write to finish.
+     */
+    public synchronized void stop() {
+        if (mExecutor == null) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dump();
+            }
+        });
+        mExecutor.shutdown();
+        mExecutor = null;
+    }
+
+    /**
+     * Appends one dump to the file now. Called on the reporter thread by
+     * {@link #start()}, but may be called from any thread.
+     *
+     * @return false if the dump could not be written; see
+     *         {@link #getLastError()}.
+     */
+    public synchronized boolean dump() {
+        StringBuilder dump = mDump;
+        dump.setLength(0);
+        long now = System.currentTimeMillis();
+        if (mFormat == Format.JSON) {
+            mRegistry.writeJson(dump, now, "build", mBuild);
+            dump.append('\n');
+        } else {
+            dump.append("# time=").append(now).append(" build=").append(mBuild)
+                    .append('\n');
+            mRegistry.writeText(dump);
+        }
+        try {
+            rotateIfNeeded();
+            OutputStream out = new FileOutputStream(mFile, true);
+            try {
+                out.write(dump.toString().getBytes(UTF_8));
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            mLastError = e;
+            return false;
+        }
+    }
+
+    public IOException getLastError() {
+        return mLastError;
+    }
+
+    private void rotateIfNeeded() throws IOException {
+        File directory = mFile.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        if (mFile.length() < mMaxFileBytes) {
+            return;
+        }
+        File previous = new File(mFile.getPath() + ".1");
+        if (previous.exists() && !previous.delete()) {
+            throw new IOException("Cannot delete " + previous);
+        }
+        if (!mFile.renameTo(previous)) {
+            throw new IOException("Cannot rotate " + mFile);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import com.projecttango.tangoutils.concurrent.TripleBuffer;
+
+/**
+ * Reusable snapshot of a depth frame ready to draw: its points in a direct
+ * buffer preallocated at the largest frame size, and the model matrix that
+ * places them in the world. Handed from the depth callback to the render
+ * thread through a {@link TripleBuffer}.
+ */
+public class DepthFrame {
+
+    private static final int POINT_TO_XYZ = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final FloatBuffer mPoints;
+    private final int mMaxPoints;
+    private final float[] mModelMatrix = new float[16];
+    private long mSequence;
+    private double mTimestamp;
+    private int mPointCount;
+    private int mPoseStatusCode;
+
+    /**
+     * @param maxPoints
+     *            largest number of points a frame can hold.
+     */
+    public DepthFrame(int maxPoints) {
+        mMaxPoints = maxPoints;
+        mPoints = ByteBuffer.allocateDirect(maxPoints * POINT_TO_XYZ * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Overwrites the frame with the first {@code pointCount} points of
+     * {@code xyz}. Points beyond the frame's capacity are dropped. The source
+     * buffer's position is left unchanged.
+     *
+     * @param sequence
+     *            increasing version number, 0 meaning no frame yet.
+     */
+    public void set(long sequence, double timestamp, FloatBuffer xyz,
+            int pointCount, int poseStatusCode) {
+        int count = Math.min(pointCount, mMaxPoints);
+        FloatBuffer source = xyz.duplicate();
+        source.position(0);
+        source.limit(count * POINT_TO_XYZ);
+        mPoints.clear();
+        mPoints.put(source);
+        mPoints.position(0);
+        mSequence = sequence;
+        mTimestamp = timestamp;
+        mPointCount = count;
+        mPoseStatusCode = poseStatusCode;
+    }
+
+    /** Version of the frame, 0 if no frame was published yet. */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    /** Points as packed x, y, z floats, starting at position 0. */
+    public FloatBuffer getPoints() {
+        return mPoints;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public int getPoseStatusCode() {
+        return mPoseStatusCode;
+    }
+
+    /**
+     * Model matrix of the frame, written in place by the producer before
+     * publishing.
+     */
+    public float[] getModelMatrix() {
+        return mModelMatrix;
+    }
+}
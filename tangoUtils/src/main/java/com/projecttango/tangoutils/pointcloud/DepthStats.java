@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+/**
+ * Immutable statistics of one depth frame, produced by
+ * {@link DepthStatsCalculator}. Only points with a finite, positive depth are
+ * counted as valid; the depth values describe valid points only and are 0
+ * when there are none.
+ */
+public final class DepthStats {
+
+    /** Stats of an empty frame, for use before the first frame arrives. */
+    public static final DepthStats EMPTY = new DepthStats(0, 0, 0, 0, 0, 0,
+            new int[DepthStatsCalculator.DEFAULT_BIN_COUNT],
+            DepthStatsCalculator.DEFAULT_MAX_DEPTH_M);
+
+    private final double mTimestamp;
+    private final int mPointCount;
+    private final int mValidPointCount;
+    private final float mAverageZ;
+    private final float mMinZ;
+    private final float mMaxZ;
+    private final int[] mHistogram;
+    private final float mBinWidth;
+
+    /**
+     * @param histogram
+     *            bin counts; owned by the new instance and never modified.
+     */
+    DepthStats(double timestamp, int pointCount, int validPointCount,
+            float averageZ, float minZ, float maxZ, int[] histogram,
+            float maxDepth) {
+        mTimestamp = timestamp;
+        mPointCount = pointCount;
+        mValidPointCount = validPointCount;
+        mAverageZ = averageZ;
+        mMinZ = minZ;
+        mMaxZ = maxZ;
+        mHistogram = histogram;
+        mBinWidth = maxDepth / histogram.length;
+    }
+
+    /** Timestamp of the depth frame in seconds. */
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public int getValidPointCount() {
+        return mValidPointCount;
+    }
+
+    public float getAverageZ() {
+        return mAverageZ;
+    }
+
+    public float getMinZ() {
+        return mMinZ;
+    }
+
+    public float getMaxZ() {
+        return mMaxZ;
+    }
+
+    public int getBinCount() {
+        return mHistogram.length;
+    }
+
+    /** Width of each histogram bin in meters; bin 0 starts at 0 m. */
+    public float getBinWidth() {
+        return mBinWidth;
+    }
+
+    /**
+     * Number of valid points in {@code bin}. Points deeper than the histogram
+     * range are counted in the last bin.
+     */
+    public int getBinValue(int bin) {
+        return mHistogram[bin];
+    }
+}
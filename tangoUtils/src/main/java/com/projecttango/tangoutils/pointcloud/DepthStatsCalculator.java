@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Computes {@link DepthStats} for XYZ point clouds in a single pass over a
+ * bulk copy of the points, and publishes the latest result for other threads.
+ *
+ * {@link #update} is meant to be called from the depth callback, so the render
+ * thread does no per-point work; {@link #getLatest()} may be called from any
+ * thread. Only one thread may call {@link #update} at a time.
+ */
+public class DepthStatsCalculator {
+
+    public static final int DEFAULT_BIN_COUNT = 32;
+    public static final float DEFAULT_MAX_DEPTH_M = 8f;
+
+    private static final int POINT_TO_XYZ = 3;
+
+    private final int mBinCount;
+    private final float mMaxDepth;
+    private final float mBinsPerMeter;
+    private float[] mPoints = new float[0];
+    private volatile DepthStats mLatest = DepthStats.EMPTY;
+
+    public DepthStatsCalculator() {
+        this(DEFAULT_BIN_COUNT, DEFAULT_MAX_DEPTH_M);
+    }
+
+    /**
+     * @param binCount
+     *            number of histogram bins.
+     * @param maxDepth
+     *            depth in meters covered by the histogram.
+     */
+    public DepthStatsCalculator(int binCount, float maxDepth) {
+        if (binCount <= 0 || !(maxDepth > 0)) {
+            throw new IllegalArgumentException("Histogram must be non-empty");
+        }
+        mBinCount = binCount;
+        mMaxDepth = maxDepth;
+        mBinsPerMeter = binCount / maxDepth;
+    }
+
+    /**
+     * Computes and publishes the stats of the first {@code pointCount} points
+     * of {@code xyz}. The buffer's position is left unchanged.
+     *
+     * @return the new stats.
+     */
+    public DepthStats update(double timestamp, FloatBuffer xyz, int pointCount) {
+        int floats = pointCount * POINT_TO_XYZ;
+        if (mPoints.length < floats) {
+            mPoints = new float[floats];
+        }
+        // Bulk copy through a duplicate so the caller's position is untouched.
+        FloatBuffer source = xyz.duplicate();
+        source.position(0);
+        source.get(mPoints, 0, floats);
+        return update(timestamp, mPoints, pointCount);
+    }
+
+    /**
+     * Computes and publishes the stats of the first {@code pointCount} points
+     * of an interleaved XYZ array.
+     *
+     * @return the new stats.
+     */
+    public DepthStats update(double timestamp, float[] xyz, int pointCount) {
+        int[] histogram = new int[mBinCount];
+        int lastBin = mBinCount - 1;
+        float binsPerMeter = mBinsPerMeter;
+        double totalZ = 0;
+        float minZ = Float.POSITIVE_INFINITY;
+        float maxZ = 0;
+        int valid = 0;
+        int end = pointCount * POINT_TO_XYZ;
+        for (int i = 2; i < end; i += POINT_TO_XYZ) {
+            float z = xyz[i];
+            // Also rejects NaN.
+            if (!(z > 0) || z == Float.POSITIVE_INFINITY) {
+                continue;
+            }
+            valid++;
+            totalZ += z;
+            if (z < minZ) {
+                minZ = z;
+            }
+            if (z > maxZ) {
+                maxZ = z;
+            }
+            int bin = (int) (z * binsPerMeter);
+            histogram[bin < lastBin ? bin : lastBin]++;
+        }
+        DepthStats stats;
+        if (valid == 0) {
+            stats = new DepthStats(timestamp, pointCount, 0, 0, 0, 0, histogram,
+                    mMaxDepth);
+        } else {
+            stats = new DepthStats(timestamp, pointCount, valid,
+                    (float) (totalZ / valid), minZ, maxZ, histogram, mMaxDepth);
+        }
+        mLatest = stats;
+        return stats;
+    }
+
+    /** The most recently published stats, never null. */
+    public DepthStats getLatest() {
+        return mLatest;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+import java.nio.FloatBuffer;
+
+import com.projecttango.tangoutils.math.Frustum;
+
+/**
+ * Immutable octree over a set of world-space points, used to draw large maps
+ * with level of detail.
+ *
+ * Building reorders the points so that every node owns a contiguous range of
+ * the point array. A node's representatives are then simply an evenly strided
+ * sample of its range, which spreads across all of its children without any
+ * extra storage. {@link #selectLod} walks the tree from the root and emits a
+ * node's representatives as soon as their spacing projects to less than the
+ * allowed screen-space error, so distant regions contribute few points and
+ * nearby ones are drawn at full density. Nodes outside the view frustum are
+ * skipped.
+ *
+ * Instances never change after {@link #build}, so one thread can build a new
+ * tree while another selects from the previous one.
+ */
+public final class PointOctree {
+
+    /** Largest number of points in a leaf. */
+    public static final int LEAF_SIZE = 64;
+    /** Number of representatives drawn for a node shown at reduced detail. */
+    public static final int REPRESENTATIVES = 64;
+
+    private static final int POINT_TO_XYZ = 3;
+    private static final int MAX_DEPTH = 16;
+
+    private final float[] mPoints;
+    private final int mPointCount;
+
+    // Nodes as parallel arrays. Children of a node are stored contiguously.
+    private int mNodeCount;
+    private float[] mNodeCenters;
+    private float[] mNodeHalfSizes;
+    private int[] mNodeStarts;
+    private int[] mNodeCounts;
+    private int[] mNodeFirstChilds;
+    private byte[] mNodeChildCounts;
+
+    // Scratch used while building and selecting.
+    private byte[] mOctants;
+    private float[] mPartition;
+    private float mEyeX, mEyeY, mEyeZ;
+    private float mErrorScale;
+    private Frustum mFrustum;
+    private int mEmitted;
+    private int mDrawnNodes;
+    private int mCulledNodes;
+
+    private PointOctree(float[] points, int pointCount) {
+        mPoints = points;
+        mPointCount = pointCount;
+        int nodeCapacity = Math.max(16, pointCount / LEAF_SIZE * 2);
+        mNodeCenters = new float[nodeCapacity * POINT_TO_XYZ];
+        mNodeHalfSizes = new float[nodeCapacity];
+        mNodeStarts = new int[nodeCapacity];
+        mNodeCounts = new int[nodeCapacity];
+        mNodeFirstChilds = new int[nodeCapacity];
+        mNodeChildCounts = new byte[nodeCapacity];
+    }
+
+    /**
+     * Builds an octree over a copy of the first {@code pointCount} points of
+     * an interleaved XYZ array.
+     */
+    public static PointOctree build(float[] xyz, int pointCount) {
+        float[] points = new float[pointCount * POINT_TO_XYZ];
+        System.arraycopy(xyz, 0, points, 0, points.length);
+        PointOctree tree = new PointOctree(points, pointCount);
+        if (pointCount > 0) {
+            tree.buildRoot();
+        }
+        return tree;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Writes the points to draw for the given view to {@code out} as
+     * interleaved XYZ, starting at position 0. Once {@code maxPoints} have
+     * been written the remaining nodes are skipped.
+     *
+     * Not thread-safe; use one tree per selecting thread or select from one
+     * thread only.
+     *
+     * @param viewMatrix
+     *            rigid world-to-camera matrix.
+     * @param projectionMatrix
+     *            perspective projection, as made by
+     *            {@code Matrix.perspectiveM}.
+     * @param viewportHeight
+     *            height of the viewport in pixels.
+     * @param maxErrorPixels
+     *            largest allowed on-screen spacing between the points of a
+     *            node drawn at reduced detail.
+     * @param frustum
+     *            frustum of the same matrices used to skip off-screen nodes,
+     *            or null to keep them.
+     * @return the number of points written.
+     */
+    public int selectLod(float[] viewMatrix, float[] projectionMatrix,
+            int viewportHeight, float maxErrorPixels, Frustum frustum,
+            FloatBuffer out, int maxPoints) {
+        out.position(0);
+        mEmitted = 0;
+        mDrawnNodes = 0;
+        mCulledNodes = 0;
+        mFrustum = frustum;
+        if (mNodeCount == 0 || maxPoints <= 0) {
+            return 0;
+        }
+        // Camera position is -R^T * t for a rigid view matrix.
+        float tx = viewMatrix[12], ty = viewMatrix[13], tz = viewMatrix[14];
+        mEyeX = -(viewMatrix[0] * tx + viewMatrix[1] * ty + viewMatrix[2] * tz);
+        mEyeY = -(viewMatrix[4] * tx + viewMatrix[5] * ty + viewMatrix[6] * tz);
+        mEyeZ = -(viewMatrix[8] * tx + viewMatrix[9] * ty + viewMatrix[10] * tz);
+        // Pixels covered by one meter at a distance of one meter.
+        float pixelsPerMeter = projectionMatrix[5] * viewportHeight * 0.5f;
+        mErrorScale = pixelsPerMeter / maxErrorPixels;
+        selectNode(0, out, maxPoints);
+        mFrustum = null;
+        out.position(0);
+        return mEmitted;
+    }
+
+    /** Nodes that contributed points to the last selection. */
+    public int getDrawnNodeCount() {
+        return mDrawnNodes;
+    }
+
+    /** Nodes skipped as off-screen by the last selection. */
+    public int getCulledNodeCount() {
+        return mCulledNodes;
+    }
+
+    private void selectNode(int node, FloatBuffer out, int maxPoints) {
+        int start = mNodeStarts[node];
+        int count = mNodeCounts[node];
+        int childCount = mNodeChildCounts[node];
+        int c = node * POINT_TO_XYZ;
+        float cx = mNodeCenters[c], cy = mNodeCenters[c + 1], cz = mNodeCenters[c + 2];
+        float halfSize = mNodeHalfSizes[node];
+        if (mFrustum != null
+                && !mFrustum.intersectsBox(cx - halfSize, cy - halfSize, cz - halfSize,
+                        cx + halfSize, cy + halfSize, cz + halfSize)) {
+            mCulledNodes++;
+            return;
+        }
+        if (childCount > 0) {
+            float dx = cx - mEyeX;
+            float dy = cy - mEyeY;
+            float dz = cz - mEyeZ;
+            // Distance to the nearest point of the node's bounding sphere.
+            float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz)
+                    - halfSize * 1.7320508f;
+            // Points of a scan lie on surfaces, so spacing goes with sqrt.
+            float spacing = 2 * halfSize
+                    / (float) Math.sqrt(Math.min(count, REPRESENTATIVES));
+            if (distance > 0 && spacing * mErrorScale <= distance) {
+                emitStrided(start, count, REPRESENTATIVES, out, maxPoints);
+                return;
+            }
+            int firstChild = mNodeFirstChilds[node];
+            for (int i = 0; i < childCount && mEmitted < maxPoints; i++) {
+                selectNode(firstChild + i, out, maxPoints);
+            }
+            return;
+        }
+        int points = Math.min(count, maxPoints - mEmitted);
+        out.put(mPoints, start * POINT_TO_XYZ, points * POINT_TO_XYZ);
+        mEmitted += points;
+        mDrawnNodes++;
+    }
+
+    private void emitStrided(int start, int count, int samples,
+            FloatBuffer out, int maxPoints) {
+        samples = Math.min(Math.min(samples, count), maxPoints - mEmitted);
+        if (samples == count) {
+            out.put(mPoints, start * POINT_TO_XYZ, count * POINT_TO_XYZ);
+        } else {
+            // Fixed point stride so samples spread over the whole range.
+            long step = ((long) count << 16) / samples;
+            long position = step >> 1;
+            for (int i = 0; i < samples; i++) {
+                int point = start + (int) (position >> 16);
+                out.put(mPoints, point * POINT_TO_XYZ, POINT_TO_XYZ);
+                position += step;
+            }
+        }
+        mEmitted += samples;
+        mDrawnNodes++;
+    }
+
+    private void buildRoot() {
+        float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+        float[] p = mPoints;
+        for (int i = 0; i < mPointCount * POINT_TO_XYZ; i += POINT_TO_XYZ) {
+            minX = Math.min(minX, p[i]);
+            maxX = Math.max(maxX, p[i]);
+            minY = Math.min(minY, p[i + 1]);
+            maxY = Math.max(maxY, p[i + 1]);
+            minZ = Math.min(minZ, p[i + 2]);
+            maxZ = Math.max(maxZ, p[i + 2]);
+        }
+        float halfSize = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ))
+                * 0.5f + 1e-4f;
+        mOctants = new byte[mPointCount];
+        mPartition = new float[mPointCount * POINT_TO_XYZ];
+        int root = addNode((minX + maxX) * 0.5f, (minY + maxY) * 0.5f,
+                (minZ + maxZ) * 0.5f, halfSize, 0, mPointCount);
+        buildNode(root, 0);
+        mOctants = null;
+        mPartition = null;
+    }
+
+    private void buildNode(int node, int depth) {
+        int start = mNodeStarts[node];
+        int count = mNodeCounts[node];
+        if (count <= LEAF_SIZE || depth == MAX_DEPTH) {
+            return;
+        }
+        int c = node * POINT_TO_XYZ;
+        float cx = mNodeCenters[c], cy = mNodeCenters[c + 1], cz = mNodeCenters[c + 2];
+
+        // Counting sort of the node's points by octant.
+        int[] octantCounts = new int[8];
+        float[] p = mPoints;
+        for (int i = 0; i < count; i++) {
+            int j = (start + i) * POINT_TO_XYZ;
+            int octant = (p[j] >= cx ? 1 : 0) | (p[j + 1] >= cy ? 2 : 0)
+                    | (p[j + 2] >= cz ? 4 : 0);
+            mOctants[start + i] = (byte) octant;
+            octantCounts[octant]++;
+        }
+        int[] octantStarts = new int[8];
+        for (int o = 1; o < 8; o++) {
+            octantStarts[o] = octantStarts[o - 1] + octantCounts[o - 1];
+        }
+        int[] fill = octantStarts.clone();
+        for (int i = 0; i < count; i++) {
+            int to = (start + fill[mOctants[start + i]]++) * POINT_TO_XYZ;
+            int from = (start + i) * POINT_TO_XYZ;
+            mPartition[to] = p[from];
+            mPartition[to + 1] = p[from + 1];
+            mPartition[to + 2] = p[from + 2];
+        }
+        System.arraycopy(mPartition, start * POINT_TO_XYZ, p, start * POINT_TO_XYZ,
+                count * POINT_TO_XYZ);
+
+        // Children are allocated together so they stay contiguous.
+        float quarter = mNodeHalfSizes[node] * 0.5f;
+        int firstChild = mNodeCount;
+        int childCount = 0;
+        for (int o = 0; o < 8; o++) {
+            if (octantCounts[o] > 0) {
+                addNode(cx + ((o & 1) != 0 ? quarter : -quarter),
+                        cy + ((o & 2) != 0 ? quarter : -quarter),
+                        cz + ((o & 4) != 0 ? quarter : -quarter), quarter,
+                        start + octantStarts[o], octantCounts[o]);
+                childCount++;
+            }
+        }
+        mNodeFirstChilds[node] = firstChild;
+        mNodeChildCounts[node] = (byte) childCount;
+        for (int i = 0; i < childCount; i++) {
+            buildNode(firstChild + i, depth + 1);
+        }
+    }
+
+    private int addNode(float cx, float cy, float cz, float halfSize,
+            int start, int count) {
+        if (mNodeCount == mNodeHalfSizes.length) {
+            int capacity = mNodeCount * 2;
+            mNodeCenters = grow(mNodeCenters, capacity * POINT_TO_XYZ);
+            mNodeHalfSizes = grow(mNodeHalfSizes, capacity);
+            mNodeStarts = grow(mNodeStarts, capacity);
+            mNodeCounts = grow(mNodeCounts, capacity);
+            mNodeFirstChilds = grow(mNodeFirstChilds, capacity);
+            byte[] childCounts = new byte[capacity];
+            System.arraycopy(mNodeChildCounts, 0, childCounts, 0, mNodeCount);
+            mNodeChildCounts = childCounts;
+        }
+        int node = mNodeCount++;
+        int c = node * POINT_TO_XYZ;
+        mNodeCenters[c] = cx;
+        mNodeCenters[c + 1] = cy;
+        mNodeCenters[c + 2] = cz;
+        mNodeHalfSizes[node] = halfSize;
+        mNodeStarts[node] = start;
+        mNodeCounts[node] = count;
+        return node;
+    }
+
+    private static float[] grow(float[] array, int capacity) {
+        float[] grown = new float[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Packs xyz float points into 16-bit fixed point relative to an origin and
+ * scale chosen per batch, for vertex buffers that take 8 bytes per point
+ * instead of 12. Each packed point is four shorts in the byte order of the
+ * output buffer: x, y and z, then zero as padding so every vertex stays
+ * 4-byte aligned. A quantizer created with colors follows each point with
+ * four more bytes: red, green, blue and alpha.
+ *
+ * A position is restored as {@code origin + q * scale}. The origin is the
+ * center of the batch's bounding box and the scale maps its longest half
+ * side onto 32767 steps, so each coordinate is off by at most half a step:
+ * about 61 micrometers when points lie up to 4 m from the center.
+ */
+public class PointQuantizer {
+
+    /** Size of a packed point without color. */
+    public static final int BYTES_PER_POINT = 8;
+    /** Size of a packed point followed by its RGBA color. */
+    public static final int BYTES_PER_COLORED_POINT = 12;
+
+    private static final int MAX_STEP = 32767;
+    private static final int OPAQUE_BLACK = 0xff000000;
+
+    private final boolean mHasColor;
+    private final float[] mOrigin = new float[3];
+    private float mScale = 1;
+
+    /**
+     * @param hasColor
+     *            true to follow each point with its RGBA color.
+     */
+    public PointQuantizer(boolean hasColor) {
+        mHasColor = hasColor;
+    }
+
+    /**
+     * Packs the first {@code pointCount} points of {@code xyz} into
+     * {@code out} from its current position, and sets the origin and scale to
+     * restore them. The source buffer's position is left unchanged.
+     *
+     * @param colors
+     *            one color per point as an ARGB int. Ignored without colors;
+     *            if null, points are packed as opaque black.
+     */
+    public void quantize(FloatBuffer xyz, int pointCount, IntBuffer colors, ByteBuffer out) {
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        float maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < pointCount * 3; i += 3) {
+            float x = xyz.get(i);
+            float y = xyz.get(i + 1);
+            float z = xyz.get(i + 2);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+        if (pointCount == 0) {
+            return;
+        }
+        float originX = (minX + maxX) / 2;
+        float originY = (minY + maxY) / 2;
+        float originZ = (minZ + maxZ) / 2;
+        float halfExtent = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) / 2;
+        // Rounding of the origin can leave a point just past the half extent.
+        float scale = halfExtent > 0 ? halfExtent * 1.0001f / MAX_STEP : 1;
+        float inverseScale = 1 / scale;
+        mOrigin[0] = originX;
+        mOrigin[1] = originY;
+        mOrigin[2] = originZ;
+        mScale = scale;
+
+        for (int i = 0; i < pointCount; i++) {
+            int p = i * 3;
+            out.putShort(toStep((xyz.get(p) - originX) * inverseScale));
+            out.putShort(toStep((xyz.get(p + 1) - originY) * inverseScale));
+            out.putShort(toStep((xyz.get(p + 2) - originZ) * inverseScale));
+            out.putShort((short) 0);
+            if (mHasColor) {
+                int argb = colors != null ? colors.get(i) : OPAQUE_BLACK;
+                out.put((byte) (argb >> 16));
+                out.put((byte) (argb >> 8));
+                out.put((byte) argb);
+                out.put((byte) (argb >>> 24));
+            }
+        }
+    }
+
+    public int getBytesPerPoint() {
+        return mHasColor ? BYTES_PER_COLORED_POINT : BYTES_PER_POINT;
+    }
+
+    /** Origin (x, y, z) of the last batch. Not copied. */
+    public float[] getOrigin() {
+        return mOrigin;
+    }
+
+    /** Size of one step of the last batch, in the units of the input. */
+    public float getScale() {
+        return mScale;
+    }
+
+    private static short toStep(float value) {
+        int step = Math.round(value);
+        return (short) Math.max(-MAX_STEP, Math.min(MAX_STEP, step));
+    }
+}
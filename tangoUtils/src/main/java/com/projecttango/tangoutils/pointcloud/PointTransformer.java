@@ -0,0 +1,298 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import com.projecttango.tangoutils.math.Matrix4;
+
+/**
+ * Transforms whole depth frames by a 4x4 affine matrix, such as the point
+ * cloud model matrix, for CPU consumers that need world-space points.
+ *
+ * Points are either interleaved XYZ or held in three separate arrays (SoA).
+ * The separate layout is transformed one output coordinate at a time, in
+ * simple loops the JIT vectorizes, and is several times faster. Frames of at least
+ * the parallel threshold are split into contiguous slices transformed on a
+ * fixed pool of worker threads, with the calling thread taking the last
+ * slice; smaller frames are transformed on the calling thread. The slices
+ * are allocated up front, so a call allocates nothing beyond what the
+ * executor's queue does.
+ *
+ * Instances are not thread-safe. Call {@link #close()} to stop the workers.
+ */
+public class PointTransformer {
+
+    /** Frames smaller than this are not worth handing to other threads. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 32 * 1024;
+
+    private static final int POINT_TO_XYZ = 3;
+
+    private final int mParallelThreshold;
+    private final ExecutorService mWorkers;
+    private final Slice[] mSlices;
+    private final Semaphore mFinishedSlices = new Semaphore(0);
+
+    /**
+     * Creates a transformer using one thread per available processor.
+     */
+    public PointTransformer() {
+        this(Runtime.getRuntime().availableProcessors(),
+                DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param threads
+     *            number of threads a large frame is split across, including
+     *            the calling thread; 1 never splits.
+     * @param parallelThreshold
+     *            smallest frame, in points, that is split.
+     */
+    public PointTransformer(int threads, int parallelThreshold) {
+        if (threads < 1 || parallelThreshold < 1) {
+            throw new IllegalArgumentException(
+                    "Thread count and threshold must be positive");
+        }
+        mParallelThreshold = parallelThreshold;
+        mSlices = new Slice[threads];
+        for (int i = 0; i < threads; i++) {
+            mSlices[i] = new Slice();
+        }
+        if (threads > 1) {
+            mWorkers = Executors.newFixedThreadPool(threads - 1,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    PointTransformer.class.getSimpleName());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        } else {
+            mWorkers = null;
+        }
+    }
+
+    public int getThreadCount() {
+        return mSlices.length;
+    }
+
+    public int getParallelThreshold() {
+        return mParallelThreshold;
+    }
+
+    /**
+     * Transforms the first {@code pointCount} interleaved XYZ points of
+     * {@code xyz} into {@code world}. The buffer's position is left
+     * unchanged.
+     */
+    public void transform(float[] matrix, FloatBuffer xyz, int pointCount,
+            float[] world) {
+        checkArguments(matrix, world, pointCount);
+        FloatBuffer source = xyz.duplicate();
+        source.position(0);
+        source.get(world, 0, pointCount * POINT_TO_XYZ);
+        transform(matrix, world, pointCount, world);
+    }
+
+    /**
+     * Transforms {@code pointCount} interleaved XYZ points. {@code world}
+     * may be {@code xyz} to transform in place.
+     */
+    public void transform(float[] matrix, float[] xyz, int pointCount,
+            float[] world) {
+        checkArguments(matrix, world, pointCount);
+        checkArguments(matrix, xyz, pointCount);
+        if (!isSplit(pointCount)) {
+            Matrix4.transformPoints(matrix, 0, xyz, 0, world, 0, pointCount);
+            return;
+        }
+        for (Slice slice : mSlices) {
+            slice.mMatrix = matrix;
+            slice.mXyz = xyz;
+            slice.mWorld = world;
+            slice.mX = null;
+        }
+        run(pointCount);
+    }
+
+    /**
+     * Transforms {@code pointCount} points held as separate coordinate
+     * arrays. The outputs must be distinct from the inputs.
+     */
+    public void transform(float[] matrix, float[] x, float[] y, float[] z,
+            int pointCount, float[] worldX, float[] worldY, float[] worldZ) {
+        if (matrix.length < Matrix4.SIZE || pointCount < 0
+                || x.length < pointCount || y.length < pointCount
+                || z.length < pointCount || worldX.length < pointCount
+                || worldY.length < pointCount || worldZ.length < pointCount) {
+            throw new IllegalArgumentException(
+                    "Arrays too small for a 4x4 matrix and " + pointCount
+                            + " points");
+        }
+        if (isInput(worldX, x, y, z) || isInput(worldY, x, y, z)
+                || isInput(worldZ, x, y, z)) {
+            throw new IllegalArgumentException(
+                    "Separate arrays cannot be transformed in place");
+        }
+        if (!isSplit(pointCount)) {
+            transformSeparate(matrix, x, y, z, worldX, worldY, worldZ, 0,
+                    pointCount);
+            return;
+        }
+        for (Slice slice : mSlices) {
+            slice.mMatrix = matrix;
+            slice.mX = x;
+            slice.mY = y;
+            slice.mZ = z;
+            slice.mWorldX = worldX;
+            slice.mWorldY = worldY;
+            slice.mWorldZ = worldZ;
+            slice.mXyz = null;
+        }
+        run(pointCount);
+    }
+
+    /**
+     * Stops the worker threads. The transformer can still be used, on the
+     * calling thread only.
+     */
+    public void close() {
+        if (mWorkers != null) {
+            mWorkers.shutdown();
+        }
+    }
+
+    /**
+     * Splits interleaved XYZ points into separate coordinate arrays.
+     */
+    public static void deinterleave(float[] xyz, int pointCount, float[] x,
+            float[] y, float[] z) {
+        for (int i = 0, j = 0; i < pointCount; i++, j += POINT_TO_XYZ) {
+            x[i] = xyz[j];
+            y[i] = xyz[j + 1];
+            z[i] = xyz[j + 2];
+        }
+    }
+
+    /**
+     * Transforms points {@code start} to {@code end} of separate coordinate
+     * arrays, one output coordinate per pass. A loop writing all three
+     * outputs is not vectorized by HotSpot; one writing a single array is.
+     */
+    static void transformSeparate(float[] m, float[] x, float[] y, float[] z,
+            float[] worldX, float[] worldY, float[] worldZ, int start, int end) {
+        transformRow(m[0], m[4], m[8], m[12], x, y, z, worldX, start, end);
+        transformRow(m[1], m[5], m[9], m[13], x, y, z, worldY, start, end);
+        transformRow(m[2], m[6], m[10], m[14], x, y, z, worldZ, start, end);
+    }
+
+    private static void transformRow(float mx, float my, float mz,
+            float translation, float[] x, float[] y, float[] z, float[] out,
+            int start, int end) {
+        for (int i = start; i < end; i++) {
+            out[i] = mx * x[i] + my * y[i] + mz * z[i] + translation;
+        }
+    }
+
+    private static boolean isInput(float[] output, float[] x, float[] y,
+            float[] z) {
+        return output == x || output == y || output == z;
+    }
+
+    private boolean isSplit(int pointCount) {
+        return pointCount >= mParallelThreshold && mWorkers != null
+                && !mWorkers.isShutdown();
+    }
+
+    private static void checkArguments(float[] matrix, float[] xyz,
+            int pointCount) {
+        if (matrix.length < Matrix4.SIZE || pointCount < 0
+                || xyz.length < pointCount * POINT_TO_XYZ) {
+            throw new IllegalArgumentException(
+                    "Arrays too small for a 4x4 matrix and " + pointCount
+                            + " points");
+        }
+    }
+
+    /**
+     * Hands all but the last slice to the workers, transforms the last one
+     * and waits for the others.
+     */
+    private void run(int pointCount) {
+        Slice[] slices = mSlices;
+        int count = slices.length;
+        for (int i = 0; i < count; i++) {
+            slices[i].mStart = (int) ((long) pointCount * i / count);
+            slices[i].mEnd = (int) ((long) pointCount * (i + 1) / count);
+            slices[i].mError = null;
+        }
+        for (int i = 0; i < count - 1; i++) {
+            mWorkers.execute(slices[i]);
+        }
+        try {
+            slices[count - 1].transform();
+        } finally {
+            // Always wait, so no worker is still writing when this returns and
+            // no permit is left over for the next frame.
+            mFinishedSlices.acquireUninterruptibly(count - 1);
+        }
+        for (Slice slice : slices) {
+            if (slice.mError != null) {
+                throw new IllegalStateException("Transform failed", slice.mError);
+            }
+        }
+    }
+
+    /** A contiguous range of points, transformed by one thread. */
+    private class Slice implements Runnable {
+        float[] mMatrix;
+        float[] mXyz;
+        float[] mWorld;
+        float[] mX, mY, mZ;
+        float[] mWorldX, mWorldY, mWorldZ;
+        int mStart;
+        int mEnd;
+        RuntimeException mError;
+
+        @Override
+        public void run() {
+            try {
+                transform();
+            } catch (RuntimeException e) {
+                mError = e;
+            } finally {
+                mFinishedSlices.release();
+            }
+        }
+
+        void transform() {
+            if (mXyz != null) {
+                Matrix4.transformPoints(mMatrix, 0, mXyz, mStart * POINT_TO_XYZ,
+                        mWorld, mStart * POINT_TO_XYZ, mEnd - mStart);
+            } else {
+                transformSeparate(mMatrix, mX, mY, mZ, mWorldX, mWorldY,
+                        mWorldZ, mStart, mEnd);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Voxel-grid downsampling of depth frames: every occupied cubic leaf of the
+ * grid is replaced by the centroid of the points that fell into it.
+ *
+ * All storage is allocated up front for {@code maxPoints} input points, so
+ * filtering a frame allocates nothing. Leaves are found through an
+ * open-addressing table of {@link VoxelKey} keys; instead of clearing the
+ * table for every frame, each slot carries the number of the frame that
+ * filled it and slots from older frames count as empty.
+ *
+ * The output is written to a reusable direct buffer, ready to be handed to
+ * OpenGL, and stays valid until the next call to {@code filter}. Instances
+ * are not thread-safe.
+ */
+public class VoxelGridFilter {
+
+    private static final int POINT_TO_XYZ = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final float mLeafSize;
+    private final float mInverseLeafSize;
+    private final int mMaxPoints;
+
+    private final long[] mSlotKeys;
+    private final int[] mSlotFrames;
+    private final int[] mSlotLeaves;
+    private final int mSlotMask;
+    private int mFrame;
+
+    private final float[] mInput;
+    private final float[] mSums;
+    private final int[] mCounts;
+    private final float[] mOutputArray;
+    private final FloatBuffer mOutput;
+    private int mOutputCount;
+
+    /**
+     * @param leafSize
+     *            edge length of a leaf in meters.
+     * @param maxPoints
+     *            largest number of points in a frame; extra points are
+     *            ignored.
+     */
+    public VoxelGridFilter(float leafSize, int maxPoints) {
+        if (!(leafSize > 0) || maxPoints <= 0) {
+            throw new IllegalArgumentException(
+                    "Leaf size and capacity must be positive");
+        }
+        mLeafSize = leafSize;
+        mInverseLeafSize = 1f / leafSize;
+        mMaxPoints = maxPoints;
+        int slots = Integer.highestOneBit(maxPoints * 2 - 1) << 1;
+        mSlotKeys = new long[slots];
+        mSlotFrames = new int[slots];
+        mSlotLeaves = new int[slots];
+        mSlotMask = slots - 1;
+        mInput = new float[maxPoints * POINT_TO_XYZ];
+        mSums = new float[maxPoints * POINT_TO_XYZ];
+        mCounts = new int[maxPoints];
+        mOutputArray = new float[maxPoints * POINT_TO_XYZ];
+        mOutput = ByteBuffer.allocateDirect(maxPoints * POINT_TO_XYZ
+                * BYTES_PER_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    public float getLeafSize() {
+        return mLeafSize;
+    }
+
+    /**
+     * Downsamples the first {@code pointCount} points of {@code xyz}. The
+     * buffer's position is left unchanged.
+     *
+     * @return the number of output points.
+     */
+    public int filter(FloatBuffer xyz, int pointCount) {
+        pointCount = Math.min(pointCount, mMaxPoints);
+        FloatBuffer source = xyz.duplicate();
+        source.position(0);
+        source.get(mInput, 0, pointCount * POINT_TO_XYZ);
+        return filter(mInput, pointCount);
+    }
+
+    /**
+     * Array variant of {@link #filter(FloatBuffer, int)} for interleaved XYZ
+     * points.
+     *
+     * @return the number of output points.
+     */
+    public int filter(float[] xyz, int pointCount) {
+        pointCount = Math.min(pointCount, mMaxPoints);
+        if (++mFrame == 0) {
+            // Frame numbers wrapped; forget all stamps once.
+            Arrays.fill(mSlotFrames, 0);
+            mFrame = 1;
+        }
+        int frame = mFrame;
+        long[] slotKeys = mSlotKeys;
+        int[] slotFrames = mSlotFrames;
+        int[] slotLeaves = mSlotLeaves;
+        int slotMask = mSlotMask;
+        float[] sums = mSums;
+        int[] counts = mCounts;
+        float inverseLeafSize = mInverseLeafSize;
+        int leaves = 0;
+
+        int end = pointCount * POINT_TO_XYZ;
+        for (int i = 0; i < end; i += POINT_TO_XYZ) {
+            float x = xyz[i];
+            float y = xyz[i + 1];
+            float z = xyz[i + 2];
+            if (!(z > 0) || z == Float.POSITIVE_INFINITY) {
+                continue;
+            }
+            int vx = VoxelKey.coordinate(x, inverseLeafSize);
+            int vy = VoxelKey.coordinate(y, inverseLeafSize);
+            int vz = VoxelKey.coordinate(z, inverseLeafSize);
+            if (!VoxelKey.inRange(vx) || !VoxelKey.inRange(vy)
+                    || !VoxelKey.inRange(vz)) {
+                continue;
+            }
+            long key = VoxelKey.pack(vx, vy, vz);
+            int slot = VoxelKey.hash(key) & slotMask;
+            int leaf;
+            while (true) {
+                if (slotFrames[slot] != frame) {
+                    leaf = leaves++;
+                    slotFrames[slot] = frame;
+                    slotKeys[slot] = key;
+                    slotLeaves[slot] = leaf;
+                    int s = leaf * POINT_TO_XYZ;
+                    sums[s] = 0;
+                    sums[s + 1] = 0;
+                    sums[s + 2] = 0;
+                    counts[leaf] = 0;
+                    break;
+                }
+                if (slotKeys[slot] == key) {
+                    leaf = slotLeaves[slot];
+                    break;
+                }
+                slot = (slot + 1) & slotMask;
+            }
+            int s = leaf * POINT_TO_XYZ;
+            sums[s] += x;
+            sums[s + 1] += y;
+            sums[s + 2] += z;
+            counts[leaf]++;
+        }
+
+        float[] out = mOutputArray;
+        for (int leaf = 0; leaf < leaves; leaf++) {
+            float scale = 1f / counts[leaf];
+            int s = leaf * POINT_TO_XYZ;
+            out[s] = sums[s] * scale;
+            out[s + 1] = sums[s + 1] * scale;
+            out[s + 2] = sums[s + 2] * scale;
+        }
+        mOutput.clear();
+        mOutput.put(out, 0, leaves * POINT_TO_XYZ);
+        mOutput.position(0);
+        mOutputCount = leaves;
+        return leaves;
+    }
+
+    /**
+     * @return the points of the last frame as interleaved XYZ in a direct
+     *         buffer, positioned at 0.
+     */
+    public FloatBuffer getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * @return the points of the last frame as interleaved XYZ; only the
+     *         first {@link #getOutputCount()} points are valid.
+     */
+    public float[] getOutputArray() {
+        return mOutputArray;
+    }
+
+    public int getOutputCount() {
+        return mOutputCount;
+    }
+}
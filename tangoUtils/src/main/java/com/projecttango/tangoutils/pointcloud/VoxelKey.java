@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+/**
+ * Packs integer voxel coordinates into a single {@code long} key, 21 signed
+ * bits per axis, so voxel tables can be keyed without boxing. Keys only use
+ * the low 63 bits; {@link #NONE} can never be produced by {@link #pack} and
+ * is used to mark empty slots.
+ */
+public final class VoxelKey {
+
+    /** Key value that never names a voxel. */
+    public static final long NONE = Long.MIN_VALUE;
+    /** Smallest voxel coordinate that can be packed. */
+    public static final int MIN_COORDINATE = -(1 << 20);
+    /** Largest voxel coordinate that can be packed. */
+    public static final int MAX_COORDINATE = (1 << 20) - 1;
+
+    private static final int BITS = 21;
+    private static final long MASK = (1L << BITS) - 1;
+
+    private VoxelKey() {
+    }
+
+    /**
+     * @return the voxel coordinate containing {@code value} for voxels of
+     *         size {@code 1 / inverseVoxelSize}. Callers must check the result
+     *         with {@link #inRange} before packing.
+     */
+    public static int coordinate(float value, float inverseVoxelSize) {
+        float scaled = value * inverseVoxelSize;
+        int truncated = (int) scaled;
+        // Floor rather than truncate so voxel 0 is not twice as large.
+        return scaled < truncated ? truncated - 1 : truncated;
+    }
+
+    public static boolean inRange(int coordinate) {
+        return coordinate >= MIN_COORDINATE && coordinate <= MAX_COORDINATE;
+    }
+
+    /** Packs three coordinates, each within {@link #inRange}. */
+    public static long pack(int x, int y, int z) {
+        return ((x & MASK) << (2 * BITS)) | ((y & MASK) << BITS) | (z & MASK);
+    }
+
+    public static int x(long key) {
+        return signExtend(key >>> (2 * BITS));
+    }
+
+    public static int y(long key) {
+        return signExtend(key >>> BITS);
+    }
+
+    public static int z(long key) {
+        return signExtend(key);
+    }
+
+    /**
+     * Mixes all bits of a key into a well distributed hash, for open
+     * addressing tables indexed by {@code hash & (size - 1)}.
+     */
+    public static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static int signExtend(long bits) {
+        return (int) ((bits & MASK) << (64 - BITS) >> (64 - BITS));
+    }
+}
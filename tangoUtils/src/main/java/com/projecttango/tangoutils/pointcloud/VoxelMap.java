@@ -0,0 +1,333 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * World-space point map fused from successive depth frames. Points are
+ * transformed by the frame's model matrix and binned into cubic voxels; each
+ * voxel keeps the running centroid and count of the points that fell into it.
+ *
+ * Voxels live in dense arrays in insertion order and are found through an
+ * open-addressing hash table of {@link VoxelKey} keys with linear probing, so
+ * inserting a point allocates nothing. Memory is bounded by
+ * {@code maxVoxels}: once the map is full, points in new voxels are dropped
+ * while existing voxels keep being refined.
+ *
+ * Frames are moved to world space in bulk by a {@link PointTransformer},
+ * which can be shared with other consumers of world-space points and split
+ * large frames across threads.
+ *
+ * All methods are synchronized; frames are inserted on the depth callback and
+ * read by the render thread.
+ */
+public class VoxelMap {
+
+    private static final int POINT_TO_XYZ = 3;
+    private static final int MATRIX_SIZE = 16;
+
+    private final float mVoxelSize;
+    private final float mInverseVoxelSize;
+    private final int mMaxVoxels;
+
+    // Hash table: key per slot and the dense index of its voxel.
+    private final long[] mSlotKeys;
+    private final int[] mSlotVoxels;
+    private final int mSlotMask;
+
+    // Dense voxel storage.
+    private final float[] mCentroids;
+    private final int[] mCounts;
+    private int mVoxelCount;
+
+    private final PointTransformer mTransformer;
+    private float[] mFramePoints = new float[0];
+    private float[] mWorldPoints = new float[0];
+    private long mFrameCount;
+    private long mDroppedPointCount;
+
+    /**
+     * @param voxelSize
+     *            edge length of a voxel in meters.
+     * @param maxVoxels
+     *            largest number of voxels the map holds.
+     */
+    public VoxelMap(float voxelSize, int maxVoxels) {
+        // Never splits, so it starts no threads and needs no closing.
+        this(voxelSize, maxVoxels, new PointTransformer(1, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @param voxelSize
+     *            edge length of a voxel in meters.
+     * @param maxVoxels
+     *            largest number of voxels the map holds.
+     * @param transformer
+     *            transforms frames to world space; owned by the caller.
+     */
+    public VoxelMap(float voxelSize, int maxVoxels, PointTransformer transformer) {
+        if (!(voxelSize > 0) || maxVoxels <= 0) {
+            throw new IllegalArgumentException(
+                    "Voxel size and capacity must be positive");
+        }
+        mTransformer = transformer;
+        mVoxelSize = voxelSize;
+        mInverseVoxelSize = 1f / voxelSize;
+        mMaxVoxels = maxVoxels;
+        // Keep the load factor at or below one half.
+        int slots = Integer.highestOneBit(Math.max(maxVoxels, 1) * 2 - 1) << 1;
+        mSlotKeys = new long[slots];
+        mSlotVoxels = new int[slots];
+        mSlotMask = slots - 1;
+        mCentroids = new float[maxVoxels * POINT_TO_XYZ];
+        mCounts = new int[maxVoxels];
+        clear();
+    }
+
+    public float getVoxelSize() {
+        return mVoxelSize;
+    }
+
+    public int getMaxVoxels() {
+        return mMaxVoxels;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mSlotKeys, VoxelKey.NONE);
+        mVoxelCount = 0;
+        mFrameCount = 0;
+        mDroppedPointCount = 0;
+    }
+
+    /**
+     * Transforms the first {@code pointCount} points of a depth frame into
+     * world space and fuses them into the map. Points with a non-positive or
+     * non-finite depth are skipped.
+     *
+     * @param modelMatrix
+     *            column-major 4x4 matrix from the depth frame to the world,
+     *            as produced by {@code ModelMatCalculator}.
+     */
+    public synchronized void insertFrame(FloatBuffer xyz, int pointCount,
+            float[] modelMatrix) {
+        int floats = pointCount * POINT_TO_XYZ;
+        if (mFramePoints.length < floats) {
+            mFramePoints = new float[floats];
+        }
+        FloatBuffer source = xyz.duplicate();
+        source.position(0);
+        source.get(mFramePoints, 0, floats);
+        insertFrame(mFramePoints, pointCount, modelMatrix);
+    }
+
+    /**
+     * Array variant of {@link #insertFrame(FloatBuffer, int, float[])} for
+     * interleaved XYZ points.
+     */
+    public synchronized void insertFrame(float[] xyz, int pointCount,
+            float[] modelMatrix) {
+        if (modelMatrix.length < MATRIX_SIZE) {
+            throw new IllegalArgumentException("Expected a 4x4 matrix");
+        }
+        int end = pointCount * POINT_TO_XYZ;
+        if (mWorldPoints.length < end) {
+            mWorldPoints = new float[end];
+        }
+        float[] world = mWorldPoints;
+        mTransformer.transform(modelMatrix, xyz, pointCount, world);
+        for (int i = 0; i < end; i += POINT_TO_XYZ) {
+            // Depth is checked in the camera frame, before the transform.
+            float z = xyz[i + 2];
+            if (!(z > 0) || z == Float.POSITIVE_INFINITY) {
+                continue;
+            }
+            insert(world[i], world[i + 1], world[i + 2]);
+        }
+        mFrameCount++;
+    }
+
+    /**
+     * Adds one world-space point to the map.
+     *
+     * @return false if the point was dropped because it is out of range or
+     *         the map is full.
+     */
+    public synchronized boolean addPoint(float x, float y, float z) {
+        return insert(x, y, z);
+    }
+
+    private boolean insert(float x, float y, float z) {
+        int vx = VoxelKey.coordinate(x, mInverseVoxelSize);
+        int vy = VoxelKey.coordinate(y, mInverseVoxelSize);
+        int vz = VoxelKey.coordinate(z, mInverseVoxelSize);
+        if (!VoxelKey.inRange(vx) || !VoxelKey.inRange(vy)
+                || !VoxelKey.inRange(vz)) {
+            mDroppedPointCount++;
+            return false;
+        }
+        long key = VoxelKey.pack(vx, vy, vz);
+        int slot = VoxelKey.hash(key) & mSlotMask;
+        while (true) {
+            long slotKey = mSlotKeys[slot];
+            if (slotKey == key) {
+                int voxel = mSlotVoxels[slot];
+                int count = mCounts[voxel];
+                if (count < Integer.MAX_VALUE) {
+                    count++;
+                    mCounts[voxel] = count;
+                }
+                // Running mean, which stays accurate for large counts.
+                float weight = 1f / count;
+                int c = voxel * POINT_TO_XYZ;
+                mCentroids[c] += (x - mCentroids[c]) * weight;
+                mCentroids[c + 1] += (y - mCentroids[c + 1]) * weight;
+                mCentroids[c + 2] += (z - mCentroids[c + 2]) * weight;
+                return true;
+            }
+            if (slotKey == VoxelKey.NONE) {
+                if (mVoxelCount == mMaxVoxels) {
+                    mDroppedPointCount++;
+                    return false;
+                }
+                int voxel = mVoxelCount++;
+                mSlotKeys[slot] = key;
+                mSlotVoxels[slot] = voxel;
+                mCounts[voxel] = 1;
+                int c = voxel * POINT_TO_XYZ;
+                mCentroids[c] = x;
+                mCentroids[c + 1] = y;
+                mCentroids[c + 2] = z;
+                return true;
+            }
+            slot = (slot + 1) & mSlotMask;
+        }
+    }
+
+    /**
+     * @return the number of points fused into the voxel containing the given
+     *         world position, or 0 if it is empty.
+     */
+    public synchronized int getCount(float x, float y, float z) {
+        int voxel = findVoxel(x, y, z);
+        return voxel < 0 ? 0 : mCounts[voxel];
+    }
+
+    /**
+     * Copies the centroid of the voxel containing the given world position
+     * into {@code out}.
+     *
+     * @return false if the voxel is empty.
+     */
+    public synchronized boolean getCentroid(float x, float y, float z,
+            float[] out) {
+        int voxel = findVoxel(x, y, z);
+        if (voxel < 0) {
+            return false;
+        }
+        System.arraycopy(mCentroids, voxel * POINT_TO_XYZ, out, 0,
+                POINT_TO_XYZ);
+        return true;
+    }
+
+    /**
+     * Writes the centroids of voxels with at least {@code minCount} points to
+     * {@code out} as interleaved XYZ, starting at position 0, for at most
+     * {@code maxPoints} points.
+     *
+     * @return the number of points written.
+     */
+    public synchronized int copyCentroids(FloatBuffer out, int minCount,
+            int maxPoints) {
+        out.position(0);
+        if (minCount <= 1) {
+            int points = Math.min(mVoxelCount, maxPoints);
+            out.put(mCentroids, 0, points * POINT_TO_XYZ);
+            out.position(0);
+            return points;
+        }
+        int points = 0;
+        for (int voxel = 0; voxel < mVoxelCount && points < maxPoints; voxel++) {
+            if (mCounts[voxel] >= minCount) {
+                out.put(mCentroids, voxel * POINT_TO_XYZ, POINT_TO_XYZ);
+                points++;
+            }
+        }
+        out.position(0);
+        return points;
+    }
+
+    /**
+     * Array variant of {@link #copyCentroids(FloatBuffer, int, int)}; writes
+     * at most {@code out.length / 3} points.
+     *
+     * @return the number of points written.
+     */
+    public synchronized int copyCentroids(float[] out, int minCount) {
+        int maxPoints = out.length / POINT_TO_XYZ;
+        if (minCount <= 1) {
+            int points = Math.min(mVoxelCount, maxPoints);
+            System.arraycopy(mCentroids, 0, out, 0, points * POINT_TO_XYZ);
+            return points;
+        }
+        int points = 0;
+        for (int voxel = 0; voxel < mVoxelCount && points < maxPoints; voxel++) {
+            if (mCounts[voxel] >= minCount) {
+                System.arraycopy(mCentroids, voxel * POINT_TO_XYZ, out,
+                        points * POINT_TO_XYZ, POINT_TO_XYZ);
+                points++;
+            }
+        }
+        return points;
+    }
+
+    public synchronized int getVoxelCount() {
+        return mVoxelCount;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Points dropped because they were out of range or the map was full. */
+    public synchronized long getDroppedPointCount() {
+        return mDroppedPointCount;
+    }
+
+    private int findVoxel(float x, float y, float z) {
+        int vx = VoxelKey.coordinate(x, mInverseVoxelSize);
+        int vy = VoxelKey.coordinate(y, mInverseVoxelSize);
+        int vz = VoxelKey.coordinate(z, mInverseVoxelSize);
+        if (!VoxelKey.inRange(vx) || !VoxelKey.inRange(vy)
+                || !VoxelKey.inRange(vz)) {
+            return -1;
+        }
+        long key = VoxelKey.pack(vx, vy, vz);
+        int slot = VoxelKey.hash(key) & mSlotMask;
+        while (true) {
+            long slotKey = mSlotKeys[slot];
+            if (slotKey == key) {
+                return mSlotVoxels[slot];
+            }
+            if (slotKey == VoxelKey.NONE) {
+                return -1;
+            }
+            slot = (slot + 1) & mSlotMask;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pose;
+
+import com.projecttango.tangoutils.concurrent.TripleBuffer;
+
+/**
+ * Reusable snapshot of a device pose and the model matrix derived from it,
+ * handed from the pose callback to readers through a {@link TripleBuffer}.
+ * A frame is only written by the producer that owns it, so its fields need
+ * no synchronization.
+ */
+public class PoseFrame {
+
+    private long mSequence;
+    private long mReceivedNanos;
+    private double mTimestamp;
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+    private int mStatusCode;
+    private final float[] mModelMatrix = new float[16];
+
+    /**
+     * Overwrites the frame.
+     *
+     * @param sequence
+     *            increasing version number, 0 meaning no pose yet.
+     * @param receivedNanos
+     *            {@link System#nanoTime()} at which the pose was received.
+     * @param modelMatrix
+     *            16-element OpenGL model matrix of the device.
+     */
+    public void set(long sequence, long receivedNanos, double timestamp,
+            double[] translation, double[] rotation, int statusCode,
+            float[] modelMatrix) {
+        mSequence = sequence;
+        mReceivedNanos = receivedNanos;
+        mTimestamp = timestamp;
+        System.arraycopy(translation, 0, mTranslation, 0, 3);
+        System.arraycopy(rotation, 0, mRotation, 0, 4);
+        mStatusCode = statusCode;
+        System.arraycopy(modelMatrix, 0, mModelMatrix, 0, 16);
+    }
+
+    /** Version of the pose, 0 if no pose was published yet. */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /** {@link System#nanoTime()} at which the pose was received. */
+    public long getReceivedNanos() {
+        return mReceivedNanos;
+    }
+
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    /** Translation x, y, z. Must not be modified. */
+    public double[] getTranslation() {
+        return mTranslation;
+    }
+
+    /** Rotation quaternion x, y, z, w. Must not be modified. */
+    public double[] getRotation() {
+        return mRotation;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /** Model matrix of the device. Must not be modified. */
+    public float[] getModelMatrix() {
+        return mModelMatrix;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pose;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity history of the most recent poses, keyed by their timestamp
+ * in seconds. Poses are added by a single writer (the pose callback) and can
+ * be looked up from any thread without locking, so a depth frame can be
+ * given the pose at its own timestamp without a round trip to the Tango
+ * service.
+ *
+ * {@link #getPoseAtTime} binary searches the history for the two poses that
+ * bracket the requested time, then interpolates the translation linearly and
+ * the rotation with a spherical linear interpolation. Timestamps outside the
+ * history are not extrapolated.
+ *
+ * Slots are stored as raw double bits in an {@link AtomicLongArray}. The
+ * writer announces the slot it is about to overwrite before touching it, and
+ * a reader that finds the announcement has caught up with a slot it read
+ * retries, so a reader never returns a pose that was torn by a concurrent
+ * write.
+ */
+public class PoseHistory {
+
+    /** Returned by {@link #getPoseAtTime} when the time is not covered. */
+    public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    private static final int TIMESTAMP = 0;
+    private static final int TRANSLATION = 1;
+    private static final int ROTATION = 4;
+    private static final int STATUS = 8;
+    private static final int SLOT_SIZE = 9;
+    private static final int MAX_READ_ATTEMPTS = 8;
+    // Quaternions whose dot product exceeds this are blended linearly.
+    private static final double SLERP_THRESHOLD = 0.9995;
+
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicLongArray mSlots;
+    // Number of poses published to readers.
+    private final AtomicLong mHead = new AtomicLong();
+    // Number of poses the writer has started to write.
+    private final AtomicLong mClaimed = new AtomicLong();
+    private double mLastTimestamp = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param capacity
+     *            number of poses kept, rounded up to a power of two.
+     */
+    public PoseHistory(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        mCapacity = Integer.highestOneBit(capacity) == capacity ? capacity
+                : Integer.highestOneBit(capacity) << 1;
+        mMask = mCapacity - 1;
+        mSlots = new AtomicLongArray(mCapacity * SLOT_SIZE);
+    }
+
+    /**
+     * Adds a pose, evicting the oldest one if the history is full. Must only
+     * be called from one thread.
+     *
+     * @return false if the pose was ignored because its timestamp is not
+     *         newer than the last pose added.
+     */
+    public boolean add(double timestamp, double[] translation,
+            double[] rotation, int statusCode) {
+        if (!(timestamp > mLastTimestamp)) {
+            return false;
+        }
+        long head = mHead.get();
+        mClaimed.set(head + 1);
+        int base = (int) (head & mMask) * SLOT_SIZE;
+        putDouble(base + TIMESTAMP, timestamp);
+        for (int i = 0; i < 3; i++) {
+            putDouble(base + TRANSLATION + i, translation[i]);
+        }
+        for (int i = 0; i < 4; i++) {
+            putDouble(base + ROTATION + i, rotation[i]);
+        }
+        mSlots.lazySet(base + STATUS, statusCode);
+        mHead.set(head + 1);
+        mLastTimestamp = timestamp;
+        return true;
+    }
+
+    /**
+     * Writes the pose at {@code timestamp} into {@code translation} (x, y, z)
+     * and {@code rotation} (x, y, z, w).
+     *
+     * @return the status code of the bracketing pose closest in time, or
+     *         {@link #NOT_FOUND} if {@code timestamp} is outside the history.
+     */
+    public int getPoseAtTime(double timestamp, double[] translation,
+            double[] rotation) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long head = mHead.get();
+            long oldest = Math.max(0, head - mCapacity + 1);
+            if (head == 0 || timestamp < timestampAt(oldest)
+                    || timestamp > timestampAt(head - 1)) {
+                if (isIntact(oldest)) {
+                    return NOT_FOUND;
+                }
+                continue;
+            }
+
+            // Find the last pose at or before the timestamp.
+            long low = oldest;
+            long high = head - 1;
+            while (low < high) {
+                long mid = (low + high + 1) >>> 1;
+                if (timestampAt(mid) <= timestamp) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            long next = Math.min(low + 1, head - 1);
+            int status = interpolate(low, next, timestamp, translation, rotation);
+            if (isIntact(oldest)) {
+                return status;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /** Number of poses currently held. */
+    public int size() {
+        return (int) Math.min(mHead.get(), mCapacity);
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /** Timestamp of the newest pose, or negative infinity if empty. */
+    public double getNewestTimestamp() {
+        long head = mHead.get();
+        return head == 0 ? Double.NEGATIVE_INFINITY : timestampAt(head - 1);
+    }
+
+    private int interpolate(long before, long after, double timestamp,
+            double[] translation, double[] rotation) {
+        int a = (int) (before & mMask) * SLOT_SIZE;
+        int b = (int) (after & mMask) * SLOT_SIZE;
+        double t0 = getDouble(a + TIMESTAMP);
+        double t1 = getDouble(b + TIMESTAMP);
+        double t = t1 > t0 ? (timestamp - t0) / (t1 - t0) : 0;
+
+        for (int i = 0; i < 3; i++) {
+            double p0 = getDouble(a + TRANSLATION + i);
+            double p1 = getDouble(b + TRANSLATION + i);
+            translation[i] = p0 + (p1 - p0) * t;
+        }
+
+        double ax = getDouble(a + ROTATION);
+        double ay = getDouble(a + ROTATION + 1);
+        double az = getDouble(a + ROTATION + 2);
+        double aw = getDouble(a + ROTATION + 3);
+        double bx = getDouble(b + ROTATION);
+        double by = getDouble(b + ROTATION + 1);
+        double bz = getDouble(b + ROTATION + 2);
+        double bw = getDouble(b + ROTATION + 3);
+        double dot = ax * bx + ay * by + az * bz + aw * bw;
+        // Take the short way round.
+        if (dot < 0) {
+            dot = -dot;
+            bx = -bx;
+            by = -by;
+            bz = -bz;
+            bw = -bw;
+        }
+        double wa;
+        double wb;
+        if (dot > SLERP_THRESHOLD) {
+            wa = 1 - t;
+            wb = t;
+        } else {
+            double theta = Math.acos(dot);
+            double sinTheta = Math.sin(theta);
+            wa = Math.sin((1 - t) * theta) / sinTheta;
+            wb = Math.sin(t * theta) / sinTheta;
+        }
+        double x = wa * ax + wb * bx;
+        double y = wa * ay + wb * by;
+        double z = wa * az + wb * bz;
+        double w = wa * aw + wb * bw;
+        double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+        rotation[0] = x / norm;
+        rotation[1] = y / norm;
+        rotation[2] = z / norm;
+        rotation[3] = w / norm;
+
+        return (int) mSlots.get((t < 0.5 ? a : b) + STATUS);
+    }
+
+    /**
+     * Returns true if the writer has not started to overwrite pose
+     * {@code index}, and so none of the newer poses read after it either.
+     */
+    private boolean isIntact(long index) {
+        return index > mClaimed.get() - 1 - mCapacity;
+    }
+
+    private double timestampAt(long index) {
+        return getDouble((int) (index & mMask) * SLOT_SIZE + TIMESTAMP);
+    }
+
+    private double getDouble(int i) {
+        return Double.longBitsToDouble(mSlots.get(i));
+    }
+
+    private void putDouble(int i, double value) {
+        mSlots.lazySet(i, Double.doubleToRawLongBits(value));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pose;
+
+/**
+ * Growing polyline of device positions, stored in chunks of
+ * {@link #CHUNK_VERTICES} vertices so a renderer can keep one vertex buffer
+ * per chunk and only upload what was appended. The path is never truncated.
+ * Each chunk after the first starts with a copy of the last vertex of the
+ * previous one, so chunks drawn as separate line strips stay connected.
+ *
+ * Incoming positions are simplified online: positions closer than
+ * {@link #MIN_DISTANCE_CHECK} to the previous one are skipped, and the end of
+ * the path is slid forward for as long as every position since the last kept
+ * vertex stays within {@link #SIMPLIFY_TOLERANCE} of the straight segment
+ * (an opening-window Douglas-Peucker). Straight walks therefore cost only a
+ * few vertices.
+ *
+ * {@link #add} and {@link #clear} must be called from one producer thread;
+ * any thread may read the stored vertices. Read
+ * {@link #getStoredVertexCount} before {@link #getChunks}: the directory is
+ * published first, so it covers every counted vertex. The last vertex may be
+ * moved while it is being read.
+ */
+public class TrajectoryPath {
+
+    /** Stored vertices per chunk. */
+    public static final int CHUNK_VERTICES = 4096;
+    /** Floats per stored vertex. */
+    public static final int COORDS_PER_VERTEX = 3;
+    /** Smallest distance, in meters, between successive positions kept. */
+    private static final float MIN_DISTANCE_CHECK = 0.025f;
+    /** Largest distance, in meters, of a skipped position from the path. */
+    private static final float SIMPLIFY_TOLERANCE = 0.01f;
+    /** Positions checked against a candidate segment before it is kept. */
+    private static final int SIMPLIFY_WINDOW = 256;
+
+    // Chunk directory and vertex count are published to readers through the
+    // volatile fields, directory first.
+    private volatile float[][] mChunks = new float[1][];
+    private volatile int mStoredVertexCount;
+    private volatile int mGeneration;
+    private long mRawPointCount;
+    private final float[] mLastRaw = new float[3];
+    // Kept vertex the current end segment starts from.
+    private final float[] mAnchor = new float[3];
+    // Positions since the anchor, checked against each candidate segment.
+    private final float[] mWindow = new float[SIMPLIFY_WINDOW * 3];
+    private int mWindowSize;
+
+    /** Adds a position, in the coordinates the path is drawn in. */
+    public void add(float x, float y, float z) {
+        mRawPointCount++;
+        int count = mStoredVertexCount;
+        if (count == 0) {
+            set(mLastRaw, x, y, z);
+            set(mAnchor, x, y, z);
+            mWindowSize = 0;
+            appendVertex(x, y, z);
+            return;
+        }
+
+        float dx = x - mLastRaw[0];
+        float dy = y - mLastRaw[1];
+        float dz = z - mLastRaw[2];
+        if (dx * dx + dy * dy + dz * dz <= MIN_DISTANCE_CHECK * MIN_DISTANCE_CHECK) {
+            return;
+        }
+        set(mLastRaw, x, y, z);
+
+        if (count > 1 && mWindowSize < SIMPLIFY_WINDOW && windowFits(x, y, z)) {
+            // The straight segment from the anchor still covers every
+            // position: slide the end of the path forward.
+            moveLastVertex(x, y, z);
+        } else {
+            // Keep the current end and start a new segment from it.
+            if (count > 1) {
+                float[] chunk = mChunks[(count - 1) / CHUNK_VERTICES];
+                int i = ((count - 1) % CHUNK_VERTICES) * COORDS_PER_VERTEX;
+                set(mAnchor, chunk[i], chunk[i + 1], chunk[i + 2]);
+                mWindowSize = 0;
+            }
+            appendVertex(x, y, z);
+        }
+        int w = mWindowSize * COORDS_PER_VERTEX;
+        mWindow[w] = x;
+        mWindow[w + 1] = y;
+        mWindow[w + 2] = z;
+        mWindowSize++;
+    }
+
+    /** Drops the whole path and starts a new generation. */
+    public void clear() {
+        mChunks = new float[1][];
+        mStoredVertexCount = 0;
+        mGeneration++;
+        mRawPointCount = 0;
+        mWindowSize = 0;
+    }
+
+    /**
+     * Chunks of {@link #CHUNK_VERTICES} x, y, z vertices; entries past the
+     * stored vertices may be null.
+     */
+    public float[][] getChunks() {
+        return mChunks;
+    }
+
+    /** Number of vertices in the chunks, including the repeated ones. */
+    public int getStoredVertexCount() {
+        return mStoredVertexCount;
+    }
+
+    /** Incremented by every {@link #clear}. */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Number of vertices kept after simplification. */
+    public int getVertexCount() {
+        int count = mStoredVertexCount;
+        // Every chunk after the first repeats the previous chunk's last vertex.
+        return count == 0 ? 0 : count - (count - 1) / CHUNK_VERTICES;
+    }
+
+    /** Number of positions passed to {@link #add} since the last clear. */
+    public long getRawPointCount() {
+        return mRawPointCount;
+    }
+
+    public int getChunkCount() {
+        return (mStoredVertexCount + CHUNK_VERTICES - 1) / CHUNK_VERTICES;
+    }
+
+    private boolean windowFits(float x, float y, float z) {
+        float ax = mAnchor[0];
+        float ay = mAnchor[1];
+        float az = mAnchor[2];
+        float sx = x - ax;
+        float sy = y - ay;
+        float sz = z - az;
+        float lengthSquared = sx * sx + sy * sy + sz * sz;
+        float toleranceSquared = SIMPLIFY_TOLERANCE * SIMPLIFY_TOLERANCE;
+        float[] window = mWindow;
+        for (int i = 0; i < mWindowSize * COORDS_PER_VERTEX; i += COORDS_PER_VERTEX) {
+            float px = window[i] - ax;
+            float py = window[i + 1] - ay;
+            float pz = window[i + 2] - az;
+            // Distance from the segment, clamping to its end points.
+            float t = lengthSquared > 0 ? (px * sx + py * sy + pz * sz) / lengthSquared : 0;
+            t = Math.max(0, Math.min(1, t));
+            float ex = px - t * sx;
+            float ey = py - t * sy;
+            float ez = pz - t * sz;
+            if (ex * ex + ey * ey + ez * ez > toleranceSquared) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendVertex(float x, float y, float z) {
+        int count = mStoredVertexCount;
+        if (count > 0 && count % CHUNK_VERTICES == 0) {
+            // Start the next chunk with a copy of the last vertex.
+            float[] previous = chunkFor(count - 1);
+            int p = (CHUNK_VERTICES - 1) * COORDS_PER_VERTEX;
+            putVertex(chunkFor(count), 0, previous[p], previous[p + 1], previous[p + 2]);
+            count++;
+        }
+        putVertex(chunkFor(count), count % CHUNK_VERTICES, x, y, z);
+        mStoredVertexCount = count + 1;
+    }
+
+    private void moveLastVertex(float x, float y, float z) {
+        int last = mStoredVertexCount - 1;
+        putVertex(chunkFor(last), last % CHUNK_VERTICES, x, y, z);
+    }
+
+    /**
+     * Returns the chunk holding stored vertex {@code index}, allocating it
+     * and publishing a larger directory if needed.
+     */
+    private float[] chunkFor(int index) {
+        int c = index / CHUNK_VERTICES;
+        float[][] chunks = mChunks;
+        if (c >= chunks.length) {
+            float[][] grown = new float[chunks.length * 2][];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+        if (chunks[c] == null) {
+            chunks[c] = new float[CHUNK_VERTICES * COORDS_PER_VERTEX];
+        }
+        mChunks = chunks;
+        return chunks[c];
+    }
+
+    private static void putVertex(float[] chunk, int offset, float x, float y, float z) {
+        int i = offset * COORDS_PER_VERTEX;
+        chunk[i] = x;
+        chunk[i + 1] = y;
+        chunk[i + 2] = z;
+    }
+
+    private static void set(float[] v, float x, float y, float z) {
+        v[0] = x;
+        v[1] = y;
+        v[2] = z;
+    }
+}
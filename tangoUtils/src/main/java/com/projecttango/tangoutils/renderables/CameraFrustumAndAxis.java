@@ -16,12 +16,9 @@
 
 package com.projecttango.tangoutils.renderables;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-
 import android.opengl.GLES20;
-import android.opengl.Matrix;
+
+import com.projecttango.tangoutils.math.Matrix4;
 
 /**
  * {@link Renderable} OpenGL object representing XYZ axes in 3D space. X is Red,
@@ -30,6 +27,7 @@ import android.opengl.Matrix;
 public class CameraFrustumAndAxis extends Renderable {
 
     private static final int COORDS_PER_VERTEX = 3;
+    private static final int COLORS_PER_VERTEX = 4;
 
     private static final String sVertexShaderCode = "uniform mat4 uMVPMatrix;"
             + "attribute vec4 vPosition;" + "attribute vec4 aColor;"
@@ -40,7 +38,6 @@ public class CameraFrustumAndAxis extends Renderable {
             + "varying vec4 vColor;"
             + "void main() {"
             + "gl_FragColor = vColor;" + "}";
-    private FloatBuffer mVertexBuffer, mColorBuffer;
 
     private float mVertices[] = { 0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f,
 
@@ -86,65 +83,46 @@ public class CameraFrustumAndAxis extends Renderable {
 
     0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 1.0f, };
 
-    private final int mProgram;
-    private int mPosHandle, mColorHandle;
-    private int mMVPMatrixHandle;
+    private final StaticVertexBuffer mVertexBuffer;
+    private final ShaderProgram mProgram;
+    private final int mPosHandle, mColorHandle;
+    private final int mMVPMatrixHandle;
 
     public CameraFrustumAndAxis() {
         // Set model matrix to the identity
-        Matrix.setIdentityM(getModelMatrix(), 0);
-
-        // Put vertices into a vertex buffer
-        ByteBuffer byteBuf = ByteBuffer.allocateDirect(mVertices.length * 4);
-        byteBuf.order(ByteOrder.nativeOrder());
-        mVertexBuffer = byteBuf.asFloatBuffer();
-        mVertexBuffer.put(mVertices);
-        mVertexBuffer.position(0);
-
-        // Put colors into a color buffer
-        ByteBuffer cByteBuff = ByteBuffer.allocateDirect(mColors.length * 4);
-        cByteBuff.order(ByteOrder.nativeOrder());
-        mColorBuffer = cByteBuff.asFloatBuffer();
-        mColorBuffer.put(mColors);
-        mColorBuffer.position(0);
-
-        // Load the vertex and fragment shaders, then link the program
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                sVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                sFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+        Matrix4.setIdentity(getModelMatrix(), 0);
+
+        // Upload positions and colors, interleaved, into one vertex buffer
+        mVertexBuffer = new StaticVertexBuffer(StaticVertexBuffer.interleave(
+                mVertices, COORDS_PER_VERTEX, mColors, COLORS_PER_VERTEX),
+                COORDS_PER_VERTEX + COLORS_PER_VERTEX);
+
+        mProgram = RenderUtils.getProgram(sVertexShaderCode, sFragmentShaderCode);
+        mPosHandle = mProgram.getAttribLocation("vPosition");
+        mColorHandle = mProgram.getAttribLocation("aColor");
+        mMVPMatrixHandle = mProgram.getUniformLocation("uMVPMatrix");
     }
 
     @Override
-    public synchronized void draw(float[] viewMatrix, float[] projectionMatrix) {
-        GLES20.glUseProgram(mProgram);
+    public void draw(float[] viewMatrix, float[] projectionMatrix) {
+        mProgram.use();
+        mVertexBuffer.bind();
 
-        // Compose the model, view, and projection matrices into a single m-v-p
+        // Compose the model, view, and projection matrices into a single mvp
         // matrix
         updateMvpMatrix(viewMatrix, projectionMatrix);
 
-        // Load vertex attribute data
-        mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
-        GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, 0, mVertexBuffer);
-        GLES20.glEnableVertexAttribArray(mPosHandle);
-
-        // Load color attribute data
-        mColorHandle = GLES20.glGetAttribLocation(mProgram, "aColor");
-        GLES20.glVertexAttribPointer(mColorHandle, 4, GLES20.GL_FLOAT, false,
-                0, mColorBuffer);
-        GLES20.glEnableVertexAttribArray(mColorHandle);
+        // Load vertex and color attribute data
+        mVertexBuffer.setAttribute(mPosHandle, COORDS_PER_VERTEX, 0);
+        mVertexBuffer.setAttribute(mColorHandle, COLORS_PER_VERTEX, COORDS_PER_VERTEX);
 
         // Draw the CameraFrustumAndAxis
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
         GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
         GLES20.glLineWidth(3);
-        GLES20.glDrawArrays(GLES20.GL_LINES, 0, mVertices.length / 3);
-
+        GLES20.glDrawArrays(GLES20.GL_LINES, 0, mVertexBuffer.getVertexCount());
+        StaticVertexBuffer.unbind();
+        // Program, buffer and line width.
+        recordStateChanges(3);
+        recordDrawCalls(1);
     }
-
-}
\ No newline at end of file
+}
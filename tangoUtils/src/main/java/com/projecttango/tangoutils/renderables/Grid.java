@@ -21,17 +21,25 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import android.opengl.GLES20;
-import android.opengl.Matrix;
+
+import com.projecttango.tangoutils.math.Frustum;
+import com.projecttango.tangoutils.math.Matrix4;
 
 /**
  * {@link Renderable} OpenGL object showing the 'floor' of the current scene.
  * This is a static grid placed in the scene to provide perspective in the
  * various views.
+ *
+ * The grid is split into square tiles, each drawn with its own draw call, so
+ * that tiles outside the view frustum can be skipped.
  */
 public class Grid extends Renderable {
 
     private static final int COORDS_PER_VERTEX = 3;
     private static final int GRID_RANGE_M = 100;
+    private static final int TILE_SIZE_M = 40;
+    private static final int TILES_PER_SIDE = GRID_RANGE_M * 2 / TILE_SIZE_M;
+    private static final float GRID_HEIGHT_M = -1.3f;
     private static final int BYTES_PER_FLOAT = 4;
 
     private static final String sVertexShaderCode = "uniform mat4 uMVPMatrix;"
@@ -42,65 +50,123 @@ public class Grid extends Renderable {
             + "void main() {"
             + " gl_FragColor = vec4(0.8,0.8,0.8,1.0);" + "}";
 
-    private FloatBuffer mVertexBuffer;
-    private final int mProgram;
-    private int mPosHandle;
-    private int mMVPMatrixHandle;
+    private final StaticVertexBuffer mVertexBuffer;
+    private final ShaderProgram mProgram;
+    private final int mPosHandle;
+    private final int mMVPMatrixHandle;
+
+    // First vertex, vertex count and x/z bounds of each tile.
+    private final int[] mTileFirstVertex = new int[TILES_PER_SIDE * TILES_PER_SIDE];
+    private final int[] mTileVertexCount = new int[TILES_PER_SIDE * TILES_PER_SIDE];
+    private final float[] mTileBounds = new float[TILES_PER_SIDE * TILES_PER_SIDE * 4];
 
     public Grid() {
         // Reset the model matrix to the identity
-        Matrix.setIdentityM(getModelMatrix(), 0);
+        Matrix4.setIdentity(getModelMatrix(), 0);
 
-        // Allocate a vertex buffer
+        // Allocate a vertex buffer. Each tile draws the lines on its lower
+        // edges; tiles on the far edges also draw the closing lines.
+        int linesPerTileAxis = TILE_SIZE_M + 1;
         ByteBuffer vertexByteBuffer = ByteBuffer
-                .allocateDirect((GRID_RANGE_M * 2 + 1) * 4 * 3
+                .allocateDirect(TILES_PER_SIDE * TILES_PER_SIDE
+                        * linesPerTileAxis * 4 * COORDS_PER_VERTEX
                         * BYTES_PER_FLOAT);
         vertexByteBuffer.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vertexByteBuffer.asFloatBuffer();
-
-        // Load the vertices for the z-axis grid lines into the vertex buffer
-        for (int x = -GRID_RANGE_M; x <= GRID_RANGE_M; x++) {
-            mVertexBuffer.put(new float[] { x, -1.3f, (float) -GRID_RANGE_M });
-            mVertexBuffer.put(new float[] { x, -1.3f, (float) GRID_RANGE_M });
+        FloatBuffer vertices = vertexByteBuffer.asFloatBuffer();
+
+        int vertex = 0;
+        for (int tileZ = 0; tileZ < TILES_PER_SIDE; tileZ++) {
+            for (int tileX = 0; tileX < TILES_PER_SIDE; tileX++) {
+                int tile = tileZ * TILES_PER_SIDE + tileX;
+                float minX = -GRID_RANGE_M + tileX * TILE_SIZE_M;
+                float minZ = -GRID_RANGE_M + tileZ * TILE_SIZE_M;
+                float maxX = minX + TILE_SIZE_M;
+                float maxZ = minZ + TILE_SIZE_M;
+                int xLines = tileX == TILES_PER_SIDE - 1 ? TILE_SIZE_M + 1 : TILE_SIZE_M;
+                int zLines = tileZ == TILES_PER_SIDE - 1 ? TILE_SIZE_M + 1 : TILE_SIZE_M;
+                mTileFirstVertex[tile] = vertex;
+
+                // Load the vertices for the z-axis grid lines into the vertex buffer
+                for (int i = 0; i < xLines; i++) {
+                    vertices.put(minX + i).put(GRID_HEIGHT_M).put(minZ);
+                    vertices.put(minX + i).put(GRID_HEIGHT_M).put(maxZ);
+                }
+
+                // Load the vertices for the x-axis grid lines into the vertex buffer
+                for (int i = 0; i < zLines; i++) {
+                    vertices.put(minX).put(GRID_HEIGHT_M).put(minZ + i);
+                    vertices.put(maxX).put(GRID_HEIGHT_M).put(minZ + i);
+                }
+                vertex += (xLines + zLines) * 2;
+                mTileVertexCount[tile] = vertex - mTileFirstVertex[tile];
+                mTileBounds[tile * 4] = minX;
+                mTileBounds[tile * 4 + 1] = minZ;
+                mTileBounds[tile * 4 + 2] = maxX;
+                mTileBounds[tile * 4 + 3] = maxZ;
+            }
         }
 
-        // Load the vertices for the x-axis grid lines into the vertex buffer
-        for (int z = -GRID_RANGE_M; z <= GRID_RANGE_M; z++) {
-            mVertexBuffer.put(new float[] { (float) -GRID_RANGE_M, -1.3f, z });
-            mVertexBuffer.put(new float[] { (float) GRID_RANGE_M, -1.3f, z });
-        }
+        // Upload the vertices once; the grid never changes.
+        vertices.flip();
+        mVertexBuffer = new StaticVertexBuffer(vertices, COORDS_PER_VERTEX);
 
-        // Load the vertex and fragment shaders, then link the program
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                sVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                sFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+        mProgram = RenderUtils.getProgram(sVertexShaderCode, sFragmentShaderCode);
+        mPosHandle = mProgram.getAttribLocation("vPosition");
+        mMVPMatrixHandle = mProgram.getUniformLocation("uMVPMatrix");
     }
 
     @Override
     public void draw(float[] viewMatrix, float[] projectionMatrix) {
-        GLES20.glUseProgram(mProgram);
-        mVertexBuffer.position(0);
+        setUpDraw(viewMatrix, projectionMatrix);
+        for (int tile = 0; tile < mTileFirstVertex.length; tile++) {
+            GLES20.glDrawArrays(GLES20.GL_LINES, mTileFirstVertex[tile],
+                    mTileVertexCount[tile]);
+        }
+        StaticVertexBuffer.unbind();
+        recordDrawCalls(mTileFirstVertex.length);
+    }
+
+    @Override
+    public void draw(float[] viewMatrix, float[] projectionMatrix,
+            Frustum frustum, RenderStats stats) {
+        boolean isSetUp = false;
+        int culled = 0;
+        for (int tile = 0; tile < mTileFirstVertex.length; tile++) {
+            int b = tile * 4;
+            if (!frustum.intersectsBox(mTileBounds[b], GRID_HEIGHT_M,
+                    mTileBounds[b + 1], mTileBounds[b + 2], GRID_HEIGHT_M,
+                    mTileBounds[b + 3])) {
+                culled++;
+                continue;
+            }
+            if (!isSetUp) {
+                setUpDraw(viewMatrix, projectionMatrix);
+                isSetUp = true;
+            }
+            GLES20.glDrawArrays(GLES20.GL_LINES, mTileFirstVertex[tile],
+                    mTileVertexCount[tile]);
+        }
+        if (isSetUp) {
+            StaticVertexBuffer.unbind();
+        }
+        recordDrawCalls(mTileFirstVertex.length - culled);
+        stats.addCulledChunks(culled);
+        stats.addDrawnChunks(mTileFirstVertex.length - culled);
+    }
+
+    private void setUpDraw(float[] viewMatrix, float[] projectionMatrix) {
+        mProgram.use();
+        mVertexBuffer.bind();
 
         // Compose the model, view, and projection matrices into a single m-v-p
         // matrix
         updateMvpMatrix(viewMatrix, projectionMatrix);
 
-        // Load vertex attribute data
-        mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
-        GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, 0, mVertexBuffer);
-        GLES20.glEnableVertexAttribArray(mPosHandle);
-
-        // Draw the Grid
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
+        mVertexBuffer.setAttribute(mPosHandle, COORDS_PER_VERTEX, 0);
         GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
         GLES20.glLineWidth(1);
-        GLES20.glDrawArrays(GLES20.GL_LINES, 0, (GRID_RANGE_M * 2 + 1) * 4);
+        // Program, buffer and line width.
+        recordStateChanges(3);
     }
 
-}
\ No newline at end of file
+}
@@ -16,111 +16,295 @@
 
 package com.projecttango.tangoutils.renderables;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.IntBuffer;
 
 import android.opengl.GLES20;
-import android.opengl.Matrix;
+
+import com.projecttango.tangoutils.math.Matrix4;
+import com.projecttango.tangoutils.pointcloud.PointQuantizer;
 
 /**
  * {@link Renderable} OpenGL showing a PointCloud obtained from Tango XyzIj
  * data. The point count can vary over as the information is updated.
+ *
+ * The vertex buffers are allocated once at {@code maxDepthPoints} capacity and
+ * new frames are written with {@code glBufferSubData}. Uploads rotate through
+ * {@link #VBO_COUNT} buffers so a new frame never overwrites the buffer the
+ * GPU may still be drawing from.
+ *
+ * {@link #UpdatePoints} and {@link #draw} must be called on the GL thread;
+ * frames from other threads are handed over through a snapshot such as
+ * {@link com.projecttango.tangoutils.pointcloud.DepthFrame}. The upload
+ * counters may be read from any thread.
+ *
+ * Points are stored as floats by default. The packed formats quantize each
+ * frame with a {@link PointQuantizer} before upload and restore the
+ * positions in the vertex shader, which cuts the vertex buffers and the
+ * upload to 8 bytes per point, or 12 with a color.
  */
 public class PointCloud extends Renderable {
 
+    /** Layout of the points in the vertex buffers. */
+    public enum VertexFormat {
+        /** 32-bit float xyz, 12 bytes per point. */
+        FLOAT(COORDS_PER_VERTEX * 4),
+        /** 16-bit fixed point xyz, 8 bytes per point. */
+        PACKED(PointQuantizer.BYTES_PER_POINT),
+        /** 16-bit fixed point xyz and an RGBA8 color, 12 bytes per point. */
+        PACKED_COLOR(PointQuantizer.BYTES_PER_COLORED_POINT);
+
+        private final int mBytesPerPoint;
+
+        private VertexFormat(int bytesPerPoint) {
+            mBytesPerPoint = bytesPerPoint;
+        }
+
+        public int getBytesPerPoint() {
+            return mBytesPerPoint;
+        }
+    }
+
     private static final int COORDS_PER_VERTEX = 3;
+    private static final int VBO_COUNT = 3;
 
     private static final String sVertexShaderCode = "uniform mat4 uMVPMatrix;"
             + "attribute vec4 vPosition;" + "varying vec4 vColor;"
             + "void main() {" + "gl_PointSize = 5.0;"
             + "  gl_Position = uMVPMatrix * vPosition;"
             + "  vColor = vPosition;" + "}";
+    // Restores packed positions: origin + step * scale.
+    private static final String sPackedVertexShaderCode = "uniform mat4 uMVPMatrix;"
+            + "uniform vec3 uOrigin;" + "uniform float uScale;"
+            + "attribute vec4 vPosition;" + "varying vec4 vColor;"
+            + "void main() {" + "gl_PointSize = 5.0;"
+            + "  vec4 position = vec4(uOrigin + vPosition.xyz * uScale, 1.0);"
+            + "  gl_Position = uMVPMatrix * position;"
+            + "  vColor = position;" + "}";
+    private static final String sPackedColorVertexShaderCode = "uniform mat4 uMVPMatrix;"
+            + "uniform vec3 uOrigin;" + "uniform float uScale;"
+            + "attribute vec4 vPosition;" + "attribute vec4 aColor;"
+            + "varying vec4 vColor;"
+            + "void main() {" + "gl_PointSize = 5.0;"
+            + "  gl_Position = uMVPMatrix"
+            + "      * vec4(uOrigin + vPosition.xyz * uScale, 1.0);"
+            + "  vColor = aColor;" + "}";
     private static final String sFragmentShaderCode = "precision mediump float;"
             + "varying vec4 vColor;"
             + "void main() {"
             + "  gl_FragColor = vec4(vColor);" + "}";
 
-    private static final int BYTES_PER_FLOAT = 4;
     private static final int POINT_TO_XYZ = 3;
 
-    int mVertexVBO; // VertexBufferObject.
-    private AtomicBoolean mUpdateVBO = new AtomicBoolean();
-    private volatile FloatBuffer mPointCloudBuffer;
+    private final int[] mVertexVBOs = new int[VBO_COUNT];
+    private int mCurrentVBO;
+    private final int mMaxDepthPoints;
+    private boolean mUpdateVBO;
+    private FloatBuffer mPointCloudBuffer;
+    private IntBuffer mColorBuffer;
+    private int mPendingPointCount;
+
+    private final VertexFormat mFormat;
+    private final PointQuantizer mQuantizer;
+    private final ByteBuffer mPackedBuffer;
+    // Origin and scale of the packed frame in the current buffer.
+    private final float[] mOrigin = new float[3];
+    private float mScale;
 
-    private final int mProgram;
-    private int mPosHandle;
-    private int mMVPMatrixHandle;
+    private final ShaderProgram mProgram;
+    private final int mPosHandle;
+    private final int mColorHandle;
+    private final int mMVPMatrixHandle;
+    private final int mOriginHandle;
+    private final int mScaleHandle;
     private int mPointCount;
-    private float mAverageZ;
+
+    private volatile int mLastUploadBytes;
+    private volatile float mLastUploadMs;
+    private volatile long mUploadedBytes;
+    private volatile long mUploadCount;
 
     public PointCloud(int maxDepthPoints) {
-        mAverageZ = 0;
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                sVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                sFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
-        Matrix.setIdentityM(getModelMatrix(), 0);
-
-        final int buffers[] = new int[1];
-        GLES20.glGenBuffers(1, buffers, 0);
-        mVertexVBO = buffers[0];        
+        this(maxDepthPoints, VertexFormat.FLOAT);
     }
 
-    public synchronized void UpdatePoints(FloatBuffer pointCloudFloatBuffer) {
-        //save the reference in order to update this in the proper thread.
-        mPointCloudBuffer = pointCloudFloatBuffer;
+    /**
+     * @param maxDepthPoints
+     *            largest number of points drawn at once.
+     * @param format
+     *            layout of the points on the GPU.
+     */
+    public PointCloud(int maxDepthPoints, VertexFormat format) {
+        mMaxDepthPoints = maxDepthPoints;
+        mFormat = format;
+        if (format == VertexFormat.FLOAT) {
+            mQuantizer = null;
+            mPackedBuffer = null;
+            mProgram = RenderUtils.getProgram(sVertexShaderCode, sFragmentShaderCode);
+        } else {
+            mQuantizer = new PointQuantizer(format == VertexFormat.PACKED_COLOR);
+            mPackedBuffer = ByteBuffer.allocateDirect(maxDepthPoints * format.getBytesPerPoint())
+                    .order(ByteOrder.nativeOrder());
+            mProgram = RenderUtils.getProgram(format == VertexFormat.PACKED
+                    ? sPackedVertexShaderCode : sPackedColorVertexShaderCode,
+                    sFragmentShaderCode);
+        }
+        mPosHandle = mProgram.getAttribLocation("vPosition");
+        mColorHandle = format == VertexFormat.PACKED_COLOR ? mProgram.getAttribLocation("aColor")
+                : -1;
+        mMVPMatrixHandle = mProgram.getUniformLocation("uMVPMatrix");
+        mOriginHandle = mProgram.getUniformLocation("uOrigin");
+        mScaleHandle = mProgram.getUniformLocation("uScale");
+        Matrix4.setIdentity(getModelMatrix(), 0);
+
+        // Allocate GPU storage once; frames are written with glBufferSubData.
+        GLES20.glGenBuffers(VBO_COUNT, mVertexVBOs, 0);
+        for (int vbo : mVertexVBOs) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, maxDepthPoints
+                    * format.getBytesPerPoint(), null, GLES20.GL_STREAM_DRAW);
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Queues a point cloud for upload on the next {@link #draw}. All the
+     * points in the buffer's capacity are used.
+     */
+    public void UpdatePoints(FloatBuffer pointCloudFloatBuffer) {
+        UpdatePoints(pointCloudFloatBuffer, pointCloudFloatBuffer.capacity()
+                / POINT_TO_XYZ);
+    }
 
-        //signal the update
-        mUpdateVBO.set(true);
+    /**
+     * Queues the first {@code pointCount} points of a point cloud for upload
+     * on the next {@link #draw}. Points beyond {@code maxDepthPoints} are
+     * ignored. The buffer must not change until then.
+     */
+    public void UpdatePoints(FloatBuffer pointCloudFloatBuffer,
+            int pointCount) {
+        UpdatePoints(pointCloudFloatBuffer, pointCount, null);
+    }
+
+    /**
+     * Queues points with one ARGB color each. Colors are only drawn in the
+     * {@link VertexFormat#PACKED_COLOR} format, which draws points without
+     * colors in black.
+     */
+    public void UpdatePoints(FloatBuffer pointCloudFloatBuffer,
+            int pointCount, IntBuffer colors) {
+        mPointCloudBuffer = pointCloudFloatBuffer;
+        mColorBuffer = colors;
+        mPendingPointCount = Math.min(pointCount, mMaxDepthPoints);
+        mUpdateVBO = true;
     }
 
     @Override
-    public synchronized void draw(float[] viewMatrix, float[] projectionMatrix) {
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexVBO);
-            
-        if (mUpdateVBO.getAndSet(false)) {
-            if (mPointCloudBuffer != null) {
-                mPointCloudBuffer.position(0);
-                // Pass the info to the VBO
-                GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mPointCloudBuffer.capacity()
-                        * BYTES_PER_FLOAT, mPointCloudBuffer, GLES20.GL_STATIC_DRAW);
-                mPointCount = mPointCloudBuffer.capacity() / 3;
-                float totalZ = 0;
-                for (int i = 0; i < mPointCloudBuffer.capacity() - 3; i = i + 3) {
-                    totalZ = totalZ + mPointCloudBuffer.get(i + 2);
-                }
-                if (mPointCount != 0)
-                    mAverageZ = totalZ / mPointCount;
-                // signal the update
-                mUpdateVBO.set(true);
+    public void draw(float[] viewMatrix, float[] projectionMatrix) {
+        if (mUpdateVBO) {
+            mUpdateVBO = false;
+            FloatBuffer pointCloudBuffer = mPointCloudBuffer;
+            if (pointCloudBuffer != null) {
+                uploadPoints(pointCloudBuffer, mPendingPointCount, mColorBuffer);
             }
             mPointCloudBuffer = null;
+            mColorBuffer = null;
         }
 
         if (mPointCount > 0) {
-
-            GLES20.glUseProgram(mProgram);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexVBOs[mCurrentVBO]);
+            mProgram.use();
             updateMvpMatrix(viewMatrix, projectionMatrix);
-            GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0,
-                    0);
+            if (mFormat == VertexFormat.FLOAT) {
+                GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT,
+                        false, 0, 0);
+            } else {
+                int stride = mFormat.getBytesPerPoint();
+                GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX, GLES20.GL_SHORT,
+                        false, stride, 0);
+                GLES20.glUniform3f(mOriginHandle, mOrigin[0], mOrigin[1], mOrigin[2]);
+                GLES20.glUniform1f(mScaleHandle, mScale);
+                if (mColorHandle >= 0) {
+                    GLES20.glVertexAttribPointer(mColorHandle, 4, GLES20.GL_UNSIGNED_BYTE, true,
+                            stride, PointQuantizer.BYTES_PER_POINT);
+                    GLES20.glEnableVertexAttribArray(mColorHandle);
+                }
+            }
             GLES20.glEnableVertexAttribArray(mPosHandle);
             GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
             GLES20.glDrawArrays(GLES20.GL_POINTS, 0, mPointCount);
+            if (mColorHandle >= 0) {
+                // Leave no array enabled that points into this buffer.
+                GLES20.glDisableVertexAttribArray(mColorHandle);
+            }
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            // Buffer and program.
+            recordStateChanges(2);
+            recordDrawCalls(1);
         }
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
     }
 
-    public float getAverageZ() {
-        return mAverageZ;
+    /**
+     * Writes a frame into the next buffer of the rotation. Must be called on
+     * the GL thread.
+     */
+    private void uploadPoints(FloatBuffer pointCloudBuffer, int pointCount, IntBuffer colors) {
+        int bytes = pointCount * mFormat.getBytesPerPoint();
+        long uploadNanos = 0;
+        if (pointCount > 0) {
+            mCurrentVBO = (mCurrentVBO + 1) % VBO_COUNT;
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexVBOs[mCurrentVBO]);
+            Buffer data = pointCloudBuffer;
+            if (mQuantizer == null) {
+                pointCloudBuffer.position(0);
+            } else {
+                mPackedBuffer.clear();
+                mQuantizer.quantize(pointCloudBuffer, pointCount, colors, mPackedBuffer);
+                mPackedBuffer.flip();
+                System.arraycopy(mQuantizer.getOrigin(), 0, mOrigin, 0, 3);
+                mScale = mQuantizer.getScale();
+                data = mPackedBuffer;
+            }
+            long start = System.nanoTime();
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, bytes, data);
+            uploadNanos = System.nanoTime() - start;
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+        mLastUploadMs = uploadNanos / 1e6f;
+        mLastUploadBytes = bytes;
+        mUploadedBytes += bytes;
+        mUploadCount++;
+        mPointCount = pointCount;
     }
 
     public int getPointCount() {
         return mPointCount;
     }
+
+    /** Bytes written to the GPU for the most recent frame. */
+    public int getLastUploadBytes() {
+        return mLastUploadBytes;
+    }
+
+    /**
+     * Time spent in the most recent {@code glBufferSubData} call. This is the
+     * time the GL thread was blocked, not the time of the transfer itself.
+     * Quantizing a packed format happens before the call and is not included.
+     */
+    public float getLastUploadMs() {
+        return mLastUploadMs;
+    }
+
+    /** Total bytes uploaded since the point cloud was created. */
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    /** Number of frames uploaded since the point cloud was created. */
+    public long getUploadCount() {
+        return mUploadCount;
+    }
 }
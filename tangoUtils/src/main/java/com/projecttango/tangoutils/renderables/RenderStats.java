@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.renderables;
+
+/**
+ * Per-frame rendering counters. Renderables add to the counters on the GL
+ * thread between {@link #beginFrame()} and {@link #endFrame()}; the totals of
+ * the last finished frame can be read from any thread.
+ */
+public class RenderStats {
+
+    private int mDrawnChunks;
+    private int mCulledChunks;
+    private int mDrawCalls;
+    private int mStateChanges;
+
+    private volatile int mLastDrawnChunks;
+    private volatile int mLastCulledChunks;
+    private volatile int mLastDrawCalls;
+    private volatile int mLastStateChanges;
+
+    public void beginFrame() {
+        mDrawnChunks = 0;
+        mCulledChunks = 0;
+        mDrawCalls = 0;
+        mStateChanges = 0;
+    }
+
+    /** Publishes the counters of the frame that was just drawn. */
+    public void endFrame() {
+        mLastDrawnChunks = mDrawnChunks;
+        mLastCulledChunks = mCulledChunks;
+        mLastDrawCalls = mDrawCalls;
+        mLastStateChanges = mStateChanges;
+    }
+
+    public void addDrawnChunks(int count) {
+        mDrawnChunks += count;
+    }
+
+    public void addCulledChunks(int count) {
+        mCulledChunks += count;
+    }
+
+    public void addDrawCalls(int count) {
+        mDrawCalls += count;
+    }
+
+    /**
+     * Counts program switches, buffer bindings and fixed-function state such
+     * as line width. Uniform uploads are not counted.
+     */
+    public void addStateChanges(int count) {
+        mStateChanges += count;
+    }
+
+    /** Chunks drawn in the last finished frame. */
+    public int getDrawnChunks() {
+        return mLastDrawnChunks;
+    }
+
+    /** Chunks skipped as off-screen in the last finished frame. */
+    public int getCulledChunks() {
+        return mLastCulledChunks;
+    }
+
+    /** glDraw* calls issued in the last finished frame. */
+    public int getDrawCalls() {
+        return mLastDrawCalls;
+    }
+
+    /** GL state changes made in the last finished frame. */
+    public int getStateChanges() {
+        return mLastStateChanges;
+    }
+}
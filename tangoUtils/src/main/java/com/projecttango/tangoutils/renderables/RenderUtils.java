@@ -16,21 +16,62 @@
 
 package com.projecttango.tangoutils.renderables;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import android.annotation.TargetApi;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.projecttango.tangoutils.metrics.LatencyHistogram;
 
 /**
  * Static functions used by Renderer classes in Tango Java samples.
+ *
+ * Shader programs are obtained through {@link #getProgram}, which links each
+ * distinct pair of shader sources once per EGL context and hands the same
+ * {@link ShaderProgram} to every Renderable using it. When a directory is set
+ * with {@link #setProgramBinaryCache} and the context supports OpenGL ES 3.0,
+ * linked programs are also saved as driver binaries and loaded from there
+ * on the next surface creation, skipping compilation.
+ *
+ * The program functions keep per-context state and must only be called on
+ * the GL thread.
  */
 public class RenderUtils {
 
+    private static final String TAG = RenderUtils.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final HashMap<String, ShaderProgram> sPrograms =
+            new HashMap<String, ShaderProgram>();
+    private static File sBinaryCacheDir;
+    private static LatencyHistogram sProgramLoadTime;
+    // Driver identity mixed into binary file names, read once per context.
+    private static String sDriver;
+    private static boolean sSupportsBinaries;
+
     /**
-     * Creates a vertex or fragment shader.
+     * Creates a vertex or fragment shader. Compilation errors are logged.
      * 
      * @param type
      *            one of GLES20.GL_VERTEX_SHADER or GLES20.GL_FRAGMENT_SHADER
      * @param shaderCode
      *            GLSL code for the shader as a String
-     * @return a compiled shader.
+     * @return a compiled shader, or 0 if it failed to compile.
      */
     public static int loadShader(int type, String shaderCode) {
         // Create a shader of the correct type
@@ -40,7 +81,220 @@ public class RenderUtils {
         GLES20.glShaderSource(shader, shaderCode);
         GLES20.glCompileShader(shader);
 
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            Log.e(TAG, "Could not compile shader: " + GLES20.glGetShaderInfoLog(shader)
+                    + "\n" + shaderCode);
+            GLES20.glDeleteShader(shader);
+            return 0;
+        }
         return shader;
     }
 
+    /**
+     * Returns the program linked from the given shader sources, linking it
+     * on first use in the current context. Link errors are logged and leave
+     * a program with id 0, which draws nothing.
+     */
+    public static ShaderProgram getProgram(String vertexShaderCode,
+            String fragmentShaderCode) {
+        String key = vertexShaderCode + '\0' + fragmentShaderCode;
+        ShaderProgram program = sPrograms.get(key);
+        if (program == null) {
+            program = createProgram(vertexShaderCode, fragmentShaderCode);
+            sPrograms.put(key, program);
+        }
+        return program;
+    }
+
+    /**
+     * Forgets the programs of the previous EGL context. Call from
+     * {@code onSurfaceCreated}, before any Renderable is created: the old
+     * program ids are invalid once the context is lost.
+     */
+    public static void clearProgramCache() {
+        sPrograms.clear();
+        sDriver = null;
+    }
+
+    /**
+     * Sets the directory holding linked program binaries, or null to always
+     * compile from source. Binaries are keyed by shader sources and driver
+     * version, so a driver update simply misses the cache.
+     */
+    public static void setProgramBinaryCache(File directory) {
+        sBinaryCacheDir = directory;
+    }
+
+    /** Sets the histogram receiving the time taken to create each program. */
+    public static void setProgramLoadHistogram(LatencyHistogram histogram) {
+        sProgramLoadTime = histogram;
+    }
+
+    private static ShaderProgram createProgram(String vertexShaderCode,
+            String fragmentShaderCode) {
+        long start = System.nanoTime();
+        File binaryFile = getBinaryFile(vertexShaderCode, fragmentShaderCode);
+        int program = binaryFile != null ? loadProgramBinary(binaryFile) : 0;
+        boolean fromBinary = program != 0;
+        if (!fromBinary) {
+            program = linkProgram(vertexShaderCode, fragmentShaderCode, binaryFile != null);
+            if (program != 0 && binaryFile != null) {
+                saveProgramBinary(program, binaryFile);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        if (sProgramLoadTime != null) {
+            sProgramLoadTime.record(nanos);
+        }
+        Log.i(TAG, "Program " + program + (fromBinary ? " loaded from binary" : " compiled")
+                + " in " + nanos / 1000 + " us");
+        return new ShaderProgram(program, nanos, fromBinary);
+    }
+
+    // The ES 3.0 calls only run when getBinaryFile found binary support.
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static int linkProgram(String vertexShaderCode, String fragmentShaderCode,
+            boolean retrievable) {
+        // Load the vertex and fragment shaders, then link the program
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+        int fragShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+        if (vertexShader == 0 || fragShader == 0) {
+            GLES20.glDeleteShader(vertexShader);
+            GLES20.glDeleteShader(fragShader);
+            return 0;
+        }
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragShader);
+        if (retrievable) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+                    GLES20.GL_TRUE);
+        }
+        GLES20.glLinkProgram(program);
+        // The program keeps the compiled code; the shaders go with it.
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragShader);
+
+        if (!isLinked(program)) {
+            Log.e(TAG, "Could not link program: " + GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private static boolean isLinked(int program) {
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        return status[0] == GLES20.GL_TRUE;
+    }
+
+    /**
+     * Returns the file caching the binary of a program, or null if binaries
+     * are not used.
+     */
+    private static File getBinaryFile(String vertexShaderCode, String fragmentShaderCode) {
+        if (sBinaryCacheDir == null) {
+            return null;
+        }
+        if (sDriver == null) {
+            String version = GLES20.glGetString(GLES20.GL_VERSION);
+            sDriver = GLES20.glGetString(GLES20.GL_RENDERER) + " " + version;
+            // Android 4.3 added the ES 3.0 bindings; the context can still be 2.0.
+            sSupportsBinaries = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                    && version != null && version.startsWith("OpenGL ES 3");
+        }
+        if (!sSupportsBinaries) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(sDriver.getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(vertexShaderCode.getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(fragmentShaderCode.getBytes(UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest.digest()) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(sBinaryCacheDir, name.append(".bin").toString());
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /** Returns a program created from a cached binary, or 0 on a miss. */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static int loadProgramBinary(File file) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        int format;
+        byte[] bytes;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                format = in.readInt();
+                bytes = new byte[(int) file.length() - 4];
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read program binary " + file, e);
+            return 0;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+        binary.put(bytes).position(0);
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, binary, bytes.length);
+        if (!isLinked(program)) {
+            // Typically a driver update; relink from source and overwrite.
+            GLES20.glDeleteProgram(program);
+            file.delete();
+            return 0;
+        }
+        return program;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void saveProgramBinary(int program, File file) {
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        IntBuffer writtenLength = IntBuffer.allocate(1);
+        IntBuffer format = IntBuffer.allocate(1);
+        GLES30.glGetProgramBinary(program, length[0], writtenLength, format, binary);
+        byte[] bytes = new byte[writtenLength.get(0)];
+        binary.position(0);
+        binary.get(bytes);
+        try {
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            // Written aside and renamed, so a partial file is never loaded.
+            File partial = new File(directory, file.getName() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(partial));
+            try {
+                out.writeInt(format.get(0));
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!partial.renameTo(file)) {
+                partial.delete();
+                throw new IOException("Could not rename " + partial);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write program binary " + file, e);
+        }
+    }
 }
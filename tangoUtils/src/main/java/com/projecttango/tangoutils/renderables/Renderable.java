@@ -16,7 +16,8 @@
 
 package com.projecttango.tangoutils.renderables;
 
-import android.opengl.Matrix;
+import com.projecttango.tangoutils.math.Frustum;
+import com.projecttango.tangoutils.math.Matrix4;
 
 /**
  * Base class for all self-drawing OpenGL objects used in Tango Java examples.
@@ -27,6 +28,7 @@ public abstract class Renderable {
     private float[] mModelMatrix = new float[16];
     private float[] mMvMatrix = new float[16];
     private float[] mMvpMatrix = new float[16];
+    private RenderStats mRenderStats;
 
     /**
      * Applies the view and projection matrices and draws the Renderable.
@@ -39,14 +41,29 @@ public abstract class Renderable {
      */
     public abstract void draw(float[] viewMatrix, float[] projectionMatrix);
 
-    public synchronized void updateMvpMatrix(float[] viewMatrix,
+    /**
+     * Draws the Renderable, skipping any parts that lie outside the view
+     * frustum. Renderables made of independent chunks override this to cull
+     * per chunk; by default the whole Renderable is drawn and counted as one
+     * chunk.
+     * 
+     * @param frustum
+     *            the frustum of the view and projection matrices.
+     * @param stats
+     *            counters of the current frame.
+     */
+    public void draw(float[] viewMatrix, float[] projectionMatrix,
+            Frustum frustum, RenderStats stats) {
+        draw(viewMatrix, projectionMatrix);
+        stats.addDrawnChunks(1);
+    }
+
+    public void updateMvpMatrix(float[] viewMatrix,
             float[] projectionMatrix) {
         // Compose the model, view, and projection matrices into a single mvp
         // matrix
-        Matrix.setIdentityM(mMvMatrix, 0);
-        Matrix.setIdentityM(mMvpMatrix, 0);
-        Matrix.multiplyMM(mMvMatrix, 0, viewMatrix, 0, mModelMatrix, 0);
-        Matrix.multiplyMM(mMvpMatrix, 0, projectionMatrix, 0, mMvMatrix, 0);
+        Matrix4.multiply(mMvMatrix, 0, viewMatrix, 0, mModelMatrix, 0);
+        Matrix4.multiply(mMvpMatrix, 0, projectionMatrix, 0, mMvMatrix, 0);
     }
 
     public float[] getModelMatrix() {
@@ -64,4 +81,24 @@ public abstract class Renderable {
     public float[] getMvpMatrix() {
         return mMvpMatrix;
     }
+
+    /**
+     * Sets the counters that every draw of this Renderable adds its draw
+     * calls and state changes to, whichever {@code draw} method is used.
+     */
+    public void setRenderStats(RenderStats renderStats) {
+        mRenderStats = renderStats;
+    }
+
+    protected void recordDrawCalls(int count) {
+        if (mRenderStats != null) {
+            mRenderStats.addDrawCalls(count);
+        }
+    }
+
+    protected void recordStateChanges(int count) {
+        if (mRenderStats != null) {
+            mRenderStats.addStateChanges(count);
+        }
+    }
 }
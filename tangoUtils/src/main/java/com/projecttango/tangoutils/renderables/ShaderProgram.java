@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.renderables;
+
+import java.util.HashMap;
+
+import android.opengl.GLES20;
+
+/**
+ * A linked vertex and fragment shader pair, obtained from
+ * {@link RenderUtils#getProgram}. The same instance is shared by every
+ * Renderable drawn with the same shaders, and attribute and uniform
+ * locations are looked up from the driver only the first time they are
+ * asked for.
+ *
+ * Must only be used on the GL thread of the context it was created in.
+ */
+public class ShaderProgram {
+
+    private final int mProgram;
+    private final long mLoadNanos;
+    private final boolean mIsFromBinary;
+    private final HashMap<String, Integer> mLocations = new HashMap<String, Integer>();
+
+    ShaderProgram(int program, long loadNanos, boolean isFromBinary) {
+        mProgram = program;
+        mLoadNanos = loadNanos;
+        mIsFromBinary = isFromBinary;
+    }
+
+    public int getAttribLocation(String name) {
+        Integer location = mLocations.get(name);
+        if (location == null) {
+            location = GLES20.glGetAttribLocation(mProgram, name);
+            mLocations.put(name, location);
+        }
+        return location;
+    }
+
+    public int getUniformLocation(String name) {
+        // Attributes and uniforms share one namespace in GLSL.
+        Integer location = mLocations.get(name);
+        if (location == null) {
+            location = GLES20.glGetUniformLocation(mProgram, name);
+            mLocations.put(name, location);
+        }
+        return location;
+    }
+
+    /** Makes this the current program. Counts as one state change. */
+    public void use() {
+        GLES20.glUseProgram(mProgram);
+    }
+
+    /** Program id, or 0 if the shaders failed to compile or link. */
+    public int getProgram() {
+        return mProgram;
+    }
+
+    /** Time taken to compile and link, or to load from the binary cache. */
+    public long getLoadNanos() {
+        return mLoadNanos;
+    }
+
+    /** True if the program was loaded from a cached binary. */
+    public boolean isFromBinary() {
+        return mIsFromBinary;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils.renderables;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES20;
+
+/**
+ * Immutable vertex data uploaded once to a {@code GL_STATIC_DRAW} vertex
+ * buffer object. No copy is kept on the Java heap, so drawing only binds the
+ * buffer and points the attributes at it.
+ *
+ * Must be created and used on the GL thread. The buffer belongs to the
+ * current EGL context and is lost with it.
+ */
+public class StaticVertexBuffer {
+
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final int mBuffer;
+    private final int mFloatsPerVertex;
+    private final int mVertexCount;
+
+    /**
+     * @param vertices
+     *            interleaved vertex data.
+     * @param floatsPerVertex
+     *            number of floats of each vertex, over all its attributes.
+     */
+    public StaticVertexBuffer(float[] vertices, int floatsPerVertex) {
+        this(toFloatBuffer(vertices), floatsPerVertex);
+    }
+
+    /**
+     * @param vertices
+     *            interleaved vertex data, read from its position to its
+     *            limit.
+     * @param floatsPerVertex
+     *            number of floats of each vertex, over all its attributes.
+     */
+    public StaticVertexBuffer(FloatBuffer vertices, int floatsPerVertex) {
+        mFloatsPerVertex = floatsPerVertex;
+        mVertexCount = vertices.remaining() / floatsPerVertex;
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        mBuffer = buffers[0];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertexCount * floatsPerVertex
+                * BYTES_PER_FLOAT, vertices, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /** Binds the buffer. Counts as one state change. */
+    public void bind() {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+    }
+
+    public static void unbind() {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Points an attribute at part of each vertex of the bound buffer and
+     * enables it. Attributes the linker optimized away (location -1) are
+     * skipped.
+     * 
+     * @param handle
+     *            location of the attribute.
+     * @param size
+     *            number of floats of the attribute.
+     * @param offset
+     *            index of the attribute's first float within a vertex.
+     */
+    public void setAttribute(int handle, int size, int offset) {
+        if (handle < 0) {
+            return;
+        }
+        GLES20.glVertexAttribPointer(handle, size, GLES20.GL_FLOAT, false,
+                mFloatsPerVertex * BYTES_PER_FLOAT, offset * BYTES_PER_FLOAT);
+        GLES20.glEnableVertexAttribArray(handle);
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    /**
+     * Interleaves two per-vertex attribute arrays into one, for example
+     * positions and colors.
+     */
+    public static float[] interleave(float[] first, int firstSize, float[] second,
+            int secondSize) {
+        int vertexCount = first.length / firstSize;
+        int stride = firstSize + secondSize;
+        float[] vertices = new float[vertexCount * stride];
+        for (int v = 0; v < vertexCount; v++) {
+            System.arraycopy(first, v * firstSize, vertices, v * stride, firstSize);
+            System.arraycopy(second, v * secondSize, vertices, v * stride + firstSize,
+                    secondSize);
+        }
+        return vertices;
+    }
+
+    private static FloatBuffer toFloatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values);
+        buffer.position(0);
+        return buffer;
+    }
+}
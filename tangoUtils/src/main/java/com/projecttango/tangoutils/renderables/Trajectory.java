@@ -21,160 +21,268 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import android.opengl.GLES20;
-import android.opengl.Matrix;
-import android.util.Log;
+
+import com.projecttango.tangoutils.math.Frustum;
+import com.projecttango.tangoutils.math.Matrix4;
+import com.projecttango.tangoutils.pose.TrajectoryPath;
 
 /**
  * {@link Renderable} OpenGL object showing the Trajectory of the Project Tango
  * device in 3D space. Points are added when the trajectory is updated by
  * passing translation data obtained from Tango Pose Data.
+ *
+ * The path is kept in a {@link TrajectoryPath}, which simplifies it and
+ * stores it in chunks of {@link TrajectoryPath#CHUNK_VERTICES}. Each chunk is
+ * backed by its own vertex buffer object, and every frame only the vertices
+ * appended since the previous frame are uploaded. Chunks are culled against
+ * the view frustum, so the cost of a frame does not grow with the length of
+ * the walk.
+ *
+ * {@link #updateTrajectory}, {@link #clearPath} and the setters may be called
+ * from one producer thread while {@link #draw} runs on the GL thread. The last
+ * vertex can be moved while it is being uploaded; it is uploaded again on
+ * every frame, so a torn copy is corrected on the next one.
  */
 public class Trajectory extends Renderable {
 
-    private static final int COORDS_PER_VERTEX = 3;
-    private static final float MIN_DISTANCE_CHECK = 0.025f;
-
-    /** Note: due to resetPath() logic, keep this as a multiple of 9 **/
-    private static final int MAX_VERTICES = 9000;
+    private static final int COORDS_PER_VERTEX = TrajectoryPath.COORDS_PER_VERTEX;
+    private static final int CHUNK_VERTICES = TrajectoryPath.CHUNK_VERTICES;
     private static final int BYTES_PER_FLOAT = 4;
-    private static int mTrajectoryCount = 0;
 
-    private static final String TAG = Trajectory.class.getSimpleName();
-    private String mVertexShaderCode = "uniform mat4 uMVPMatrix;"
+    private static final String sVertexShaderCode = "uniform mat4 uMVPMatrix;"
             + "attribute vec4 vPosition;" + "uniform vec4 aColor;"
             + "varying vec4 vColor;" + "void main() {" + "gl_PointSize = 5.0;"
             + "vColor=aColor;" + "gl_Position = uMVPMatrix * vPosition;" + "}";
-    private String mFragmentShaderCode = "precision mediump float;"
+    private static final String sFragmentShaderCode = "precision mediump float;"
             + "varying vec4 vColor;" + "void main() {"
             + "gl_FragColor = vColor;" + "}";
-    private FloatBuffer mVertexBuffer;
     private float[] mColor = { 0.22f, 0.28f, 0.67f, 1.0f };
-    private final int mProgram;
-    private int mPosHandle;
-    private int mMVPMatrixHandle;
-    private int mColorHandle;
+    private final ShaderProgram mProgram;
+    private final int mPosHandle;
+    private final int mMVPMatrixHandle;
+    private final int mColorHandle;
     private int mLineWidth;
 
+    // Producer side.
+    private final TrajectoryPath mPath = new TrajectoryPath();
+
+    // GL thread side.
+    private int[] mChunkVBOs = new int[0];
+    private float[] mChunkBounds = new float[0];
+    private int mUploadedVertexCount;
+    private int mUploadedGeneration;
+    private final FloatBuffer mUploadBuffer;
+
     public Trajectory(int lineWidth) {
-        mLineWidth = lineWidth;
-        // Reset the model matrix to the identity
-        Matrix.setIdentityM(getModelMatrix(), 0);
-
-        // Allocate a vertex buffer
-        ByteBuffer vertexByteBuffer = ByteBuffer.allocateDirect(MAX_VERTICES
-                * BYTES_PER_FLOAT);
-        vertexByteBuffer.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vertexByteBuffer.asFloatBuffer();
-
-        // Load the vertex and fragment shaders, then link the program
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                mVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                mFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+        this(lineWidth, null);
     }
 
     // float[] color should contain only 4 elements.
     public Trajectory(int lineWidth, float[] color) {
         mLineWidth = lineWidth;
-        mColor = color;
+        if (color != null) {
+            mColor = color;
+        }
         // Reset the model matrix to the identity
-        Matrix.setIdentityM(getModelMatrix(), 0);
-
-        // Allocate a vertex buffer
-        ByteBuffer vertexByteBuffer = ByteBuffer.allocateDirect(MAX_VERTICES
-                * BYTES_PER_FLOAT);
-        vertexByteBuffer.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vertexByteBuffer.asFloatBuffer();
-
-        // Load the vertex and fragment shaders, then link the program
-        int vertexShader = RenderUtils.loadShader(GLES20.GL_VERTEX_SHADER,
-                mVertexShaderCode);
-        int fragShader = RenderUtils.loadShader(GLES20.GL_FRAGMENT_SHADER,
-                mFragmentShaderCode);
-        mProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mProgram, vertexShader);
-        GLES20.glAttachShader(mProgram, fragShader);
-        GLES20.glLinkProgram(mProgram);
+        Matrix4.setIdentity(getModelMatrix(), 0);
+
+        mUploadBuffer = ByteBuffer
+                .allocateDirect(CHUNK_VERTICES * COORDS_PER_VERTEX * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+        mProgram = RenderUtils.getProgram(sVertexShaderCode, sFragmentShaderCode);
+        mPosHandle = mProgram.getAttribLocation("vPosition");
+        mMVPMatrixHandle = mProgram.getUniformLocation("uMVPMatrix");
+        mColorHandle = mProgram.getUniformLocation("aColor");
     }
 
     public void updateTrajectory(float[] translation) {
-        mVertexBuffer.position(mTrajectoryCount * 3);
-        if (((mTrajectoryCount + 1) * 3) >= MAX_VERTICES) {
-            Log.w(TAG, "Clearing float buffer");
-            resetPath();
-        }
-        float dx = 0, dy = 0, dz = 0;
-        try {
-            dx = mVertexBuffer.get(mVertexBuffer.position() - 3)
-                    - translation[0];
-            dy = mVertexBuffer.get(mVertexBuffer.position() - 2)
-                    - translation[2];
-            dz = mVertexBuffer.get(mVertexBuffer.position() - 1)
-                    - (-translation[1]);
-        } catch (IndexOutOfBoundsException e) {
-            mVertexBuffer.put(new float[] { translation[0], translation[2],
-                    -translation[1] });
-            mTrajectoryCount++;
-        }
-        float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
-        if (distance > MIN_DISTANCE_CHECK) {
-            mVertexBuffer.put(new float[] { translation[0], translation[2],
-                    -translation[1] });
-            mTrajectoryCount++;
-        }
+        mPath.add(translation[0], translation[2], -translation[1]);
     }
 
+    /**
+     * The path is no longer bounded, so there is nothing to drop.
+     *
+     * @deprecated the full path is kept; use {@link #clearPath()} to start
+     *             over.
+     */
+    @Deprecated
     public void resetPath() {
-        int currentPosition = mVertexBuffer.position();
-        int pointsToGet = (MAX_VERTICES / 3);
-        mVertexBuffer.position(currentPosition - pointsToGet);
-
-        float[] tail = new float[pointsToGet];
-        mVertexBuffer.get(tail, 0, pointsToGet);
-
-        mVertexBuffer.clear();
-        mVertexBuffer.put(tail);
-
-        mTrajectoryCount = pointsToGet / 3;
     }
 
     public void clearPath() {
-        ByteBuffer vertexByteBuffer = ByteBuffer.allocateDirect(MAX_VERTICES
-                * BYTES_PER_FLOAT);
-        vertexByteBuffer.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vertexByteBuffer.asFloatBuffer();
+        mPath.clear();
     }
 
     @Override
     public void draw(float[] viewMatrix, float[] projectionMatrix) {
-        GLES20.glUseProgram(mProgram);
-        mVertexBuffer.position(0);
-
-        // Compose the model, view, and projection matrices into a single m-v-p
-        // matrix
-        updateMvpMatrix(viewMatrix, projectionMatrix);
-
-        // Load vertex attribute data
-        mPosHandle = GLES20.glGetAttribLocation(mProgram, "vPosition");
-        GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
-                GLES20.GL_FLOAT, false, 0, mVertexBuffer);
-        GLES20.glEnableVertexAttribArray(mPosHandle);
-
-        mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
-
-        mColorHandle = GLES20.glGetUniformLocation(mProgram, "aColor");
-        GLES20.glUniform4f(mColorHandle, mColor[0], mColor[1], mColor[2],
-                mColor[3]);
-        GLES20.glLineWidth(mLineWidth);
-        GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, 0, mTrajectoryCount);
+        draw(viewMatrix, projectionMatrix, null, null);
+    }
+
+    /**
+     * Uploads the newly appended vertices and draws every chunk whose bounds
+     * intersect {@code frustum}. Culling assumes the model matrix is the
+     * identity.
+     */
+    @Override
+    public void draw(float[] viewMatrix, float[] projectionMatrix,
+            Frustum frustum, RenderStats stats) {
+        int count = uploadTail();
+        int chunkCount = (count + CHUNK_VERTICES - 1) / CHUNK_VERTICES;
+        boolean isSetUp = false;
+        int culled = 0;
+        for (int c = 0; c < chunkCount; c++) {
+            int b = c * 6;
+            if (frustum != null
+                    && !frustum.intersectsBox(mChunkBounds[b], mChunkBounds[b + 1],
+                            mChunkBounds[b + 2], mChunkBounds[b + 3],
+                            mChunkBounds[b + 4], mChunkBounds[b + 5])) {
+                culled++;
+                continue;
+            }
+            if (!isSetUp) {
+                mProgram.use();
+                updateMvpMatrix(viewMatrix, projectionMatrix);
+                GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, getMvpMatrix(), 0);
+                GLES20.glUniform4f(mColorHandle, mColor[0], mColor[1], mColor[2],
+                        mColor[3]);
+                GLES20.glLineWidth(mLineWidth);
+                GLES20.glEnableVertexAttribArray(mPosHandle);
+                // Program and line width.
+                recordStateChanges(2);
+                isSetUp = true;
+            }
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mChunkVBOs[c]);
+            GLES20.glVertexAttribPointer(mPosHandle, COORDS_PER_VERTEX,
+                    GLES20.GL_FLOAT, false, 0, 0);
+            GLES20.glDrawArrays(GLES20.GL_LINE_STRIP, 0,
+                    Math.min(count - c * CHUNK_VERTICES, CHUNK_VERTICES));
+            recordStateChanges(1);
+            recordDrawCalls(1);
+        }
+        if (isSetUp) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+        if (stats != null) {
+            stats.addCulledChunks(culled);
+            stats.addDrawnChunks(chunkCount - culled);
+        }
     }
 
     public void setColor(float[] color) {
         mColor = color;
     }
-}
\ No newline at end of file
+
+    /** Number of vertices kept after simplification. */
+    public int getVertexCount() {
+        return mPath.getVertexCount();
+    }
+
+    /** Number of positions passed to {@link #updateTrajectory} since the last clear. */
+    public long getRawPointCount() {
+        return mPath.getRawPointCount();
+    }
+
+    public int getChunkCount() {
+        return mPath.getChunkCount();
+    }
+
+    /**
+     * Uploads the vertices stored since the last frame, plus the last
+     * uploaded one in case it moved. Must be called on the GL thread.
+     *
+     * @return the number of stored vertices now on the GPU.
+     */
+    private int uploadTail() {
+        int generation = mPath.getGeneration();
+        if (generation != mUploadedGeneration) {
+            mUploadedGeneration = generation;
+            mUploadedVertexCount = 0;
+        }
+        // Read the count before the directory: the directory is published
+        // first, so it covers every counted vertex.
+        int count = mPath.getStoredVertexCount();
+        float[][] chunks = mPath.getChunks();
+        int chunkCount = (count + CHUNK_VERTICES - 1) / CHUNK_VERTICES;
+        ensureChunkBuffers(chunkCount);
+
+        int start = Math.max(0, Math.min(mUploadedVertexCount, count) - 1);
+        while (start < count) {
+            int c = start / CHUNK_VERTICES;
+            if (c >= chunks.length || chunks[c] == null) {
+                // The path was cleared after the count was read.
+                count = start;
+                break;
+            }
+            int offset = start % CHUNK_VERTICES;
+            int end = Math.min(count, (c + 1) * CHUNK_VERTICES);
+            int floats = (end - start) * COORDS_PER_VERTEX;
+            float[] chunk = chunks[c];
+            int b = c * 6;
+            if (offset == 0) {
+                resetBounds(b);
+            }
+            for (int i = offset * COORDS_PER_VERTEX; i < offset * COORDS_PER_VERTEX + floats;
+                    i += COORDS_PER_VERTEX) {
+                extendBounds(b, chunk[i], chunk[i + 1], chunk[i + 2]);
+            }
+            mUploadBuffer.clear();
+            mUploadBuffer.put(chunk, offset * COORDS_PER_VERTEX, floats);
+            mUploadBuffer.position(0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mChunkVBOs[c]);
+            recordStateChanges(1);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, offset * COORDS_PER_VERTEX
+                    * BYTES_PER_FLOAT, floats * BYTES_PER_FLOAT, mUploadBuffer);
+            start = end;
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        if (mPath.getGeneration() != generation) {
+            // Cleared while uploading: what was uploaded may mix both paths,
+            // so start over on the next frame.
+            mUploadedGeneration = -1;
+            mUploadedVertexCount = 0;
+            return 0;
+        }
+        mUploadedVertexCount = count;
+        return count;
+    }
+
+    private void ensureChunkBuffers(int chunkCount) {
+        int existing = mChunkVBOs.length;
+        if (chunkCount <= existing) {
+            return;
+        }
+        int[] vbos = new int[Math.max(chunkCount, existing * 2)];
+        System.arraycopy(mChunkVBOs, 0, vbos, 0, existing);
+        GLES20.glGenBuffers(vbos.length - existing, vbos, existing);
+        for (int c = existing; c < vbos.length; c++) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbos[c]);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, CHUNK_VERTICES
+                    * COORDS_PER_VERTEX * BYTES_PER_FLOAT, null, GLES20.GL_DYNAMIC_DRAW);
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mChunkVBOs = vbos;
+        float[] bounds = new float[vbos.length * 6];
+        System.arraycopy(mChunkBounds, 0, bounds, 0, mChunkBounds.length);
+        mChunkBounds = bounds;
+    }
+
+    private void resetBounds(int b) {
+        mChunkBounds[b] = Float.POSITIVE_INFINITY;
+        mChunkBounds[b + 1] = Float.POSITIVE_INFINITY;
+        mChunkBounds[b + 2] = Float.POSITIVE_INFINITY;
+        mChunkBounds[b + 3] = Float.NEGATIVE_INFINITY;
+        mChunkBounds[b + 4] = Float.NEGATIVE_INFINITY;
+        mChunkBounds[b + 5] = Float.NEGATIVE_INFINITY;
+    }
+
+    private void extendBounds(int b, float x, float y, float z) {
+        float[] bounds = mChunkBounds;
+        bounds[b] = Math.min(bounds[b], x);
+        bounds[b + 1] = Math.min(bounds[b + 1], y);
+        bounds[b + 2] = Math.min(bounds[b + 2], z);
+        bounds[b + 3] = Math.max(bounds[b + 3], x);
+        bounds[b + 4] = Math.max(bounds[b + 4], y);
+        bounds[b + 5] = Math.max(bounds[b + 5], z);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.session;
+
+/**
+ * Layout of a session file, written by {@link SessionRecorder} and read by
+ * {@link SessionReplay}. Multi-byte values are big-endian.
+ *
+ * <pre>
+ * header     "TSES", version u8 (1), 3 reserved bytes
+ * chunk*     magic u32 ("CHNK"), payload length u32, record count u32,
+ *            first and last timestamp float64, CRC-32 of the payload u32,
+ *            payload: records
+ * index      magic u32 ("TIDX"), chunk count u32,
+ *            chunk count x { offset u64, first and last timestamp float64,
+ *                            record count u32 },
+ *            extrinsics length u32, extrinsics: records
+ * footer     index offset u64, magic u32 ("TEND")
+ *
+ * record     type u8, payload length u32, payload
+ * POSE       timestamp float64, base frame u32, target frame u32,
+ *            translation 3 x float64, rotation 4 x float64, status u32
+ * EXTRINSICS base frame u32, target frame u32, translation 3 x float64,
+ *            rotation 4 x float64
+ * XYZIJ      timestamp float64, ij rows u32, ij cols u32, ij length u32,
+ *            ij length x u32, point count u32, points 3 x float32 each
+ * XYZIJ_CODED  as XYZIJ up to the ij data, then a
+ *            {@link com.projecttango.tangoutils.telemetry.DepthFrameCodec}
+ *            frame up to the end of the record
+ * </pre>
+ *
+ * Extrinsics are written both in line, as records without a timestamp, and
+ * in the index. The index and footer are written when the recording is
+ * closed. A file without them, such as one cut short by a crash, is read by
+ * scanning its chunks up to the first incomplete or corrupt one.
+ */
+final class SessionFormat {
+
+    static final int FILE_MAGIC = 0x54534553;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int CHUNK_MAGIC = 0x43484e4b;
+    static final int CHUNK_HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+    static final int INDEX_MAGIC = 0x54494458;
+    static final int INDEX_ENTRY_SIZE = 8 + 8 + 8 + 4;
+    static final int FOOTER_MAGIC = 0x54454e44;
+    static final int FOOTER_SIZE = 8 + 4;
+
+    static final int RECORD_HEADER_SIZE = 1 + 4;
+    static final int TYPE_POSE = 1;
+    static final int TYPE_EXTRINSICS = 2;
+    static final int TYPE_XYZIJ = 3;
+    static final int TYPE_XYZIJ_CODED = 4;
+    static final int POSE_SIZE = 8 + 3 * 4 + 7 * 8;
+    static final int EXTRINSICS_SIZE = 2 * 4 + 7 * 8;
+
+    private SessionFormat() {
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.session;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Receives the streams of a Tango session: the same data as
+ * {@code OnTangoUpdateListener} delivers, in plain Java types so that
+ * recorded sessions can be replayed on a machine without the Tango service
+ * or Android.
+ *
+ * Buffers and arrays passed to a listener are only valid during the call;
+ * copy anything that must be kept.
+ */
+public interface SessionListener {
+
+    /**
+     * A pose of {@code targetFrame} relative to {@code baseFrame}, as in
+     * {@code onPoseAvailable}.
+     *
+     * @param translation
+     *            x, y, z in meters.
+     * @param rotation
+     *            quaternion x, y, z, w.
+     */
+    void onPose(double timestamp, int baseFrame, int targetFrame, int statusCode,
+            double[] translation, double[] rotation);
+
+    /**
+     * A depth frame, as in {@code onXyzIjAvailable}.
+     *
+     * @param xyz
+     *            {@code xyzCount} points as x, y, z triples, read from
+     *            index 0.
+     * @param ij
+     *            {@code ijRows * ijCols} point indices of the depth image, or
+     *            null if the frame had none.
+     */
+    void onXyzIj(double timestamp, FloatBuffer xyz, int xyzCount, int ijRows, int ijCols,
+            IntBuffer ij);
+
+    /**
+     * A fixed transform between device frames, such as the IMU to the depth
+     * camera. Replays deliver every extrinsic of the session before the first
+     * pose or depth frame.
+     */
+    void onExtrinsics(int baseFrame, int targetFrame, double[] translation,
+            double[] rotation);
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.projecttango.tangoutils.telemetry.DepthFrameCodec;
+
+/**
+ * Records a Tango session to a file that {@link SessionReplay} can play back.
+ * Feed it from the Tango callbacks; it implements {@link SessionListener} so
+ * it can also record a replayed or generated session.
+ *
+ * Records are appended to an in-memory chunk under a lock, and full chunks
+ * are written by a background thread, so callbacks never wait for the disk.
+ * At most {@link #MAX_PENDING_CHUNKS} chunks wait to be written; if the disk
+ * falls further behind, records are dropped and counted rather than
+ * blocking the callbacks. See {@link SessionFormat} for the file layout.
+ */
+public class SessionRecorder implements SessionListener {
+
+    /** Chunk size used by {@link #SessionRecorder(File)}. */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_PENDING_CHUNKS = 4;
+
+    private final RandomAccessFile mFile;
+    private final int mChunkSize;
+    private final DepthFrameCodec mDepthCodec;
+    private final int mMaxDepthPoints;
+    private final byte[] mDepthScratch;
+    private final ArrayBlockingQueue<ByteBuffer> mFreeChunks;
+    private final ExecutorService mWriter;
+
+    // Chunk being filled; guarded by this.
+    private ByteBuffer mChunk;
+    private int mChunkRecords;
+    private double mChunkFirstTimestamp;
+    private double mChunkLastTimestamp;
+    private final ByteBuffer mExtrinsics = ByteBuffer.allocate(64 * 1024);
+    private boolean mIsClosed;
+
+    // Owned by the writer thread.
+    private long mWriteOffset = SessionFormat.HEADER_SIZE;
+    private final ArrayList<long[]> mIndex = new ArrayList<long[]>();
+    private final CRC32 mCrc = new CRC32();
+
+    private volatile long mRecordCount;
+    private volatile long mDroppedRecordCount;
+    private volatile long mBytesWritten;
+    private volatile IOException mLastError;
+
+    /**
+     * Records depth frames losslessly in chunks of
+     * {@link #DEFAULT_CHUNK_SIZE}.
+     */
+    public SessionRecorder(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_SIZE, 0, 0);
+    }
+
+    /**
+     * @param file
+     *            file to create, replacing any existing one.
+     * @param chunkSize
+     *            payload bytes per chunk, the granularity of seeking.
+     * @param depthPrecision
+     *            grid step in meters to compress depth frames with a
+     *            {@link DepthFrameCodec}, or 0 to store them as floats.
+     * @param maxDepthPoints
+     *            largest depth frame to compress; larger frames are stored
+     *            as floats.
+     */
+    public SessionRecorder(File file, int chunkSize, float depthPrecision, int maxDepthPoints)
+            throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mFile.writeInt(SessionFormat.FILE_MAGIC);
+        mFile.writeInt(SessionFormat.VERSION << 24);
+        mChunkSize = chunkSize;
+        mMaxDepthPoints = maxDepthPoints;
+        if (depthPrecision > 0) {
+            mDepthCodec = new DepthFrameCodec(maxDepthPoints, depthPrecision, false);
+            mDepthScratch = new byte[DepthFrameCodec.maxEncodedSize(maxDepthPoints)];
+        } else {
+            mDepthCodec = null;
+            mDepthScratch = null;
+        }
+        mFreeChunks = new ArrayBlockingQueue<ByteBuffer>(MAX_PENDING_CHUNKS);
+        for (int i = 0; i < MAX_PENDING_CHUNKS; i++) {
+            mFreeChunks.add(ByteBuffer.allocate(chunkSize));
+        }
+        mChunk = mFreeChunks.poll();
+        mChunkFirstTimestamp = Double.NaN;
+        mChunkLastTimestamp = Double.NEGATIVE_INFINITY;
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, SessionRecorder.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public synchronized void onPose(double timestamp, int baseFrame, int targetFrame,
+            int statusCode, double[] translation, double[] rotation) {
+        ByteBuffer chunk = beginRecord(timestamp, SessionFormat.TYPE_POSE,
+                SessionFormat.POSE_SIZE);
+        if (chunk == null) {
+            return;
+        }
+        mRecordCount++;
+        chunk.putDouble(timestamp);
+        putTransform(chunk, baseFrame, targetFrame, translation, rotation);
+        chunk.putInt(statusCode);
+    }
+
+    @Override
+    public synchronized void onXyzIj(double timestamp, FloatBuffer xyz, int xyzCount,
+            int ijRows, int ijCols, IntBuffer ij) {
+        int ijLength = ij != null ? ijRows * ijCols : 0;
+        int depthSize = 0;
+        if (mDepthCodec != null && xyzCount <= mMaxDepthPoints) {
+            try {
+                depthSize = mDepthCodec.encode(timestamp, xyz, xyzCount, mDepthScratch, 0);
+            } catch (IllegalArgumentException e) {
+                // Points too far apart for the grid; store this frame raw.
+            }
+        }
+        boolean isCoded = depthSize > 0;
+        if (!isCoded) {
+            depthSize = 4 + xyzCount * 3 * 4;
+        }
+        ByteBuffer chunk = beginRecord(timestamp, isCoded ? SessionFormat.TYPE_XYZIJ_CODED
+                : SessionFormat.TYPE_XYZIJ, 8 + 3 * 4 + ijLength * 4 + depthSize);
+        if (chunk == null) {
+            return;
+        }
+        mRecordCount++;
+        chunk.putDouble(timestamp);
+        chunk.putInt(ijRows);
+        chunk.putInt(ijCols);
+        chunk.putInt(ijLength);
+        for (int i = 0; i < ijLength; i++) {
+            chunk.putInt(ij.get(i));
+        }
+        if (isCoded) {
+            chunk.put(mDepthScratch, 0, depthSize);
+        } else {
+            chunk.putInt(xyzCount);
+            FloatBuffer points = xyz.duplicate();
+            points.position(0);
+            points.limit(xyzCount * 3);
+            chunk.asFloatBuffer().put(points);
+            chunk.position(chunk.position() + xyzCount * 3 * 4);
+        }
+    }
+
+    /**
+     * Records a fixed transform. Extrinsics are also kept in the index, so a
+     * replay starting anywhere in the session receives them first.
+     */
+    @Override
+    public synchronized void onExtrinsics(int baseFrame, int targetFrame,
+            double[] translation, double[] rotation) {
+        if (mIsClosed || mExtrinsics.remaining() < SessionFormat.RECORD_HEADER_SIZE
+                + SessionFormat.EXTRINSICS_SIZE) {
+            mDroppedRecordCount++;
+            return;
+        }
+        mExtrinsics.put((byte) SessionFormat.TYPE_EXTRINSICS);
+        mExtrinsics.putInt(SessionFormat.EXTRINSICS_SIZE);
+        putTransform(mExtrinsics, baseFrame, targetFrame, translation, rotation);
+        // Also written in line, so a recording that was never closed keeps them.
+        ByteBuffer chunk = beginRecord(Double.NaN, SessionFormat.TYPE_EXTRINSICS,
+                SessionFormat.EXTRINSICS_SIZE);
+        if (chunk != null) {
+            putTransform(chunk, baseFrame, targetFrame, translation, rotation);
+        }
+        mRecordCount++;
+    }
+
+    /**
+     * Writes the pending records and the index, and closes the file. Further
+     * records are ignored.
+     *
+     * @throws IOException
+     *             if any write of the recording failed.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mIsClosed) {
+                return;
+            }
+            mIsClosed = true;
+            submitChunk();
+            final byte[] extrinsics = new byte[mExtrinsics.position()];
+            mExtrinsics.flip();
+            mExtrinsics.get(extrinsics);
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeIndex(extrinsics);
+                }
+            });
+        }
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mFile.close();
+        if (mLastError != null) {
+            throw mLastError;
+        }
+    }
+
+    /** Number of records accepted, written or still pending. */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Number of records dropped because the disk could not keep up. */
+    public long getDroppedRecordCount() {
+        return mDroppedRecordCount;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** The last write error, or null. Records are dropped after an error. */
+    public IOException getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Makes room for a record in the current chunk and writes its header.
+     *
+     * @return the chunk to write the payload to, or null if the record is
+     *         dropped.
+     */
+    private ByteBuffer beginRecord(double timestamp, int type, int size) {
+        int recordSize = SessionFormat.RECORD_HEADER_SIZE + size;
+        if (mIsClosed || mLastError != null) {
+            mDroppedRecordCount++;
+            return null;
+        }
+        if (mChunk != null && mChunkRecords > 0 && mChunk.remaining() < recordSize) {
+            submitChunk();
+        }
+        if (mChunk == null) {
+            mChunk = mFreeChunks.poll();
+            if (mChunk == null) {
+                mDroppedRecordCount++;
+                return null;
+            }
+        }
+        if (mChunk.remaining() < recordSize) {
+            // A record larger than a chunk gets a chunk of its own.
+            mFreeChunks.offer(mChunk);
+            mChunk = ByteBuffer.allocate(recordSize);
+        }
+        // Records without a timestamp (NaN) do not affect the chunk's range.
+        if (Double.isNaN(mChunkFirstTimestamp)) {
+            mChunkFirstTimestamp = timestamp;
+        }
+        if (timestamp > mChunkLastTimestamp) {
+            mChunkLastTimestamp = timestamp;
+        }
+        mChunkRecords++;
+        mChunk.put((byte) type);
+        mChunk.putInt(size);
+        return mChunk;
+    }
+
+    /** Hands the current chunk to the writer thread. */
+    private void submitChunk() {
+        if (mChunk == null || mChunkRecords == 0) {
+            return;
+        }
+        final ByteBuffer chunk = mChunk;
+        final int records = mChunkRecords;
+        final double first = mChunkFirstTimestamp;
+        final double last = mChunkLastTimestamp;
+        mChunk = mFreeChunks.poll();
+        mChunkRecords = 0;
+        mChunkFirstTimestamp = Double.NaN;
+        mChunkLastTimestamp = Double.NEGATIVE_INFINITY;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeChunk(chunk, records, first, last);
+            }
+        });
+    }
+
+    private void writeChunk(ByteBuffer chunk, int records, double first, double last) {
+        try {
+            if (mLastError != null) {
+                return;
+            }
+            int length = chunk.position();
+            mCrc.reset();
+            mCrc.update(chunk.array(), 0, length);
+            ByteBuffer header = ByteBuffer.allocate(SessionFormat.CHUNK_HEADER_SIZE);
+            header.putInt(SessionFormat.CHUNK_MAGIC);
+            header.putInt(length);
+            header.putInt(records);
+            header.putDouble(first);
+            header.putDouble(last);
+            header.putInt((int) mCrc.getValue());
+            mFile.seek(mWriteOffset);
+            mFile.write(header.array());
+            mFile.write(chunk.array(), 0, length);
+            mIndex.add(new long[] { mWriteOffset, Double.doubleToLongBits(first),
+                    Double.doubleToLongBits(last), records });
+            mWriteOffset += SessionFormat.CHUNK_HEADER_SIZE + length;
+            mBytesWritten = mWriteOffset;
+        } catch (IOException e) {
+            mLastError = e;
+        } finally {
+            chunk.clear();
+            if (chunk.capacity() == mChunkSize) {
+                mFreeChunks.offer(chunk);
+            }
+        }
+    }
+
+    private void writeIndex(byte[] extrinsics) {
+        if (mLastError != null) {
+            return;
+        }
+        ByteBuffer index = ByteBuffer.allocate(4 + 4 + mIndex.size()
+                * SessionFormat.INDEX_ENTRY_SIZE + 4 + extrinsics.length
+                + SessionFormat.FOOTER_SIZE);
+        index.putInt(SessionFormat.INDEX_MAGIC);
+        index.putInt(mIndex.size());
+        for (long[] entry : mIndex) {
+            index.putLong(entry[0]);
+            index.putLong(entry[1]);
+            index.putLong(entry[2]);
+            index.putInt((int) entry[3]);
+        }
+        index.putInt(extrinsics.length);
+        index.put(extrinsics);
+        index.putLong(mWriteOffset);
+        index.putInt(SessionFormat.FOOTER_MAGIC);
+        try {
+            mFile.seek(mWriteOffset);
+            mFile.write(index.array());
+            mBytesWritten = mWriteOffset + index.capacity();
+        } catch (IOException e) {
+            mLastError = e;
+        }
+    }
+
+    private static void putTransform(ByteBuffer out, int baseFrame, int targetFrame,
+            double[] translation, double[] rotation) {
+        out.putInt(baseFrame);
+        out.putInt(targetFrame);
+        for (int i = 0; i < 3; i++) {
+            out.putDouble(translation[i]);
+        }
+        for (int i = 0; i < 4; i++) {
+            out.putDouble(rotation[i]);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.session;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import com.projecttango.tangoutils.telemetry.DepthFrameCodec;
+
+/**
+ * Plays back a session written by {@link SessionRecorder}, calling a
+ * {@link SessionListener} as the Tango callbacks would have been called, so
+ * the pipeline behind them can be exercised and profiled without a device.
+ *
+ * Records are delivered on the thread calling {@link #play}, in the order they
+ * were recorded, either at a multiple of their recorded pace or as fast as
+ * possible. The depth buffer passed to
+ * {@link SessionListener#onXyzIj} is direct and reused for every frame, like
+ * the one in Tango's callbacks.
+ *
+ * A file whose recording was not closed has no index; it is scanned instead,
+ * and playback stops at the first incomplete or corrupt chunk.
+ */
+public class SessionReplay {
+
+    private static final int INITIAL_DEPTH_POINTS = 16 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final long[] mChunkOffsets;
+    private final double[] mChunkFirstTimestamps;
+    private final double[] mChunkLastTimestamps;
+    private final byte[] mExtrinsics;
+    private final boolean mIsRecovered;
+    private final CRC32 mCrc = new CRC32();
+
+    private double mSeekTimestamp = Double.NEGATIVE_INFINITY;
+    private volatile boolean mIsStopped;
+    private double mSpeed;
+    private long mPaceNanos;
+    private double mPaceTimestamp;
+
+    private byte[] mPayload = new byte[0];
+    private final byte[] mChunkHeader = new byte[SessionFormat.CHUNK_HEADER_SIZE];
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+    private float[] mPoints = new float[INITIAL_DEPTH_POINTS * 3];
+    private FloatBuffer mXyz;
+    private IntBuffer mIj;
+    private DepthFrameCodec mDepthCodec;
+    private int mDepthCodecPoints;
+
+    /**
+     * Opens a session and reads its index, or scans its chunks if it has
+     * none.
+     *
+     * @throws IOException
+     *             if the file cannot be read or is not a session.
+     */
+    public SessionReplay(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        ArrayList<long[]> chunks = new ArrayList<long[]>();
+        ByteBuffer extrinsics = ByteBuffer.allocate(0);
+        boolean isRecovered;
+        try {
+            if (mFile.length() < SessionFormat.HEADER_SIZE
+                    || mFile.readInt() != SessionFormat.FILE_MAGIC) {
+                throw new IOException(file + " is not a session");
+            }
+            int version = mFile.readInt() >>> 24;
+            if (version != SessionFormat.VERSION) {
+                throw new IOException("Unsupported session version " + version);
+            }
+            extrinsics = readIndex(chunks);
+            isRecovered = extrinsics == null;
+            if (isRecovered) {
+                chunks.clear();
+                extrinsics = scanChunks(chunks);
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mIsRecovered = isRecovered;
+        mExtrinsics = new byte[extrinsics.position()];
+        extrinsics.flip();
+        extrinsics.get(mExtrinsics);
+        int count = chunks.size();
+        mChunkOffsets = new long[count];
+        mChunkFirstTimestamps = new double[count];
+        mChunkLastTimestamps = new double[count];
+        for (int i = 0; i < count; i++) {
+            long[] chunk = chunks.get(i);
+            mChunkOffsets[i] = chunk[0];
+            mChunkFirstTimestamps[i] = Double.longBitsToDouble(chunk[1]);
+            mChunkLastTimestamps[i] = Double.longBitsToDouble(chunk[2]);
+        }
+    }
+
+    /** True if the file had no index and was read by scanning its chunks. */
+    public boolean isRecovered() {
+        return mIsRecovered;
+    }
+
+    public int getChunkCount() {
+        return mChunkOffsets.length;
+    }
+
+    /** Timestamp of the first record, or NaN for an empty session. */
+    public double getStartTimestamp() {
+        for (double timestamp : mChunkFirstTimestamps) {
+            if (!Double.isNaN(timestamp)) {
+                return timestamp;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /** Timestamp of the last record, or NaN for an empty session. */
+    public double getEndTimestamp() {
+        double end = Double.NEGATIVE_INFINITY;
+        for (double timestamp : mChunkLastTimestamps) {
+            end = Math.max(end, timestamp);
+        }
+        return end == Double.NEGATIVE_INFINITY ? Double.NaN : end;
+    }
+
+    /**
+     * Makes the next {@link #play} skip records older than {@code timestamp}.
+     * Only the chunks that may hold newer records are read.
+     */
+    public void seek(double timestamp) {
+        mSeekTimestamp = timestamp;
+    }
+
+    /** Makes a running {@link #play} return after the current record. */
+    public void stop() {
+        mIsStopped = true;
+    }
+
+    /**
+     * Delivers the session's extrinsics, then its records from the seek
+     * position to the end.
+     *
+     * @param speed
+     *            playback speed relative to the recording, or 0 to deliver
+     *            records as fast as the listener takes them.
+     * @return the number of records delivered.
+     * @throws IOException
+     *             if a chunk cannot be read or fails its checksum.
+     */
+    public long play(SessionListener listener, double speed) throws IOException {
+        mIsStopped = false;
+        long delivered = deliverRecords(ByteBuffer.wrap(mExtrinsics), listener,
+                Double.NEGATIVE_INFINITY, true);
+        mSpeed = speed;
+        mPaceTimestamp = Double.NaN;
+        for (int i = firstChunkAfter(mSeekTimestamp); i < mChunkOffsets.length
+                && !mIsStopped; i++) {
+            ByteBuffer payload = readChunk(mChunkOffsets[i]);
+            if (payload == null) {
+                throw new IOException("Corrupt chunk at " + mChunkOffsets[i]);
+            }
+            delivered += deliverRecords(payload, listener, mSeekTimestamp, false);
+        }
+        return delivered;
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private int firstChunkAfter(double timestamp) {
+        for (int i = 0; i < mChunkLastTimestamps.length; i++) {
+            if (mChunkLastTimestamps[i] >= timestamp) {
+                return i;
+            }
+        }
+        return mChunkLastTimestamps.length;
+    }
+
+    /**
+     * Calls the listener for the records in {@code payload}.
+     *
+     * @param isExtrinsicsOnly
+     *            true to deliver only extrinsics, false to deliver everything
+     *            else; extrinsics are always delivered up front.
+     */
+    private long deliverRecords(ByteBuffer payload, SessionListener listener,
+            double fromTimestamp, boolean isExtrinsicsOnly) {
+        long delivered = 0;
+        while (payload.remaining() >= SessionFormat.RECORD_HEADER_SIZE && !mIsStopped) {
+            int type = payload.get() & 0xff;
+            int length = payload.getInt();
+            int end = payload.position() + length;
+            if (length < 0 || end > payload.limit()) {
+                break;
+            }
+            if ((type == SessionFormat.TYPE_EXTRINSICS) != isExtrinsicsOnly) {
+                payload.position(end);
+                continue;
+            }
+            if (type == SessionFormat.TYPE_EXTRINSICS) {
+                int baseFrame = payload.getInt();
+                int targetFrame = payload.getInt();
+                getTransform(payload);
+                listener.onExtrinsics(baseFrame, targetFrame, mTranslation, mRotation);
+                delivered++;
+                payload.position(end);
+                continue;
+            }
+            double timestamp = payload.getDouble();
+            if (timestamp < fromTimestamp) {
+                payload.position(end);
+                continue;
+            }
+            if (mSpeed > 0) {
+                waitUntil(timestamp);
+            }
+            switch (type) {
+            case SessionFormat.TYPE_POSE:
+                int baseFrame = payload.getInt();
+                int targetFrame = payload.getInt();
+                getTransform(payload);
+                int statusCode = payload.getInt();
+                listener.onPose(timestamp, baseFrame, targetFrame, statusCode,
+                        mTranslation, mRotation);
+                delivered++;
+                break;
+            case SessionFormat.TYPE_XYZIJ:
+            case SessionFormat.TYPE_XYZIJ_CODED:
+                int ijRows = payload.getInt();
+                int ijCols = payload.getInt();
+                IntBuffer ij = getIj(payload, payload.getInt());
+                int count;
+                if (type == SessionFormat.TYPE_XYZIJ) {
+                    count = payload.getInt();
+                    ensureDepthCapacity(count);
+                    payload.asFloatBuffer().get(mPoints, 0, count * 3);
+                } else {
+                    count = decodeDepth(payload.array(), payload.position(),
+                            end - payload.position());
+                }
+                mXyz.clear();
+                mXyz.put(mPoints, 0, count * 3);
+                mXyz.flip();
+                listener.onXyzIj(timestamp, mXyz, count, ijRows, ijCols, ij);
+                delivered++;
+                break;
+            default:
+                // Unknown record types from newer recorders are skipped.
+                break;
+            }
+            payload.position(end);
+        }
+        return delivered;
+    }
+
+    /** Waits until a record is due, timed from the first record played. */
+    private void waitUntil(double timestamp) {
+        if (Double.isNaN(mPaceTimestamp)) {
+            mPaceNanos = System.nanoTime();
+            mPaceTimestamp = timestamp;
+            return;
+        }
+        long target = mPaceNanos + (long) ((timestamp - mPaceTimestamp) / mSpeed * 1e9);
+        long remaining;
+        while ((remaining = target - System.nanoTime()) > 0 && !mIsStopped) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private IntBuffer getIj(ByteBuffer payload, int length) {
+        if (length == 0) {
+            return null;
+        }
+        if (mIj == null || mIj.capacity() < length) {
+            mIj = IntBuffer.allocate(length);
+        }
+        mIj.clear();
+        for (int i = 0; i < length; i++) {
+            mIj.put(payload.getInt());
+        }
+        mIj.flip();
+        return mIj;
+    }
+
+    private int decodeDepth(byte[] in, int offset, int length) {
+        int count = DepthFrameCodec.readCount(in, offset, length);
+        ensureDepthCapacity(count);
+        if (mDepthCodecPoints < count) {
+            // Frames carry their own precision; the codec only sizes buffers.
+            mDepthCodecPoints = Math.max(count, INITIAL_DEPTH_POINTS);
+            mDepthCodec = new DepthFrameCodec(mDepthCodecPoints,
+                    DepthFrameCodec.DEFAULT_PRECISION, true);
+        }
+        return mDepthCodec.decode(in, offset, length, mPoints);
+    }
+
+    private void ensureDepthCapacity(int count) {
+        if (mPoints.length < count * 3) {
+            mPoints = new float[count * 3];
+        }
+        if (mXyz == null || mXyz.capacity() < mPoints.length) {
+            mXyz = ByteBuffer.allocateDirect(mPoints.length * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    private void getTransform(ByteBuffer payload) {
+        for (int i = 0; i < 3; i++) {
+            mTranslation[i] = payload.getDouble();
+        }
+        for (int i = 0; i < 4; i++) {
+            mRotation[i] = payload.getDouble();
+        }
+    }
+
+    /**
+     * Reads the index from the end of the file.
+     *
+     * @return the extrinsics records, or null if there is no valid index.
+     */
+    private ByteBuffer readIndex(ArrayList<long[]> chunks) throws IOException {
+        long length = mFile.length();
+        if (length < SessionFormat.HEADER_SIZE + SessionFormat.FOOTER_SIZE) {
+            return null;
+        }
+        mFile.seek(length - SessionFormat.FOOTER_SIZE);
+        long indexOffset = mFile.readLong();
+        if (mFile.readInt() != SessionFormat.FOOTER_MAGIC
+                || indexOffset < SessionFormat.HEADER_SIZE
+                || indexOffset > length - SessionFormat.FOOTER_SIZE - 12) {
+            return null;
+        }
+        byte[] index = new byte[(int) (length - SessionFormat.FOOTER_SIZE - indexOffset)];
+        mFile.seek(indexOffset);
+        mFile.readFully(index);
+        ByteBuffer in = ByteBuffer.wrap(index);
+        if (in.getInt() != SessionFormat.INDEX_MAGIC) {
+            return null;
+        }
+        int count = in.getInt();
+        if (count < 0 || (long) count * SessionFormat.INDEX_ENTRY_SIZE + 4 > in.remaining()) {
+            return null;
+        }
+        for (int i = 0; i < count; i++) {
+            chunks.add(new long[] { in.getLong(), in.getLong(), in.getLong(), in.getInt() });
+        }
+        int extrinsicsLength = in.getInt();
+        if (extrinsicsLength != in.remaining()) {
+            return null;
+        }
+        ByteBuffer extrinsics = ByteBuffer.allocate(extrinsicsLength);
+        extrinsics.put(in);
+        return extrinsics;
+    }
+
+    /**
+     * Finds the chunks by reading them in turn, collecting the extrinsics
+     * written in line.
+     *
+     * @return the extrinsics records.
+     */
+    private ByteBuffer scanChunks(ArrayList<long[]> chunks) throws IOException {
+        ByteBuffer extrinsics = ByteBuffer.allocate(0);
+        long offset = SessionFormat.HEADER_SIZE;
+        ByteBuffer payload;
+        while ((payload = readChunk(offset)) != null) {
+            ByteBuffer header = ByteBuffer.wrap(mChunkHeader);
+            chunks.add(new long[] { offset, header.getLong(12), header.getLong(20),
+                    header.getInt(8) });
+            while (payload.remaining() >= SessionFormat.RECORD_HEADER_SIZE) {
+                int type = payload.get() & 0xff;
+                int length = payload.getInt();
+                int start = payload.position() - SessionFormat.RECORD_HEADER_SIZE;
+                if (length < 0 || length > payload.remaining()) {
+                    break;
+                }
+                payload.position(payload.position() + length);
+                if (type == SessionFormat.TYPE_EXTRINSICS) {
+                    int size = SessionFormat.RECORD_HEADER_SIZE + length;
+                    if (extrinsics.remaining() < size) {
+                        ByteBuffer grown = ByteBuffer.allocate(extrinsics.capacity() * 2 + size);
+                        extrinsics.flip();
+                        grown.put(extrinsics);
+                        extrinsics = grown;
+                    }
+                    extrinsics.put(payload.array(), start, size);
+                }
+            }
+            offset += SessionFormat.CHUNK_HEADER_SIZE + payload.limit();
+        }
+        return extrinsics;
+    }
+
+    /**
+     * Reads and checks the chunk at {@code offset}.
+     *
+     * @return the chunk's payload, valid until the next call, or null if
+     *         there is no complete, intact chunk there.
+     */
+    private ByteBuffer readChunk(long offset) throws IOException {
+        if (offset + SessionFormat.CHUNK_HEADER_SIZE > mFile.length()) {
+            return null;
+        }
+        mFile.seek(offset);
+        mFile.readFully(mChunkHeader);
+        ByteBuffer header = ByteBuffer.wrap(mChunkHeader);
+        if (header.getInt() != SessionFormat.CHUNK_MAGIC) {
+            return null;
+        }
+        int length = header.getInt();
+        if (length < 0 || offset + SessionFormat.CHUNK_HEADER_SIZE + length > mFile.length()) {
+            return null;
+        }
+        if (mPayload.length < length) {
+            mPayload = new byte[length];
+        }
+        try {
+            mFile.readFully(mPayload, 0, length);
+        } catch (EOFException e) {
+            return null;
+        }
+        mCrc.reset();
+        mCrc.update(mPayload, 0, length);
+        if ((int) mCrc.getValue() != header.getInt(SessionFormat.CHUNK_HEADER_SIZE - 4)) {
+            return null;
+        }
+        return ByteBuffer.wrap(mPayload, 0, length);
+    }
+}
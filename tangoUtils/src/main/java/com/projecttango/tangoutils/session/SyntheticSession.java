@@ -0,0 +1,369 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.tangoutils.session;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Deterministic stand-in for the Tango service, for load tests beyond what a
+ * device produces. A device walks a figure eight through a furnished room
+ * while looking around; poses are generated along that path, and depth
+ * frames are ray cast from the device into the room with range-dependent
+ * noise, at any point count and rate.
+ *
+ * The same seed always produces the same room, poses and frames, so runs are
+ * comparable across builds. Poses are of the device relative to the start of
+ * service; depth points are in the frame of a depth camera aligned with the
+ * device (x right, y down, z forward), so every extrinsic is the identity.
+ * Frame and status codes match the Tango SDK's.
+ */
+public class SyntheticSession {
+
+    public static final int FRAME_START_OF_SERVICE = 2;
+    public static final int FRAME_DEVICE = 4;
+    public static final int FRAME_IMU = 5;
+    public static final int FRAME_CAMERA_COLOR = 7;
+    public static final int FRAME_CAMERA_DEPTH = 8;
+    public static final int POSE_VALID = 1;
+
+    public static final double DEFAULT_POSE_RATE_HZ = 100;
+    public static final double DEFAULT_DEPTH_RATE_HZ = 5;
+    /** About what a Tango tablet's depth sensor returns per frame. */
+    public static final int DEFAULT_POINTS_PER_FRAME = 12000;
+
+    // Room around the start of service; the device starts in its middle.
+    private static final double ROOM_WIDTH = 8;
+    private static final double ROOM_DEPTH = 6;
+    private static final double ROOM_HEIGHT = 2.7;
+    private static final double DEVICE_HEIGHT = 1.2;
+    private static final int BOX_COUNT = 12;
+    // Figure eight through the origin, at walking pace.
+    private static final double PATH_RADIUS_X = 2.5;
+    private static final double PATH_RADIUS_Y = 1.5;
+    private static final double PATH_RATE = 0.25;
+    private static final double LOOK_AROUND_ANGLE = 0.4;
+    private static final double LOOK_AROUND_RATE = 0.7;
+    private static final double HEAD_BOB = 0.03;
+    // Tangents of half the depth camera's field of view.
+    private static final double TAN_HALF_FOV_X = Math.tan(Math.toRadians(58) / 2);
+    private static final double TAN_HALF_FOV_Y = Math.tan(Math.toRadians(45) / 2);
+    // Standard deviation of the depth noise at 1 m; it grows with the square
+    // of the range.
+    private static final double DEPTH_NOISE = 0.0015;
+
+    private final long mSeed;
+    private final int mPointsPerFrame;
+    private final double mDepthRateHz;
+    private final double mPoseRateHz;
+    // Boxes standing on the floor, as min x, y, z and max x, y, z.
+    private final double[] mBoxes = new double[BOX_COUNT * 6];
+    // Offsets into mBoxes of the boxes the current frame can see.
+    private final int[] mVisibleBoxes = new int[BOX_COUNT];
+    private int mVisibleBoxCount;
+    private final FloatBuffer mXyz;
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+    private final double[] mDepthTranslation = new double[3];
+    private final double[] mDepthRotation = new double[4];
+    private volatile boolean mIsStopped;
+    private volatile long mLateEventCount;
+    private long mRandom;
+
+    /**
+     * @param seed
+     *            selects the room and the noise of every frame.
+     * @param pointsPerFrame
+     *            points in each depth frame.
+     * @param depthRateHz
+     *            depth frames per second of session time.
+     * @param poseRateHz
+     *            poses per second of session time.
+     */
+    public SyntheticSession(long seed, int pointsPerFrame, double depthRateHz,
+            double poseRateHz) {
+        if (pointsPerFrame <= 0 || !(depthRateHz > 0) || !(poseRateHz > 0)) {
+            throw new IllegalArgumentException("Point count and rates must be positive");
+        }
+        mSeed = seed;
+        mPointsPerFrame = pointsPerFrame;
+        mDepthRateHz = depthRateHz;
+        mPoseRateHz = poseRateHz;
+        mXyz = ByteBuffer.allocateDirect(pointsPerFrame * 3 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+        Random random = new Random(seed);
+        for (int i = 0; i < BOX_COUNT; i++) {
+            double width = 0.3 + random.nextDouble() * 0.9;
+            double depth = 0.3 + random.nextDouble() * 0.9;
+            double height = 0.4 + random.nextDouble() * 1.4;
+            double x = (random.nextDouble() - 0.5) * (ROOM_WIDTH - width);
+            double y = (random.nextDouble() - 0.5) * (ROOM_DEPTH - depth);
+            int b = i * 6;
+            mBoxes[b] = x - width / 2;
+            mBoxes[b + 1] = y - depth / 2;
+            mBoxes[b + 2] = -DEVICE_HEIGHT;
+            mBoxes[b + 3] = x + width / 2;
+            mBoxes[b + 4] = y + depth / 2;
+            mBoxes[b + 5] = -DEVICE_HEIGHT + height;
+        }
+    }
+
+    /**
+     * Delivers the identity extrinsics, then poses and depth frames in
+     * timestamp order, starting at timestamp 0.
+     *
+     * @param durationSeconds
+     *            session time to generate; may be infinite, in which case
+     *            only {@link #stop} ends the session.
+     * @param isRealTime
+     *            true to deliver each event at its timestamp, false to
+     *            deliver them as fast as the listener takes them.
+     * @return the number of poses and depth frames delivered.
+     */
+    public long run(SessionListener listener, double durationSeconds, boolean isRealTime) {
+        mIsStopped = false;
+        mLateEventCount = 0;
+        double[] zero = { 0, 0, 0 };
+        double[] identity = { 0, 0, 0, 1 };
+        listener.onExtrinsics(FRAME_IMU, FRAME_DEVICE, zero, identity);
+        listener.onExtrinsics(FRAME_IMU, FRAME_CAMERA_COLOR, zero, identity);
+        listener.onExtrinsics(FRAME_IMU, FRAME_CAMERA_DEPTH, zero, identity);
+
+        long startNanos = System.nanoTime();
+        long poseIndex = 0;
+        long depthIndex = 0;
+        long delivered = 0;
+        while (!mIsStopped) {
+            double poseTime = poseIndex / mPoseRateHz;
+            double depthTime = depthIndex / mDepthRateHz;
+            boolean isPose = poseTime <= depthTime;
+            double time = isPose ? poseTime : depthTime;
+            if (time > durationSeconds) {
+                break;
+            }
+            if (isRealTime) {
+                long target = startNanos + (long) (time * 1e9);
+                long remaining = target - System.nanoTime();
+                if (remaining > 0) {
+                    do {
+                        LockSupport.parkNanos(remaining);
+                    } while ((remaining = target - System.nanoTime()) > 0 && !mIsStopped);
+                } else if (-remaining > 1e9 / (isPose ? mPoseRateHz : mDepthRateHz)) {
+                    // More than one period behind: the listener cannot keep up.
+                    mLateEventCount++;
+                }
+            }
+            if (isPose) {
+                getPose(time, mTranslation, mRotation);
+                listener.onPose(time, FRAME_START_OF_SERVICE, FRAME_DEVICE, POSE_VALID,
+                        mTranslation, mRotation);
+                poseIndex++;
+            } else {
+                int count = getDepthFrame(depthIndex, mXyz);
+                listener.onXyzIj(time, mXyz, count, 0, 0, null);
+                depthIndex++;
+            }
+            delivered++;
+        }
+        return delivered;
+    }
+
+    /** Makes a running {@link #run} return after the current event. */
+    public void stop() {
+        mIsStopped = true;
+    }
+
+    /**
+     * Number of events of the last real time run delivered more than one
+     * period late, a sign that the listener saturates.
+     */
+    public long getLateEventCount() {
+        return mLateEventCount;
+    }
+
+    public int getPointsPerFrame() {
+        return mPointsPerFrame;
+    }
+
+    /**
+     * Computes the device pose at {@code time} seconds into the session.
+     *
+     * @param translation
+     *            receives x, y, z in meters.
+     * @param rotation
+     *            receives the quaternion x, y, z, w.
+     */
+    public void getPose(double time, double[] translation, double[] rotation) {
+        double phase = time * PATH_RATE;
+        translation[0] = PATH_RADIUS_X * Math.sin(phase);
+        translation[1] = PATH_RADIUS_Y * Math.sin(2 * phase);
+        translation[2] = HEAD_BOB * Math.sin(8 * phase);
+        double yaw = getYaw(time);
+        // The device looks along its -z axis with its y axis up, so its
+        // rotation is a quarter turn about x followed by the heading about z.
+        double halfHeading = (yaw - Math.PI / 2) / 2;
+        double c = Math.cos(halfHeading);
+        double s = Math.sin(halfHeading);
+        double halfSqrt2 = Math.sqrt(0.5);
+        rotation[0] = c * halfSqrt2;
+        rotation[1] = s * halfSqrt2;
+        rotation[2] = s * halfSqrt2;
+        rotation[3] = c * halfSqrt2;
+    }
+
+    /**
+     * Ray casts depth frame {@code index} from the pose at its timestamp.
+     * Frames only depend on the seed and the index. Not thread safe: each
+     * thread needs its own session.
+     *
+     * @param xyz
+     *            receives the points from index 0; its limit is set after
+     *            the last one.
+     * @return the number of points written.
+     */
+    public int getDepthFrame(long index, FloatBuffer xyz) {
+        double time = index / mDepthRateHz;
+        getPose(time, mDepthTranslation, mDepthRotation);
+        double ox = mDepthTranslation[0];
+        double oy = mDepthTranslation[1];
+        double oz = mDepthTranslation[2];
+        double yaw = getYaw(time);
+        double forwardX = Math.cos(yaw);
+        double forwardY = Math.sin(yaw);
+        mRandom = mix(mSeed + index * 0x9E3779B97F4A7C15L);
+        cullBoxes(ox, oy, forwardX, forwardY);
+
+        xyz.clear();
+        for (int i = 0; i < mPointsPerFrame; i++) {
+            // Camera ray through a random pixel; x right, y down, z forward.
+            double cx = (nextUniform() * 2 - 1) * TAN_HALF_FOV_X;
+            double cy = (nextUniform() * 2 - 1) * TAN_HALF_FOV_Y;
+            double norm = 1 / Math.sqrt(cx * cx + cy * cy + 1);
+            cx *= norm;
+            cy *= norm;
+            double cz = norm;
+            // The camera's right is (forwardY, -forwardX, 0) and its down -z.
+            double dx = cx * forwardY + cz * forwardX;
+            double dy = -cx * forwardX + cz * forwardY;
+            double dz = -cy;
+            double range = castRay(ox, oy, oz, dx, dy, dz);
+            range += range * range * DEPTH_NOISE * nextGaussian();
+            xyz.put((float) (cx * range));
+            xyz.put((float) (cy * range));
+            xyz.put((float) (cz * range));
+        }
+        xyz.flip();
+        return mPointsPerFrame;
+    }
+
+    private static double getYaw(double time) {
+        double phase = time * PATH_RATE;
+        // Head along the path, glancing from side to side.
+        double heading = Math.atan2(2 * PATH_RADIUS_Y * Math.cos(2 * phase),
+                PATH_RADIUS_X * Math.cos(phase));
+        return heading + LOOK_AROUND_ANGLE * Math.sin(time * LOOK_AROUND_RATE);
+    }
+
+    /**
+     * Returns the distance along a unit ray to the nearest visible box in
+     * front of it, or to the room's walls, floor or ceiling. Boxes the ray
+     * starts in are not seen.
+     */
+    private double castRay(double ox, double oy, double oz, double dx, double dy,
+            double dz) {
+        double ix = 1 / dx;
+        double iy = 1 / dy;
+        double iz = 1 / dz;
+        double nearest = Math.min(Math.min(
+                ((ix > 0 ? ROOM_WIDTH / 2 : -ROOM_WIDTH / 2) - ox) * ix,
+                ((iy > 0 ? ROOM_DEPTH / 2 : -ROOM_DEPTH / 2) - oy) * iy),
+                ((iz > 0 ? ROOM_HEIGHT - DEVICE_HEIGHT : -DEVICE_HEIGHT) - oz) * iz);
+        // Slab test; plain comparisons, as Math.min and max on doubles also
+        // order NaN and signed zeros, which is much slower in this loop.
+        for (int i = 0; i < mVisibleBoxCount; i++) {
+            int b = mVisibleBoxes[i];
+            double t0 = (mBoxes[b] - ox) * ix;
+            double t1 = (mBoxes[b + 3] - ox) * ix;
+            double near = t0 < t1 ? t0 : t1;
+            double far = t0 < t1 ? t1 : t0;
+            t0 = (mBoxes[b + 1] - oy) * iy;
+            t1 = (mBoxes[b + 4] - oy) * iy;
+            if (t0 > t1) {
+                double swap = t0;
+                t0 = t1;
+                t1 = swap;
+            }
+            near = t0 > near ? t0 : near;
+            far = t1 < far ? t1 : far;
+            t0 = (mBoxes[b + 2] - oz) * iz;
+            t1 = (mBoxes[b + 5] - oz) * iz;
+            if (t0 > t1) {
+                double swap = t0;
+                t0 = t1;
+                t1 = swap;
+            }
+            near = t0 > near ? t0 : near;
+            far = t1 < far ? t1 : far;
+            if (near > 0 && near <= far && near < nearest) {
+                nearest = near;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Keeps the boxes with a corner in front of the camera, about half of
+     * them, for {@link #castRay}.
+     */
+    private void cullBoxes(double ox, double oy, double forwardX, double forwardY) {
+        mVisibleBoxCount = 0;
+        for (int b = 0; b < mBoxes.length; b += 6) {
+            double x = (forwardX > 0 ? mBoxes[b + 3] : mBoxes[b]) - ox;
+            double y = (forwardY > 0 ? mBoxes[b + 4] : mBoxes[b + 1]) - oy;
+            if (x * forwardX + y * forwardY > 0) {
+                mVisibleBoxes[mVisibleBoxCount++] = b;
+            }
+        }
+    }
+
+    /** Uniform in [0, 1), from a xorshift64* generator. */
+    private double nextUniform() {
+        long x = mRandom;
+        x ^= x >>> 12;
+        x ^= x << 25;
+        x ^= x >>> 27;
+        mRandom = x;
+        return ((x * 0x2545F4914F6CDD1DL) >>> 11) * 0x1.0p-53;
+    }
+
+    /** Approximately standard normal: a scaled sum of four uniforms. */
+    private double nextGaussian() {
+        double sum = nextUniform() + nextUniform() + nextUniform() + nextUniform();
+        return (sum - 2) * Math.sqrt(3);
+    }
+
+    /** Spreads a seed over all bits; xorshift needs a non-zero state. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return z != 0 ? z : 1;
+    }
+}
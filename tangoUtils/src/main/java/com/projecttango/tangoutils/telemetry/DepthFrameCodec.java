@@ -0,0 +1,401 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.telemetry;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Versioned binary format for a depth frame, for storage and upload. The
+ * codec only uses plain Java so the same class decodes frames on the
+ * receiving side.
+ *
+ * Points are quantized to a grid of {@code precision} meters, sorted along
+ * a Morton (Z-order) curve so that neighbors in space are neighbors in the
+ * stream, and stored as the varint deltas of their Morton codes. Nearby
+ * points then differ by a few bits, and most deltas fit in one or two
+ * bytes. The varints can additionally be deflated.
+ *
+ * Layout of version 1 (multi-byte values are big-endian):
+ *
+ * <pre>
+ * magic      'T' 'D' 'F'
+ * version    u8  (1)
+ * flags      u8  (bit 0: payload is deflated)
+ * count      varint
+ * timestamp  float64, seconds
+ * precision  float32, meters per grid step
+ * origin     3 x zigzag varint, smallest x, y and z in grid steps
+ * payload    count x varint, Morton code delta from the previous point,
+ *            the first point's from 0
+ * </pre>
+ *
+ * The original point order is not kept, and every coordinate is off by at
+ * most half a grid step. A frame may span at most 2^21 steps per axis, about
+ * 2 km at 1 mm.
+ *
+ * An instance reuses its buffers between frames and is not thread-safe.
+ */
+public final class DepthFrameCodec {
+
+    public static final String CONTENT_TYPE = "application/vnd.tango.depth-frame";
+    public static final int VERSION = 1;
+    /** Default grid step: 1 mm, well below the depth noise of the sensor. */
+    public static final float DEFAULT_PRECISION = 0.001f;
+
+    private static final byte MAGIC_0 = 'T';
+    private static final byte MAGIC_1 = 'D';
+    private static final byte MAGIC_2 = 'F';
+    private static final int FLAG_DEFLATE = 1;
+    private static final int MAX_VARINT_SIZE = 10;
+    private static final int MAX_HEADER_SIZE = 3 + 1 + 1 + 5 + 8 + 4 + 3
+            * MAX_VARINT_SIZE;
+    private static final int MORTON_BITS = 21;
+    private static final long MAX_STEPS = (1L << MORTON_BITS) - 1;
+
+    private final int mMaxPoints;
+    private final float mPrecision;
+    private final boolean mIsDeflated;
+    private final long[] mCodes;
+    private final byte[] mPayload;
+    private final Deflater mDeflater;
+    private final Inflater mInflater = new Inflater();
+
+    /**
+     * @param maxPoints
+     *            largest number of points in a frame.
+     * @param precision
+     *            grid step in meters used when encoding.
+     * @param deflate
+     *            true to deflate the encoded points, trading encode time for
+     *            a smaller frame.
+     */
+    public DepthFrameCodec(int maxPoints, float precision, boolean deflate) {
+        if (!(precision > 0)) {
+            throw new IllegalArgumentException("precision must be positive");
+        }
+        mMaxPoints = maxPoints;
+        mPrecision = precision;
+        mIsDeflated = deflate;
+        mCodes = new long[maxPoints];
+        mPayload = new byte[maxPoints * MAX_VARINT_SIZE];
+        mDeflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+    /**
+     * @return the largest number of bytes {@link #encode} can write for a
+     *         frame of {@code pointCount} points.
+     */
+    public static int maxEncodedSize(int pointCount) {
+        int payload = pointCount * MAX_VARINT_SIZE;
+        // Deflate grows incompressible data by a few bytes per block.
+        return MAX_HEADER_SIZE + payload + (payload >> 12) + (payload >> 14) + 64;
+    }
+
+    /**
+     * Encodes the first {@code pointCount} points of {@code xyz} into
+     * {@code out} starting at {@code offset}. The array must have room for
+     * {@link #maxEncodedSize} bytes; the buffer's position is left unchanged.
+     *
+     * @return the number of bytes written.
+     * @throws IllegalArgumentException
+     *             if there are more points than the codec was created for,
+     *             or they span more than 2^21 grid steps on an axis.
+     */
+    public int encode(double timestamp, FloatBuffer xyz, int pointCount, byte[] out,
+            int offset) {
+        if (pointCount > mMaxPoints) {
+            throw new IllegalArgumentException("Frame of " + pointCount
+                    + " points exceeds capacity " + mMaxPoints);
+        }
+        float inverse = 1 / mPrecision;
+        long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, minZ = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE, maxZ = Long.MIN_VALUE;
+        for (int i = 0; i < pointCount * 3; i += 3) {
+            long x = Math.round(xyz.get(i) * inverse);
+            long y = Math.round(xyz.get(i + 1) * inverse);
+            long z = Math.round(xyz.get(i + 2) * inverse);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+        if (pointCount == 0) {
+            minX = minY = minZ = 0;
+        } else if (maxX - minX > MAX_STEPS || maxY - minY > MAX_STEPS
+                || maxZ - minZ > MAX_STEPS) {
+            throw new IllegalArgumentException("Frame spans more than " + MAX_STEPS
+                    + " steps of " + mPrecision + " m");
+        }
+
+        long[] codes = mCodes;
+        for (int i = 0; i < pointCount; i++) {
+            int p = i * 3;
+            codes[i] = interleave(Math.round(xyz.get(p) * inverse) - minX,
+                    Math.round(xyz.get(p + 1) * inverse) - minY,
+                    Math.round(xyz.get(p + 2) * inverse) - minZ);
+        }
+        Arrays.sort(codes, 0, pointCount);
+
+        int pos = offset;
+        out[pos++] = MAGIC_0;
+        out[pos++] = MAGIC_1;
+        out[pos++] = MAGIC_2;
+        out[pos++] = (byte) VERSION;
+        out[pos++] = (byte) (mIsDeflated ? FLAG_DEFLATE : 0);
+        pos = PoseBatchCodec.writeVarint(out, pos, pointCount);
+        pos = writeLong(out, pos, Double.doubleToLongBits(timestamp));
+        pos = writeInt(out, pos, Float.floatToIntBits(mPrecision));
+        pos = PoseBatchCodec.writeVarint(out, pos, PoseBatchCodec.zigzag(minX));
+        pos = PoseBatchCodec.writeVarint(out, pos, PoseBatchCodec.zigzag(minY));
+        pos = PoseBatchCodec.writeVarint(out, pos, PoseBatchCodec.zigzag(minZ));
+
+        byte[] payload = mIsDeflated ? mPayload : out;
+        int payloadStart = mIsDeflated ? 0 : pos;
+        int payloadPos = payloadStart;
+        long previous = 0;
+        for (int i = 0; i < pointCount; i++) {
+            payloadPos = PoseBatchCodec.writeVarint(payload, payloadPos, codes[i] - previous);
+            previous = codes[i];
+        }
+        if (!mIsDeflated) {
+            return payloadPos - offset;
+        }
+        mDeflater.reset();
+        mDeflater.setInput(payload, 0, payloadPos);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            int written = mDeflater.deflate(out, pos, out.length - pos);
+            if (written == 0 && pos == out.length) {
+                throw new IllegalArgumentException("Output buffer too small");
+            }
+            pos += written;
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Reads the number of points in an encoded frame without decoding it.
+     *
+     * @throws IllegalArgumentException
+     *             if the header is malformed or of an unknown version.
+     */
+    public static int readCount(byte[] in, int offset, int length) {
+        Reader reader = new Reader(in, offset, offset + length);
+        reader.readHeader();
+        return reader.count;
+    }
+
+    /**
+     * Reads the timestamp of an encoded frame without decoding it.
+     *
+     * @throws IllegalArgumentException
+     *             if the header is malformed or of an unknown version.
+     */
+    public static double readTimestamp(byte[] in, int offset, int length) {
+        Reader reader = new Reader(in, offset, offset + length);
+        reader.readHeader();
+        return reader.timestamp;
+    }
+
+    /**
+     * Decodes a frame into {@code xyz} as x, y, z triples. Frames of any
+     * precision can be decoded.
+     *
+     * @return the number of points decoded.
+     * @throws IllegalArgumentException
+     *             if the data is malformed, truncated or larger than
+     *             {@code xyz}.
+     */
+    public int decode(byte[] in, int offset, int length, float[] xyz) {
+        Reader reader = new Reader(in, offset, offset + length);
+        reader.readHeader();
+        int count = reader.count;
+        if (count * 3L > xyz.length) {
+            throw new IllegalArgumentException("Frame of " + count
+                    + " points exceeds capacity " + xyz.length / 3);
+        }
+        long minX = PoseBatchCodec.unzigzag(reader.readVarint());
+        long minY = PoseBatchCodec.unzigzag(reader.readVarint());
+        long minZ = PoseBatchCodec.unzigzag(reader.readVarint());
+        double precision = reader.precision;
+
+        if (reader.isDeflated) {
+            if (count > mMaxPoints) {
+                throw new IllegalArgumentException("Frame of " + count
+                        + " points exceeds capacity " + mMaxPoints);
+            }
+            int inflated = inflate(in, reader.pos, reader.end - reader.pos);
+            reader = new Reader(mPayload, 0, inflated);
+        }
+        long code = 0;
+        for (int i = 0; i < count; i++) {
+            code += reader.readVarint();
+            int p = i * 3;
+            xyz[p] = (float) ((minX + deinterleave(code)) * precision);
+            xyz[p + 1] = (float) ((minY + deinterleave(code >>> 1)) * precision);
+            xyz[p + 2] = (float) ((minZ + deinterleave(code >>> 2)) * precision);
+        }
+        return count;
+    }
+
+    public float getPrecision() {
+        return mPrecision;
+    }
+
+    private int inflate(byte[] in, int offset, int length) {
+        mInflater.reset();
+        mInflater.setInput(in, offset, length);
+        int pos = 0;
+        try {
+            while (!mInflater.finished()) {
+                int read = mInflater.inflate(mPayload, pos, mPayload.length - pos);
+                pos += read;
+                // The stream of an empty frame finishes without output.
+                if (read > 0 || mInflater.finished()) {
+                    continue;
+                }
+                if (mInflater.needsInput() || pos == mPayload.length) {
+                    throw new IllegalArgumentException("Truncated depth frame");
+                }
+                if (mInflater.needsDictionary()) {
+                    // Never written by encode, and would otherwise spin here.
+                    throw new IllegalArgumentException("Malformed depth frame payload");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed depth frame payload", e);
+        }
+        return pos;
+    }
+
+    /** Interleaves the low 21 bits of x, y and z as x0 y0 z0 x1 y1 z1 ... */
+    static long interleave(long x, long y, long z) {
+        return spread(x) | (spread(y) << 1) | (spread(z) << 2);
+    }
+
+    /** Extracts every third bit of {@code code}, starting with bit 0. */
+    static long deinterleave(long code) {
+        long v = code & 0x1249249249249249L;
+        v = (v ^ (v >>> 2)) & 0x10c30c30c30c30c3L;
+        v = (v ^ (v >>> 4)) & 0x100f00f00f00f00fL;
+        v = (v ^ (v >>> 8)) & 0x1f0000ff0000ffL;
+        v = (v ^ (v >>> 16)) & 0x1f00000000ffffL;
+        v = (v ^ (v >>> 32)) & 0x1fffffL;
+        return v;
+    }
+
+    private static long spread(long value) {
+        long v = value & MAX_STEPS;
+        v = (v | (v << 32)) & 0x1f00000000ffffL;
+        v = (v | (v << 16)) & 0x1f0000ff0000ffL;
+        v = (v | (v << 8)) & 0x100f00f00f00f00fL;
+        v = (v | (v << 4)) & 0x10c30c30c30c30c3L;
+        v = (v | (v << 2)) & 0x1249249249249249L;
+        return v;
+    }
+
+    private static int writeLong(byte[] out, int pos, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[pos++] = (byte) (value >>> shift);
+        }
+        return pos;
+    }
+
+    private static int writeInt(byte[] out, int pos, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out[pos++] = (byte) (value >>> shift);
+        }
+        return pos;
+    }
+
+    /**
+     * Bounds-checked cursor over an encoded frame.
+     */
+    private static final class Reader {
+        final byte[] in;
+        final int end;
+        int pos;
+        int count;
+        double timestamp;
+        float precision;
+        boolean isDeflated;
+
+        Reader(byte[] in, int offset, int end) {
+            this.in = in;
+            this.pos = offset;
+            this.end = end;
+        }
+
+        void readHeader() {
+            require(5);
+            if (in[pos] != MAGIC_0 || in[pos + 1] != MAGIC_1
+                    || in[pos + 2] != MAGIC_2) {
+                throw new IllegalArgumentException("Not a depth frame");
+            }
+            if (in[pos + 3] != VERSION) {
+                throw new IllegalArgumentException(
+                        "Unsupported depth frame version " + in[pos + 3]);
+            }
+            isDeflated = (in[pos + 4] & FLAG_DEFLATE) != 0;
+            pos += 5;
+            long pointCount = readVarint();
+            if (pointCount < 0 || pointCount > Integer.MAX_VALUE / 3) {
+                throw new IllegalArgumentException("Point count out of range");
+            }
+            count = (int) pointCount;
+            require(12);
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (in[pos++] & 0xFF);
+            }
+            timestamp = Double.longBitsToDouble(bits);
+            int precisionBits = 0;
+            for (int i = 0; i < 4; i++) {
+                precisionBits = (precisionBits << 8) | (in[pos++] & 0xFF);
+            }
+            precision = Float.intBitsToFloat(precisionBits);
+            if (!(precision > 0) || Float.isInfinite(precision)) {
+                throw new IllegalArgumentException("Precision out of range");
+            }
+        }
+
+        void require(int size) {
+            if (pos + size > end) {
+                throw new IllegalArgumentException("Truncated depth frame");
+            }
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                require(1);
+                byte b = in[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+}
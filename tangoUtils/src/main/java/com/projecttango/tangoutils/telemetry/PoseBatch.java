@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.telemetry;
+
+/**
+ * Reusable structure-of-arrays container for a batch of poses. Poses are
+ * stored as primitives so that draining the {@link PoseRingBuffer} and
+ * encoding a batch does not allocate per pose.
+ */
+public class PoseBatch {
+
+    public static final int TRANSLATION_SIZE = 3;
+    public static final int ROTATION_SIZE = 4;
+
+    public final double[] timestamps;
+    public final double[] translations;
+    public final double[] rotations;
+    public final int[] statusCodes;
+    /**
+     * {@link System#nanoTime()} at which each pose was queued. Filled by
+     * {@link PoseRingBuffer#drainTo} for latency tracking; not encoded.
+     */
+    public final long[] enqueueNanos;
+    private int mCount;
+
+    public PoseBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        timestamps = new double[capacity];
+        translations = new double[capacity * TRANSLATION_SIZE];
+        rotations = new double[capacity * ROTATION_SIZE];
+        statusCodes = new int[capacity];
+        enqueueNanos = new long[capacity];
+    }
+
+    /**
+     * Appends a pose to the batch.
+     *
+     * @return false if the batch is already full.
+     */
+    public boolean add(double timestamp, double[] translation,
+            double[] rotation, int statusCode) {
+        if (mCount == timestamps.length) {
+            return false;
+        }
+        int i = mCount;
+        timestamps[i] = timestamp;
+        System.arraycopy(translation, 0, translations, i * TRANSLATION_SIZE,
+                TRANSLATION_SIZE);
+        System.arraycopy(rotation, 0, rotations, i * ROTATION_SIZE,
+                ROTATION_SIZE);
+        statusCodes[i] = statusCode;
+        mCount++;
+        return true;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Sets the number of valid poses after the arrays have been filled
+     * directly, e.g. by {@link PoseRingBuffer#drainTo}.
+     */
+    void setSize(int count) {
+        mCount = count;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.telemetry;
+
+/**
+ * Versioned binary wire format for a {@link PoseBatch}. The codec only uses
+ * plain Java so the same class decodes batches on the receiving side.
+ *
+ * Layout of version 1 (multi-byte values are big-endian):
+ *
+ * <pre>
+ * magic      'T' 'P' 'B'
+ * version    u8  (1)
+ * flags      u8  (reserved, 0)
+ * count      varint
+ * baseTime   float64, timestamp of the first pose in seconds
+ * count x {
+ *   timeDelta    zigzag varint, microseconds since the previous pose
+ *   status       u8
+ *   translation  3 x zigzag varint, delta of the 0.1 mm fixed-point
+ *                position from the previous pose
+ *   rotation     48 bits, smallest-three quaternion: index of the largest
+ *                component in 2 bits, then the other three components in
+ *                15 bits each
+ * }
+ * </pre>
+ *
+ * A pose typically encodes in 14 to 20 bytes instead of the ~150 bytes of the
+ * form-encoded text. Timestamps are exact to 1 us, positions to 0.05 mm and
+ * quaternion components to about 2.2e-5.
+ */
+public final class PoseBatchCodec {
+
+    public static final String CONTENT_TYPE = "application/vnd.tango.pose-batch";
+    public static final int VERSION = 1;
+
+    private static final byte MAGIC_0 = 'T';
+    private static final byte MAGIC_1 = 'P';
+    private static final byte MAGIC_2 = 'B';
+    private static final int MAX_HEADER_SIZE = 3 + 1 + 1 + 5 + 8;
+    private static final int MAX_VARINT_SIZE = 10;
+    private static final int ROTATION_SIZE = 6;
+    private static final int MAX_POSE_SIZE = MAX_VARINT_SIZE + 1 + 3
+            * MAX_VARINT_SIZE + ROTATION_SIZE;
+    // Four one-byte varints, the status and the rotation.
+    private static final int MIN_POSE_SIZE = 4 + 1 + ROTATION_SIZE;
+
+    private static final double MICROS_PER_SECOND = 1e6;
+    private static final double TRANSLATION_UNITS_PER_METER = 1e4;
+    private static final double SMALLEST_THREE_RANGE = 0.70710678118654752;
+    private static final int SMALLEST_THREE_BITS = 15;
+    private static final int SMALLEST_THREE_MAX = (1 << SMALLEST_THREE_BITS) - 1;
+
+    private PoseBatchCodec() {
+    }
+
+    /**
+     * @return the largest number of bytes {@link #encode} can write for a
+     *         batch of {@code poseCount} poses.
+     */
+    public static int maxEncodedSize(int poseCount) {
+        return MAX_HEADER_SIZE + poseCount * MAX_POSE_SIZE;
+    }
+
+    /**
+     * Encodes a batch into {@code out} starting at {@code offset}. The array
+     * must have room for {@link #maxEncodedSize} bytes.
+     *
+     * @return the number of bytes written.
+     */
+    public static int encode(PoseBatch batch, byte[] out, int offset) {
+        int count = batch.size();
+        int pos = offset;
+        out[pos++] = MAGIC_0;
+        out[pos++] = MAGIC_1;
+        out[pos++] = MAGIC_2;
+        out[pos++] = (byte) VERSION;
+        out[pos++] = 0;
+        pos = writeVarint(out, pos, count);
+        double baseTime = count > 0 ? batch.timestamps[0] : 0;
+        pos = writeLong(out, pos, Double.doubleToLongBits(baseTime));
+
+        long previousTime = 0;
+        long previousX = 0, previousY = 0, previousZ = 0;
+        double[] translations = batch.translations;
+        for (int i = 0; i < count; i++) {
+            long time = Math.round((batch.timestamps[i] - baseTime)
+                    * MICROS_PER_SECOND);
+            pos = writeVarint(out, pos, zigzag(time - previousTime));
+            previousTime = time;
+
+            out[pos++] = (byte) batch.statusCodes[i];
+
+            int t = i * PoseBatch.TRANSLATION_SIZE;
+            long x = Math.round(translations[t] * TRANSLATION_UNITS_PER_METER);
+            long y = Math.round(translations[t + 1]
+                    * TRANSLATION_UNITS_PER_METER);
+            long z = Math.round(translations[t + 2]
+                    * TRANSLATION_UNITS_PER_METER);
+            pos = writeVarint(out, pos, zigzag(x - previousX));
+            pos = writeVarint(out, pos, zigzag(y - previousY));
+            pos = writeVarint(out, pos, zigzag(z - previousZ));
+            previousX = x;
+            previousY = y;
+            previousZ = z;
+
+            pos = writeRotation(out, pos, batch.rotations, i
+                    * PoseBatch.ROTATION_SIZE);
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Reads the number of poses in an encoded batch without decoding it, so
+     * the caller can size the {@link PoseBatch} passed to {@link #decode}.
+     * The count is checked against the length of the data, so it can be
+     * trusted not to exceed {@code length / 11}.
+     *
+     * @throws IllegalArgumentException
+     *             if the header is malformed, of an unknown version, or
+     *             claims more poses than the data can hold.
+     */
+    public static int readCount(byte[] in, int offset, int length) {
+        Reader reader = new Reader(in, offset, offset + length);
+        return reader.readHeader();
+    }
+
+    /**
+     * Decodes a batch into {@code batch}, replacing its previous contents.
+     *
+     * @return the number of bytes consumed.
+     * @throws IllegalArgumentException
+     *             if the data is malformed, truncated or larger than the
+     *             batch capacity.
+     */
+    public static int decode(byte[] in, int offset, int length,
+            PoseBatch batch) {
+        Reader reader = new Reader(in, offset, offset + length);
+        int count = reader.readHeader();
+        if (count > batch.capacity()) {
+            throw new IllegalArgumentException("Batch of " + count
+                    + " poses exceeds capacity " + batch.capacity());
+        }
+        reader.require(8);
+        double baseTime = Double.longBitsToDouble(readLong(in, reader.pos));
+        reader.pos += 8;
+
+        long time = 0;
+        long x = 0, y = 0, z = 0;
+        double[] translations = batch.translations;
+        for (int i = 0; i < count; i++) {
+            time += unzigzag(reader.readVarint());
+            batch.timestamps[i] = baseTime + time / MICROS_PER_SECOND;
+
+            reader.require(1);
+            batch.statusCodes[i] = in[reader.pos++];
+
+            x += unzigzag(reader.readVarint());
+            y += unzigzag(reader.readVarint());
+            z += unzigzag(reader.readVarint());
+            int t = i * PoseBatch.TRANSLATION_SIZE;
+            translations[t] = x / TRANSLATION_UNITS_PER_METER;
+            translations[t + 1] = y / TRANSLATION_UNITS_PER_METER;
+            translations[t + 2] = z / TRANSLATION_UNITS_PER_METER;
+
+            reader.require(ROTATION_SIZE);
+            readRotation(in, reader.pos, batch.rotations, i
+                    * PoseBatch.ROTATION_SIZE);
+            reader.pos += ROTATION_SIZE;
+        }
+        batch.setSize(count);
+        return reader.pos - offset;
+    }
+
+    private static int writeRotation(byte[] out, int pos, double[] rotations,
+            int offset) {
+        double qx = rotations[offset];
+        double qy = rotations[offset + 1];
+        double qz = rotations[offset + 2];
+        double qw = rotations[offset + 3];
+        double norm = Math.sqrt(qx * qx + qy * qy + qz * qz + qw * qw);
+        if (norm > 0) {
+            qx /= norm;
+            qy /= norm;
+            qz /= norm;
+            qw /= norm;
+        } else {
+            qw = 1;
+        }
+
+        int largest = 0;
+        double largestAbs = Math.abs(qx);
+        if (Math.abs(qy) > largestAbs) {
+            largest = 1;
+            largestAbs = Math.abs(qy);
+        }
+        if (Math.abs(qz) > largestAbs) {
+            largest = 2;
+            largestAbs = Math.abs(qz);
+        }
+        if (Math.abs(qw) > largestAbs) {
+            largest = 3;
+        }
+        double a, b, c, dropped;
+        switch (largest) {
+        case 0:
+            dropped = qx; a = qy; b = qz; c = qw;
+            break;
+        case 1:
+            dropped = qy; a = qx; b = qz; c = qw;
+            break;
+        case 2:
+            dropped = qz; a = qx; b = qy; c = qw;
+            break;
+        default:
+            dropped = qw; a = qx; b = qy; c = qz;
+            break;
+        }
+        // q and -q are the same rotation; make the dropped component
+        // positive so it can be recovered from the other three.
+        if (dropped < 0) {
+            a = -a;
+            b = -b;
+            c = -c;
+        }
+        long packed = ((long) largest << (3 * SMALLEST_THREE_BITS))
+                | ((long) quantizeComponent(a) << (2 * SMALLEST_THREE_BITS))
+                | ((long) quantizeComponent(b) << SMALLEST_THREE_BITS)
+                | quantizeComponent(c);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            out[pos++] = (byte) (packed >>> shift);
+        }
+        return pos;
+    }
+
+    private static void readRotation(byte[] in, int pos, double[] rotations,
+            int offset) {
+        long packed = 0;
+        for (int i = 0; i < ROTATION_SIZE; i++) {
+            packed = (packed << 8) | (in[pos + i] & 0xFF);
+        }
+        int largest = (int) (packed >>> (3 * SMALLEST_THREE_BITS)) & 0x3;
+        double a = dequantizeComponent((int) (packed >>> (2 * SMALLEST_THREE_BITS))
+                & SMALLEST_THREE_MAX);
+        double b = dequantizeComponent((int) (packed >>> SMALLEST_THREE_BITS)
+                & SMALLEST_THREE_MAX);
+        double c = dequantizeComponent((int) packed & SMALLEST_THREE_MAX);
+        double dropped = Math.sqrt(Math.max(0, 1 - a * a - b * b - c * c));
+        switch (largest) {
+        case 0:
+            rotations[offset] = dropped;
+            rotations[offset + 1] = a;
+            rotations[offset + 2] = b;
+            rotations[offset + 3] = c;
+            break;
+        case 1:
+            rotations[offset] = a;
+            rotations[offset + 1] = dropped;
+            rotations[offset + 2] = b;
+            rotations[offset + 3] = c;
+            break;
+        case 2:
+            rotations[offset] = a;
+            rotations[offset + 1] = b;
+            rotations[offset + 2] = dropped;
+            rotations[offset + 3] = c;
+            break;
+        default:
+            rotations[offset] = a;
+            rotations[offset + 1] = b;
+            rotations[offset + 2] = c;
+            rotations[offset + 3] = dropped;
+            break;
+        }
+    }
+
+    private static int quantizeComponent(double value) {
+        double normalized = (value + SMALLEST_THREE_RANGE)
+                / (2 * SMALLEST_THREE_RANGE);
+        long quantized = Math.round(normalized * SMALLEST_THREE_MAX);
+        return (int) Math.max(0, Math.min(SMALLEST_THREE_MAX, quantized));
+    }
+
+    private static double dequantizeComponent(int quantized) {
+        return (double) quantized / SMALLEST_THREE_MAX * 2
+                * SMALLEST_THREE_RANGE - SMALLEST_THREE_RANGE;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int writeVarint(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int writeLong(byte[] out, int pos, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[pos++] = (byte) (value >>> shift);
+        }
+        return pos;
+    }
+
+    private static long readLong(byte[] in, int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (in[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Bounds-checked cursor over an encoded batch.
+     */
+    private static final class Reader {
+        final byte[] in;
+        final int end;
+        int pos;
+
+        Reader(byte[] in, int offset, int end) {
+            this.in = in;
+            this.pos = offset;
+            this.end = end;
+        }
+
+        int readHeader() {
+            require(5);
+            if (in[pos] != MAGIC_0 || in[pos + 1] != MAGIC_1
+                    || in[pos + 2] != MAGIC_2) {
+                throw new IllegalArgumentException("Not a pose batch");
+            }
+            if (in[pos + 3] != VERSION) {
+                throw new IllegalArgumentException(
+                        "Unsupported pose batch version " + in[pos + 3]);
+            }
+            pos += 5;
+            long count = readVarint();
+            // Checked before anything is sized from it: the count is not
+            // trusted, but the data has to hold every pose it claims.
+            long maxCount = Math.max(0, end - pos - 8) / MIN_POSE_SIZE;
+            if (count < 0 || count > maxCount) {
+                throw new IllegalArgumentException("Pose count out of range");
+            }
+            return (int) count;
+        }
+
+        void require(int size) {
+            if (pos + size > end) {
+                throw new IllegalArgumentException("Truncated pose batch");
+            }
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                require(1);
+                byte b = in[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.telemetry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring buffer of poses between a single producer (the Tango
+ * pose callback) and a single consumer (the {@link PoseUploader} thread).
+ * Pose fields are copied into preallocated primitive arrays so that
+ * {@link #offer} never allocates or blocks.
+ *
+ * When the buffer is full the configured {@link OverflowPolicy} decides
+ * whether the incoming pose or the oldest queued pose is discarded. Eviction
+ * of the oldest pose races with the consumer on the tail index; the consumer
+ * only keeps what it has read if its compare-and-set on the tail succeeds, so
+ * a slot being overwritten is never handed out.
+ */
+public class PoseRingBuffer {
+
+    /**
+     * What to do with a pose offered to a full buffer.
+     */
+    public enum OverflowPolicy {
+        /** Keep the queued poses and discard the incoming one. */
+        DROP_NEWEST,
+        /** Discard the oldest queued pose to make room for the incoming one. */
+        DROP_OLDEST
+    }
+
+    private static final int TRANSLATION_SIZE = PoseBatch.TRANSLATION_SIZE;
+    private static final int ROTATION_SIZE = PoseBatch.ROTATION_SIZE;
+
+    private final int mCapacity;
+    private final int mMask;
+    private final OverflowPolicy mOverflowPolicy;
+
+    private final double[] mTimestamps;
+    private final double[] mTranslations;
+    private final double[] mRotations;
+    private final int[] mStatusCodes;
+    private final long[] mEnqueueNanos;
+
+    // Next slot to be written by the producer.
+    private final AtomicLong mHead = new AtomicLong();
+    // Next slot to be read by the consumer.
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final AtomicLong mEnqueuedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private volatile Thread mConsumerThread;
+    private volatile int mWakeUpThreshold = Integer.MAX_VALUE;
+
+    /**
+     * @param capacity
+     *            maximum number of queued poses, rounded up to a power of
+     *            two.
+     * @param overflowPolicy
+     *            behaviour when a pose is offered to a full buffer.
+     */
+    public PoseRingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = Integer.highestOneBit(capacity) == capacity ? capacity
+                : Integer.highestOneBit(capacity) << 1;
+        mMask = mCapacity - 1;
+        mOverflowPolicy = overflowPolicy;
+        mTimestamps = new double[mCapacity];
+        mTranslations = new double[mCapacity * TRANSLATION_SIZE];
+        mRotations = new double[mCapacity * ROTATION_SIZE];
+        mStatusCodes = new int[mCapacity];
+        mEnqueueNanos = new long[mCapacity];
+    }
+
+    /**
+     * Queues a pose. Must only be called from the producer thread.
+     *
+     * @return true if the pose was queued, false if it was dropped.
+     */
+    public boolean offer(double timestamp, double[] translation,
+            double[] rotation, int statusCode) {
+        long head = mHead.get();
+        while (head - mTail.get() >= mCapacity) {
+            if (mOverflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                mDroppedCount.incrementAndGet();
+                return false;
+            }
+            long tail = mTail.get();
+            if (head - tail >= mCapacity
+                    && mTail.compareAndSet(tail, tail + 1)) {
+                mDroppedCount.incrementAndGet();
+            }
+        }
+
+        int slot = (int) (head & mMask);
+        mTimestamps[slot] = timestamp;
+        System.arraycopy(translation, 0, mTranslations, slot
+                * TRANSLATION_SIZE, TRANSLATION_SIZE);
+        System.arraycopy(rotation, 0, mRotations, slot * ROTATION_SIZE,
+                ROTATION_SIZE);
+        mStatusCodes[slot] = statusCode;
+        mEnqueueNanos[slot] = System.nanoTime();
+        // Publish the slot to the consumer.
+        mHead.lazySet(head + 1);
+        mEnqueuedCount.incrementAndGet();
+
+        if (head + 1 - mTail.get() == mWakeUpThreshold) {
+            Thread consumer = mConsumerThread;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves up to {@code maxPoses} of the oldest queued poses into
+     * {@code batch}, replacing its previous contents. Must only be called from
+     * the consumer thread.
+     *
+     * @return the number of poses drained.
+     */
+    public int drainTo(PoseBatch batch, int maxPoses) {
+        int limit = Math.min(maxPoses, batch.capacity());
+        while (true) {
+            long tail = mTail.get();
+            int count = (int) Math.min(mHead.get() - tail, limit);
+            if (count <= 0) {
+                batch.setSize(0);
+                return 0;
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = (int) ((tail + i) & mMask);
+                batch.timestamps[i] = mTimestamps[slot];
+                System.arraycopy(mTranslations, slot * TRANSLATION_SIZE,
+                        batch.translations, i * TRANSLATION_SIZE,
+                        TRANSLATION_SIZE);
+                System.arraycopy(mRotations, slot * ROTATION_SIZE,
+                        batch.rotations, i * ROTATION_SIZE, ROTATION_SIZE);
+                batch.statusCodes[i] = mStatusCodes[slot];
+                batch.enqueueNanos[i] = mEnqueueNanos[slot];
+            }
+            // If the producer evicted any of these slots while we were
+            // copying, the tail has moved and the copy may be torn; retry.
+            if (mTail.compareAndSet(tail, tail + count)) {
+                batch.setSize(count);
+                return count;
+            }
+        }
+    }
+
+    /**
+     * Registers the consumer thread to be unparked as soon as
+     * {@code threshold} poses are queued.
+     */
+    public void setConsumer(Thread consumer, int threshold) {
+        mWakeUpThreshold = threshold;
+        mConsumerThread = consumer;
+    }
+
+    public int size() {
+        long size = mHead.get() - mTail.get();
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /** Number of poses accepted by {@link #offer} since creation. */
+    public long getEnqueuedCount() {
+        return mEnqueuedCount.get();
+    }
+
+    /** Number of poses discarded because the buffer was full. */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.telemetry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.projecttango.tangoutils.metrics.LatencyHistogram;
+
+/**
+ * Background sender that drains a {@link PoseRingBuffer} and posts the poses
+ * to the telemetry endpoint in batches. A batch is sent as soon as
+ * {@code maxBatchSize} poses are queued or the oldest queued pose has waited
+ * {@code maxBatchDelayMs}, whichever comes first.
+ *
+ * Batches are sent in the compact {@link PoseBatchCodec} format by default;
+ * {@link WireFormat#FORM} keeps the original form-encoded fields for
+ * endpoints that have not been upgraded.
+ *
+ * When a {@link TelemetryJournal} is supplied every batch is appended to it
+ * before any send is attempted, and batches are forwarded from the journal in
+ * order. If the endpoint is unreachable they stay in the journal and are
+ * retried with exponential backoff, so an outage only delays the data. The
+ * pose callback is never involved; it only ever touches the ring buffer.
+ *
+ * Requests are made with {@link HttpURLConnection} without ever calling
+ * {@code disconnect()}, and every response body is fully consumed, so the
+ * platform keeps a single keep-alive connection to the endpoint and reuses it
+ * for every batch.
+ *
+ * If a {@link LatencyHistogram} is set with {@link #setSendLatencyHistogram},
+ * the time from each pose being queued to its batch being delivered is
+ * recorded for batches delivered in the same pass they were drained; batches
+ * left in the journal for a later retry are counted by
+ * {@link #getDeferredBatchCount()} instead.
+ */
+public class PoseUploader implements Runnable {
+
+    /**
+     * Encoding of the request body.
+     */
+    public enum WireFormat {
+        /** {@link PoseBatchCodec} binary batches. */
+        BINARY,
+        /** Repeated form-encoded timestamp, translation and rotation fields. */
+        FORM
+    }
+
+    /** Request header identifying the sending device to the endpoint. */
+    public static final String DEVICE_ID_HEADER = "X-Device-Id";
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    public static final long DEFAULT_MAX_BATCH_DELAY_MS = 500;
+
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 5000;
+    private static final long MIN_RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // Upper bound of one form-encoded pose: three keys plus eight doubles.
+    private static final int MAX_FORM_BYTES_PER_POSE = 320;
+
+    private final URL mEndpoint;
+    private final PoseRingBuffer mBuffer;
+    private final int mMaxBatchSize;
+    private final long mMaxBatchDelayNanos;
+    private final PoseBatch mBatch;
+    private final WireFormat mWireFormat;
+    private final TelemetryJournal mJournal;
+    private final TelemetryJournal.Record mJournalRecord;
+
+    private final StringBuilder mFormBuilder;
+    private final byte[] mBody;
+    private final byte[] mResponseBuffer = new byte[512];
+
+    private final AtomicLong mSentPoseCount = new AtomicLong();
+    private final AtomicLong mSentBatchCount = new AtomicLong();
+    private final AtomicLong mFailedBatchCount = new AtomicLong();
+    private final AtomicLong mJournalErrorCount = new AtomicLong();
+    private final AtomicLong mDeferredBatchCount = new AtomicLong();
+    private volatile LatencyHistogram mSendLatency;
+    private volatile IOException mLastError;
+    private long mRetryDelayNanos = MIN_RETRY_DELAY_NANOS;
+    private long mNextRetryNanos;
+
+    private volatile boolean mRunning;
+    private volatile String mDeviceId;
+    private Thread mThread;
+    private Thread mStoppingThread;
+
+    public PoseUploader(String endpoint, PoseRingBuffer buffer)
+            throws MalformedURLException {
+        this(endpoint, buffer, DEFAULT_MAX_BATCH_SIZE,
+                DEFAULT_MAX_BATCH_DELAY_MS, WireFormat.BINARY, null);
+    }
+
+    /**
+     * @param endpoint
+     *            URL the batches are posted to.
+     * @param buffer
+     *            the buffer filled by the pose callback.
+     * @param maxBatchSize
+     *            number of queued poses that triggers an immediate send.
+     * @param maxBatchDelayMs
+     *            longest time a queued pose waits before it is sent.
+     * @param wireFormat
+     *            encoding of the request body.
+     * @param journal
+     *            journal batches are spooled to before sending, or null to
+     *            send directly and drop batches that fail.
+     */
+    public PoseUploader(String endpoint, PoseRingBuffer buffer,
+            int maxBatchSize, long maxBatchDelayMs, WireFormat wireFormat,
+            TelemetryJournal journal) throws MalformedURLException {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        mEndpoint = new URL(endpoint);
+        mBuffer = buffer;
+        mMaxBatchSize = maxBatchSize;
+        mMaxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMs);
+        mBatch = new PoseBatch(maxBatchSize);
+        mWireFormat = wireFormat;
+        if (wireFormat == WireFormat.FORM) {
+            mFormBuilder = new StringBuilder(maxBatchSize
+                    * MAX_FORM_BYTES_PER_POSE);
+            mBody = new byte[maxBatchSize * MAX_FORM_BYTES_PER_POSE];
+        } else {
+            mFormBuilder = null;
+            mBody = new byte[PoseBatchCodec.maxEncodedSize(maxBatchSize)];
+        }
+        mJournal = journal;
+        mJournalRecord = journal != null ? new TelemetryJournal.Record() : null;
+        mNextRetryNanos = System.nanoTime();
+    }
+
+    /**
+     * Sets the identifier sent in the {@link #DEVICE_ID_HEADER} header so the
+     * endpoint can keep poses from different devices apart.
+     */
+    public void setDeviceId(String deviceId) {
+        mDeviceId = deviceId;
+    }
+
+    /**
+     * Sets the histogram receiving enqueue-to-send latencies, or null to stop
+     * recording them.
+     */
+    public void setSendLatencyHistogram(LatencyHistogram sendLatency) {
+        mSendLatency = sendLatency;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, PoseUploader.class.getSimpleName());
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mBuffer.setConsumer(mThread, mMaxBatchSize);
+        mThread.start();
+    }
+
+    /**
+     * Asks the sender thread to flush what is queued and exit. Does not wait
+     * for the thread to finish.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        mBuffer.setConsumer(null, Integer.MAX_VALUE);
+        mStoppingThread = mThread;
+        mThread = null;
+    }
+
+    /**
+     * Waits for the sender thread to finish its final flush after
+     * {@link #stop()}.
+     *
+     * @return false if the thread is still running after the timeout.
+     */
+    public boolean awaitStop(long timeoutMs) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mStoppingThread;
+        }
+        if (thread == null) {
+            return true;
+        }
+        thread.join(timeoutMs);
+        return !thread.isAlive();
+    }
+
+    @Override
+    public void run() {
+        boolean hasPending = false;
+        long firstPendingNanos = 0;
+        while (mRunning) {
+            int pending = mBuffer.size();
+            long now = System.nanoTime();
+            if (pending == 0) {
+                hasPending = false;
+                if (hasBacklog() && now - mNextRetryNanos >= 0) {
+                    forwardJournal(now);
+                } else {
+                    LockSupport.parkNanos(this, mMaxBatchDelayNanos);
+                }
+                continue;
+            }
+            if (!hasPending) {
+                hasPending = true;
+                firstPendingNanos = now;
+            }
+            long waited = now - firstPendingNanos;
+            if (pending < mMaxBatchSize && waited < mMaxBatchDelayNanos) {
+                LockSupport.parkNanos(this, mMaxBatchDelayNanos - waited);
+                continue;
+            }
+            sendNextBatch(now);
+            // Start timing whatever is left over from now.
+            firstPendingNanos = now;
+        }
+
+        // Best effort flush of whatever is still queued.
+        if (mJournal != null) {
+            while (mBuffer.size() > 0) {
+                sendNextBatch(System.nanoTime());
+            }
+            forwardJournal(System.nanoTime());
+            mJournal.sync();
+        } else {
+            while (mBuffer.size() > 0 && sendNextBatch(System.nanoTime())) {
+            }
+        }
+    }
+
+    private boolean hasBacklog() {
+        return mJournal != null && mJournal.hasPending();
+    }
+
+    /**
+     * Drains one batch from the ring buffer and either spools and forwards it
+     * through the journal or sends it directly.
+     *
+     * @return false if the batch could not be delivered or spooled.
+     */
+    private boolean sendNextBatch(long now) {
+        int count = mBuffer.drainTo(mBatch, mMaxBatchSize);
+        if (count == 0) {
+            return true;
+        }
+        int length;
+        int recordType;
+        if (mWireFormat == WireFormat.FORM) {
+            length = encodeForm(mBatch);
+            recordType = TelemetryJournal.TYPE_POSE_FORM;
+        } else {
+            length = PoseBatchCodec.encode(mBatch, mBody, 0);
+            recordType = TelemetryJournal.TYPE_POSE_BATCH;
+        }
+        mBatch.clear();
+
+        if (mJournal != null) {
+            try {
+                mJournal.append(recordType, mBody, 0, length);
+                if (now - mNextRetryNanos >= 0) {
+                    forwardJournal(now);
+                }
+                if (mJournal.hasPending()) {
+                    mDeferredBatchCount.incrementAndGet();
+                } else {
+                    recordSendLatency(count);
+                }
+                return true;
+            } catch (IOException e) {
+                // Could not spool; fall back to a direct send.
+                mLastError = e;
+                mJournalErrorCount.incrementAndGet();
+            }
+        }
+        if (!post(recordType, mBody, length, count)) {
+            return false;
+        }
+        recordSendLatency(count);
+        return true;
+    }
+
+    /**
+     * Records the enqueue-to-send latency of the first {@code count} poses of
+     * the last drained batch, which has just been delivered.
+     */
+    private void recordSendLatency(int count) {
+        LatencyHistogram sendLatency = mSendLatency;
+        if (sendLatency == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long[] enqueueNanos = mBatch.enqueueNanos;
+        for (int i = 0; i < count; i++) {
+            sendLatency.record(now - enqueueNanos[i]);
+        }
+    }
+
+    /**
+     * Sends journaled records in order until the journal is empty or a send
+     * fails, in which case the next attempt is delayed with exponential
+     * backoff.
+     */
+    private void forwardJournal(long now) {
+        TelemetryJournal.Record record = mJournalRecord;
+        try {
+            while (mJournal.peek(record)) {
+                if (!post(record.type, record.data, record.length,
+                        poseCount(record))) {
+                    mNextRetryNanos = now + mRetryDelayNanos;
+                    mRetryDelayNanos = Math.min(mRetryDelayNanos * 2,
+                            MAX_RETRY_DELAY_NANOS);
+                    return;
+                }
+                mJournal.commit();
+                mRetryDelayNanos = MIN_RETRY_DELAY_NANOS;
+                if (mRunning && mBuffer.size() >= mMaxBatchSize) {
+                    // Keep up with live data; the backlog resumes on the
+                    // next pass.
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            mLastError = e;
+            mJournalErrorCount.incrementAndGet();
+            mNextRetryNanos = now + mRetryDelayNanos;
+        }
+    }
+
+    private static int poseCount(TelemetryJournal.Record record) {
+        switch (record.type) {
+        case TelemetryJournal.TYPE_POSE_BATCH:
+            return PoseBatchCodec.readCount(record.data, 0, record.length);
+        case TelemetryJournal.TYPE_POSE_FORM:
+            // Each pose has exactly three fields and values never contain '='.
+            int fields = 0;
+            for (int i = 0; i < record.length; i++) {
+                if (record.data[i] == '=') {
+                    fields++;
+                }
+            }
+            return fields / 3;
+        default:
+            return 0;
+        }
+    }
+
+    private boolean post(int recordType, byte[] body, int length, int poseCount) {
+        String contentType = recordType == TelemetryJournal.TYPE_POSE_FORM ? FORM_CONTENT_TYPE
+                : PoseBatchCodec.CONTENT_TYPE;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) mEndpoint
+                    .openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestProperty("Connection", "keep-alive");
+            connection.setRequestProperty("Content-Type", contentType);
+            String deviceId = mDeviceId;
+            if (deviceId != null) {
+                connection.setRequestProperty(DEVICE_ID_HEADER, deviceId);
+            }
+            connection.setFixedLengthStreamingMode(length);
+
+            OutputStream out = connection.getOutputStream();
+            out.write(body, 0, length);
+            out.close();
+
+            int responseCode = connection.getResponseCode();
+            // Consume the response so the connection returns to the pool.
+            InputStream in = responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ? connection
+                    .getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                while (in.read(mResponseBuffer) != -1) {
+                }
+                in.close();
+            }
+            if (responseCode / 100 != 2) {
+                throw new IOException("Unexpected response code "
+                        + responseCode);
+            }
+            mSentPoseCount.addAndGet(poseCount);
+            mSentBatchCount.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            mLastError = e;
+            mFailedBatchCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Form-encodes the batch into {@link #mBody} as repeated
+     * {@code timestamp}, {@code translation} and {@code rotation} fields.
+     *
+     * @return the number of bytes written.
+     */
+    private int encodeForm(PoseBatch batch) {
+        StringBuilder form = mFormBuilder;
+        form.setLength(0);
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                form.append('&');
+            }
+            form.append("timestamp=").append(batch.timestamps[i]);
+            form.append("&translation=");
+            appendList(form, batch.translations, i * PoseBatch.TRANSLATION_SIZE,
+                    PoseBatch.TRANSLATION_SIZE);
+            form.append("&rotation=");
+            appendList(form, batch.rotations, i * PoseBatch.ROTATION_SIZE,
+                    PoseBatch.ROTATION_SIZE);
+        }
+        // Every character written above is plain ASCII.
+        int length = form.length();
+        for (int i = 0; i < length; i++) {
+            mBody[i] = (byte) form.charAt(i);
+        }
+        return length;
+    }
+
+    private static void appendList(StringBuilder form, double[] values,
+            int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                // URL-encoded ", "
+                form.append("%2C+");
+            }
+            form.append(values[offset + i]);
+        }
+    }
+
+    /** Number of poses acknowledged by the endpoint. */
+    public long getSentPoseCount() {
+        return mSentPoseCount.get();
+    }
+
+    public long getSentBatchCount() {
+        return mSentBatchCount.get();
+    }
+
+    /**
+     * Number of failed send attempts. Without a journal each of these is a
+     * lost batch; with one the batch is retried.
+     */
+    public long getFailedBatchCount() {
+        return mFailedBatchCount.get();
+    }
+
+    /** Number of batches that could not be written to or read from the journal. */
+    public long getJournalErrorCount() {
+        return mJournalErrorCount.get();
+    }
+
+    /**
+     * Number of batches that stayed in the journal after being drained, to be
+     * delivered by a later retry.
+     */
+    public long getDeferredBatchCount() {
+        return mDeferredBatchCount.get();
+    }
+
+    public IOException getLastError() {
+        return mLastError;
+    }
+}
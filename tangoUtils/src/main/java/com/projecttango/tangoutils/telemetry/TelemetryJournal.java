@@ -0,0 +1,381 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.telemetry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only journal of telemetry records, used by
+ * {@link PoseUploader} to store data before sending it and to forward it in
+ * order once the endpoint is reachable again.
+ *
+ * The journal is a directory of fixed-size, memory-mapped segment files. Each
+ * record is written as
+ *
+ * <pre>
+ * length  int32, payload length (written last, 0 marks the end of data)
+ * crc     int32, CRC-32 of type and payload
+ * type    u8
+ * payload length bytes
+ * </pre>
+ *
+ * so a record interrupted by a crash is never seen. When a record does not fit
+ * in the current segment a new one is started; once more than
+ * {@code maxSegments} exist the oldest is deleted, unsent or not, which bounds
+ * disk usage to {@code segmentSize * maxSegments}. The read position is kept
+ * in a small cursor file so unsent data survives a restart. Delivery is
+ * at-least-once: a record whose send was not yet committed may be sent again
+ * after a restart.
+ *
+ * A journal is not thread-safe; the uploader thread owns it.
+ */
+public class TelemetryJournal {
+
+    /** Binary {@link PoseBatchCodec} pose batch. */
+    public static final int TYPE_POSE_BATCH = 1;
+    /** Form-encoded pose batch. */
+    public static final int TYPE_POSE_FORM = 2;
+    /** Depth frame. */
+    public static final int TYPE_DEPTH_FRAME = 3;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".jnl";
+    private static final String CURSOR_FILE = "cursor";
+    private static final int HEADER_SIZE = 4 + 4 + 1;
+    private static final int CURSOR_SIZE = 8 + 4 + 8;
+
+    /**
+     * Reusable holder for a record returned by {@link #peek}.
+     */
+    public static class Record {
+        public int type;
+        public byte[] data = new byte[0];
+        public int length;
+    }
+
+    private static class Segment {
+        final long sequence;
+        final File file;
+        MappedByteBuffer buffer;
+
+        Segment(long sequence, File file) {
+            this.sequence = sequence;
+            this.file = file;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+    private final CRC32 mCrc = new CRC32();
+    private final MappedByteBuffer mCursor;
+
+    private int mWritePosition;
+    private int mReadPosition;
+    private int mPeekedLength = -1;
+    private long mEvictedSegmentCount;
+    private long mCorruptSegmentCount;
+
+    /**
+     * Opens the journal in {@code directory}, creating it if needed and
+     * recovering any records left from a previous session.
+     *
+     * @param segmentSize
+     *            size in bytes of each segment file; also bounds the largest
+     *            record.
+     * @param maxSegments
+     *            number of segment files kept before the oldest is evicted.
+     */
+    public TelemetryJournal(File directory, int segmentSize, int maxSegments)
+            throws IOException {
+        if (segmentSize <= HEADER_SIZE || maxSegments < 2) {
+            throw new IllegalArgumentException(
+                    "Journal needs at least two segments larger than a header");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        mCursor = map(new File(directory, CURSOR_FILE), CURSOR_SIZE);
+        recover();
+    }
+
+    /** Largest payload a single record may carry. */
+    public int maxRecordLength() {
+        return mSegmentSize - HEADER_SIZE;
+    }
+
+    /**
+     * Appends a record, rolling over to a new segment and evicting the oldest
+     * one if needed.
+     */
+    public void append(int type, byte[] data, int offset, int length)
+            throws IOException {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Records cannot be empty");
+        }
+        if (length > maxRecordLength()) {
+            throw new IllegalArgumentException("Record of " + length
+                    + " bytes does not fit in a segment");
+        }
+        if (mWritePosition + HEADER_SIZE + length > mSegmentSize) {
+            rollOver();
+        }
+        MappedByteBuffer buffer = bufferOf(mSegments.getLast());
+        int position = mWritePosition;
+        buffer.put(position + 8, (byte) type);
+        buffer.position(position + HEADER_SIZE);
+        buffer.put(data, offset, length);
+        mCrc.reset();
+        mCrc.update(type);
+        mCrc.update(data, offset, length);
+        buffer.putInt(position + 4, (int) mCrc.getValue());
+        // The length commits the record.
+        buffer.putInt(position, length);
+        mWritePosition = position + HEADER_SIZE + length;
+    }
+
+    /**
+     * Reads the oldest unsent record into {@code record} without removing it.
+     *
+     * @return false if there is nothing left to send.
+     */
+    public boolean peek(Record record) throws IOException {
+        while (true) {
+            Segment segment = mSegments.getFirst();
+            boolean isWriteSegment = segment == mSegments.getLast();
+            int length = recordLengthAt(segment, mReadPosition);
+            if (length > 0 && readRecord(segment, mReadPosition, length, record)) {
+                mPeekedLength = length;
+                return true;
+            }
+            if (length > 0) {
+                // Failed CRC: the rest of this segment cannot be trusted.
+                mCorruptSegmentCount++;
+            } else if (isWriteSegment) {
+                return false;
+            }
+            if (isWriteSegment) {
+                // Only a corrupt write segment gets here; start a fresh one.
+                rollOver();
+            }
+            deleteFirstSegment();
+        }
+    }
+
+    /**
+     * Removes the record returned by the last {@link #peek}.
+     */
+    public void commit() {
+        if (mPeekedLength < 0) {
+            throw new IllegalStateException("commit() without peek()");
+        }
+        mReadPosition += HEADER_SIZE + mPeekedLength;
+        mPeekedLength = -1;
+        saveCursor();
+    }
+
+    /** True if there are records that have not been committed. */
+    public boolean hasPending() {
+        return mSegments.size() > 1 || mReadPosition < mWritePosition;
+    }
+
+    /** Flushes the mapped segments and the cursor to storage. */
+    public void sync() {
+        for (Segment segment : mSegments) {
+            if (segment.buffer != null) {
+                segment.buffer.force();
+            }
+        }
+        mCursor.force();
+    }
+
+    /** Number of segments deleted to keep within the disk budget. */
+    public long getEvictedSegmentCount() {
+        return mEvictedSegmentCount;
+    }
+
+    /** Number of segments abandoned because a record failed its CRC. */
+    public long getCorruptSegmentCount() {
+        return mCorruptSegmentCount;
+    }
+
+    private void recover() throws IOException {
+        File[] files = mDirectory.listFiles();
+        long[] sequences = new long[files == null ? 0 : files.length];
+        int count = 0;
+        for (int i = 0; i < sequences.length; i++) {
+            String name = files[i].getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    sequences[count++] = Long.parseLong(name.substring(
+                            SEGMENT_PREFIX.length(), name.length()
+                                    - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    count--;
+                }
+            }
+        }
+        Arrays.sort(sequences, 0, count);
+        for (int i = 0; i < count; i++) {
+            mSegments.addLast(new Segment(sequences[i], segmentFile(sequences[i])));
+        }
+        if (mSegments.isEmpty()) {
+            addSegment(0);
+        }
+
+        // Restore the read position if the cursor points at a live segment.
+        long cursorSequence = mCursor.getLong(0);
+        int cursorPosition = mCursor.getInt(8);
+        boolean cursorValid = mCursor.getLong(12) == (cursorSequence ^ cursorPosition);
+        while (cursorValid && mSegments.size() > 1
+                && mSegments.getFirst().sequence < cursorSequence) {
+            deleteFirstSegment();
+        }
+        if (cursorValid && mSegments.getFirst().sequence == cursorSequence) {
+            mReadPosition = cursorPosition;
+        } else {
+            mReadPosition = 0;
+        }
+
+        // Find the end of the data in the last segment.
+        Segment last = mSegments.getLast();
+        int position = last == mSegments.getFirst() ? mReadPosition : 0;
+        Record scratch = new Record();
+        int length;
+        while ((length = recordLengthAt(last, position)) > 0
+                && readRecord(last, position, length, scratch)) {
+            position += HEADER_SIZE + length;
+        }
+        if (length > 0) {
+            // Torn or corrupt tail; never append after it.
+            mCorruptSegmentCount++;
+            addSegment(last.sequence + 1);
+            position = 0;
+        }
+        mWritePosition = position;
+        saveCursor();
+    }
+
+    private void rollOver() throws IOException {
+        Segment last = mSegments.getLast();
+        bufferOf(last).force();
+        addSegment(last.sequence + 1);
+        mWritePosition = 0;
+        while (mSegments.size() > mMaxSegments) {
+            mEvictedSegmentCount++;
+            deleteFirstSegment();
+        }
+    }
+
+    private void addSegment(long sequence) throws IOException {
+        Segment segment = new Segment(sequence, segmentFile(sequence));
+        segment.buffer = map(segment.file, mSegmentSize);
+        mSegments.addLast(segment);
+    }
+
+    private void deleteFirstSegment() {
+        Segment first = mSegments.removeFirst();
+        first.buffer = null;
+        if (!first.file.delete() && first.file.exists()) {
+            // Leave it; it is ignored once the cursor has moved past it.
+            first.file.deleteOnExit();
+        }
+        mReadPosition = 0;
+        mPeekedLength = -1;
+        saveCursor();
+    }
+
+    private int recordLengthAt(Segment segment, int position)
+            throws IOException {
+        if (position + HEADER_SIZE > mSegmentSize) {
+            return 0;
+        }
+        int length = bufferOf(segment).getInt(position);
+        if (length < 0 || position + HEADER_SIZE + length > mSegmentSize) {
+            // Garbage length; treat like a CRC failure.
+            return Integer.MAX_VALUE;
+        }
+        return length;
+    }
+
+    private MappedByteBuffer bufferOf(Segment segment) throws IOException {
+        if (segment.buffer == null) {
+            segment.buffer = map(segment.file, mSegmentSize);
+        }
+        return segment.buffer;
+    }
+
+    private boolean readRecord(Segment segment, int position, int length,
+            Record record) {
+        if (length == Integer.MAX_VALUE) {
+            return false;
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        if (record.data.length < length) {
+            record.data = new byte[Math.max(length, record.data.length * 2)];
+        }
+        int type = buffer.get(position + 8) & 0xFF;
+        buffer.position(position + HEADER_SIZE);
+        buffer.get(record.data, 0, length);
+        mCrc.reset();
+        mCrc.update(type);
+        mCrc.update(record.data, 0, length);
+        if ((int) mCrc.getValue() != buffer.getInt(position + 4)) {
+            return false;
+        }
+        record.type = type;
+        record.length = length;
+        return true;
+    }
+
+    private void saveCursor() {
+        long sequence = mSegments.getFirst().sequence;
+        mCursor.putLong(0, sequence);
+        mCursor.putInt(8, mReadPosition);
+        mCursor.putLong(12, sequence ^ mReadPosition);
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(mDirectory, String.format(Locale.US, "%s%016d%s", SEGMENT_PREFIX,
+                sequence, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid after the file is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+public class ModelMatCalculatorTest {
+
+    private static final int WARM_UP_CALLS = 20000;
+    private static final int MEASURED_CALLS = 100000;
+    private static final int ATTEMPTS = 5;
+
+    @Test
+    public void steadyStateUpdatesDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ModelMatCalculator calculator = new ModelMatCalculator();
+        calculator.SetDevice2IMUMatrix(new float[] { 0.01f, -0.02f, 0.005f },
+                new float[] { 0.01f, 0.7f, 0.01f, 0.71f });
+        calculator.SetColorCamera2IMUMatrix(new float[] { 0.06f, 0.005f, -0.004f },
+                new float[] { 0.7f, 0.01f, 0.01f, 0.71f });
+        float[] translation = new float[3];
+        float[] rotation = new float[4];
+        float[] matrix = new float[16];
+
+        // Let the JIT compile the update path before measuring it.
+        updatePoses(calculator, WARM_UP_CALLS, translation, rotation, matrix);
+
+        // Measuring costs a few bytes whatever is measured, and the JIT can
+        // still allocate while it recompiles, so compare with a single update
+        // and keep the best of a few attempts. An allocation per pose would
+        // show in every attempt.
+        long extra = Long.MAX_VALUE;
+        for (int attempt = 0; attempt < ATTEMPTS && extra != 0; attempt++) {
+            long single = allocatedBytes(threads, calculator, 1, translation, rotation,
+                    matrix);
+            long many = allocatedBytes(threads, calculator, MEASURED_CALLS, translation,
+                    rotation, matrix);
+            extra = Math.min(extra, many - single);
+        }
+
+        assertEquals("Bytes allocated by " + MEASURED_CALLS + " pose updates", 0, extra);
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads,
+            ModelMatCalculator calculator, int count, float[] translation,
+            float[] rotation, float[] matrix) {
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        updatePoses(calculator, count, translation, rotation, matrix);
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    /** Updates both matrices as the pose and depth callbacks do. */
+    private static void updatePoses(ModelMatCalculator calculator, int count,
+            float[] translation, float[] rotation, float[] matrix) {
+        for (int i = 0; i < count; i++) {
+            float angle = i * 1e-3f;
+            translation[0] = angle;
+            translation[1] = -angle;
+            translation[2] = 1f;
+            rotation[0] = 0f;
+            rotation[1] = (float) Math.sin(angle);
+            rotation[2] = 0f;
+            rotation[3] = (float) Math.cos(angle);
+            calculator.updateModelMatrix(translation, rotation);
+            calculator.updatePointCloudModelMatrix(translation, rotation);
+            calculator.getPointCloudModelMatrix(matrix);
+            calculator.getTranslation(translation);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class TripleBufferTest {
+
+    private static final int SNAPSHOT_SIZE = 256;
+
+    @Test
+    public void returnsTheInitialBufferBeforeTheFirstPublish() {
+        long[] initial = new long[1];
+        TripleBuffer<long[]> buffer = new TripleBuffer<long[]>(initial, new long[1],
+                new long[1]);
+        assertSame(initial, buffer.acquire());
+        assertSame(initial, buffer.acquire());
+        assertNotSame(initial, buffer.getWriteBuffer());
+    }
+
+    @Test
+    public void returnsOnlyTheNewestSnapshot() {
+        TripleBuffer<long[]> buffer = newBuffer(1);
+        for (long stamp = 1; stamp <= 5; stamp++) {
+            publish(buffer, stamp);
+        }
+        assertEquals(5, buffer.acquire()[0]);
+        // Nothing newer: the same snapshot again.
+        assertEquals(5, buffer.acquire()[0]);
+        publish(buffer, 6);
+        assertEquals(6, buffer.acquire()[0]);
+        publish(buffer, 7);
+        publish(buffer, 8);
+        assertEquals(8, buffer.acquire()[0]);
+    }
+
+    @Test
+    public void acquiredSnapshotIsNeverTheWriteBuffer() {
+        TripleBuffer<long[]> buffer = newBuffer(1);
+        Random random = new Random(1);
+        long stamp = 0;
+        long[] acquired = buffer.acquire();
+        long acquiredStamp = 0;
+        for (int step = 0; step < 10000; step++) {
+            if (random.nextBoolean()) {
+                publish(buffer, ++stamp);
+                // Publishing does not touch what the consumer holds.
+                assertEquals(acquiredStamp, acquired[0]);
+            } else {
+                acquired = buffer.acquire();
+                acquiredStamp = acquired[0];
+                assertEquals(stamp, acquiredStamp);
+            }
+            assertNotSame(acquired, buffer.getWriteBuffer());
+        }
+    }
+
+    @Test
+    public void rejectsSharedInstances() {
+        long[] shared = new long[1];
+        try {
+            new TripleBuffer<long[]>(shared, new long[1], shared);
+            fail("Accepted the same instance twice");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * The producer stamps every element of a snapshot with its sequence
+     * number. The consumer must only ever see whole snapshots, with
+     * sequence numbers that never go back, and each must stay unchanged
+     * while it is held.
+     */
+    @Test(timeout = 60000)
+    public void consumerNeverSeesASnapshotBeingWritten() throws InterruptedException {
+        final TripleBuffer<long[]> buffer = newBuffer(SNAPSHOT_SIZE);
+        final int publishes = 500000;
+        final AtomicBoolean isPublishing = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long stamp = 1; stamp <= publishes; stamp++) {
+                    publish(buffer, stamp);
+                }
+                isPublishing.set(false);
+            }
+        });
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long last = 0;
+                long acquires = 0;
+                while (isPublishing.get() && failure.get() == null) {
+                    long[] snapshot = buffer.acquire();
+                    long stamp = snapshot[0];
+                    for (int i = 1; i < snapshot.length; i++) {
+                        if (snapshot[i] != stamp) {
+                            failure.set("Snapshot " + stamp + " has " + snapshot[i]
+                                    + " at " + i);
+                        }
+                    }
+                    if (stamp < last) {
+                        failure.set("Snapshot " + stamp + " after " + last);
+                    }
+                    last = stamp;
+                    Thread.yield();
+                    if (snapshot[snapshot.length - 1] != stamp || snapshot[0] != stamp) {
+                        failure.set("Snapshot " + stamp + " changed while held");
+                    }
+                    acquires++;
+                }
+                if (last == 0 || acquires < 2) {
+                    failure.compareAndSet(null, "Consumer saw no snapshots");
+                }
+            }
+        });
+        producer.start();
+        consumer.start();
+        producer.join();
+        consumer.join();
+        if (failure.get() != null) {
+            fail(failure.get());
+        }
+    }
+
+    private static TripleBuffer<long[]> newBuffer(int size) {
+        return new TripleBuffer<long[]>(new long[size], new long[size], new long[size]);
+    }
+
+    private static void publish(TripleBuffer<long[]> buffer, long stamp) {
+        Arrays.fill(buffer.getWriteBuffer(), stamp);
+        buffer.publish();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrustumTest {
+
+    /**
+     * A camera at the origin looking down -z with a 90 degree field of view,
+     * near plane 1 and far plane 10: at depth d the frustum spans -d to d.
+     */
+    private static Frustum cameraAtOrigin() {
+        float[] view = new float[16];
+        Matrix4.setIdentity(view, 0);
+        float[] projection = new float[16];
+        Matrix4.perspective(projection, 0, 90, 1, 1, 10);
+        Frustum frustum = new Frustum();
+        frustum.set(view, projection);
+        return frustum;
+    }
+
+    @Test
+    public void acceptsEverythingUntilSet() {
+        Frustum frustum = new Frustum();
+        assertTrue(frustum.intersectsBox(1e6f, 1e6f, 1e6f, 1e6f + 1, 1e6f + 1, 1e6f + 1));
+        assertTrue(frustum.intersectsSphere(-1e6f, 0, 1e6f, 0));
+    }
+
+    @Test
+    public void boxesInsideOrStraddlingAreVisible() {
+        Frustum frustum = cameraAtOrigin();
+        assertTrue(frustum.intersectsBox(-0.5f, -0.5f, -5.5f, 0.5f, 0.5f, -4.5f));
+        // Larger than the frustum.
+        assertTrue(frustum.intersectsBox(-100, -100, -100, 100, 100, 100));
+        // Across the right plane, the near plane and the far plane.
+        assertTrue(frustum.intersectsBox(4, -1, -6, 6, 1, -4));
+        assertTrue(frustum.intersectsBox(-0.1f, -0.1f, -1.5f, 0.1f, 0.1f, 0));
+        assertTrue(frustum.intersectsBox(-1, -1, -11, 1, 1, -9));
+    }
+
+    @Test
+    public void boxesOutsideArePassedOver() {
+        Frustum frustum = cameraAtOrigin();
+        // Behind the camera, in front of the near plane and beyond the far plane.
+        assertFalse(frustum.intersectsBox(-1, -1, 1, 1, 1, 2));
+        assertFalse(frustum.intersectsBox(-0.1f, -0.1f, -0.9f, 0.1f, 0.1f, -0.5f));
+        assertFalse(frustum.intersectsBox(-1, -1, -12, 1, 1, -11));
+        // Left, right, below and above at a depth of 5.
+        assertFalse(frustum.intersectsBox(-20, -1, -6, -15, 1, -4));
+        assertFalse(frustum.intersectsBox(15, -1, -6, 20, 1, -4));
+        assertFalse(frustum.intersectsBox(-1, -20, -6, 1, -15, -4));
+        assertFalse(frustum.intersectsBox(-1, 15, -6, 1, 20, -4));
+    }
+
+    @Test
+    public void spheresAreTestedBySignedDistance() {
+        Frustum frustum = cameraAtOrigin();
+        assertTrue(frustum.intersectsSphere(0, 0, -5, 0.5f));
+        // (7, 0, -5) is sqrt(2) outside the right plane.
+        assertFalse(frustum.intersectsSphere(7, 0, -5, 1));
+        assertTrue(frustum.intersectsSphere(7, 0, -5, 2));
+        assertFalse(frustum.intersectsSphere(0, 0, 3, 1));
+        // 1.5 in front of the near plane.
+        assertTrue(frustum.intersectsSphere(0, 0, 0.5f, 2));
+        assertFalse(frustum.intersectsSphere(0, 0, -12, 1));
+    }
+
+    @Test
+    public void followsTheViewMatrix() {
+        // The camera moved to z = 10, still looking down -z.
+        float[] view = new float[16];
+        Matrix4.setLookAt(view, 0, 0, 0, 10, 0, 0, 0, 0, 1, 0);
+        float[] projection = new float[16];
+        Matrix4.perspective(projection, 0, 90, 1, 1, 20);
+        Frustum frustum = new Frustum();
+        frustum.set(view, projection);
+        assertTrue(frustum.intersectsBox(-1, -1, -1, 1, 1, 1));
+        assertFalse(frustum.intersectsBox(-1, -1, 11, 1, 1, 12));
+        assertFalse(frustum.intersectsSphere(0, 0, -15, 1));
+        assertTrue(frustum.intersectsSphere(0, 0, -9, 1));
+    }
+}
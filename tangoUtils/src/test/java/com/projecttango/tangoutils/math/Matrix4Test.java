@@ -0,0 +1,275 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.math;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Matrix4Test {
+
+    private static final float TOLERANCE = 1e-6f;
+    private static final float SQRT_HALF = (float) Math.sqrt(0.5);
+
+    // 90 degrees about z, then a translation by (1, 2, 3), column-major.
+    private static final float[] ROTATE_Z_TRANSLATE = {
+            0, 1, 0, 0,
+            -1, 0, 0, 0,
+            0, 0, 1, 0,
+            1, 2, 3, 1 };
+
+    @Test
+    public void multipliesColumnMajor() {
+        float[] lhs = new float[16];
+        float[] rhs = new float[16];
+        for (int i = 0; i < 16; i++) {
+            lhs[i] = i + 1;
+            rhs[i] = i + 17;
+        }
+        float[] result = new float[16];
+        Matrix4.multiply(result, 0, lhs, 0, rhs, 0);
+        assertArrayEquals(new float[] {
+                538, 612, 686, 760,
+                650, 740, 830, 920,
+                762, 868, 974, 1080,
+                874, 996, 1118, 1240 }, result, 0);
+    }
+
+    @Test
+    public void multipliesTranslationAfterScale() {
+        float[] translate = identity();
+        translate[12] = 1;
+        translate[13] = 2;
+        translate[14] = 3;
+        float[] scale = identity();
+        scale[0] = 2;
+        scale[5] = 3;
+        scale[10] = 4;
+        float[] result = new float[16];
+        Matrix4.multiply(result, 0, translate, 0, scale, 0);
+        assertArrayEquals(new float[] {
+                2, 0, 0, 0,
+                0, 3, 0, 0,
+                0, 0, 4, 0,
+                1, 2, 3, 1 }, result, 0);
+        Matrix4.multiply(result, 0, scale, 0, translate, 0);
+        assertArrayEquals(new float[] {
+                2, 0, 0, 0,
+                0, 3, 0, 0,
+                0, 0, 4, 0,
+                2, 6, 12, 1 }, result, 0);
+    }
+
+    @Test
+    public void multipliesIntoEitherInputAndAtOffsets() {
+        Random random = new Random(1);
+        float[] lhs = randomMatrix(random);
+        float[] rhs = randomMatrix(random);
+        float[] expected = new float[16];
+        Matrix4.multiply(expected, 0, lhs, 0, rhs, 0);
+
+        float[] inPlace = lhs.clone();
+        Matrix4.multiply(inPlace, 0, inPlace, 0, rhs, 0);
+        assertArrayEquals(expected, inPlace, 0);
+        inPlace = rhs.clone();
+        Matrix4.multiply(inPlace, 0, lhs, 0, inPlace, 0);
+        assertArrayEquals(expected, inPlace, 0);
+
+        float[] packed = new float[3 * 16 + 1];
+        System.arraycopy(lhs, 0, packed, 1, 16);
+        System.arraycopy(rhs, 0, packed, 17, 16);
+        Matrix4.multiply(packed, 33, packed, 1, packed, 17);
+        assertArrayEquals(expected, slice(packed, 33), 0);
+    }
+
+    @Test
+    public void invertsRigidTransform() {
+        float[] inverse = new float[16];
+        Matrix4.invertRigid(inverse, 0, ROTATE_Z_TRANSLATE, 0);
+        assertArrayEquals(new float[] {
+                0, -1, 0, 0,
+                1, 0, 0, 0,
+                0, 0, 1, 0,
+                -2, 1, -3, 1 }, inverse, 0);
+        float[] product = new float[16];
+        Matrix4.multiply(product, 0, ROTATE_Z_TRANSLATE, 0, inverse, 0);
+        assertArrayEquals(identity(), product, 0);
+    }
+
+    @Test
+    public void rigidInverseTimesMatrixIsIdentity() {
+        Random random = new Random(2);
+        for (int n = 0; n < 100; n++) {
+            float[] q = { random.nextFloat() - 0.5f, random.nextFloat() - 0.5f,
+                    random.nextFloat() - 0.5f, random.nextFloat() - 0.5f };
+            float[] t = { random.nextFloat() * 10, random.nextFloat() * 10,
+                    random.nextFloat() * 10 };
+            float[] m = new float[16];
+            Matrix4.setRotationTranslation(m, 0, q, t);
+
+            float[] inverse = new float[16];
+            Matrix4.invertRigid(inverse, 0, m, 0);
+            float[] product = new float[16];
+            Matrix4.multiply(product, 0, m, 0, inverse, 0);
+            assertArrayEquals(identity(), product, 1e-5f);
+            Matrix4.multiply(product, 0, inverse, 0, m, 0);
+            assertArrayEquals(identity(), product, 1e-5f);
+
+            // Agrees with the general inverse, and may run in place.
+            float[] general = new float[16];
+            assertTrue(Matrix4.invert(general, 0, m, 0));
+            assertArrayEquals(general, inverse, 1e-5f);
+            Matrix4.invertRigid(m, 0, m, 0);
+            assertArrayEquals(inverse, m, 0);
+        }
+    }
+
+    @Test
+    public void doesNotInvertSingularMatrix() {
+        float[] singular = identity();
+        singular[10] = 0;
+        float[] result = identity();
+        assertFalse(Matrix4.invert(result, 0, singular, 0));
+        assertArrayEquals(identity(), result, 0);
+    }
+
+    @Test
+    public void setsRotationTranslationFromQuaternion() {
+        float[] m = new float[16];
+        Matrix4.setRotationTranslation(m, 0, new float[] { 0, 0, SQRT_HALF, SQRT_HALF },
+                new float[] { 1, 2, 3 });
+        assertArrayEquals(ROTATE_Z_TRANSLATE, m, TOLERANCE);
+
+        // Not normalized: only the direction of the quaternion matters.
+        Matrix4.setRotationTranslation(m, 0, new float[] { 0, 0, 2, 2 },
+                new float[] { 1, 2, 3 });
+        assertArrayEquals(ROTATE_Z_TRANSLATE, m, TOLERANCE);
+
+        // 180 degrees about x, without translation.
+        Matrix4.setRotationTranslation(m, 0, new float[] { 1, 0, 0, 0 }, null);
+        assertArrayEquals(new float[] {
+                1, 0, 0, 0,
+                0, -1, 0, 0,
+                0, 0, -1, 0,
+                0, 0, 0, 1 }, m, 0);
+
+        // 90 degrees about y maps x to -z.
+        Matrix4.setRotationTranslation(m, 0, new float[] { 0, SQRT_HALF, 0, SQRT_HALF }, null);
+        assertArrayEquals(new float[] {
+                0, 0, -1, 0,
+                0, 1, 0, 0,
+                1, 0, 0, 0,
+                0, 0, 0, 1 }, m, TOLERANCE);
+
+        Matrix4.setRotationTranslation(m, 0, new float[4], null);
+        assertArrayEquals(identity(), m, 0);
+    }
+
+    @Test
+    public void quaternionProductMatchesMatrixProduct() {
+        Random random = new Random(3);
+        for (int n = 0; n < 100; n++) {
+            float[] a = randomUnitQuaternion(random);
+            float[] b = randomUnitQuaternion(random);
+            float[] ab = new float[4];
+            Quaternion.multiply(ab, a, b);
+
+            float[] ma = new float[16];
+            float[] mb = new float[16];
+            float[] mab = new float[16];
+            float[] product = new float[16];
+            Matrix4.setRotationTranslation(ma, 0, a, null);
+            Matrix4.setRotationTranslation(mb, 0, b, null);
+            Matrix4.setRotationTranslation(mab, 0, ab, null);
+            Matrix4.multiply(product, 0, ma, 0, mb, 0);
+            assertArrayEquals(mab, product, 1e-5f);
+
+            // Rotating a vector agrees with the matrix.
+            float[] v = { random.nextFloat(), random.nextFloat(), random.nextFloat() };
+            float[] rotated = new float[3];
+            Quaternion.rotate(rotated, a, v);
+            float[] transformed = new float[3];
+            Matrix4.transformPoints(ma, 0, v, 0, transformed, 0, 1);
+            assertArrayEquals(transformed, rotated, 1e-5f);
+        }
+    }
+
+    @Test
+    public void quaternionsComposeKnownRotations() {
+        float[] result = new float[4];
+        // i * j = k.
+        Quaternion.multiply(result, new float[] { 1, 0, 0, 0 }, new float[] { 0, 1, 0, 0 });
+        assertArrayEquals(new float[] { 0, 0, 1, 0 }, result, 0);
+
+        // Two quarter turns about z make a half turn.
+        float[] quarterZ = { 0, 0, SQRT_HALF, SQRT_HALF };
+        Quaternion.multiply(result, quarterZ, quarterZ);
+        assertArrayEquals(new float[] { 0, 0, 1, 0 }, result, TOLERANCE);
+
+        float[] v = { 1, 0, 0 };
+        Quaternion.rotate(v, quarterZ, v);
+        assertArrayEquals(new float[] { 0, 1, 0 }, v, TOLERANCE);
+
+        // A unit quaternion times its conjugate is no rotation.
+        float[] conjugate = new float[4];
+        Quaternion.conjugate(conjugate, quarterZ);
+        assertArrayEquals(new float[] { 0, 0, -SQRT_HALF, SQRT_HALF }, conjugate, 0);
+        Quaternion.multiply(result, quarterZ, conjugate);
+        assertArrayEquals(new float[] { 0, 0, 0, 1 }, result, TOLERANCE);
+    }
+
+    @Test
+    public void normalizesQuaternion() {
+        float[] q = { 0, 0, 3, 4 };
+        assertTrue(Quaternion.normalize(q));
+        assertArrayEquals(new float[] { 0, 0, 0.6f, 0.8f }, q, TOLERANCE);
+        float[] zero = new float[4];
+        assertFalse(Quaternion.normalize(zero));
+        assertArrayEquals(new float[4], zero, 0);
+    }
+
+    private static float[] identity() {
+        float[] m = new float[16];
+        Matrix4.setIdentity(m, 0);
+        return m;
+    }
+
+    private static float[] randomMatrix(Random random) {
+        float[] m = new float[16];
+        for (int i = 0; i < 16; i++) {
+            m[i] = random.nextFloat() * 2 - 1;
+        }
+        return m;
+    }
+
+    private static float[] randomUnitQuaternion(Random random) {
+        float[] q = { (float) random.nextGaussian(), (float) random.nextGaussian(),
+                (float) random.nextGaussian(), (float) random.nextGaussian() };
+        Quaternion.normalize(q);
+        return q;
+    }
+
+    private static float[] slice(float[] m, int offset) {
+        float[] copy = new float[16];
+        System.arraycopy(m, offset, copy, 0, 16);
+        return copy;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PointQuantizerTest {
+
+    private static final int FRAME_POINTS = 10000;
+    private static final float MIN_DEPTH = 0.5f;
+    private static final float MAX_DEPTH = 8;
+
+    @Test
+    public void depthFramesRestoreWithinOneStepOfTheExtent() {
+        Random random = new Random(1);
+        for (int frame = 0; frame < 20; frame++) {
+            FloatBuffer xyz = depthFrame(random, FRAME_POINTS);
+            assertRestores(xyz, FRAME_POINTS, new PointQuantizer(false), ByteOrder.nativeOrder());
+        }
+    }
+
+    @Test
+    public void singleFarOutlierStaysWithinOneStepOfTheExtent() {
+        Random random = new Random(2);
+        FloatBuffer xyz = depthFrame(random, FRAME_POINTS);
+        int outlier = random.nextInt(FRAME_POINTS) * 3;
+        xyz.put(outlier, -3.5f);
+        xyz.put(outlier + 1, 2.25f);
+        xyz.put(outlier + 2, 65);
+        float extent = assertRestores(xyz, FRAME_POINTS, new PointQuantizer(false),
+                ByteOrder.nativeOrder());
+        assertTrue(extent > 64);
+    }
+
+    @Test
+    public void coloredPointsRestoreInEitherByteOrder() {
+        Random random = new Random(3);
+        FloatBuffer xyz = depthFrame(random, FRAME_POINTS);
+        IntBuffer colors = IntBuffer.allocate(FRAME_POINTS);
+        for (int i = 0; i < FRAME_POINTS; i++) {
+            colors.put(i, random.nextInt());
+        }
+        PointQuantizer quantizer = new PointQuantizer(true);
+        assertRestores(xyz, FRAME_POINTS, quantizer, ByteOrder.BIG_ENDIAN);
+        ByteBuffer out = quantize(xyz, FRAME_POINTS, colors, quantizer, ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < FRAME_POINTS; i++) {
+            int argb = colors.get(i);
+            int p = i * PointQuantizer.BYTES_PER_COLORED_POINT + 8;
+            assertEquals((byte) (argb >> 16), out.get(p));
+            assertEquals((byte) (argb >> 8), out.get(p + 1));
+            assertEquals((byte) argb, out.get(p + 2));
+            assertEquals((byte) (argb >>> 24), out.get(p + 3));
+        }
+    }
+
+    @Test
+    public void singlePointRestoresExactly() {
+        FloatBuffer xyz = FloatBuffer.wrap(new float[] { 0.25f, -1.5f, 7.75f });
+        assertRestores(xyz, 1, new PointQuantizer(false), ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Points as a depth camera sees them: depths between 0.5 and 8 m, spread
+     * over a field of view about 60 degrees wide.
+     */
+    private static FloatBuffer depthFrame(Random random, int pointCount) {
+        FloatBuffer xyz = FloatBuffer.allocate(pointCount * 3);
+        for (int i = 0; i < pointCount; i++) {
+            float z = MIN_DEPTH + random.nextFloat() * (MAX_DEPTH - MIN_DEPTH);
+            xyz.put((random.nextFloat() - 0.5f) * 1.15f * z);
+            xyz.put((random.nextFloat() - 0.5f) * 0.9f * z);
+            xyz.put(z);
+        }
+        xyz.flip();
+        return xyz;
+    }
+
+    private static ByteBuffer quantize(FloatBuffer xyz, int pointCount, IntBuffer colors,
+            PointQuantizer quantizer, ByteOrder order) {
+        ByteBuffer out = ByteBuffer.allocate(pointCount * quantizer.getBytesPerPoint());
+        out.order(order);
+        quantizer.quantize(xyz, pointCount, colors, out);
+        assertEquals(0, xyz.position());
+        assertEquals(out.capacity(), out.position());
+        return out;
+    }
+
+    /**
+     * Restores each point as the vertex shader does, in float, and checks
+     * every coordinate against the longest side of the bounding box divided
+     * by the 65534 steps across it.
+     *
+     * @return the longest side of the bounding box.
+     */
+    private static float assertRestores(FloatBuffer xyz, int pointCount,
+            PointQuantizer quantizer, ByteOrder order) {
+        ByteBuffer out = quantize(xyz, pointCount, null, quantizer, order);
+        float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int i = 0; i < pointCount * 3; i++) {
+            min[i % 3] = Math.min(min[i % 3], xyz.get(i));
+            max[i % 3] = Math.max(max[i % 3], xyz.get(i));
+        }
+        float extent = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+        double tolerance = extent / 65534.0;
+
+        float[] origin = quantizer.getOrigin();
+        float scale = quantizer.getScale();
+        for (int i = 0; i < pointCount; i++) {
+            int p = i * quantizer.getBytesPerPoint();
+            for (int axis = 0; axis < 3; axis++) {
+                float restored = origin[axis] + out.getShort(p + axis * 2) * scale;
+                assertEquals(xyz.get(i * 3 + axis), restored, tolerance);
+            }
+            assertEquals(0, out.getShort(p + 6));
+        }
+        return extent;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pointcloud;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.projecttango.tangoutils.math.Matrix4;
+
+public class PointTransformerTest {
+
+    private static final int THREADS = 3;
+    private static final int THRESHOLD = 1000;
+    // Around the threshold, and counts the three slices do not divide.
+    private static final int[] POINT_COUNTS = { 0, 1, 2, THRESHOLD - 1, THRESHOLD,
+            THRESHOLD + 1, 3001, 10007 };
+
+    private final PointTransformer mSerial = new PointTransformer(1, THRESHOLD);
+    private final PointTransformer mSplit = new PointTransformer(THREADS, THRESHOLD);
+    private final Random mRandom = new Random(1);
+
+    @After
+    public void tearDown() {
+        mSplit.close();
+    }
+
+    @Test
+    public void interleavedPathsMatchMatrix4() {
+        float[] matrix = randomPose();
+        for (int count : POINT_COUNTS) {
+            float[] xyz = randomPoints(count + 5);
+            float[] expected = reference(matrix, xyz, count);
+            for (PointTransformer transformer : new PointTransformer[] { mSerial, mSplit }) {
+                float[] world = unwritten(xyz.length);
+                transformer.transform(matrix, xyz, count, world);
+                assertArrayEquals(message(transformer, count), expected, world, 0);
+
+                float[] inPlace = xyz.clone();
+                transformer.transform(matrix, inPlace, count, inPlace);
+                assertArrayEquals(message(transformer, count), withTail(expected, xyz, count),
+                        inPlace, 0);
+
+                world = unwritten(xyz.length);
+                FloatBuffer buffer = FloatBuffer.wrap(xyz);
+                buffer.position(7);
+                transformer.transform(matrix, buffer, count, world);
+                assertArrayEquals(message(transformer, count), expected, world, 0);
+            }
+        }
+    }
+
+    @Test
+    public void separatePathsMatchMatrix4() {
+        float[] matrix = randomPose();
+        for (int count : POINT_COUNTS) {
+            float[] xyz = randomPoints(count + 5);
+            float[] expected = reference(matrix, xyz, count);
+            int length = count + 5;
+            float[] x = new float[length];
+            float[] y = new float[length];
+            float[] z = new float[length];
+            PointTransformer.deinterleave(xyz, length, x, y, z);
+            for (PointTransformer transformer : new PointTransformer[] { mSerial, mSplit }) {
+                float[] worldX = unwritten(length);
+                float[] worldY = unwritten(length);
+                float[] worldZ = unwritten(length);
+                transformer.transform(matrix, x, y, z, count, worldX, worldY, worldZ);
+                float[] world = unwritten(length * 3);
+                for (int i = 0; i < length; i++) {
+                    world[i * 3] = worldX[i];
+                    world[i * 3 + 1] = worldY[i];
+                    world[i * 3 + 2] = worldZ[i];
+                }
+                assertArrayEquals(message(transformer, count), expected, world, 0);
+            }
+        }
+    }
+
+    @Test
+    public void transformsOnTheCallingThreadAfterClose() {
+        PointTransformer transformer = new PointTransformer(THREADS, THRESHOLD);
+        transformer.close();
+        float[] matrix = randomPose();
+        float[] xyz = randomPoints(3001);
+        float[] world = new float[xyz.length];
+        transformer.transform(matrix, xyz, 3001, world);
+        assertArrayEquals(reference(matrix, xyz, 3001), world, 0);
+    }
+
+    @Test
+    public void rejectsBadArguments() {
+        float[] matrix = randomPose();
+        float[] x = new float[10];
+        float[] y = new float[10];
+        float[] z = new float[10];
+        try {
+            mSplit.transform(matrix, x, y, z, 10, new float[10], y, new float[10]);
+            fail("Transformed separate arrays in place");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            mSplit.transform(matrix, new float[29], 10, new float[30]);
+            fail("Read past the input");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            mSplit.transform(new float[12], new float[30], 10, new float[30]);
+            fail("Accepted a 3x4 matrix");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Transforms {@code count} points with {@link Matrix4}, leaving the rest
+     * of the output as {@link #unwritten}.
+     */
+    private static float[] reference(float[] matrix, float[] xyz, int count) {
+        float[] world = unwritten(xyz.length);
+        for (int i = 0; i < count * 3; i += 3) {
+            Matrix4.transformPoints(matrix, 0, xyz, i, world, i, 1);
+        }
+        return world;
+    }
+
+    /** The transformed points followed by the untouched rest of the input. */
+    private static float[] withTail(float[] expected, float[] xyz, int count) {
+        float[] result = expected.clone();
+        System.arraycopy(xyz, count * 3, result, count * 3, xyz.length - count * 3);
+        return result;
+    }
+
+    /** An output array whose unwritten elements stand out. */
+    private static float[] unwritten(int length) {
+        float[] array = new float[length];
+        Arrays.fill(array, -12345);
+        return array;
+    }
+
+    private float[] randomPose() {
+        float[] matrix = new float[Matrix4.SIZE];
+        Matrix4.setRotationTranslation(matrix, 0, new float[] { mRandom.nextFloat(),
+                mRandom.nextFloat(), mRandom.nextFloat(), mRandom.nextFloat() }, new float[] {
+                mRandom.nextFloat() * 10, mRandom.nextFloat() * 10, mRandom.nextFloat() * 10 });
+        return matrix;
+    }
+
+    private float[] randomPoints(int count) {
+        float[] xyz = new float[count * 3];
+        for (int i = 0; i < xyz.length; i++) {
+            xyz[i] = mRandom.nextFloat() * 8 - 4;
+        }
+        return xyz;
+    }
+
+    private static String message(PointTransformer transformer, int count) {
+        return transformer.getThreadCount() + " threads, " + count + " points";
+    }
+}
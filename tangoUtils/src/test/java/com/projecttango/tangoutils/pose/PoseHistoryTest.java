@@ -0,0 +1,223 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.pose;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class PoseHistoryTest {
+
+    private static final double TOLERANCE = 1e-12;
+    private static final double[] IDENTITY = { 0, 0, 0, 1 };
+    // 90 degrees about z.
+    private static final double[] QUARTER_Z = { 0, 0, Math.sqrt(0.5), Math.sqrt(0.5) };
+
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+
+    @Test
+    public void returnsExactHits() {
+        PoseHistory history = new PoseHistory(8);
+        history.add(1, new double[] { 1, 2, 3 }, IDENTITY, 10);
+        history.add(2, new double[] { 4, 5, 6 }, QUARTER_Z, 11);
+        history.add(3, new double[] { 7, 8, 9 }, IDENTITY, 12);
+
+        assertEquals(11, history.getPoseAtTime(2, mTranslation, mRotation));
+        assertArrayEquals(new double[] { 4, 5, 6 }, mTranslation, 0);
+        assertArrayEquals(QUARTER_Z, mRotation, TOLERANCE);
+        assertEquals(10, history.getPoseAtTime(1, mTranslation, mRotation));
+        assertArrayEquals(new double[] { 1, 2, 3 }, mTranslation, 0);
+        assertEquals(12, history.getPoseAtTime(3, mTranslation, mRotation));
+        assertArrayEquals(new double[] { 7, 8, 9 }, mTranslation, 0);
+        assertArrayEquals(IDENTITY, mRotation, 0);
+    }
+
+    @Test
+    public void interpolatesBetweenPoses() {
+        PoseHistory history = new PoseHistory(8);
+        history.add(10, new double[] { 0, 0, 0 }, IDENTITY, 1);
+        history.add(11, new double[] { 2, 4, -6 }, QUARTER_Z, 2);
+
+        assertEquals(1, history.getPoseAtTime(10.25, mTranslation, mRotation));
+        assertArrayEquals(new double[] { 0.5, 1, -1.5 }, mTranslation, TOLERANCE);
+        // Slerp turns at a constant rate: a quarter of the way is 22.5 degrees.
+        assertArrayEquals(aboutZ(22.5), mRotation, TOLERANCE);
+
+        history.getPoseAtTime(10.5, mTranslation, mRotation);
+        assertArrayEquals(new double[] { 1, 2, -3 }, mTranslation, TOLERANCE);
+        assertArrayEquals(aboutZ(45), mRotation, TOLERANCE);
+
+        assertEquals(2, history.getPoseAtTime(10.75, mTranslation, mRotation));
+        assertArrayEquals(aboutZ(67.5), mRotation, TOLERANCE);
+    }
+
+    @Test
+    public void interpolatesNearlyEqualRotations() {
+        PoseHistory history = new PoseHistory(8);
+        history.add(0, new double[3], aboutZ(10), 0);
+        history.add(1, new double[3], aboutZ(11), 0);
+        history.getPoseAtTime(0.5, mTranslation, mRotation);
+        // Blended linearly below the slerp threshold, still close to slerp.
+        assertArrayEquals(aboutZ(10.5), mRotation, 1e-9);
+    }
+
+    @Test
+    public void takesTheShortPathBetweenRotations() {
+        PoseHistory history = new PoseHistory(8);
+        double[] negatedQuarterZ = { -QUARTER_Z[0], -QUARTER_Z[1], -QUARTER_Z[2],
+                -QUARTER_Z[3] };
+        history.add(0, new double[3], IDENTITY, 0);
+        history.add(1, new double[3], negatedQuarterZ, 0);
+        history.getPoseAtTime(0.5, mTranslation, mRotation);
+        // The long way round would pass 225 degrees instead.
+        assertArrayEquals(aboutZ(45), mRotation, TOLERANCE);
+    }
+
+    @Test
+    public void isNotFoundOutsideTheWindow() {
+        PoseHistory history = new PoseHistory(4);
+        assertEquals(PoseHistory.NOT_FOUND, history.getPoseAtTime(0, mTranslation, mRotation));
+        history.add(5, new double[3], IDENTITY, 0);
+        assertEquals(0, history.getPoseAtTime(5, mTranslation, mRotation));
+        history.add(6, new double[3], IDENTITY, 0);
+        assertEquals(PoseHistory.NOT_FOUND,
+                history.getPoseAtTime(4.999, mTranslation, mRotation));
+        assertEquals(PoseHistory.NOT_FOUND,
+                history.getPoseAtTime(6.001, mTranslation, mRotation));
+    }
+
+    @Test
+    public void isNotFoundAfterEviction() {
+        PoseHistory history = new PoseHistory(4);
+        for (int i = 0; i < 10; i++) {
+            history.add(i, new double[] { i, i, i }, IDENTITY, i);
+        }
+        assertEquals(4, history.size());
+        assertEquals(9, history.getNewestTimestamp(), 0);
+        for (double timestamp = 0; timestamp < 6; timestamp += 0.5) {
+            assertEquals("at " + timestamp, PoseHistory.NOT_FOUND,
+                    history.getPoseAtTime(timestamp, mTranslation, mRotation));
+        }
+        for (int i = 7; i < 10; i++) {
+            assertEquals(i, history.getPoseAtTime(i, mTranslation, mRotation));
+            assertArrayEquals(new double[] { i, i, i }, mTranslation, 0);
+        }
+    }
+
+    @Test
+    public void rejectsOutOfOrderPoses() {
+        PoseHistory history = new PoseHistory(8);
+        assertTrue(history.add(2, new double[] { 2, 2, 2 }, IDENTITY, 2));
+        assertFalse(history.add(1, new double[] { 1, 1, 1 }, IDENTITY, 1));
+        assertFalse(history.add(2, new double[] { 3, 3, 3 }, IDENTITY, 3));
+        assertFalse(history.add(Double.NaN, new double[3], IDENTITY, 4));
+        assertEquals(1, history.size());
+        assertEquals(2, history.getNewestTimestamp(), 0);
+        assertEquals(2, history.getPoseAtTime(2, mTranslation, mRotation));
+        assertArrayEquals(new double[] { 2, 2, 2 }, mTranslation, 0);
+        assertTrue(history.add(3, new double[] { 3, 3, 3 }, IDENTITY, 3));
+    }
+
+    @Test
+    public void roundsCapacityUpToAPowerOfTwo() {
+        assertEquals(8, new PoseHistory(5).capacity());
+        assertEquals(8, new PoseHistory(8).capacity());
+        try {
+            new PoseHistory(1);
+            fail("Accepted a capacity of 1");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Pose {@code k} has timestamp, translation and status {@code k}, so any
+     * pose mixing two slots has components that disagree. Readers ask for
+     * times at the oldest end of the window, where the writer overwrites.
+     */
+    @Test(timeout = 60000)
+    public void readersNeverSeeTornPoses() throws InterruptedException {
+        final PoseHistory history = new PoseHistory(8);
+        final int poses = 2000000;
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                double[] translation = new double[3];
+                for (int k = 1; k <= poses; k++) {
+                    translation[0] = k;
+                    translation[1] = k;
+                    translation[2] = k;
+                    history.add(k, translation, IDENTITY, k);
+                }
+                isWriting.set(false);
+            }
+        });
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                double[] translation = new double[3];
+                double[] rotation = new double[4];
+                long found = 0;
+                while (isWriting.get() && failure.get() == null) {
+                    double oldest = history.getNewestTimestamp() - history.capacity() + 2;
+                    // Whole and half steps, so the expected pose is exact.
+                    double timestamp = oldest + random.nextInt(2 * history.capacity()) * 0.5;
+                    int status = history.getPoseAtTime(timestamp, translation, rotation);
+                    if (status == PoseHistory.NOT_FOUND) {
+                        continue;
+                    }
+                    found++;
+                    if (translation[0] != timestamp || translation[1] != timestamp
+                            || translation[2] != timestamp
+                            || Math.abs(status - timestamp) > 0.5) {
+                        failure.set("At " + timestamp + " got status " + status + " and "
+                                + translation[0] + ", " + translation[1] + ", "
+                                + translation[2]);
+                    }
+                }
+                if (found == 0) {
+                    failure.compareAndSet(null, "No pose was found");
+                }
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+        if (failure.get() != null) {
+            fail(failure.get());
+        }
+    }
+
+    /** The unit quaternion (x, y, z, w) turning {@code degrees} about z. */
+    private static double[] aboutZ(double degrees) {
+        double half = Math.toRadians(degrees) / 2;
+        return new double[] { 0, 0, Math.sin(half), Math.cos(half) };
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SessionReplayTest {
+
+    // Each recording fits in the recorder's four chunk buffers, so no record
+    // can be dropped however slowly the writer thread runs.
+    private static final int CHUNK_SIZE = 48 * 1024;
+    private static final int POSES = 600;
+    private static final int POSES_PER_DEPTH_FRAME = 20;
+    private static final int DEPTH_POINTS = 200;
+    private static final double START = 100;
+    private static final double POSE_INTERVAL = 0.01;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** Records every event it receives as a string, copying all values. */
+    private static final class EventLog implements SessionListener {
+        final List<String> events = new ArrayList<String>();
+        // Grid step to compare coded depth frames by, or 0 for exact values.
+        private final float mDepthPrecision;
+
+        EventLog(float depthPrecision) {
+            mDepthPrecision = depthPrecision;
+        }
+
+        @Override
+        public void onPose(double timestamp, int baseFrame, int targetFrame, int statusCode,
+                double[] translation, double[] rotation) {
+            events.add("pose " + timestamp + " " + baseFrame + " " + targetFrame + " "
+                    + statusCode + " " + Arrays.toString(translation) + " "
+                    + Arrays.toString(rotation));
+        }
+
+        @Override
+        public void onXyzIj(double timestamp, FloatBuffer xyz, int xyzCount, int ijRows,
+                int ijCols, IntBuffer ij) {
+            StringBuilder event = new StringBuilder("xyzij " + timestamp + " " + ijRows + " "
+                    + ijCols + " " + xyzCount);
+            if (ij != null) {
+                for (int i = 0; i < ijRows * ijCols; i++) {
+                    event.append(' ').append(ij.get(i));
+                }
+            }
+            event.append(" :");
+            if (mDepthPrecision == 0) {
+                for (int i = 0; i < xyzCount * 3; i++) {
+                    event.append(' ').append(xyz.get(i));
+                }
+            } else {
+                // The codec does not keep the point order; compare grid cells.
+                float inverse = 1 / mDepthPrecision;
+                long[] cells = new long[xyzCount * 3];
+                for (int i = 0; i < cells.length; i++) {
+                    cells[i] = Math.round(xyz.get(i) * inverse);
+                }
+                long[][] points = new long[xyzCount][];
+                for (int i = 0; i < xyzCount; i++) {
+                    points[i] = Arrays.copyOfRange(cells, i * 3, i * 3 + 3);
+                }
+                String[] sorted = new String[xyzCount];
+                for (int i = 0; i < xyzCount; i++) {
+                    sorted[i] = Arrays.toString(points[i]);
+                }
+                Arrays.sort(sorted);
+                event.append(Arrays.toString(sorted));
+            }
+            events.add(event.toString());
+        }
+
+        @Override
+        public void onExtrinsics(int baseFrame, int targetFrame, double[] translation,
+                double[] rotation) {
+            events.add("extrinsics " + baseFrame + " " + targetFrame + " "
+                    + Arrays.toString(translation) + " " + Arrays.toString(rotation));
+        }
+    }
+
+    @Test
+    public void replaysRecordedEventsIdenticallyAndInOrder() throws IOException {
+        File file = mFolder.newFile();
+        EventLog recorded = record(file, 0, new Random(1));
+        SessionReplay replay = new SessionReplay(file);
+        try {
+            assertFalse(replay.isRecovered());
+            assertTrue(replay.getChunkCount() > 1);
+            assertEquals(START, replay.getStartTimestamp(), 0);
+            EventLog replayed = new EventLog(0);
+            assertEquals(recorded.events.size(), replay.play(replayed, 0));
+            assertEquals(extrinsicsFirst(recorded.events), replayed.events);
+
+            // A second play starts over.
+            replayed.events.clear();
+            replay.play(replayed, 0);
+            assertEquals(extrinsicsFirst(recorded.events), replayed.events);
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void replaysCodedDepthFramesWithinTheirPrecision() throws IOException {
+        File file = mFolder.newFile();
+        float precision = 0.001f;
+        // Both logs hold grid cells, so matching cells mean every point came
+        // back within half a step.
+        EventLog recorded = record(file, precision, new Random(2), new EventLog(precision));
+        SessionReplay replay = new SessionReplay(file);
+        try {
+            EventLog replayed = new EventLog(precision);
+            replay.play(replayed, 0);
+            assertEquals(extrinsicsFirst(recorded.events), replayed.events);
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void seeksThroughTheIndex() throws IOException {
+        File file = mFolder.newFile();
+        EventLog recorded = record(file, 0, new Random(3));
+        double seekTimestamp = START + POSES * POSE_INTERVAL * 0.75;
+        SessionReplay replay = new SessionReplay(file);
+        try {
+            replay.seek(seekTimestamp);
+            EventLog replayed = new EventLog(0);
+            replay.play(replayed, 0);
+
+            List<String> expected = new ArrayList<String>();
+            for (String event : extrinsicsFirst(recorded.events)) {
+                if (event.startsWith("extrinsics") || timestampOf(event) >= seekTimestamp) {
+                    expected.add(event);
+                }
+            }
+            assertEquals(expected, replayed.events);
+            assertTrue(timestampOf(replayed.events.get(3)) >= seekTimestamp);
+            assertTrue(timestampOf(replayed.events.get(3)) < seekTimestamp + POSE_INTERVAL);
+
+            // Past the end there is nothing but the extrinsics.
+            replay.seek(START + POSES * POSE_INTERVAL + 1);
+            replayed.events.clear();
+            assertEquals(3, replay.play(replayed, 0));
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void recoversTheCompleteChunksOfATruncatedFile() throws IOException {
+        File file = mFolder.newFile();
+        EventLog recorded = record(file, 0, new Random(4));
+        int chunkCount;
+        SessionReplay full = new SessionReplay(file);
+        try {
+            chunkCount = full.getChunkCount();
+        } finally {
+            full.close();
+        }
+
+        // Cut the index and the end of the last chunk, as a crash would.
+        truncate(file, indexOffset(file) - 10);
+        SessionReplay replay = new SessionReplay(file);
+        try {
+            assertTrue(replay.isRecovered());
+            assertEquals(chunkCount - 1, replay.getChunkCount());
+            EventLog replayed = new EventLog(0);
+            replay.play(replayed, 0);
+            // The extrinsics of the complete chunks, then their records.
+            List<String> expected = extrinsicsFirst(recorded.events.subList(0,
+                    replayed.events.size()));
+            assertEquals(expected, replayed.events);
+            assertTrue(replayed.events.size() < recorded.events.size());
+            assertTrue(replayed.events.size() > recorded.events.size() / chunkCount);
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void recoversEveryChunkWithoutTheIndex() throws IOException {
+        File file = mFolder.newFile();
+        EventLog recorded = record(file, 0, new Random(5));
+        truncate(file, indexOffset(file));
+        SessionReplay replay = new SessionReplay(file);
+        try {
+            assertTrue(replay.isRecovered());
+            EventLog replayed = new EventLog(0);
+            replay.play(replayed, 0);
+            assertEquals(extrinsicsFirst(recorded.events), replayed.events);
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void failsOnACorruptChunk() throws IOException {
+        File file = mFolder.newFile();
+        record(file, 0, new Random(6));
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            // Inside the payload of the first chunk, after its header.
+            out.seek(SessionFormat.HEADER_SIZE + SessionFormat.CHUNK_HEADER_SIZE + 100);
+            int value = out.read();
+            out.seek(SessionFormat.HEADER_SIZE + SessionFormat.CHUNK_HEADER_SIZE + 100);
+            out.write(value ^ 0x40);
+        } finally {
+            out.close();
+        }
+        SessionReplay replay = new SessionReplay(file);
+        try {
+            replay.play(new EventLog(0), 0);
+            fail("Played a chunk that fails its checksum");
+        } catch (IOException e) {
+            // Expected.
+        } finally {
+            replay.close();
+        }
+    }
+
+    /**
+     * Records a session of poses with a depth frame every
+     * {@link #POSES_PER_DEPTH_FRAME} poses, and three extrinsics: two at the
+     * start and one partway through.
+     *
+     * @return the events as they were recorded.
+     */
+    private static EventLog record(File file, float depthPrecision, Random random)
+            throws IOException {
+        return record(file, depthPrecision, random, new EventLog(0));
+    }
+
+    private static EventLog record(File file, float depthPrecision, Random random,
+            EventLog recorded) throws IOException {
+        SessionRecorder recorder = new SessionRecorder(file, CHUNK_SIZE, depthPrecision,
+                DEPTH_POINTS);
+        SessionListener both = tee(recorder, recorded);
+        both.onExtrinsics(1, 2, new double[] { 0.1, 0.2, 0.3 }, new double[] { 0, 0, 0, 1 });
+        both.onExtrinsics(1, 3, new double[] { -0.1, 0, 0.05 }, new double[] { 0.5, 0.5,
+                0.5, 0.5 });
+        float[] points = new float[DEPTH_POINTS * 3];
+        for (int i = 0; i < POSES; i++) {
+            double timestamp = START + i * POSE_INTERVAL;
+            both.onPose(timestamp, 1, 4, i % 3, new double[] { random.nextGaussian(),
+                    random.nextGaussian(), random.nextGaussian() }, new double[] {
+                    random.nextGaussian(), random.nextGaussian(), random.nextGaussian(),
+                    random.nextGaussian() });
+            if (i == POSES / 2) {
+                both.onExtrinsics(2, 3, new double[] { 1, 2, 3 }, new double[] { 1, 0, 0, 0 });
+            }
+            if (i % POSES_PER_DEPTH_FRAME == 0) {
+                for (int p = 0; p < points.length; p++) {
+                    points[p] = random.nextFloat() * 8 - 4;
+                }
+                IntBuffer ij = null;
+                if (i % (2 * POSES_PER_DEPTH_FRAME) == 0) {
+                    ij = IntBuffer.wrap(new int[] { i, 1, 2, 3, 4, -1 });
+                }
+                both.onXyzIj(timestamp + POSE_INTERVAL / 2, FloatBuffer.wrap(points),
+                        DEPTH_POINTS, ij != null ? 2 : 0, ij != null ? 3 : 0, ij);
+            }
+        }
+        recorder.close();
+        assertEquals(0, recorder.getDroppedRecordCount());
+        assertEquals(recorded.events.size(), recorder.getRecordCount());
+        return recorded;
+    }
+
+    private static SessionListener tee(final SessionListener first,
+            final SessionListener second) {
+        return new SessionListener() {
+            @Override
+            public void onPose(double timestamp, int baseFrame, int targetFrame,
+                    int statusCode, double[] translation, double[] rotation) {
+                first.onPose(timestamp, baseFrame, targetFrame, statusCode, translation,
+                        rotation);
+                second.onPose(timestamp, baseFrame, targetFrame, statusCode, translation,
+                        rotation);
+            }
+
+            @Override
+            public void onXyzIj(double timestamp, FloatBuffer xyz, int xyzCount, int ijRows,
+                    int ijCols, IntBuffer ij) {
+                first.onXyzIj(timestamp, xyz, xyzCount, ijRows, ijCols, ij);
+                second.onXyzIj(timestamp, xyz, xyzCount, ijRows, ijCols, ij);
+            }
+
+            @Override
+            public void onExtrinsics(int baseFrame, int targetFrame, double[] translation,
+                    double[] rotation) {
+                first.onExtrinsics(baseFrame, targetFrame, translation, rotation);
+                second.onExtrinsics(baseFrame, targetFrame, translation, rotation);
+            }
+        };
+    }
+
+    /** Replays deliver every extrinsic before the other records. */
+    private static List<String> extrinsicsFirst(List<String> events) {
+        List<String> ordered = new ArrayList<String>();
+        for (String event : events) {
+            if (event.startsWith("extrinsics")) {
+                ordered.add(event);
+            }
+        }
+        for (String event : events) {
+            if (!event.startsWith("extrinsics")) {
+                ordered.add(event);
+            }
+        }
+        return ordered;
+    }
+
+    private static double timestampOf(String event) {
+        return Double.parseDouble(event.split(" ")[1]);
+    }
+
+    private static long indexOffset(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(in.length() - SessionFormat.FOOTER_SIZE);
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(length);
+        } finally {
+            out.close();
+        }
+    }
+}
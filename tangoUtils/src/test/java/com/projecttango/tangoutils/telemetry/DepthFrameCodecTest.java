@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.telemetry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DepthFrameCodecTest {
+
+    private static final int MAX_POINTS = 5000;
+    private static final float[] PRECISIONS = { 0.0005f, DepthFrameCodec.DEFAULT_PRECISION,
+            0.01f };
+
+    @Test
+    public void roundTripsWithinHalfAStep() {
+        Random random = new Random(1);
+        for (float precision : PRECISIONS) {
+            for (int deflate = 0; deflate < 2; deflate++) {
+                DepthFrameCodec codec = new DepthFrameCodec(MAX_POINTS, precision, deflate == 1);
+                float[] xyz = depthFrame(random, MAX_POINTS);
+                assertRoundTrip(codec, 1234.5678, xyz, MAX_POINTS);
+                // Fewer points than the buffer holds, through the same codec.
+                assertRoundTrip(codec, 1234.6, xyz, 777);
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsNegativeCoordinatesAndDuplicates() {
+        float[] xyz = { -3.25f, -0.5f, -7.125f, 2.5f, 0, 0.001f, -3.25f, -0.5f, -7.125f,
+                0, 0, 0 };
+        assertRoundTrip(new DepthFrameCodec(4, DepthFrameCodec.DEFAULT_PRECISION, false),
+                -1, xyz, 4);
+        assertRoundTrip(new DepthFrameCodec(4, DepthFrameCodec.DEFAULT_PRECISION, true),
+                -1, xyz, 4);
+    }
+
+    @Test
+    public void roundTripsEmptyAndSinglePointFrames() {
+        for (int deflate = 0; deflate < 2; deflate++) {
+            DepthFrameCodec codec = new DepthFrameCodec(1, DepthFrameCodec.DEFAULT_PRECISION,
+                    deflate == 1);
+            assertRoundTrip(codec, 0.25, new float[0], 0);
+            assertRoundTrip(codec, 0.5, new float[] { 1.2345f, -0.5f, 3.75f }, 1);
+        }
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        for (int deflate = 0; deflate < 2; deflate++) {
+            DepthFrameCodec codec = new DepthFrameCodec(200,
+                    DepthFrameCodec.DEFAULT_PRECISION, deflate == 1);
+            byte[] encoded = encode(codec, 1, depthFrame(new Random(2), 200), 200);
+            float[] xyz = new float[200 * 3];
+            for (int length = 0; length < encoded.length; length++) {
+                try {
+                    codec.decode(encoded, 0, length, xyz);
+                    fail("Decoded a frame truncated to " + length + " of "
+                            + encoded.length + " bytes, deflate " + deflate);
+                } catch (IllegalArgumentException e) {
+                    // Expected.
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsBadHeaders() {
+        DepthFrameCodec codec = new DepthFrameCodec(10, DepthFrameCodec.DEFAULT_PRECISION,
+                false);
+        byte[] encoded = encode(codec, 1, depthFrame(new Random(3), 10), 10);
+        float[] xyz = new float[30];
+        // Magic, version and each byte of the precision, which follows the
+        // one-byte count and the timestamp.
+        int precision = 5 + 1 + 8;
+        byte[][] corruptions = { withByte(encoded, 0, 'X'), withByte(encoded, 2, 'X'),
+                withByte(encoded, 3, 2), withByte(encoded, precision, 0x80),
+                withByte(encoded, precision, 0x7f), withByte(encoded, precision, 0xff) };
+        for (int i = 0; i < corruptions.length; i++) {
+            byte[] corrupt = corruptions[i];
+            try {
+                codec.decode(corrupt, 0, corrupt.length, xyz);
+                fail("Decoded corruption " + i);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void corruptInputFailsOnlyWithIllegalArgument() {
+        Random random = new Random(4);
+        float[] xyz = new float[MAX_POINTS * 3];
+        for (int deflate = 0; deflate < 2; deflate++) {
+            DepthFrameCodec codec = new DepthFrameCodec(MAX_POINTS,
+                    DepthFrameCodec.DEFAULT_PRECISION, deflate == 1);
+            byte[] encoded = encode(codec, 1, depthFrame(random, 100), 100);
+            for (int trial = 0; trial < 10000; trial++) {
+                byte[] corrupt = encoded.clone();
+                for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                    corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+                }
+                try {
+                    codec.decode(corrupt, 0, corrupt.length, xyz);
+                } catch (IllegalArgumentException e) {
+                    // Expected for most; anything else escaping is a bug.
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsFramesOverCapacity() {
+        DepthFrameCodec codec = new DepthFrameCodec(10, DepthFrameCodec.DEFAULT_PRECISION,
+                true);
+        float[] xyz = depthFrame(new Random(5), 11);
+        byte[] out = new byte[DepthFrameCodec.maxEncodedSize(11)];
+        try {
+            codec.encode(0, FloatBuffer.wrap(xyz), 11, out, 0);
+            fail("Encoded past the codec capacity");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+
+        byte[] encoded = encode(codec, 0, xyz, 10);
+        assertEquals(10, DepthFrameCodec.readCount(encoded, 0, encoded.length));
+        try {
+            codec.decode(encoded, 0, encoded.length, new float[9 * 3]);
+            fail("Decoded past the output capacity");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            new DepthFrameCodec(9, DepthFrameCodec.DEFAULT_PRECISION, true).decode(encoded, 0,
+                    encoded.length, new float[10 * 3]);
+            fail("Inflated past the codec capacity");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsFramesSpanningTooManySteps() {
+        DepthFrameCodec codec = new DepthFrameCodec(2, 0.001f, false);
+        // 2^21 steps of 1 mm is about 2097 m.
+        float[] xyz = { 0, 0, 0, 0, 0, 2100 };
+        try {
+            codec.encode(0, FloatBuffer.wrap(xyz), 2, new byte[DepthFrameCodec
+                    .maxEncodedSize(2)], 0);
+            fail("Encoded a frame wider than the Morton code");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        xyz[5] = 2000;
+        assertRoundTrip(codec, 0, xyz, 2);
+    }
+
+    @Test
+    public void decodesAtAnOffset() {
+        DepthFrameCodec codec = new DepthFrameCodec(10, DepthFrameCodec.DEFAULT_PRECISION,
+                true);
+        float[] xyz = depthFrame(new Random(6), 10);
+        byte[] out = new byte[DepthFrameCodec.maxEncodedSize(10) + 5];
+        int length = codec.encode(3.5, FloatBuffer.wrap(xyz), 10, out, 5);
+        assertEquals(3.5, DepthFrameCodec.readTimestamp(out, 5, length), 0);
+        assertEquals(10, codec.decode(out, 5, length, new float[30]));
+    }
+
+    /** Points between 0.5 and 8 m in front of a camera looking down z. */
+    private static float[] depthFrame(Random random, int pointCount) {
+        float[] xyz = new float[pointCount * 3];
+        for (int i = 0; i < xyz.length; i += 3) {
+            float z = 0.5f + random.nextFloat() * 7.5f;
+            xyz[i] = (random.nextFloat() - 0.5f) * 1.15f * z;
+            xyz[i + 1] = (random.nextFloat() - 0.5f) * 0.9f * z;
+            xyz[i + 2] = z;
+        }
+        return xyz;
+    }
+
+    private static byte[] encode(DepthFrameCodec codec, double timestamp, float[] xyz,
+            int pointCount) {
+        FloatBuffer buffer = FloatBuffer.wrap(xyz);
+        byte[] out = new byte[DepthFrameCodec.maxEncodedSize(pointCount)];
+        int length = codec.encode(timestamp, buffer, pointCount, out, 0);
+        assertEquals(0, buffer.position());
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Encodes and decodes a frame, then pairs every original point with a
+     * decoded one on the same grid cell, since the order is not kept.
+     */
+    private static void assertRoundTrip(DepthFrameCodec codec, double timestamp, float[] xyz,
+            int pointCount) {
+        byte[] encoded = encode(codec, timestamp, xyz, pointCount);
+        assertEquals(pointCount, DepthFrameCodec.readCount(encoded, 0, encoded.length));
+        assertEquals(timestamp, DepthFrameCodec.readTimestamp(encoded, 0, encoded.length), 0);
+        float[] decoded = new float[pointCount * 3];
+        assertEquals(pointCount, codec.decode(encoded, 0, encoded.length, decoded));
+
+        // Decoded points on the same cell are identical, so one stands for all.
+        float inverse = 1 / codec.getPrecision();
+        Map<String, Integer> cells = new HashMap<String, Integer>();
+        Map<String, Integer> firstPoints = new HashMap<String, Integer>();
+        for (int i = 0; i < pointCount * 3; i += 3) {
+            String cell = cell(decoded, i, inverse);
+            Integer count = cells.get(cell);
+            cells.put(cell, count == null ? 1 : count + 1);
+            if (count == null) {
+                firstPoints.put(cell, i);
+            }
+        }
+        for (int i = 0; i < pointCount * 3; i += 3) {
+            String cell = cell(xyz, i, inverse);
+            Integer count = cells.get(cell);
+            assertTrue("No decoded point for " + cell, count != null && count > 0);
+            cells.put(cell, count - 1);
+            int match = firstPoints.get(cell);
+            for (int axis = 0; axis < 3; axis++) {
+                float original = xyz[i + axis];
+                // Half a step, plus the float rounding of both values.
+                assertEquals(original, decoded[match + axis], codec.getPrecision() / 2 + 4
+                        * Math.ulp(original));
+            }
+        }
+    }
+
+    /** The grid cell of a point, computed as encode does. */
+    private static String cell(float[] xyz, int i, float inverse) {
+        return Math.round(xyz[i] * inverse) + "," + Math.round(xyz[i + 1] * inverse) + ","
+                + Math.round(xyz[i + 2] * inverse);
+    }
+
+    private static byte[] withByte(byte[] encoded, int index, int value) {
+        byte[] copy = encoded.clone();
+        copy[index] = (byte) value;
+        return copy;
+    }
+}
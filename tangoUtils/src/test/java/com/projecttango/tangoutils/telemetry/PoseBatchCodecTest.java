@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.projecttango.tangoutils.telemetry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PoseBatchCodecTest {
+
+    // Half a step of the 15-bit components, with room for the recovered one.
+    private static final double ROTATION_TOLERANCE = 1e-4;
+    private static final double TRANSLATION_TOLERANCE = 0.5e-4;
+    private static final double TIME_TOLERANCE = 0.5e-6;
+
+    @Test
+    public void roundTripsEachLargestComponentWithBothSigns() {
+        PoseBatch batch = new PoseBatch(8);
+        for (int largest = 0; largest < 4; largest++) {
+            for (int sign = -1; sign <= 1; sign += 2) {
+                double[] rotation = { 0.1, -0.2, 0.15, 0.05 };
+                rotation[largest] = 0.9 * sign;
+                batch.add(batch.size() * 0.01, new double[] { 1, 2, 3 }, rotation, 1);
+            }
+        }
+        assertRoundTrip(batch);
+    }
+
+    @Test
+    public void roundTripsRandomPoses() {
+        Random random = new Random(1);
+        PoseBatch batch = new PoseBatch(1000);
+        double time = 1000;
+        for (int i = 0; i < batch.capacity(); i++) {
+            time += random.nextDouble() * 0.1;
+            batch.add(time, new double[] { random.nextGaussian() * 10,
+                    random.nextGaussian() * 10, random.nextGaussian() },
+                    new double[] { random.nextGaussian(), random.nextGaussian(),
+                            random.nextGaussian(), random.nextGaussian() },
+                    random.nextInt(4));
+        }
+        assertRoundTrip(batch);
+    }
+
+    @Test
+    public void roundTripsNegativeAndLargeTimeDeltas() {
+        PoseBatch batch = new PoseBatch(5);
+        double[] translation = { 0, 0, 0 };
+        double[] rotation = { 0, 0, 0, 1 };
+        batch.add(5000, translation, rotation, 1);
+        // Out of order, then a day later, then back before the base time.
+        batch.add(4999.5, translation, rotation, 1);
+        batch.add(5000 + 86400, translation, rotation, 1);
+        batch.add(10, translation, rotation, 1);
+        batch.add(10.000001, translation, rotation, 1);
+        assertRoundTrip(batch);
+    }
+
+    @Test
+    public void roundTripsUnnormalizedAndZeroQuaternions() {
+        PoseBatch batch = new PoseBatch(2);
+        batch.add(0, new double[] { 0, 0, 0 }, new double[] { 0, 0, 2, 2 }, 1);
+        batch.add(1, new double[] { 0, 0, 0 }, new double[] { 0, 0, 0, 0 }, 1);
+        PoseBatch decoded = roundTrip(batch);
+        double h = Math.sqrt(0.5);
+        assertRotation(new double[] { 0, 0, h, h }, decoded.rotations, 0);
+        assertRotation(new double[] { 0, 0, 0, 1 }, decoded.rotations, 4);
+    }
+
+    @Test
+    public void roundTripsEmptyBatch() {
+        assertEquals(0, roundTrip(new PoseBatch(1)).size());
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        byte[] encoded = encode(randomBatch(20));
+        for (int length = 0; length < encoded.length; length++) {
+            try {
+                PoseBatchCodec.decode(encoded, 0, length, new PoseBatch(20));
+                fail("Decoded a batch truncated to " + length + " bytes");
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void rejectsBadHeaders() {
+        byte[] encoded = encode(randomBatch(3));
+        byte[] badMagic = encoded.clone();
+        badMagic[1] = 'X';
+        assertRejected(badMagic);
+        byte[] badVersion = encoded.clone();
+        badVersion[3] = (byte) (PoseBatchCodec.VERSION + 1);
+        assertRejected(badVersion);
+        // A varint that never ends.
+        byte[] badCount = Arrays.copyOf(encoded, 32);
+        Arrays.fill(badCount, 5, 32, (byte) 0xFF);
+        assertRejected(badCount);
+    }
+
+    @Test
+    public void rejectsCountsTheDataCannotHold() {
+        // 'TPB', version, flags, then a count of 2^31 - 1 and nothing else.
+        byte[] claim = { 'T', 'P', 'B', PoseBatchCodec.VERSION, 0, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 };
+        try {
+            PoseBatchCodec.readCount(claim, 0, claim.length);
+            fail("Trusted a count larger than the data");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void corruptInputFailsOnlyWithIllegalArgument() {
+        byte[] encoded = encode(randomBatch(50));
+        Random random = new Random(2);
+        PoseBatch batch = new PoseBatch(1000);
+        for (int trial = 0; trial < 10000; trial++) {
+            byte[] corrupt = encoded.clone();
+            for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                PoseBatchCodec.decode(corrupt, 0, corrupt.length, batch);
+            } catch (IllegalArgumentException e) {
+                // Expected for most; anything else escaping is a bug.
+            }
+        }
+    }
+
+    @Test
+    public void rejectsBatchesOverCapacity() {
+        byte[] encoded = encode(randomBatch(10));
+        assertEquals(10, PoseBatchCodec.readCount(encoded, 0, encoded.length));
+        try {
+            PoseBatchCodec.decode(encoded, 0, encoded.length, new PoseBatch(9));
+            fail("Decoded past the batch capacity");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void decodesAtAnOffset() {
+        PoseBatch batch = randomBatch(10);
+        byte[] encoded = encode(batch);
+        byte[] padded = new byte[encoded.length + 7];
+        System.arraycopy(encoded, 0, padded, 3, encoded.length);
+        PoseBatch decoded = new PoseBatch(10);
+        assertEquals(encoded.length,
+                PoseBatchCodec.decode(padded, 3, encoded.length, decoded));
+        assertEquals(10, decoded.size());
+    }
+
+    @Test
+    public void staysWithinMaxEncodedSize() {
+        PoseBatch batch = new PoseBatch(100);
+        Random random = new Random(3);
+        for (int i = 0; i < batch.capacity(); i++) {
+            // Extreme jumps make every varint long.
+            batch.add(random.nextDouble() * 1e9, new double[] {
+                    random.nextGaussian() * 1e6, random.nextGaussian() * 1e6,
+                    random.nextGaussian() * 1e6 }, new double[] { 0, 0, 0, 1 }, 255);
+        }
+        assertTrue(encode(batch).length <= PoseBatchCodec.maxEncodedSize(100));
+    }
+
+    private static PoseBatch randomBatch(int count) {
+        Random random = new Random(count);
+        PoseBatch batch = new PoseBatch(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(100 + i * 0.01, new double[] { random.nextDouble(),
+                    random.nextDouble(), random.nextDouble() }, new double[] {
+                    random.nextGaussian(), random.nextGaussian(),
+                    random.nextGaussian(), random.nextGaussian() }, 1);
+        }
+        return batch;
+    }
+
+    private static byte[] encode(PoseBatch batch) {
+        byte[] out = new byte[PoseBatchCodec.maxEncodedSize(batch.size())];
+        return Arrays.copyOf(out, PoseBatchCodec.encode(batch, out, 0));
+    }
+
+    private static PoseBatch roundTrip(PoseBatch batch) {
+        byte[] encoded = encode(batch);
+        PoseBatch decoded = new PoseBatch(Math.max(1, batch.size()));
+        assertEquals(encoded.length,
+                PoseBatchCodec.decode(encoded, 0, encoded.length, decoded));
+        return decoded;
+    }
+
+    private static void assertRoundTrip(PoseBatch batch) {
+        PoseBatch decoded = roundTrip(batch);
+        assertEquals(batch.size(), decoded.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.timestamps[i], decoded.timestamps[i], TIME_TOLERANCE);
+            assertEquals(batch.statusCodes[i], decoded.statusCodes[i]);
+            for (int k = 0; k < PoseBatch.TRANSLATION_SIZE; k++) {
+                int t = i * PoseBatch.TRANSLATION_SIZE + k;
+                assertEquals(batch.translations[t], decoded.translations[t],
+                        TRANSLATION_TOLERANCE);
+            }
+            double[] expected = Arrays.copyOfRange(batch.rotations,
+                    i * PoseBatch.ROTATION_SIZE, (i + 1) * PoseBatch.ROTATION_SIZE);
+            assertRotation(expected, decoded.rotations, i * PoseBatch.ROTATION_SIZE);
+        }
+    }
+
+    /** Compares rotations, treating q and -q as the same. */
+    private static void assertRotation(double[] expected, double[] rotations, int offset) {
+        double norm = 0;
+        double dot = 0;
+        for (int k = 0; k < 4; k++) {
+            norm += expected[k] * expected[k];
+            dot += expected[k] * rotations[offset + k];
+        }
+        double scale = (dot < 0 ? -1 : 1) / Math.sqrt(norm);
+        for (int k = 0; k < 4; k++) {
+            assertEquals(expected[k] * scale, rotations[offset + k], ROTATION_TOLERANCE);
+        }
+    }
+
+    private static void assertRejected(byte[] encoded) {
+        try {
+            PoseBatchCodec.decode(encoded, 0, encoded.length, new PoseBatch(100));
+            fail("Accepted a malformed batch");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}